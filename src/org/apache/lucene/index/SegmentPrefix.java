@@ -0,0 +1,72 @@
+package org.apache.lucene.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.apache.lucene.store.Directory;
+
+/**
+ * Compares segments of two index readers (e.g. of consecutive versions
+ * of the same index), to find documents that have the same doc ids in both.
+ */
+public class SegmentPrefix {
+
+	/** Segments of reader, or null if unknown type of reader */
+	protected static SegmentReader[] getSegments(IndexReader reader){
+		if(reader instanceof SegmentReader)
+			return new SegmentReader[] { (SegmentReader)reader };
+		if(reader instanceof MultiSegmentReader)
+			return ((MultiSegmentReader)reader).subReaders;
+		return null;
+	}
+
+	/**
+	 * Number of leading documents that come from the same segments
+	 * (same name, size and files) in both readers. Deletions may differ.
+	 */
+	public static int getUnchangedDocs(IndexReader oldReader, IndexReader newReader) throws IOException {
+		SegmentReader[] olds = getSegments(oldReader);
+		SegmentReader[] news = getSegments(newReader);
+		if(olds == null || news == null)
+			return 0;
+		int docs = 0;
+		for(int i=0;i<olds.length && i<news.length;i++){
+			if(!sameSegment(olds[i],news[i]))
+				break;
+			docs += news[i].maxDoc();
+		}
+		return docs;
+	}
+
+	/**
+	 * Segment names are reused by rebuilt indexes, so compare
+	 * sizes and modification times of segment files too
+	 */
+	protected static boolean sameSegment(SegmentReader a, SegmentReader b) throws IOException {
+		if(!a.getSegmentName().equals(b.getSegmentName()) || a.maxDoc() != b.maxDoc())
+			return false;
+		ArrayList<String> files = getDataFiles(a);
+		if(!files.equals(getDataFiles(b)))
+			return false;
+		Directory da = a.directory(), db = b.directory();
+		for(String name : files){
+			if(da.fileLength(name) != db.fileLength(name) || da.fileModified(name) != db.fileModified(name))
+				return false;
+		}
+		return true;
+	}
+
+	/** Names of segment files, except deletions which may differ */
+	protected static ArrayList<String> getDataFiles(SegmentReader r) throws IOException {
+		ArrayList<String> files = new ArrayList<String>();
+		for(Object o : r.files()){
+			String name = (String) o;
+			if(!name.endsWith(".del"))
+				files.add(name);
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+}
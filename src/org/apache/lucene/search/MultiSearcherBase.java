@@ -21,12 +21,21 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.Term;
+import org.wikimedia.lsearch.search.IndexSearcherMul;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /** Implements search over a set of <code>Searchables</code>.
  *
@@ -110,9 +119,25 @@ public class MultiSearcherBase extends Searcher {
   }
 
 
+  /**
+   * Create weight of an already rewritten query using precomputed (global)
+   * document frequencies of its terms, e.g. when searching a single part
+   * of a distributed index.
+   */
+  public static Weight createWeight(Query rewrittenQuery, Term[] terms, int[] dfs, int maxDoc, Similarity similarity) throws IOException {
+    HashMap<Term,Integer> dfMap = new HashMap<Term,Integer>();
+    for(int i=0; i<terms.length; i++)
+      dfMap.put(terms[i], new Integer(dfs[i]));
+    return rewrittenQuery.weight(new CachedDfSource(dfMap, maxDoc, similarity));
+  }
+
   protected SearchableMul[] searchables;
   protected int[] starts;
   protected int maxDoc = 0;
+  /** executor for concurrent fan-out to searchables, null for sequential search */
+  protected ExecutorService executor = null;
+  /** deadline (in ms) for a concurrent search, 0 for no limit */
+  protected long timeout = 0;
 
   /** Creates a searcher which searches <i>searchables</i>. */
   public MultiSearcherBase(SearchableMul[] searchables) throws IOException {
@@ -135,6 +160,93 @@ public class MultiSearcherBase extends Searcher {
   	return starts;
   }
 
+  /**
+   * Search all the searchables concurrently using executor. Results are
+   * merged as the parts answer, and if not all of them have answered
+   * within timeout ms the whole search fails.
+   *
+   * @param executor  bounded executor, or null for sequential search
+   * @param timeout   deadline in ms, 0 for no limit
+   */
+  public void setExecutor(ExecutorService executor, long timeout) {
+    this.executor = executor;
+    this.timeout = timeout;
+  }
+
+  /** If search will be fanned-out to searchables concurrently */
+  public boolean isConcurrent() {
+    return executor != null && searchables.length > 1;
+  }
+
+  /**
+   * Task run by the executor on a single searchable. Local searchers
+   * are referenced while the task runs, so they stay open even if the
+   * calling request has already ended (e.g. on timeout).
+   */
+  protected static abstract class PartTask<T> implements Callable<T> {
+    protected final Searchable s;
+
+    protected PartTask(Searchable s) {
+      this.s = s;
+    }
+
+    public T call() throws IOException {
+      IndexSearcherMul.acquireSearchable(s);
+      try {
+        return run();
+      } finally {
+        IndexSearcherMul.releaseSearchable(s);
+      }
+    }
+
+    protected abstract T run() throws IOException;
+  }
+
+  /** Callback for merging results of individual searchables */
+  protected interface PartMerger<T> {
+    void merge(int i, T result) throws IOException;
+  }
+
+  /**
+   * Run a task on every searchable via executor, and hand each result to
+   * merger as soon as it arrives (merger is always called from the
+   * calling thread). Unfinished tasks are cancelled on error or timeout.
+   */
+  protected <T> void fanOut(ArrayList<Callable<T>> tasks, PartMerger<T> merger) throws IOException {
+    CompletionService<T> service = new ExecutorCompletionService<T>(executor);
+    HashMap<Future<T>,Integer> futures = new HashMap<Future<T>,Integer>();
+    long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    try {
+      for (int i = 0; i < tasks.size(); i++)
+        futures.put(service.submit(tasks.get(i)), i);
+      for (int done = 0; done < tasks.size(); done++) {
+        Future<T> f;
+        if (deadline == 0)
+          f = service.take();
+        else {
+          long remaining = deadline - System.currentTimeMillis();
+          f = remaining > 0 ? service.poll(remaining, TimeUnit.MILLISECONDS) : service.poll();
+          if (f == null)
+            throw new IOException("Time limit of "+timeout+"ms exceeded, "+(tasks.size()-done)+" of "+tasks.size()+" parts didn't answer");
+        }
+        int i = futures.remove(f);
+        merger.merge(i, f.get());
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while waiting for searchables: "+e.getMessage());
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new IOException("Error searching part: "+cause);
+    } finally {
+      for (Future<T> f : futures.keySet())
+        f.cancel(true);
+    }
+  }
+
   // inherit javadoc
   public void close() throws IOException {
     for (int i = 0; i < searchables.length; i++)
@@ -151,15 +263,38 @@ public class MultiSearcherBase extends Searcher {
   }
   
   public int[] docFreqs(Term[] terms) throws IOException {
-	  int[] dfs = new int[terms.length];
-	  for(int j=0;j<dfs.length;j++)
-		  dfs[j] = 0;
-	  for (int i = 0; i < searchables.length; i++){
-		  int[] partDf = searchables[i].docFreqs(terms);
-		  for(int j=0;j<partDf.length;j++)
-			  dfs[j] += partDf[j];
-	  }
-	  return dfs;
+	  return aggregateDocFreqs(terms);
+  }
+
+  /** 
+   * Sum up document frequencies of terms over all searchables, 
+   * requesting them from all parts at once in concurrent mode
+   */
+  protected int[] aggregateDocFreqs(final Term[] terms) throws IOException {
+    final int[] dfs = new int[terms.length];
+    if (terms.length == 0)
+      return dfs;
+    PartMerger<int[]> merger = new PartMerger<int[]>() {
+      public void merge(int i, int[] partDf) {
+        for(int j=0;j<partDf.length;j++)
+          dfs[j] += partDf[j];
+      }
+    };
+    if (isConcurrent()) {
+      ArrayList<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+      for (int i = 0; i < searchables.length; i++) {
+        tasks.add(new PartTask<int[]>(searchables[i]) {
+          protected int[] run() throws IOException {
+            return s.docFreqs(terms);
+          }
+        });
+      }
+      fanOut(tasks, merger);
+    } else {
+      for (int i = 0; i < searchables.length; i++)
+        merger.merge(i, searchables[i].docFreqs(terms));
+    }
+    return dfs;
   }
 
   // inherit javadoc
@@ -208,60 +343,90 @@ public class MultiSearcherBase extends Searcher {
     return maxDoc;
   }
 
-  public TopDocs search(Weight weight, Filter filter, int nDocs)
+  public TopDocs search(final Weight weight, final Filter filter, final int nDocs)
   throws IOException {
 
-    HitQueue hq = new HitQueue(nDocs);
-    int totalHits = 0;
-
-    for (int i = 0; i < searchables.length; i++) { // search each searcher
-      TopDocs docs = searchables[i].search(weight, filter, nDocs);
-      totalHits += docs.totalHits;		  // update totalHits
-      ScoreDoc[] scoreDocs = docs.scoreDocs;
-      for (int j = 0; j < scoreDocs.length; j++) { // merge scoreDocs into hq
-	ScoreDoc scoreDoc = scoreDocs[j];
-        scoreDoc.doc += starts[i];                // convert doc
-        if(!hq.insert(scoreDoc))
+    final HitQueue hq = new HitQueue(nDocs);
+    final int[] totalHits = new int[1];
+
+    PartMerger<TopDocs> merger = new PartMerger<TopDocs>() {
+      public void merge(int i, TopDocs docs) {
+        totalHits[0] += docs.totalHits;		  // update totalHits
+        ScoreDoc[] scoreDocs = docs.scoreDocs;
+        for (int j = 0; j < scoreDocs.length; j++) { // merge scoreDocs into hq
+          ScoreDoc scoreDoc = scoreDocs[j];
+          scoreDoc.doc += starts[i];                // convert doc
+          if(!hq.insert(scoreDoc))
             break;                                // no more scores > minScore
+        }
+      }
+    };
+
+    if (isConcurrent()) {
+      ArrayList<Callable<TopDocs>> tasks = new ArrayList<Callable<TopDocs>>();
+      for (int i = 0; i < searchables.length; i++) {
+        tasks.add(new PartTask<TopDocs>(searchables[i]) {
+          protected TopDocs run() throws IOException {
+            return s.search(weight, filter, nDocs);
+          }
+        });
       }
+      fanOut(tasks, merger);
+    } else {
+      for (int i = 0; i < searchables.length; i++) // search each searcher
+        merger.merge(i, searchables[i].search(weight, filter, nDocs));
     }
 
     ScoreDoc[] scoreDocs = new ScoreDoc[hq.size()];
     for (int i = hq.size()-1; i >= 0; i--)	  // put docs in array
       scoreDocs[i] = (ScoreDoc)hq.pop();
     
-    float maxScore = (totalHits==0) ? Float.NEGATIVE_INFINITY : scoreDocs[0].score;
+    float maxScore = (totalHits[0]==0) ? Float.NEGATIVE_INFINITY : scoreDocs[0].score;
     
-    return new TopDocs(totalHits, scoreDocs, maxScore);
+    return new TopDocs(totalHits[0], scoreDocs, maxScore);
   }
 
-  public TopFieldDocs search (Weight weight, Filter filter, int n, Sort sort)
+  public TopFieldDocs search (final Weight weight, final Filter filter, final int n, final Sort sort)
   throws IOException {
-    FieldDocSortedHitQueue hq = null;
-    int totalHits = 0;
-
-    float maxScore=Float.NEGATIVE_INFINITY;
-    
-    for (int i = 0; i < searchables.length; i++) { // search each searcher
-      TopFieldDocs docs = searchables[i].search (weight, filter, n, sort);
-      
-      if (hq == null) hq = new FieldDocSortedHitQueue (docs.fields, n);
-      totalHits += docs.totalHits;		  // update totalHits
-      maxScore = Math.max(maxScore, docs.getMaxScore());
-      ScoreDoc[] scoreDocs = docs.scoreDocs;
-      for (int j = 0; j < scoreDocs.length; j++) { // merge scoreDocs into hq
-        ScoreDoc scoreDoc = scoreDocs[j];
-        scoreDoc.doc += starts[i];                // convert doc
-        if (!hq.insert (scoreDoc))
-          break;                                  // no more scores > minScore
+    final FieldDocSortedHitQueue[] hq = new FieldDocSortedHitQueue[1];
+    final int[] totalHits = new int[1];
+    final float[] maxScore = { Float.NEGATIVE_INFINITY };
+
+    PartMerger<TopFieldDocs> merger = new PartMerger<TopFieldDocs>() {
+      public void merge(int i, TopFieldDocs docs) {
+        if (hq[0] == null) hq[0] = new FieldDocSortedHitQueue (docs.fields, n);
+        totalHits[0] += docs.totalHits;		  // update totalHits
+        maxScore[0] = Math.max(maxScore[0], docs.getMaxScore());
+        ScoreDoc[] scoreDocs = docs.scoreDocs;
+        for (int j = 0; j < scoreDocs.length; j++) { // merge scoreDocs into hq
+          ScoreDoc scoreDoc = scoreDocs[j];
+          scoreDoc.doc += starts[i];                // convert doc
+          if (!hq[0].insert (scoreDoc))
+            break;                                  // no more scores > minScore
+        }
+      }
+    };
+
+    if (isConcurrent()) {
+      ArrayList<Callable<TopFieldDocs>> tasks = new ArrayList<Callable<TopFieldDocs>>();
+      for (int i = 0; i < searchables.length; i++) {
+        tasks.add(new PartTask<TopFieldDocs>(searchables[i]) {
+          protected TopFieldDocs run() throws IOException {
+            return s.search (weight, filter, n, sort);
+          }
+        });
       }
+      fanOut(tasks, merger);
+    } else {
+      for (int i = 0; i < searchables.length; i++) // search each searcher
+        merger.merge(i, searchables[i].search (weight, filter, n, sort));
     }
 
-    ScoreDoc[] scoreDocs = new ScoreDoc[hq.size()];
-    for (int i = hq.size() - 1; i >= 0; i--)	  // put docs in array
-      scoreDocs[i] = (ScoreDoc) hq.pop();
+    ScoreDoc[] scoreDocs = new ScoreDoc[hq[0].size()];
+    for (int i = hq[0].size() - 1; i >= 0; i--)	  // put docs in array
+      scoreDocs[i] = (ScoreDoc) hq[0].pop();
 
-    return new TopFieldDocs (totalHits, scoreDocs, hq.getFields(), maxScore);
+    return new TopFieldDocs (totalHits[0], scoreDocs, hq[0].getFields(), maxScore[0]);
   }
 
 
@@ -295,13 +460,7 @@ public class MultiSearcherBase extends Searcher {
     rewrittenQuery.extractTerms(terms);
     Term[] allTermsArray = new Term[terms.size()];
     terms.toArray(allTermsArray);
-    int[] aggregatedDfs = new int[terms.size()];
-    for (int i = 0; i < searchables.length; i++) {
-      int[] dfs = searchables[i].docFreqs(allTermsArray);
-      for(int j=0; j<aggregatedDfs.length; j++){
-        aggregatedDfs[j] += dfs[j];
-      }
-    }
+    int[] aggregatedDfs = aggregateDocFreqs(allTermsArray);
 
     for(int i=0; i<allTermsArray.length; i++) {
       dfMap.put(allTermsArray[i], new Integer(aggregatedDfs[i]));
@@ -341,13 +500,7 @@ public class MultiSearcherBase extends Searcher {
     // step3
     Term[] allTermsArray = new Term[terms.size()];
     terms.toArray(allTermsArray);
-    int[] aggregatedDfs = new int[terms.size()];
-    for (int i = 0; i < searchables.length; i++) {
-      int[] dfs = searchables[i].docFreqs(allTermsArray);
-      for(int j=0; j<aggregatedDfs.length; j++){
-        aggregatedDfs[j] += dfs[j];
-      }
-    }
+    int[] aggregatedDfs = aggregateDocFreqs(allTermsArray);
 
     HashMap<Term,Integer> dfMap = new HashMap<Term,Integer>();
     for(int i=0; i<allTermsArray.length; i++) {
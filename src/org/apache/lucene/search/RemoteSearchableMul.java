@@ -8,12 +8,18 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.Term;
+import org.wikimedia.lsearch.search.IndexSearcherMul;
 
+/**
+ * Exports a local searcher via RMI. Every call holds a reference to
+ * the local searcher, so it is not closed under a running remote query
+ * when the index is updated.
+ */
 public class RemoteSearchableMul extends UnicastRemoteObject
 implements SearchableMul {
-	  
+
 	  private Searchable local;
-	  
+
 	  /** Constructs and exports a remote searcher. */
 	  public RemoteSearchableMul(Searchable local) throws RemoteException {
 	    super();
@@ -23,7 +29,12 @@ implements SearchableMul {
 
 	  public void search(Weight weight, Filter filter, HitCollector results)
 	    throws IOException {
-	    local.search(weight, filter, results);
+	    IndexSearcherMul.acquireSearchable(local);
+	    try {
+	      local.search(weight, filter, results);
+	    } finally {
+	      IndexSearcherMul.releaseSearchable(local);
+	    }
 	  }
 
 	  public void close() throws IOException {
@@ -31,57 +42,112 @@ implements SearchableMul {
 	  }
 
 	  public int docFreq(Term term) throws IOException {
-	    return local.docFreq(term);
+	    IndexSearcherMul.acquireSearchable(local);
+	    try {
+	      return local.docFreq(term);
+	    } finally {
+	      IndexSearcherMul.releaseSearchable(local);
+	    }
 	  }
 
 
 	  public int[] docFreqs(Term[] terms) throws IOException {
-	    return local.docFreqs(terms);
+	    IndexSearcherMul.acquireSearchable(local);
+	    try {
+	      return local.docFreqs(terms);
+	    } finally {
+	      IndexSearcherMul.releaseSearchable(local);
+	    }
 	  }
 
 	  public int maxDoc() throws IOException {
-	    return local.maxDoc();
+	    IndexSearcherMul.acquireSearchable(local);
+	    try {
+	      return local.maxDoc();
+	    } finally {
+	      IndexSearcherMul.releaseSearchable(local);
+	    }
 	  }
 
 	  public TopDocs search(Weight weight, Filter filter, int n) throws IOException {
-	    return local.search(weight, filter, n);
+	    IndexSearcherMul.acquireSearchable(local);
+	    try {
+	      return local.search(weight, filter, n);
+	    } finally {
+	      IndexSearcherMul.releaseSearchable(local);
+	    }
 	  }
 
 
 	  public TopFieldDocs search (Weight weight, Filter filter, int n, Sort sort)
 	  throws IOException {
-	    return local.search (weight, filter, n, sort);
+	    IndexSearcherMul.acquireSearchable(local);
+	    try {
+	      return local.search (weight, filter, n, sort);
+	    } finally {
+	      IndexSearcherMul.releaseSearchable(local);
+	    }
 	  }
 
 	  public Document doc(int i) throws IOException {
-	    return local.doc(i);
+	    IndexSearcherMul.acquireSearchable(local);
+	    try {
+	      return local.doc(i);
+	    } finally {
+	      IndexSearcherMul.releaseSearchable(local);
+	    }
 	  }
-	  
+
 	  public Document[] docs(int[] docIds) throws IOException {
-		  Document[] ds = new Document[docIds.length];
-		  for(int j=0;j<docIds.length;j++)
-		    ds[j] = local.doc(docIds[j]);
-		  return ds;
+		  IndexSearcherMul.acquireSearchable(local);
+		  try {
+			  Document[] ds = new Document[docIds.length];
+			  for(int j=0;j<docIds.length;j++)
+				  ds[j] = local.doc(docIds[j]);
+			  return ds;
+		  } finally {
+			  IndexSearcherMul.releaseSearchable(local);
+		  }
 	  }
-	  
+
 		public Document[] docs(int[] docIds, FieldSelector sel) throws IOException {
-			Document[] ds = new Document[docIds.length];
-			for(int j=0;j<docIds.length;j++)
-				ds[j] = local.doc(docIds[j],sel);
-			return ds;
+			IndexSearcherMul.acquireSearchable(local);
+			try {
+				Document[] ds = new Document[docIds.length];
+				for(int j=0;j<docIds.length;j++)
+					ds[j] = local.doc(docIds[j],sel);
+				return ds;
+			} finally {
+				IndexSearcherMul.releaseSearchable(local);
+			}
 		}
 
 	  public Query rewrite(Query original) throws IOException {
-	    return local.rewrite(original);
+	    IndexSearcherMul.acquireSearchable(local);
+	    try {
+	      return local.rewrite(original);
+	    } finally {
+	      IndexSearcherMul.releaseSearchable(local);
+	    }
 	  }
 
 	  public Explanation explain(Weight weight, int doc) throws IOException {
-	    return local.explain(weight, doc);
+	    IndexSearcherMul.acquireSearchable(local);
+	    try {
+	      return local.explain(weight, doc);
+	    } finally {
+	      IndexSearcherMul.releaseSearchable(local);
+	    }
 	  }
 
 
 	  public Document doc(int n, FieldSelector fieldSelector) throws CorruptIndexException, IOException {
-		  return local.doc(n,fieldSelector);
+		  IndexSearcherMul.acquireSearchable(local);
+		  try {
+			  return local.doc(n,fieldSelector);
+		  } finally {
+			  IndexSearcherMul.releaseSearchable(local);
+		  }
 	  }
 
 }
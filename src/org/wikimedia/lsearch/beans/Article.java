@@ -193,6 +193,7 @@ public class Article implements Serializable  {
 	
 	public void setReferences(int references) {
 		this.references = references;
+		this.redirectsSorted = null;
 	}
 
 	/** Add value to rank (useful when processing redirects to this page) */
@@ -203,11 +204,13 @@ public class Article implements Serializable  {
 	/** Register a redirect to this article */
 	public void addRedirect(Redirect linkingArticle){
 		redirects.add(linkingArticle);
+		redirectsSorted = null; // rank and redirect keywords need to be recomputed
 	}
 	
 	/** Register a list of redirects to this article */
 	public void addRedirects(Collection<Redirect> linkingArticles){
 		redirects.addAll(linkingArticles);
+		redirectsSorted = null;
 	}
 	
 	/** Get list of articles that redirect to this article */
@@ -217,6 +220,7 @@ public class Article implements Serializable  {
 
 	public void setRedirects(ArrayList<Redirect> redirects) {
 		this.redirects = redirects;
+		this.redirectsSorted = null;
 	}
 
 	/** Get redirect names without the namespace prefix, as they should be indexed */
@@ -1099,6 +1099,27 @@ public class GlobalConfiguration {
 		}
 	}
 
+	/**
+	 * Process optional <parallel> (true/false), <timeout> (ms) params of
+	 * split index types, starting at token at position start
+	 */
+	protected void processParallelParams(String type, String role, String[] tokens, int start, Hashtable<String,String> params){
+		if(tokens.length>start){
+			String token = tokens[start].trim().toLowerCase();
+			if(token.equals("true") || token.equals("false"))
+				params.put("parallel",token);
+			else{
+				System.err.println("Expecting true/false as parallel paramter of type "+type+" in database def: "+role);
+				System.exit(1);
+			}
+		}
+		if(tokens.length>start+1)
+			params.put("timeout",tokens[start+1].trim());
+
+		if(tokens.length>start+2 && verbose)
+			System.out.println("Unrecognized database parameters in ("+role+")");
+	}
+
 	/**
 	 * Process roles in format type,param1,param2... and put
 	 * them into the database Hashtable
@@ -1139,7 +1160,8 @@ public class GlobalConfiguration {
 			dbroles.put(type,params);
 
 		} else if(type.equals("mainsplit")){
-			// currently no params
+			// all params are optional
+			processParallelParams(type,role,tokens,1,params);
 			dbroles.put(type,params);
 		} else if(type.equals("split") || type.equals("nssplit")){
 			if(tokens.length>1) // number of segments
@@ -1149,6 +1171,7 @@ public class GlobalConfiguration {
 					System.out.println("Warning: for dbs "+dbs+" splitFactor is not specified, using default of 2.");
 				params.put("number","2");
 			}
+			processParallelParams(type,role,tokens,2,params);
 			dbroles.put(type,params);
 		} else if(type.equals("language")){
 			// langauge is optional, or maybe it shouldn't be
@@ -542,6 +542,16 @@ public class IndexId {
 		}
 	}
 	
+	/** If parts of this split index should be searched concurrently */
+	public boolean isParallelSearch(){
+		return getBooleanParam("parallel",false);
+	}
+	
+	/** Deadline (in ms) for concurrent search over parts, 0 for no limit */
+	public int getParallelSearchTimeout(){
+		return getIntParam("timeout",0);
+	}
+	
 	/** Get if this is mainpart of mainsplit index */
 	public boolean isMainPart(){
 		return type == IndexType.MAINSPLIT && partNum == 0;
@@ -4,13 +4,16 @@
  */
 package org.wikimedia.lsearch.config;
 
+import java.io.IOException;
 import java.util.HashSet;
 
 import org.apache.lucene.search.BooleanQuery;
 import org.wikimedia.lsearch.frontend.HTTPIndexServer;
 import org.wikimedia.lsearch.frontend.RPCIndexServer;
 import org.wikimedia.lsearch.frontend.SearchServer;
+import org.wikimedia.lsearch.index.Transaction;
 import org.wikimedia.lsearch.interoperability.RMIServer;
+import org.wikimedia.lsearch.replication.SnapshotServer;
 import org.wikimedia.lsearch.search.NetworkStatusThread;
 import org.wikimedia.lsearch.search.SearcherCache;
 import org.wikimedia.lsearch.search.UpdateThread;
@@ -36,6 +39,9 @@ public class StartupManager {
 			}
 		}
 		Configuration config = Configuration.open();
+		// needs to be set before lucene opens any index
+		if(config.getString("Index","transactions","backup").equalsIgnoreCase("journal"))
+			Transaction.installJournal();
 		GlobalConfiguration global = GlobalConfiguration.getInstance();
 		int maxclause = config.getInt("Search","maxclause",4096);
 		BooleanQuery.setMaxClauseCount(maxclause);
@@ -63,6 +69,13 @@ public class StartupManager {
 				System.out.println("Warning: Unknown server type \""+daemon+"\" for indexer, using http frontend.");
 				(new HTTPIndexServer()).start();			
 			}
+			if(config.getBoolean("Replication","server")){
+				try{
+					SnapshotServer.startServer();
+				} catch(IOException e){
+					System.out.println("Warning: Cannot start snapshot server: "+e.getMessage());
+				}
+			}
 		}
 		if(global.isSearcher()){
 			// startup
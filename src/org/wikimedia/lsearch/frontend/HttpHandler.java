@@ -10,6 +10,7 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -35,6 +36,8 @@ abstract public class HttpHandler extends Thread {
 	DataInputStream istrm;
 	/** Client output stream */
 	PrintWriter ostrm;
+	/** Client socket */
+	protected Socket socket;
 	
 	protected String method;
 	protected String rawUri;
@@ -54,11 +57,26 @@ abstract public class HttpHandler extends Thread {
 
 	protected HashMap<String,Object> headers;
 	
+	/** 
+	 * Buffer the whole response and send it with Content-Length, 
+	 * so that the connection can be kept alive 
+	 */
+	protected boolean bufferResponse = false;
+	/** headers of the buffered response */
+	protected StringBuilder responseHeaders = null;
+	/** body of the buffered response */
+	protected StringBuilder responseBody = null;
+	/** set when client closed the connection */
+	protected boolean closed = false;
+	/** time when last request was finished */
+	protected long lastActive = System.currentTimeMillis();
+	
 	protected static HttpMonitor monitor = null; 
 
 	public HttpHandler(Socket s) {
 		if(monitor == null)
 			monitor = HttpMonitor.getInstance();
+		socket = s;
 		try {
 			istrm = new DataInputStream(new BufferedInputStream(s.getInputStream()));
 			ostrm = new PrintWriter(new BufferedWriter(new OutputStreamWriter(s.getOutputStream(),"utf-8")));			
@@ -76,19 +94,21 @@ abstract public class HttpHandler extends Thread {
 		}
 	}
 
-	private static void enter() {
+	protected static void enter() {
 		synchronized (countLock) {
 			openCount++;
 		}
 	}
 
-	private static void leave() {
+	protected static void leave() {
 		synchronized (countLock) {
 			openCount--;
 		}
 	}
 
 	public boolean isKeepAlive(){
+		if(version == null || headers == null)
+			return false;
 		if(version.equals("HTTP/1.0")){
 			if(headers.get("Connection")!=null &&
 					((String)headers.get("Connection")).equalsIgnoreCase("Keep-Alive"))
@@ -130,6 +150,59 @@ abstract public class HttpHandler extends Thread {
 		}
 	}
 
+	/**
+	 * Handle a single request, for frontends that don't keep a thread
+	 * for the whole life of the connection. The response is buffered, 
+	 * and sent with Content-Length.
+	 * 
+	 * @return if the connection should be kept open for the next request
+	 */
+	public boolean handleNext(){
+		boolean keepAlive = false;
+		bufferResponse = true;
+		try {
+			enter();
+			headersSent = false;
+			handle();
+			keepAlive = !closed && isKeepAlive();
+		} catch (Exception e) {
+			log.error(e.getMessage(),e);
+		} finally {
+			if (!headersSent && !closed) {
+				sendError(500, "Internal server error", "An internal error occurred: no header sent.");
+			}
+			if(!closed)
+				flushOutput();
+			lastActive = System.currentTimeMillis();
+			leave();
+		}
+		return keepAlive;
+	}
+	
+	/** If there is already (part of) the next request read from the client */
+	public boolean hasBufferedInput(){
+		try {
+			return istrm.available() > 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/** Close the connection to client */
+	public void close(){
+		try {  ostrm.close(); } catch(Exception e) { }
+		try {  istrm.close(); } catch(Exception e) { }
+		try {  socket.close(); } catch(Exception e) { }
+	}
+	
+	public Socket getSocket(){
+		return socket;
+	}
+	
+	public long getLastActive(){
+		return lastActive;
+	}
+
 	/** 
 	 * Simple HTTP protocol; Used for search (GET) and indexing (POST) 
 	 * GET requests syntax:
@@ -154,6 +227,11 @@ abstract public class HttpHandler extends Thread {
 		// parse first line		
 		String request = readInputLine();
 		if (request == null) {
+			if(bufferResponse){
+				// keep-alive connection closed by client
+				closed = true;
+				return;
+			}
 		    log.warn("HttpHandler cannot handle a null search request.");
 		    return;
 		}
@@ -210,6 +288,19 @@ abstract public class HttpHandler extends Thread {
 			log.warn("Asked to send headers, but already sent! ("+code+" "+message+")");
 			return;
 		}
+		if(bufferResponse){
+			// send with content length once the whole response is known
+			responseHeaders = new StringBuilder();
+			responseBody = new StringBuilder();
+			responseHeaders.append("HTTP/1.1 "+code+" "+message+"\r\n");
+			responseHeaders.append("Content-Type: " + contentType+((!charset.equals("none"))? "; charset="+charset : "")+"\r\n");
+			if("HTTP/1.0".equals(version) && isKeepAlive())
+				responseHeaders.append("Connection: Keep-Alive\r\n");
+			else if("HTTP/1.1".equals(version) && !isKeepAlive())
+				responseHeaders.append("Connection: close\r\n");
+			headersSent = true;
+			return;
+		}
 		sendOutputLine("HTTP/1.1 "+code+" "+message);
 		sendOutputLine("Content-Type: " + contentType+((!charset.equals("none"))? "; charset="+charset : ""));
 		if(contentLen!=-1)
@@ -237,6 +328,10 @@ abstract public class HttpHandler extends Thread {
 	/** Send single line to client. The lines are buffered and sent out in chunks */
 	protected void sendOutputLine(String sout) {
 		log.debug(">>>"+sout);
+		if(responseBody != null){
+			responseBody.append(sout).append("\r\n");
+			return;
+		}
 		// write to buffer instead directly to stream!
 		char[] s = (sout+"\r\n").toCharArray(); 
 		if(bufLength + s.length >= outputBuffer.length)
@@ -252,6 +347,10 @@ abstract public class HttpHandler extends Thread {
 	/** Sending raw data to client */
 	protected void sendBytes(char[] data){
 		log.debug(">>> Writing "+data.length+" bytes of data");
+		if(responseBody != null){
+			responseBody.append(data);
+			return;
+		}
 		flushOutput();
 		ostrm.write(data);
 	}
@@ -290,6 +389,20 @@ abstract public class HttpHandler extends Thread {
 
 	/** Flush output buffer, i.e. the one used by sendOutputLine() */
 	protected void flushOutput(){
+		if(responseBody != null){
+			String body = responseBody.toString();
+			try {
+				responseHeaders.append("Content-Length: "+body.getBytes("utf-8").length+"\r\n\r\n");
+			} catch (UnsupportedEncodingException e) {
+				log.error("No utf-8 support",e);
+			}
+			ostrm.write(responseHeaders.toString());
+			ostrm.write(body);
+			if(ostrm.checkError())
+				closed = true; // client went away
+			responseHeaders = null;
+			responseBody = null;
+		}
 		if(bufLength != 0){
 			ostrm.write(new String(outputBuffer,0,bufLength));
 			bufLength = 0;
@@ -0,0 +1,185 @@
+package org.wikimedia.lsearch.frontend;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * HTTP frontend that multiplexes idle (keep-alive) connections on
+ * a single selector thread. A connection is handed to the worker
+ * pool only once a request has arrived, and returned to the selector
+ * when the request is done, so idle clients don't hold any threads.
+ *
+ * Connections beyond the number of workers are queued, not dropped,
+ * up to maxConnections.
+ */
+public abstract class KeepAliveServer {
+	static Logger log = Logger.getLogger(KeepAliveServer.class);
+
+	protected ServerSocketChannel server;
+	protected Selector selector;
+	protected ExecutorService pool;
+	/** max number of open connections */
+	protected int maxConnections;
+	/** close connections idle for longer than this (in ms) */
+	protected long idleTimeout;
+
+	protected AtomicInteger connections = new AtomicInteger(0);
+	/** connections done with a request, to be watched again */
+	protected ConcurrentLinkedQueue<HttpHandler> returned = new ConcurrentLinkedQueue<HttpHandler>();
+
+	public KeepAliveServer(InetSocketAddress address, ExecutorService pool, int maxConnections, long idleTimeout) throws IOException {
+		this.pool = pool;
+		this.maxConnections = maxConnections;
+		this.idleTimeout = idleTimeout;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(address);
+		server.configureBlocking(false);
+		server.register(selector,SelectionKey.OP_ACCEPT);
+	}
+
+	/** Make the handler for a newly accepted client */
+	protected abstract HttpHandler makeHandler(Socket client);
+
+	/** Called when a client is rejected because of too many connections */
+	protected void rejected(){
+		log.error("too many connections, closing new connection");
+	}
+
+	public int getConnectionCount(){
+		return connections.get();
+	}
+
+	/** Run the selector loop, never returns */
+	public void serve(){
+		long lastIdleCheck = System.currentTimeMillis();
+		for(;;){
+			try{
+				selector.select(1000);
+				// watch connections waiting for next request
+				HttpHandler h;
+				while((h = returned.poll()) != null)
+					watch(h);
+				// accept new clients, and collect the ones with request ready
+				ArrayList<HttpHandler> ready = new ArrayList<HttpHandler>();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()){
+					SelectionKey key = it.next();
+					it.remove();
+					if(!key.isValid())
+						continue;
+					if(key.isAcceptable())
+						accept();
+					else if(key.isReadable()){
+						key.cancel();
+						ready.add((HttpHandler)key.attachment());
+					}
+				}
+				if(ready.size() != 0){
+					// deregister cancelled keys so channels can be put into blocking mode
+					selector.selectNow();
+					for(HttpHandler r : ready)
+						dispatch(r);
+				}
+				long now = System.currentTimeMillis();
+				if(idleTimeout > 0 && now - lastIdleCheck > 1000){
+					closeIdle(now);
+					lastIdleCheck = now;
+				}
+			} catch(Exception e){
+				log.error("Error in selector loop: "+e.getMessage(),e);
+			}
+		}
+	}
+
+	protected void accept() throws IOException {
+		SocketChannel ch = server.accept();
+		if(ch == null)
+			return;
+		if(connections.get() >= maxConnections){
+			rejected();
+			try{ ch.close(); } catch(Exception e) {}
+			return;
+		}
+		connections.incrementAndGet();
+		try{
+			ch.socket().setTcpNoDelay(true);
+			watch(makeHandler(ch.socket()));
+		} catch(Exception e){
+			log.error("Cannot accept connection: "+e.getMessage(),e);
+			connections.decrementAndGet();
+			try{ ch.close(); } catch(Exception e1) {}
+		}
+	}
+
+	/** Register the connection with selector, to wait for next request */
+	protected void watch(HttpHandler h){
+		SocketChannel ch = h.getSocket().getChannel();
+		try{
+			ch.configureBlocking(false);
+			ch.register(selector,SelectionKey.OP_READ,h);
+		} catch(IOException e){
+			log.warn("Cannot watch connection: "+e.getMessage(),e);
+			close(h);
+		}
+	}
+
+	/** Process requests on the connection in the worker pool */
+	protected void dispatch(final HttpHandler h){
+		try{
+			h.getSocket().getChannel().configureBlocking(true);
+		} catch(IOException e){
+			log.warn("Cannot dispatch connection: "+e.getMessage(),e);
+			close(h);
+			return;
+		}
+		pool.execute(new Runnable(){
+			public void run() {
+				try{
+					while(h.handleNext()){
+						if(!h.hasBufferedInput()){
+							// wait for next request in the selector
+							returned.add(h);
+							selector.wakeup();
+							return;
+						}
+					}
+				} catch(Exception e){
+					log.error("Error handling request: "+e.getMessage(),e);
+				}
+				close(h);
+			}
+		});
+	}
+
+	protected void closeIdle(long now){
+		for(SelectionKey key : selector.keys()){
+			Object att = key.attachment();
+			if(att instanceof HttpHandler && key.isValid()){
+				HttpHandler h = (HttpHandler) att;
+				if(now - h.getLastActive() > idleTimeout){
+					key.cancel();
+					close(h);
+				}
+			}
+		}
+	}
+
+	protected void close(HttpHandler h){
+		h.close();
+		connections.decrementAndGet();
+	}
+}
@@ -28,6 +28,7 @@ import org.wikimedia.lsearch.config.IndexId;
 import org.wikimedia.lsearch.config.IndexRegistry;
 import org.wikimedia.lsearch.highlight.HighlightResult;
 import org.wikimedia.lsearch.highlight.Snippet;
+import org.wikimedia.lsearch.ranks.ObjectCache;
 import org.wikimedia.lsearch.search.AggregateMetaField;
 import org.wikimedia.lsearch.search.IndexSearcherMul;
 import org.wikimedia.lsearch.search.SearchEngine;
@@ -103,7 +104,14 @@ public class SearchDaemon extends HttpHandler {
 			SearchEngine search = new SearchEngine();
 			HashMap<String,Object> query = new QueryStringMap(uri);
 			double version = getVersion(query);
-			SearchResults res = search.search(dbname,what,searchterm,query,version);
+			SearchResults res;
+			SearcherCache cache = SearcherCache.getInstance();
+			cache.beginRequest();
+			try{
+				res = search.search(dbname,what,searchterm,query,version);
+			} finally{
+				cache.endRequest();
+			}
 
 			// log search request and result(s) to log4j.
 			if (!isSensitiveSearchterm(searchterm)) {
@@ -347,6 +355,8 @@ public class SearchDaemon extends HttpHandler {
 		contentType = "text/plain";
 		sendHeaders(200, "OK");
 		sendOutputLine(SearchServer.stats.summarize());
+		for(String line : ObjectCache.getAllStats())
+			sendOutputLine(line);
 	}
 	
 	private String formatTimestamp(long timestampLong){
@@ -428,9 +438,9 @@ public class SearchDaemon extends HttpHandler {
 		}
 	}
 	
-	// never use keepalive
+	// use keepalive only when the response has content length
 	public boolean isKeepAlive(){
-		return false;
+		return bufferResponse && super.isKeepAlive();
 	}
 	
 	/**
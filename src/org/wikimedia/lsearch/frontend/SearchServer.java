@@ -24,6 +24,7 @@
 package org.wikimedia.lsearch.frontend;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
@@ -62,6 +63,15 @@ public class SearchServer extends Thread {
 		/** Logger */
 		org.apache.log4j.Logger log = Logger.getLogger(SearchServer.class);
 		
+		String max = config.getString("Daemon", "maxworkers");
+		if (max != null)
+			maxThreads = Integer.parseInt(max);
+		
+		if(config.getBoolean("Daemon","nio",false)){
+			startNioServer(log);
+			return;
+		}
+		
 		try {
 			if (listenLocalOnly){
 				sock = new ServerSocket(port, 0, InetAddress.getByName(null));
@@ -75,24 +85,7 @@ public class SearchServer extends Thread {
 
 		log.info("Searcher started on port " + port+" ("+sock.getInetAddress()+")");
 		
-		String max = config.getString("Daemon", "maxworkers");
-		if (max != null)
-			maxThreads = Integer.parseInt(max);
-		
-		// Initialize statistics
-		stats = new Statistics(1000, statsPeriod);
-		if (config.getBoolean("Ganglia", "report")) {
-			log.info("Starting ganglia statistics thread...");
-			// Run a background thread to push our runtime stats to Ganglia
-			statsThread = new StatisticsThread();
-			String gangliaPort = config.getString("Ganglia", "port");
-			if (gangliaPort != null)
-				stats.GangliaPort = Integer.parseInt(gangliaPort);
-			String gangliaInterface = config.getString("Ganglia", "interface");
-			if (gangliaInterface != null)
-				stats.GangliaInterface = gangliaInterface;
-			statsThread.start();
-		}
+		startStatistics(log);
 		
 		ExecutorService pool = Executors.newFixedThreadPool(maxThreads);
 		
@@ -137,6 +130,52 @@ public class SearchServer extends Thread {
 		}
 	}
 	
+	/** Initialize statistics */
+	private static void startStatistics(Logger log){
+		stats = new Statistics(1000, statsPeriod);
+		if (config.getBoolean("Ganglia", "report")) {
+			log.info("Starting ganglia statistics thread...");
+			// Run a background thread to push our runtime stats to Ganglia
+			statsThread = new StatisticsThread();
+			String gangliaPort = config.getString("Ganglia", "port");
+			if (gangliaPort != null)
+				stats.GangliaPort = Integer.parseInt(gangliaPort);
+			String gangliaInterface = config.getString("Ganglia", "interface");
+			if (gangliaInterface != null)
+				stats.GangliaInterface = gangliaInterface;
+			statsThread.start();
+		}
+	}
+	
+	/** 
+	 * Start the selector based frontend, where idle keep-alive connections 
+	 * don't hold a worker thread 
+	 */
+	private static void startNioServer(final Logger log){
+		int maxConnections = config.getInt("Daemon","maxconnections",10000);
+		int idleTimeout = config.getInt("Daemon","keepalivetimeout",60);
+		KeepAliveServer server;
+		try {
+			InetSocketAddress address = listenLocalOnly? 
+					new InetSocketAddress(InetAddress.getByName(null),port) : new InetSocketAddress(port);
+			server = new KeepAliveServer(address,Executors.newFixedThreadPool(maxThreads),maxConnections,idleTimeout*1000L){
+				protected HttpHandler makeHandler(Socket client) {
+					return new SearchDaemon(client);
+				}
+				protected void rejected() {
+					stats.add(false, 0, SearchDaemon.getOpenCount());
+					log.error("too many connections, skipping a request");
+				}
+			};
+		} catch (Exception e) {
+			log.fatal("Error: bind error: " + e.getMessage());
+			return;
+		}
+		log.info("Searcher started on port " + port+" (selector frontend, "+maxThreads+" workers)");
+		startStatistics(log);
+		server.serve();
+	}
+	
 	/* (non-Javadoc)
 	 * @see java.lang.Runnable#run()
 	 */
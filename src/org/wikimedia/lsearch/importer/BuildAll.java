@@ -31,12 +31,14 @@ public class BuildAll {
 	static org.apache.log4j.Logger log = null;
 	
 	protected static void printHelp(){
-		System.out.println("Syntax: BuildAll [-f <file>] [-lt] [-i] [-sc] [dump file] [dbname]");
+		System.out.println("Syntax: BuildAll [-f <file>] [-lt] [-i] [-sc] [-p threads] [-ps shards] [dump file] [dbname]");
 		System.out.println("Options:");
 		System.out.println("    -f <file>   - use a file with a list of pairs <dbname> <dump file>");
 		System.out.println("    -lt         - leave titles - don't delete old titles indexes");
 		System.out.println("    -i          - import only - don't copy over all indexes in index/ folder");
 		System.out.println("    -sc         - don't rebuild spell-check index");
+		System.out.println("    -p threads  - make articles on this many threads while importing");
+		System.out.println("    -ps shards  - write index parts from separate threads, build single-part indexes as shards");
 	}
 	public static void main(String[] args) throws IOException{
 		System.out.println("MediaWiki lucene-search indexer - rebuild all indexes associated with a database.");
@@ -46,6 +48,7 @@ public class BuildAll {
 		String path = null, dbname = null, dump = null;
 		boolean noSpellcheck = false;
 		boolean leaveTitles = false, importOnly = false;
+		String threads = "1", shards = "0";
 		for(int i=0;i<args.length;i++){
 			if(args[i].equals("-f"))
 				path = args[++i];
@@ -55,6 +58,10 @@ public class BuildAll {
 				importOnly = true;
 			else if(args[i].equals("-sc"))
 				noSpellcheck = true;
+			else if(args[i].equals("-p"))
+				threads = args[++i];
+			else if(args[i].equals("-ps"))
+				shards = args[++i];
 			else if(args[i].startsWith("-")){
 				System.out.println("Unrecognized option "+args[i]);
 				printHelp();
@@ -107,7 +114,7 @@ public class BuildAll {
 		for(IndexId iid : iids){
 			try{
 				String dumpFile = dumpFiles.get(iid.toString());
-				Importer.main(new String[] {"-s","-h","-t",dumpFile,iid.toString()});
+				Importer.main(new String[] {"-s","-h","-t","-p",threads,"-ps",shards,dumpFile,iid.toString()});
 				if(!importOnly){
 					for(IndexId piid : iid.getPhysicalIndexIds()){
 						copy(piid.getImportPath(),piid.getIndexPath());
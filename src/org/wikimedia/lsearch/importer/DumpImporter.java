@@ -6,7 +6,16 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.Logger;
 import org.mediawiki.importer.DumpWriter;
 import org.mediawiki.importer.Page;
@@ -18,6 +27,7 @@ import org.wikimedia.lsearch.beans.Title;
 import org.wikimedia.lsearch.config.Configuration;
 import org.wikimedia.lsearch.config.GlobalConfiguration;
 import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.ranks.LinkLookup;
 import org.wikimedia.lsearch.ranks.Links;
 import org.wikimedia.lsearch.related.RelatedTitle;
 import org.wikimedia.lsearch.storage.RelatedStorage;
@@ -29,16 +39,34 @@ public class DumpImporter implements DumpWriter {
 	Revision revision;
 	SimpleIndexWriter indexWriter = null, highlightWriter = null, titleWriter = null;
 	int count = 0, limit;
-	Links links;
+	LinkLookup links;
 	String langCode;
 	RelatedStorage related;
 	boolean makeIndex, makeHighlight, makeTitle;
 	GlobalConfiguration global;
 	IndexId iid;
+	/** makes articles in parallel import, null if sequential */
+	ExecutorService pool = null;
+	/** articles being made, in dump order */
+	LinkedList<Future<Article>> pending = new LinkedList<Future<Article>>();
+	int window = 0;
 
 	public DumpImporter(String dbname, int limit, Boolean optimize, Integer mergeFactor, 
-			Integer maxBufDocs, boolean newIndex, Links links, String langCode,
+			Integer maxBufDocs, boolean newIndex, LinkLookup links, String langCode,
 			boolean makeIndex, boolean makeHighlight, boolean makeTitle, boolean newTitlesIndex){
+		this(dbname,limit,optimize,mergeFactor,maxBufDocs,newIndex,links,langCode,makeIndex,makeHighlight,makeTitle,newTitlesIndex,1,0);
+	}
+	
+	/**
+	 * @param threads - if more than 1, articles are made (link lookups etc..) on this many
+	 *                  threads, and every index is written from its own thread
+	 * @param shards - if more than 0, every index part is written from its own thread, and
+	 *                 indexes with a single part are written from this many threads, in chunks 
+	 *                 of consecutive articles merged in order
+	 */
+	public DumpImporter(String dbname, int limit, Boolean optimize, Integer mergeFactor, 
+			Integer maxBufDocs, boolean newIndex, LinkLookup links, String langCode,
+			boolean makeIndex, boolean makeHighlight, boolean makeTitle, boolean newTitlesIndex, int threads, int shards){
 		Configuration.open(); // make sure configuration is loaded
 		global = GlobalConfiguration.getInstance();
 		iid = IndexId.get(dbname);
@@ -54,10 +82,32 @@ public class DumpImporter implements DumpWriter {
 		this.makeHighlight = makeHighlight;
 		this.makeTitle = makeTitle;
 		this.langCode = langCode;
-		this.related = new RelatedStorage(iid);
+		if(makeIndex){ // related articles go only into the main index
+			this.related = new RelatedStorage(iid);
+			if(!related.canRead())
+				related = null; // add only if available
+		}
 		
-		if(!related.canRead())
-			related = null; // add only if available
+		int queueSize = Math.max(threads,1) * 8;
+		if(threads > 1){
+			window = queueSize;
+			pool = Executors.newFixedThreadPool(threads,new ThreadFactory(){
+				AtomicInteger count = new AtomicInteger(0);
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r,"DumpImporter-"+count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		for(SimpleIndexWriter w : new SimpleIndexWriter[] {indexWriter, highlightWriter, titleWriter}){
+			if(w == null)
+				continue;
+			if(shards > 0)
+				w.startShardedWriters(shards,queueSize);
+			else if(threads > 1)
+				w.startWriterThread(queueSize);
+		}
 	}
 	public void writeRevision(Revision revision) throws IOException {
 		this.revision = revision;		
@@ -66,6 +116,41 @@ public class DumpImporter implements DumpWriter {
 		this.page = page;
 	}
 	public void writeEndPage() throws IOException {
+		if(pool == null)
+			indexArticle(makeArticle(page,revision));
+		else{
+			final Page p = page;
+			final Revision r = revision;
+			pending.add(pool.submit(new Callable<Article>(){
+				public Article call() throws Exception {
+					return makeArticle(p,r);
+				}
+			}));
+			while(pending.size() > window)
+				indexNext();
+		}
+		
+		count++;
+		if(limit >= 0 && count > limit)
+			throw new IOException("stopped");
+	}
+	
+	/** Pass the oldest article being made to index writers */
+	protected void indexNext() throws IOException {
+		try {
+			indexArticle(pending.removeFirst().get());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while making article");
+		} catch (ExecutionException e) {
+			log.error("Error making article: "+e.getCause().getMessage(),e.getCause());
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	/** Make article from the dump page with link and related info, may be called concurrently */
+	protected Article makeArticle(Page page, Revision revision) throws IOException {
 		String key = page.Title.Namespace+":"+page.Title.Text;
 		// defaults:
 		int references = 0;
@@ -98,17 +183,17 @@ public class DumpImporter implements DumpWriter {
 				page.Title.Text,revision.Text,redirectTo,references,
 				redirectTargetNamespace,0,redirects,rel,anchors,date,
 				processLiquidThreadInfo(page.DiscussionThreadingInfo));
-		// index
+		return article;
+	}
+	
+	/** Add article to all indexes being built */
+	protected void indexArticle(Article article) throws IOException {
 		if(indexWriter != null)
 			indexWriter.addArticle(article);
 		if(highlightWriter != null)
 			highlightWriter.addArticleHighlight(article);
 		if(titleWriter != null)
 			titleWriter.addArticleTitle(article);
-		
-		count++;
-		if(limit >= 0 && count > limit)
-			throw new IOException("stopped");
 	}	
 	
 	/** Process LQT properties, convert titles into correct format */
@@ -148,6 +233,11 @@ public class DumpImporter implements DumpWriter {
 	}
 	
 	public void closeIndex() throws IOException {
+		if(pool != null){
+			while(!pending.isEmpty())
+				indexNext();
+			pool.shutdown();
+		}
 		if(indexWriter != null)
 			indexWriter.close();
 		if(highlightWriter != null)
@@ -10,6 +10,7 @@ import org.wikimedia.lsearch.config.Configuration;
 import org.wikimedia.lsearch.config.GlobalConfiguration;
 import org.wikimedia.lsearch.config.IndexId;
 import org.wikimedia.lsearch.index.IndexThread;
+import org.wikimedia.lsearch.ranks.LinkLookup;
 import org.wikimedia.lsearch.ranks.Links;
 import org.wikimedia.lsearch.ranks.LinksBuilder;
 import org.wikimedia.lsearch.related.RelatedBuilder;
@@ -40,6 +41,8 @@ public class Importer {
 		boolean useOldRelated = false;
 		boolean makeIndex = true; boolean makeHighlight = false;
 		boolean makeTitles = false; boolean newTitles = false;
+		int threads = 1, shards = 0;
+		boolean compactLinks = false;
 		
 		System.out.println("MediaWiki lucene-search indexer - index builder from xml database dumps.\n");
 		
@@ -47,7 +50,7 @@ public class Importer {
 		log = Logger.getLogger(Importer.class);
 		
 		if(args.length < 2){
-			System.out.println("Syntax: java Importer [-a] [-n] [-s] [-l] [-r] [-lm limit] [-o optimize] [-m mergeFactor] [-b maxBufDocs] <inputfile> <dbname>");
+			System.out.println("Syntax: java Importer [-a] [-n] [-s] [-l] [-r] [-lm limit] [-o optimize] [-m mergeFactor] [-b maxBufDocs] [-p threads] [-ps shards] [-cl] <inputfile> <dbname>");
 			System.out.println("Options: ");
 			System.out.println("  -a              - don't create new index, append to old");
 			System.out.println("  -s              - make index snapshot when finished");
@@ -62,6 +65,10 @@ public class Importer {
 			System.out.println("  -o optimize     - true/false overrides optimization param from global settings");
 			System.out.println("  -m mergeFactor  - overrides param from global settings");
 			System.out.println("  -b maxBufDocs   - overrides param from global settings");
+			System.out.println("  -p threads      - parallel import, make articles on this many threads");
+			System.out.println("  -ps shards      - write each index part from its own thread, build single-part");
+			System.out.println("                    indexes as this many shards and merge them at the end");
+			System.out.println("  -cl             - load link analysis into memory (compact) before indexing");
 			System.out.println("  --snapshot <db> - make snapshot only for dbname");
 			return;
 		}
@@ -74,6 +81,12 @@ public class Importer {
 				mergeFactor = Integer.parseInt(args[++i]);
 			else if(args[i].equals("-b"))
 				maxBufDocs = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-p"))
+				threads = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-ps"))
+				shards = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-cl"))
+				compactLinks = true;
 			else if(args[i].equals("-a"))
 				newIndex = false;
 			else if(args[i].equals("-l"))
@@ -170,8 +183,13 @@ public class Importer {
 				
 				log.info("Indexing articles "+add+"...");
 				Links links = Links.openStandalone(iid);
+				LinkLookup lookup = links;
+				if(compactLinks){
+					log.info("Loading link analysis into memory...");
+					lookup = links.makeCompact();
+				}
 				// read
-				DumpImporter dp = new DumpImporter(dbname,limit,optimize,mergeFactor,maxBufDocs,newIndex,links,langCode,makeIndex,makeHighlight,makeTitles,newTitles);
+				DumpImporter dp = new DumpImporter(dbname,limit,optimize,mergeFactor,maxBufDocs,newIndex,lookup,langCode,makeIndex,makeHighlight,makeTitles,newTitles,threads,shards);
 				XmlDumpReader reader = new XmlDumpReader(input,new ProgressFilter(dp, 1000));
 				reader.readDump();
 				end = System.currentTimeMillis();
@@ -1,23 +1,31 @@
 package org.wikimedia.lsearch.importer;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.TreeMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.wikimedia.lsearch.analyzers.Analyzers;
 import org.wikimedia.lsearch.analyzers.FieldBuilder;
 import org.wikimedia.lsearch.analyzers.StopWords;
 import org.wikimedia.lsearch.beans.Article;
 import org.wikimedia.lsearch.config.GlobalConfiguration;
 import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.index.DocumentPipeline;
 import org.wikimedia.lsearch.index.WikiIndexModifier;
 import org.wikimedia.lsearch.index.WikiSimilarity;
 import org.wikimedia.lsearch.ranks.Links;
+import org.wikimedia.lsearch.util.FSUtils;
 
 /**
  * IndexWriter for building indexes from scratch.
@@ -29,18 +37,126 @@ public class SimpleIndexWriter {
 	static Logger log = Logger.getLogger(SimpleIndexWriter.class);
 	protected IndexId iid;
 	protected HashMap<String,IndexWriter> indexes;
-	protected FieldBuilder builder;
 	protected Boolean optimize;
 	protected Integer mergeFactor, maxBufDocs;
 	protected boolean newIndex;
 	protected String langCode;
 	protected Links links;
 	protected Analyzer indexAnalyzer;
-	protected Analyzer interwikiHighlightAnalyzer;	
 	protected HashSet<String> stopWords;
 	protected String suffix = null;
 	protected IndexId original;
 	protected boolean exactCase;
+	protected FieldBuilder.Case dCase;
+	/** documents are made concurrently, and written in order */
+	protected DocumentPipeline<Job> pipeline;
+	/** if not null, jobs for a part are written from this thread */
+	protected HashMap<String,WriterThread> writerThreads = null;
+	/** if not null, chunks of a single index are written from these threads */
+	protected ArrayList<WriterThread> shardThreads = null;
+	/** number of consecutive articles in a chunk */
+	protected int chunkSize = DEFAULT_CHUNK_SIZE;
+	/** chunk articles are currently added to */
+	protected Chunk chunk = null;
+	protected int numChunks = 0;
+	/** written chunks waiting for the previous ones to be merged, number -> chunk */
+	protected TreeMap<Integer,Chunk> writtenChunks = new TreeMap<Integer,Chunk>();
+	protected int mergedChunks = 0;
+	/** marks the end of the queue */
+	protected static final Job END = new Job(null,null,null,null);
+	public static final int DEFAULT_CHUNK_SIZE = 5000;
+	
+	/** Kind of document to be made of an article, CHUNK_END comes after the last one of a chunk */
+	protected enum Kind { ARTICLE, HIGHLIGHT, TITLE, CHUNK_END };
+	
+	/** Consecutive articles written into a temporary index, merged into the index in order */
+	protected static class Chunk {
+		int num;
+		String path;
+		IndexWriter writer;
+		int size = 0;
+	}
+	
+	/** Article waiting in the pipeline */
+	protected static class Job {
+		Article article;
+		IndexId target;
+		Kind kind;
+		IndexWriter writer;
+		Chunk chunk = null;
+		
+		Job(Article article, IndexId target, Kind kind, IndexWriter writer){
+			this.article = article;
+			this.target = target;
+			this.kind = kind;
+			this.writer = writer;
+		}
+		
+		public String toString(){
+			return kind+" document for "+article;
+		}
+	}
+	
+	/** Makes documents on a pipeline worker, with its own analyzers */
+	protected class JobBuilder implements DocumentPipeline.Builder<Job> {
+		FieldBuilder builder = new FieldBuilder(iid,dCase);
+		Analyzer indexAnalyzer = Analyzers.getIndexerAnalyzer(new FieldBuilder(iid,FieldBuilder.Case.EXACT_CASE));
+		Analyzer highlightAnalyzer = Analyzers.getHighlightAnalyzer(iid,false);
+		
+		public Document build(Job job) throws Exception {
+			Article a = job.article;
+			switch(job.kind){
+			case CHUNK_END:
+				return null;
+			case HIGHLIGHT:
+				return WikiIndexModifier.makeHighlightDocument(a,builder,job.target);
+			case TITLE:
+				return WikiIndexModifier.makeTitleDocument(a,indexAnalyzer,highlightAnalyzer,job.target,suffix,original.getDBname(),exactCase,stopWords);
+			default:
+				return WikiIndexModifier.makeDocument(a,builder,job.target,stopWords,indexAnalyzer);
+			}
+		}
+	}
+	
+	/** Passes jobs to its own pipeline, so the pipeline writes from this thread */
+	protected class WriterThread extends Thread {
+		BlockingQueue<Job> queue;
+		DocumentPipeline<Job> pipeline = makePipeline();
+		
+		WriterThread(String name, int queueSize){
+			super(name);
+			queue = new ArrayBlockingQueue<Job>(queueSize);
+		}
+		
+		public void run() {
+			try{
+				Job job;
+				while((job = queue.take()) != END)
+					pipeline.add(job);
+			} catch(InterruptedException e){
+				log.error(getName()+" interrupted, stopping");
+			}
+			pipeline.finish();
+		}
+		
+		void add(Job job){
+			try{
+				queue.put(job);
+			} catch(InterruptedException e){
+				log.error("Interrupted while adding "+job);
+			}
+		}
+		
+		/** Write remaining jobs and wait for the thread to finish */
+		void finish() throws IOException {
+			try{
+				queue.put(END);
+				join();
+			} catch(InterruptedException e){
+				throw new IOException("Interrupted while waiting for "+getName());
+			}
+		}
+	}
 	
 	public SimpleIndexWriter(IndexId iid, Boolean optimize, Integer mergeFactor, Integer maxBufDocs, boolean newIndex, IndexId original){
 		this.iid = iid;
@@ -53,22 +169,43 @@ public class SimpleIndexWriter {
 			this.suffix = original.getTitlesSuffix();
 		GlobalConfiguration global = GlobalConfiguration.getInstance(); 
 		langCode = iid.getLangCode();
-		FieldBuilder.Case dCase = (global.exactCaseIndex(iid.getDBname()))? FieldBuilder.Case.EXACT_CASE : FieldBuilder.Case.IGNORE_CASE; 		
-		builder = new FieldBuilder(iid,dCase);
+		dCase = (global.exactCaseIndex(iid.getDBname()))? FieldBuilder.Case.EXACT_CASE : FieldBuilder.Case.IGNORE_CASE; 		
 		indexes = new HashMap<String,IndexWriter>();		
 		indexAnalyzer = Analyzers.getIndexerAnalyzer(new FieldBuilder(iid,FieldBuilder.Case.EXACT_CASE));
-		interwikiHighlightAnalyzer = Analyzers.getHighlightAnalyzer(iid,false);
 		stopWords = StopWords.getPredefinedSet(iid);
 		this.exactCase = global.exactCaseIndex(original.getDBname());
 		// open all relevant indexes
 		for(IndexId part : iid.getPhysicalIndexIds()){
 			indexes.put(part.toString(),openIndex(part));
 		}	
+		pipeline = makePipeline();
+	}
+	
+	protected DocumentPipeline<Job> makePipeline(){
+		return new DocumentPipeline<Job>(){
+			protected Builder<Job> newBuilder() {
+				return new JobBuilder();
+			}
+			protected void write(Job job, Document doc) throws IOException {
+				if(job.kind == Kind.CHUNK_END)
+					chunkWritten(job.chunk);
+				else
+					addDocument(job.writer,doc,job.article,job.target);
+			}
+			protected void failed(Job job, Throwable e) {
+				e.printStackTrace();
+				log.error("Error adding "+job+" to "+job.target+" : "+e.getMessage(),e);
+			}
+		};
 	}
 	
 	/** Open and initialize index denoted by iid */
 	protected IndexWriter openIndex(IndexId iid) {
-		String path = iid.getImportPath();
+		return openIndex(iid,iid.getImportPath(),newIndex);
+	}
+	
+	/** Open index at path, with parameters of iid */
+	protected IndexWriter openIndex(IndexId iid, String path, boolean newIndex) {
 		IndexWriter writer;
 		try {
 			if(newIndex)
@@ -112,8 +249,108 @@ public class SimpleIndexWriter {
 		IndexWriter writer = indexes.get(target.toString());
 		if(writer == null || Integer.parseInt(a.getNamespace()) < 0)
 			return;
-		Document doc = WikiIndexModifier.makeDocument(a,builder,target,stopWords,indexAnalyzer);
-		addDocument(writer,doc,a,target);
+		addJob(new Job(a,target,Kind.ARTICLE,writer));
+	}
+	
+	/** 
+	 * Write this index from its own thread, so multiple indexes can be written
+	 * concurrently. Call before adding any articles. 
+	 */
+	public void startWriterThread(int queueSize){
+		WriterThread t = new WriterThread("SimpleIndexWriter-"+iid,queueSize);
+		writerThreads = new HashMap<String,WriterThread>();
+		for(String part : indexes.keySet())
+			writerThreads.put(part,t);
+		t.start();
+	}
+	
+	/**
+	 * Write every physical part of the index from its own thread. If the index 
+	 * has only one part, write it from given number of threads instead: runs of 
+	 * consecutive articles (chunks) are written into temporary indexes, and merged 
+	 * into the index in order, so documents are in the same order as with a single 
+	 * writer. Call before adding any articles. 
+	 */
+	public void startShardedWriters(int numShards, int queueSize){
+		startShardedWriters(numShards,DEFAULT_CHUNK_SIZE,queueSize);
+	}
+	
+	public void startShardedWriters(int numShards, int chunkSize, int queueSize){
+		writerThreads = new HashMap<String,WriterThread>();
+		if(indexes.size() == 1 && numShards > 1){
+			this.chunkSize = chunkSize;
+			shardThreads = new ArrayList<WriterThread>();
+			for(int i=0;i<numShards;i++){
+				// a whole chunk fits into the queue, so all threads are kept busy
+				WriterThread t = new WriterThread("SimpleIndexWriter-"+iid+"-shard"+i,Math.max(queueSize,chunkSize+1));
+				shardThreads.add(t);
+				t.start();
+			}
+		} else{
+			for(String part : indexes.keySet()){
+				WriterThread t = new WriterThread("SimpleIndexWriter-"+part,queueSize);
+				writerThreads.put(part,t);
+				t.start();
+			}
+		}
+	}
+	
+	protected String getChunkPath(int chunk){
+		return iid.getImportPath()+".chunk"+chunk;
+	}
+	
+	/** Pass job to the pipeline, or to writer thread if started */
+	protected void addJob(Job job){
+		if(shardThreads != null){
+			// consecutive articles go to the same chunk, chunks to threads round-robin
+			if(chunk == null)
+				chunk = openChunk();
+			job.writer = chunk.writer;
+			shardThreads.get(chunk.num % shardThreads.size()).add(job);
+			if(++chunk.size >= chunkSize)
+				endChunk();
+		} else if(writerThreads != null)
+			writerThreads.get(job.target.toString()).add(job);
+		else
+			pipeline.add(job);
+	}
+	
+	protected Chunk openChunk(){
+		Chunk c = new Chunk();
+		c.num = numChunks++;
+		c.path = getChunkPath(c.num);
+		FSUtils.deleteRecursive(c.path);
+		WikiIndexModifier.makeDBPath(c.path);
+		c.writer = openIndex(iid,c.path,true);
+		return c;
+	}
+	
+	/** Queue the end of the current chunk after its articles */
+	protected void endChunk(){
+		Job end = new Job(null,iid,Kind.CHUNK_END,chunk.writer);
+		end.chunk = chunk;
+		shardThreads.get(chunk.num % shardThreads.size()).add(end);
+		chunk = null;
+	}
+	
+	/** Close a written chunk, and merge it and following written chunks into the index */
+	protected void chunkWritten(Chunk c) throws IOException {
+		c.writer.close();
+		IndexWriter writer = indexes.values().iterator().next();
+		synchronized(writtenChunks){
+			writtenChunks.put(c.num,c);
+			Chunk next;
+			while((next = writtenChunks.remove(mergedChunks)) != null){
+				Directory dir = FSDirectory.getDirectory(next.path);
+				try{
+					writer.addIndexesNoOptimize(new Directory[] {dir});
+				} finally{
+					dir.close();
+				}
+				FSUtils.deleteRecursive(next.path);
+				mergedChunks++;
+			}
+		}
 	}
 	
 	/** Get a target index for this article */
@@ -155,13 +392,7 @@ public class SimpleIndexWriter {
 		IndexWriter writer = indexes.get(target.toString());
 		if(writer == null)
 			return;		
-		try {
-			Document doc = WikiIndexModifier.makeHighlightDocument(a,builder,target);
-			addDocument(writer,doc,a,target);
-		} catch (IOException e) {
-			e.printStackTrace();
-			log.error("Error adding highlight document for key="+a.getTitleObject().getKey()+" : "+e.getMessage(),e);
-		}
+		addJob(new Job(a,target,Kind.HIGHLIGHT,writer));
 	}
 	/** Add to title to the titles index */
 	public void addArticleTitle(Article a){
@@ -171,18 +402,24 @@ public class SimpleIndexWriter {
 		IndexWriter writer = indexes.get(target.toString());
 		if(writer == null)
 			return;		
-		try {
-			Document doc = WikiIndexModifier.makeTitleDocument(a,indexAnalyzer,interwikiHighlightAnalyzer,target,suffix,original.getDBname(),exactCase,stopWords);
-			addDocument(writer,doc,a,target);
-		} catch (IOException e) {
-			e.printStackTrace();
-			log.error("Error adding title document for key="+a.getTitleObject().getKey()+" : "+e.getMessage(),e);
-		}
+		addJob(new Job(a,target,Kind.TITLE,writer));
 	}
 	
 	/** Close and (if specified in global config) optimize indexes 
 	 * @throws IOException */
 	public void close() throws IOException{
+		if(shardThreads != null){
+			if(chunk != null)
+				endChunk();
+			for(WriterThread t : shardThreads)
+				t.finish();
+			if(mergedChunks != numChunks)
+				throw new IOException("Merged only "+mergedChunks+" of "+numChunks+" chunks into "+iid);
+		} else if(writerThreads != null){
+			for(WriterThread t : new HashSet<WriterThread>(writerThreads.values()))
+				t.finish();
+		} else
+			pipeline.finish();
 		for(Entry<String,IndexWriter> en : indexes.entrySet()){
 			IndexId iid = IndexId.get(en.getKey());
 			IndexWriter writer = en.getValue();
@@ -0,0 +1,166 @@
+package org.wikimedia.lsearch.index;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.wikimedia.lsearch.config.Configuration;
+
+/**
+ * Makes lucene documents on a pool of worker threads, and writes them
+ * from the thread that adds items, in the order in which they were added.
+ *
+ * Tokenization and other analysis is done in {@link Builder#build},
+ * so it runs concurrently with writing. At most a few documents per
+ * worker are waiting to be written, {@link #add} writes finished
+ * documents when that limit is reached, and {@link #finish} writes
+ * the rest.
+ *
+ * Analyzers are not thread-safe, so every worker thread gets its own
+ * builder from {@link #newBuilder()}. Workers are shared by all pipelines,
+ * so builders are kept by the pipeline and dropped by {@link #finish}.
+ *
+ * @param <T> type of items documents are made of
+ */
+public abstract class DocumentPipeline<T> {
+	static Logger log = Logger.getLogger(DocumentPipeline.class);
+
+	/** Makes documents, used from one thread only */
+	public interface Builder<T> {
+		/** @return document for item, or null if it shouldn't be added */
+		public Document build(T item) throws Exception;
+	}
+
+	/** workers shared by all pipelines, null if documents are built inline */
+	protected static ExecutorService pool = null;
+	protected static int threads = 0;
+
+	protected class Pending {
+		T item;
+		Future<Document> doc;
+		Pending(T item, Future<Document> doc){
+			this.item = item;
+			this.doc = doc;
+		}
+	}
+
+	/** builders of threads that made documents of this pipeline */
+	protected ConcurrentHashMap<Thread,Builder<T>> builders = new ConcurrentHashMap<Thread,Builder<T>>();
+	protected LinkedList<Pending> pending = new LinkedList<Pending>();
+	protected int window;
+	protected int failed = 0;
+
+	public DocumentPipeline(){
+		window = getThreads() * 4;
+	}
+
+	protected static synchronized int getThreads(){
+		if(threads == 0){
+			threads = Configuration.open().getInt("Index","buildThreads",Runtime.getRuntime().availableProcessors());
+			if(threads > 1){
+				pool = Executors.newFixedThreadPool(threads,new ThreadFactory(){
+					AtomicInteger count = new AtomicInteger(0);
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r,"DocumentBuilder-"+count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			} else
+				threads = 1;
+		}
+		return threads;
+	}
+
+	/** Make a builder for a worker thread */
+	protected abstract Builder<T> newBuilder();
+	
+	/** @return builder of the current thread */
+	protected Builder<T> getBuilder(){
+		Thread t = Thread.currentThread();
+		Builder<T> b = builders.get(t);
+		if(b == null){ // only this thread adds its own builder
+			b = newBuilder();
+			builders.put(t,b);
+		}
+		return b;
+	}
+
+	/** Write document to index, called in order in which the items were added */
+	protected abstract void write(T item, Document doc) throws Exception;
+
+	/** Called if making or writing the document of item failed */
+	protected void failed(T item, Throwable e){
+		log.error("Error adding document "+item+" : "+e.getMessage(),e);
+	}
+
+	/** Queue item for building, may write documents of previous items */
+	public void add(final T item){
+		if(pool == null){
+			Document doc;
+			try{
+				doc = getBuilder().build(item);
+			} catch(Throwable e){
+				failed++;
+				failed(item,e);
+				return;
+			}
+			writeDocument(item,doc);
+			return;
+		}
+		pending.add(new Pending(item,pool.submit(new Callable<Document>(){
+			public Document call() throws Exception {
+				return getBuilder().build(item);
+			}
+		})));
+		while(pending.size() > window)
+			writeNext();
+	}
+
+	/** Write all remaining documents, and release the builders */
+	public void finish(){
+		while(!pending.isEmpty())
+			writeNext();
+		builders.clear();
+	}
+
+	/** @return number of items that failed */
+	public int getFailedCount(){
+		return failed;
+	}
+
+	protected void writeNext(){
+		Pending p = pending.removeFirst();
+		Document doc;
+		try{
+			doc = p.doc.get();
+		} catch(ExecutionException e){
+			failed++;
+			failed(p.item,e.getCause());
+			return;
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			failed++;
+			failed(p.item,e);
+			return;
+		}
+		writeDocument(p.item,doc);
+	}
+
+	protected void writeDocument(T item, Document doc){
+		try{
+			write(item,doc);
+		} catch(Throwable e){
+			failed++;
+			failed(item,e);
+		}
+	}
+}
@@ -13,9 +13,19 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 
 import org.apache.log4j.Logger;
@@ -31,6 +41,9 @@ import org.wikimedia.lsearch.config.IndexRegistry;
 import org.wikimedia.lsearch.index.IndexUpdateRecord.Action;
 import org.wikimedia.lsearch.interoperability.RMIMessengerClient;
 import org.wikimedia.lsearch.ranks.Links;
+import org.wikimedia.lsearch.related.RelatedBuilder;
+import org.wikimedia.lsearch.replication.SnapshotManifest;
+import org.wikimedia.lsearch.search.MetaSidecar;
 import org.wikimedia.lsearch.util.FSUtils;
 import org.wikimedia.lsearch.util.ProgressReport;
 import org.wikimedia.lsearch.util.StringUtils;
@@ -60,6 +73,8 @@ public class IndexThread extends Thread {
 	/** time of last updates flush */
 	protected long lastFlush;
 	protected WikiIndexModifier indexModifier;	
+	/** updates of different dbs and index parts are applied concurrently on this pool */
+	protected ExecutorService updatePool;
 	protected static GlobalConfiguration global;
 	/** this lock is used when threads access static members */
 	protected static Object staticLock = new Object();
@@ -80,6 +95,11 @@ public class IndexThread extends Thread {
 	protected static Hashtable<String,Boolean> flushedDBs = new Hashtable<String,Boolean>(); 
 	protected Set<String> workFlushes;
 	
+	/** write-ahead log of the local queue, null if disabled */
+	protected static UpdateLog updateLog = null;
+	/** size of update log segment after which the log is compacted */
+	protected long logSegmentSize;
+	
 	/** Thread that enqueues updates to distributed indexers in a batch */
 	protected static MessengerThread messenger = null;
 	
@@ -142,7 +162,7 @@ public class IndexThread extends Thread {
 	 * Default constructor
 	 * 
 	 */
-	private IndexThread(){
+	protected IndexThread(){
 		quit = false;
 		suspended = false;
 		flushNow = false;
@@ -153,10 +173,49 @@ public class IndexThread extends Thread {
 		maxQueueCount = config.getInt( "Index", "maxqueuecount", 5000 ); // old default = 500 docs
 		maxQueueTimeout = config.getInt( "Index", "maxqueuetimeout", 12 )*1000; // old default = 3600ms
 		snapshotInterval = (long) (config.getDouble("Index","snapshotinterval",5)*60*1000); // default 5 minutes
+		int updateThreads = config.getInt("Index","updateThreads",4);
+		logSegmentSize = config.getInt("Index","updateLogSegmentSize",64)*1024L*1024L;
+		updatePool = Executors.newFixedThreadPool(Math.max(1,updateThreads),new ThreadFactory(){
+			AtomicInteger count = new AtomicInteger(0);
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r,"IndexUpdate-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
 		
 		global = GlobalConfiguration.getInstance();
 		indexModifier = new WikiIndexModifier();
 		messenger = MessengerThread.getInstance();
+		
+		if(config.getBoolean("Index","updateLog",false)){
+			try {
+				openUpdateLog(new File(config.getString("Indexes","path"),"updatelog"));
+			} catch (IOException e) {
+				log.error("Cannot open update log, queued updates won't survive restart: "+e.getMessage(),e);
+			}
+		}
+	}
+	
+	/** Enqueue updates that were not flushed before last shutdown, and start logging new ones */
+	protected static void openUpdateLog(File dir) throws IOException {
+		UpdateLog ulog = new UpdateLog(dir);
+		ArrayList<IndexUpdateRecord> records = ulog.replay();
+		synchronized(staticLock){
+			for(IndexUpdateRecord r : records)
+				enqueueLocally(r);
+			updateLog = ulog;
+		}
+		ulog.compact(0);
+		if(records.size() > 0)
+			log.info("Recovered "+records.size()+" queued updates from update log in "+dir);
+	}
+	
+	/** Make locally enqueued records durable, call without holding staticLock so fsyncs are shared */
+	public static void syncQueue() throws IOException {
+		UpdateLog ulog = updateLog;
+		if(ulog != null)
+			ulog.sync();
 	}
 	
 	synchronized public static IndexThread getInstance(){
@@ -296,28 +355,46 @@ public class IndexThread extends Thread {
 		String snapshotdir = iid.getSnapshotPath();
 		String snapshot = snapshotdir+sep+timestamp;
 		LocalIndex li = IndexRegistry.getInstance().getLatestSnapshot(iid);
-		// cleanup the snapshot dir for this iid
 		File spd = new File(snapshotdir);
+		new File(snapshot).mkdirs();
+		try {
+			FSUtils.createHardLinkRecursive(indexPath,snapshot);
+		} catch (IOException e) {
+			e.printStackTrace();
+			log.error("Error making snapshot "+snapshot+": "+e.getMessage(),e);
+			return;
+		}
+		// precompute meta values for searchers
+		if(MetaSidecar.hasMeta(iid) && Configuration.open().getBoolean("Index","metasidecar",true)){
+			try {
+				MetaSidecar.write(iid,snapshot);
+			} catch (IOException e) {
+				log.error("Error writing meta sidecar for "+snapshot+": "+e.getMessage(),e);
+			}
+		}
+		// manifest for native replication, files unchanged since the last snapshot are not read again
+		if(Configuration.open().getBoolean("Replication","server")){
+			try {
+				long start = System.currentTimeMillis();
+				File prevDir = (li != null)? new File(li.path) : null;
+				SnapshotManifest prev = (prevDir != null && prevDir.isDirectory())? SnapshotManifest.load(prevDir) : null;
+				SnapshotManifest.make(new File(snapshot),prevDir,prev).write(new File(snapshot));
+				log.info("Made manifest of "+snapshot+" in "+(System.currentTimeMillis()-start)+" ms");
+			} catch (IOException e) {
+				log.error("Error writing manifest for "+snapshot+": "+e.getMessage(),e);
+			}
+		}
+		// cleanup the snapshot dir for this iid
 		if(spd.exists() && spd.isDirectory()){
 			File[] files = spd.listFiles();
 			for(File f: files){
-				if(f.getAbsolutePath().equals(li.path) && !delSnapshots)
+				if(f.getAbsolutePath().equals(new File(snapshot).getAbsolutePath()))
+					continue;
+				if(li != null && f.getAbsolutePath().equals(li.path) && !delSnapshots)
 					continue; // leave last snapshot
 				FSUtils.deleteRecursive(f);
 			}
 		}
-		new File(snapshot).mkdirs();
-		File ind =new File(indexPath);
-		for(File f: ind.listFiles()){
-			// use a cp -lr command for each file in the index
-			try {
-				FSUtils.createHardLinkRecursive(indexPath+sep+f.getName(),snapshot+sep+f.getName(),true);
-			} catch (IOException e) {
-				e.printStackTrace();
-				log.error("Error making snapshot "+snapshot+": "+e.getMessage(),e);
-				return;
-			}
-		}
 		IndexRegistry.getInstance().refreshSnapshots(iid);
 		log.info("Made snapshot "+snapshot);		
 	}
@@ -376,8 +453,20 @@ public class IndexThread extends Thread {
 				// FIXME: there should be some kind of failed previous transaction check here
 				// works for now because we first do updates, but could easily break in future
 				Links links = Links.openForBatchModifiation(iid);
+				boolean updateRelated = Configuration.open().getBoolean("Index","incrementalRelated",false);
+				HashSet<String> changed = new HashSet<String>(), targets = new HashSet<String>();
+				if(updateRelated) // old links
+					RelatedBuilder.collectChanged(links,records,false,changed,targets);
 				// update links
 				links.batchUpdate(records);
+				if(updateRelated){
+					try{
+						RelatedBuilder.collectChanged(links,records,true,changed,targets);
+						RelatedBuilder.updateRelated(iid,links,changed,targets);
+					} catch(IOException e){
+						log.warn("Cannot update related articles of "+iid+" : "+e.getMessage(),e);
+					}
+				}
 				WikiIndexModifier.fetchLinksInfo(iid,records,links);
 				// get additional
 				add.addAll(WikiIndexModifier.fetchAdditional(iid,records,links));			
@@ -389,6 +478,7 @@ public class IndexThread extends Thread {
 			} finally{
 				lock.unlock();
 			}
+			syncQueue();
 		}
 
 		return add;
@@ -483,6 +573,13 @@ public class IndexThread extends Thread {
 			if(oldr != null && oldr.doDelete() && record.doAdd())
 				record.setAction(IndexUpdateRecord.Action.UPDATE);
 			dbUpdates.put(record.getIndexKey(),record);
+			if(updateLog != null){
+				try {
+					updateLog.add(record);
+				} catch (IOException e) {
+					log.error("Cannot add "+record+" to update log: "+e.getMessage(),e);
+				}
+			}
 		}
 		
 		log.debug("Locally queued item: "+record);
@@ -501,6 +598,8 @@ public class IndexThread extends Thread {
 	protected static class WorkSet {
 		Hashtable<String,Hashtable<String,IndexUpdateRecord>> index;
 		Hashtable<String,Hashtable<String,IndexUpdateRecord>> link;
+		/** logged records up to this one are taken, acknowledged once the set is applied */
+		long logMark = -1;
 		public WorkSet(Hashtable<String, Hashtable<String, IndexUpdateRecord>> indexUpdates, Hashtable<String, Hashtable<String, IndexUpdateRecord>> linkUpdates) {
 			this.index = indexUpdates;
 			this.link = linkUpdates;
@@ -543,21 +642,23 @@ public class IndexThread extends Thread {
 						links.put(dbname,linksUpdates.remove(dbname));
 					}
 				}
-				return new WorkSet( updates, links );
 			} else{
 				updates = queuedUpdates;
 				links = linksUpdates;
 				queuedUpdates = new Hashtable<String,Hashtable<String,IndexUpdateRecord>>();
 				linksUpdates = new Hashtable<String,Hashtable<String,IndexUpdateRecord>>();
-				return new WorkSet( updates, links ) ;
 			}
+			WorkSet ws = new WorkSet( updates, links );
+			if(updateLog != null)
+				ws.logMark = updateLog.getLastSeq();
+			return ws;
 		}
 	}
 	
 	/**
 	 * Apply all queued updates 
 	 */
-	private void applyUpdates() {
+	protected void applyUpdates() {
 		log.debug("Applying index updates...");
 		WorkSet updates;
 		try {						
@@ -606,14 +707,15 @@ public class IndexThread extends Thread {
 			}			
 
 			// update
-			for ( String dbrole : updates.index.keySet() ){
-				IndexId iid = IndexId.get(dbrole);
-				IndexId db = iid.getDB();
-				boolean succ = true;
-				if(updates.link.containsKey(db.toString())) // always update links first
-					succ = updateLinks( iid.getDB(), updates.link.remove(db.toString()).values() );
-				if(succ)
-					update( iid, updates.index.get(dbrole).values() );
+			HashSet<String> linkDBs = new HashSet<String>(updates.link.keySet()); // taken by applyInParallel
+			applyInParallel(updates);
+			if(updateLog != null && updates.logMark != -1){
+				try{
+					updateLog.ack(updates.index.keySet(),linkDBs,updates.logMark);
+					updateLog.compact(logSegmentSize);
+				} catch(IOException e){
+					log.error("Cannot acknowledge flushed updates in update log: "+e.getMessage(),e);
+				}
 			}
 			if(workFlushes != null){
 				// figure out from index parts if the update was successful
@@ -640,12 +742,76 @@ public class IndexThread extends Thread {
 		}
 	}
 
+	/**
+	 * Update dbs concurrently on updatePool. Links and precursors of a db are 
+	 * always updated first, then all of its index parts concurrently.  
+	 */
+	protected void applyInParallel(final WorkSet updates){
+		// group parts by db
+		HashMap<String,ArrayList<String>> dbParts = new HashMap<String,ArrayList<String>>();
+		for(String dbrole : updates.index.keySet()){
+			String db = IndexId.get(dbrole).getDB().toString();
+			ArrayList<String> parts = dbParts.get(db);
+			if(parts == null){
+				parts = new ArrayList<String>();
+				dbParts.put(db,parts);
+			}
+			parts.add(dbrole);
+		}
+		// db tasks add futures of their parts before finishing 
+		final ConcurrentLinkedQueue<Future<Object>> pending = new ConcurrentLinkedQueue<Future<Object>>();
+		for(Entry<String,ArrayList<String>> e : dbParts.entrySet()){
+			final IndexId db = IndexId.get(e.getKey());
+			final Hashtable<String,IndexUpdateRecord> links = updates.link.remove(e.getKey());
+			final ArrayList<String> parts = e.getValue();
+			pending.add(updatePool.submit(new Callable<Object>(){
+				public Object call() throws Exception {
+					boolean succ = true;
+					if(links != null) // always update links first
+						succ = updateLinks( db, links.values() );
+					for(int i=0;i<parts.size();i++){
+						final IndexId iid = IndexId.get(parts.get(i));
+						final Collection<IndexUpdateRecord> records = updates.index.get(parts.get(i)).values();
+						if(!succ)
+							reportFlushed(iid,false);
+						else if(i == parts.size()-1)
+							update( iid, records );
+						else{
+							pending.add(updatePool.submit(new Callable<Object>(){
+								public Object call() throws Exception {
+									update( iid, records );
+									return null;
+								}
+							}));
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		Future<Object> f;
+		while((f = pending.poll()) != null){
+			try{
+				f.get();
+			} catch(ExecutionException e){
+				log.error("Error applying updates: "+e.getCause().getMessage(),e.getCause());
+			} catch(InterruptedException e){
+				log.warn("Interrupted while applying updates");
+			}
+		}
+	}
+	
 	/**
 	 * @param dbname
 	 * @param updates collection of IndexUpdateRecords
 	 */
-	private void update(IndexId iid, Collection<IndexUpdateRecord> updates) {
+	protected void update(IndexId iid, Collection<IndexUpdateRecord> updates) {
 		boolean succ = indexModifier.updateDocuments(iid,updates);
+		reportFlushed(iid,succ);
+	}
+	
+	/** Record result of update of iid, if flush was requested */
+	protected void reportFlushed(IndexId iid, boolean succ){
 		if(workFlushes != null){
 			synchronized(staticLock){
 				flushedDBs.put(iid.toString(),succ);
@@ -657,7 +823,7 @@ public class IndexThread extends Thread {
 	 * Update links and precursor indexes, always call before update()
 	 * @return success
 	 */
-	private boolean updateLinks(IndexId iid, Collection<IndexUpdateRecord> updates) {
+	protected boolean updateLinks(IndexId iid, Collection<IndexUpdateRecord> updates) {
 		return indexModifier.updateLinksAndPrecursors(iid,updates);
 	}
 	
@@ -678,6 +844,16 @@ public class IndexThread extends Thread {
 			enqueueLocally(record);	
 		}
 	}
+	
+	/**
+	 * Enqueue records from other indexer, and make them durable before returning 
+	 * @param records
+	 */
+	public static void enqueueFromIndexer(IndexUpdateRecord[] records) throws IOException {
+		for(IndexUpdateRecord record : records)
+			enqueueFromIndexer(record);
+		syncQueue();
+	}
 
 	public void stopThread() {
 		suspended = true;		
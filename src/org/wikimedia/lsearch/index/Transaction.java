@@ -1,9 +1,15 @@
 package org.wikimedia.lsearch.index;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Properties;
 import java.util.concurrent.locks.Lock;
 
@@ -17,10 +23,14 @@ import org.wikimedia.lsearch.util.FSUtils;
  * Simple transaction support for indexing. Wrap index operations by 
  * this class.
  * 
- * Current implementation: make a hard-linked copy of index. Note that
+ * Default implementation: make a hard-linked copy of index. Note that
  * this assumes single indexer at any time, and thus single transaction
  * at a time. Also, this is not a very portable way of doing transactions.
  * 
+ * With Index.transactions=journal, only the list of index files is
+ * written at the beginning, and {@link TransactionalFSDirectory} moves
+ * files that Lucene deletes or overwrites into the backup dir. 
+ * 
  * @author rainman
  *
  */
@@ -30,14 +40,27 @@ public class Transaction {
 	protected boolean inTransaction;
 	protected IndexId.Transaction type;
 	protected Lock lock;
+	/** if to use a journal instead of a hard-linked copy */
+	protected boolean useJournal;
+	protected TransactionalFSDirectory.Journal journal = null;
 	
 	public Transaction(IndexId iid, IndexId.Transaction type){
 		this.iid = iid;
 		this.type = type;
 		this.lock = iid.getTransactionLock(type); 
+		this.useJournal = Configuration.open().getString("Index","transactions","backup").equalsIgnoreCase("journal");
 		inTransaction = false;
 	}
 	
+	/** 
+	 * Make Lucene use {@link TransactionalFSDirectory} for all directories, needs
+	 * to be called before FSDirectory is loaded (the subclass is not touched here, 
+	 * as that would load it) 
+	 */
+	public static void installJournal(){
+		System.setProperty("org.apache.lucene.FSDirectory.class",TransactionalFSDirectory.class.getName());
+	}
+	
 	/**
 	 * Begin transaction. Will check if previous transaction was completed, and
 	 * if not, will return index to consistent state. 
@@ -47,7 +70,7 @@ public class Transaction {
 		lock.lock();
 		File backup = new File(getBackupDir());
 		File info = new File(getInfoFile());
-		if(backup.exists() && info.exists()){
+		if(info.exists() && (backup.exists() || new File(getManifestFile()).exists())){
 			// recover old transaction
 			Properties prop = new Properties();
 			try{
@@ -66,9 +89,21 @@ public class Transaction {
 		// start new transaction
 		backup.getParentFile().mkdirs();
 		try{
-			// make a copy
-			FSUtils.createHardLinkRecursive(iid.getPath(type),backup.getAbsolutePath(),true);
 			Properties prop = new Properties();
+			String path = getIndexPath();
+			if(useJournal && new File(path).exists() && TransactionalFSDirectory.isInstalled(path)){
+				// record index files, they are moved to backup if replaced
+				ArrayList<String> files = listIndexFiles(new File(path));
+				backup.mkdirs();
+				writeManifest(files);
+				journal = new TransactionalFSDirectory.Journal(new File(path),backup,files);
+				TransactionalFSDirectory.begin(journal);
+			} else{
+				if(useJournal)
+					log.warn("Journal not available for "+path+", making a hard-linked copy");
+				// make a copy
+				FSUtils.createHardLinkRecursive(path,backup.getAbsolutePath(),true);
+			}
 			// write out the status file
 			prop.setProperty("status","started at "+System.currentTimeMillis());			
 			FileOutputStream fileos = new FileOutputStream(info,false);
@@ -79,32 +114,98 @@ public class Transaction {
 			log.info("Transaction on index "+iid+" started");
 		} catch(Exception e){
 			log.error("Error while intializing transaction: "+e.getMessage(),e);
+			endJournal();
 			lock.unlock();
 		}
 	}
 	
+	/** Index files, except locks */
+	protected ArrayList<String> listIndexFiles(File dir) throws IOException {
+		String[] names = dir.list();
+		if(names == null)
+			throw new IOException("Cannot list files in "+dir);
+		ArrayList<String> files = new ArrayList<String>();
+		for(String name : names){
+			if(!name.endsWith(".lock"))
+				files.add(name);
+		}
+		return files;
+	}
+	
+	protected void writeManifest(ArrayList<String> files) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(getManifestFile()),"utf-8"));
+		for(String name : files)
+			out.println(name);
+		out.close();
+		if(out.checkError())
+			throw new IOException("Error writing "+getManifestFile());
+	}
+	
+	protected HashSet<String> readManifest() throws IOException {
+		HashSet<String> files = new HashSet<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(getManifestFile()),"utf-8"));
+		try{
+			String line;
+			while((line = in.readLine()) != null){
+				if(line.length() != 0)
+					files.add(line);
+			}
+		} finally{
+			in.close();
+		}
+		return files;
+	}
+	
+	/** Stop moving replaced files to backup */
+	protected void endJournal(){
+		if(journal != null){
+			try{
+				TransactionalFSDirectory.end(journal);
+			} catch(IOException e){
+				log.error("Error ending journal on "+iid+" : "+e.getMessage(),e);
+			}
+			journal = null;
+		}
+	}
+	
 	/** Cleanup transaction files */
 	protected void cleanup() {
 		File trans = new File(getBackupDir());
 		File info = new File(getInfoFile());
+		File manifest = new File(getManifestFile());
 		// cleanup before starting new transaction
 		try{
-			if(trans.exists())
-				FSUtils.deleteRecursive(trans.getAbsoluteFile());
+			// info file first, so a partial cleanup is never taken for a valid transaction
 			if(info.exists())
 				FSUtils.deleteRecursive(info.getAbsoluteFile());
+			if(trans.exists())
+				FSUtils.deleteRecursive(trans.getAbsoluteFile());
+			if(manifest.exists())
+				manifest.delete();
 		} catch(Exception e){
-			log.error("Error removing old transaction data from "+iid.getTransactionPath(type)+" : "+e.getMessage(),e);
+			log.error("Error removing old transaction data from "+getTransactionPath()+" : "+e.getMessage(),e);
 		}
 
 	}
+	/** Index under transaction */
+	protected String getIndexPath(){
+		return iid.getPath(type);
+	}
+	/** Dir with transaction data */
+	protected String getTransactionPath(){
+		return iid.getTransactionPath(type);
+	}
 	/** This is where index backup is stored */
 	protected String getBackupDir(){
-		return iid.getTransactionPath(type) + Configuration.PATH_SEP + "backup" ;
+		return getTransactionPath() + Configuration.PATH_SEP + "backup" ;
 	}
 	/** Property file holding info about the status of transaction */
 	protected String getInfoFile(){
-		return iid.getTransactionPath(type) + Configuration.PATH_SEP + "transaction.info";
+		return getTransactionPath() + Configuration.PATH_SEP + "transaction.info";
+	}
+	/** Index files at the beginning of journaled transaction */
+	protected String getManifestFile(){
+		return getTransactionPath() + Configuration.PATH_SEP + "transaction.manifest";
 	}
 
 	protected int exec(String command) throws Exception {
@@ -126,13 +227,19 @@ public class Transaction {
 	 */
 	protected void recover(){
 		File backup = new File(getBackupDir());
-		File index = new File(iid.getTransactionPath(type));
-		String path = iid.getPath(type);
+		File index = new File(getTransactionPath());
+		String path = getIndexPath();
 		try{
 			log.info("Recovering "+path+" from "+backup.getPath());
 			if(index.exists()) // clear locks before recovering
 				WikiIndexModifier.unlockIndex(path);
 			
+			if(new File(getManifestFile()).exists()){
+				recoverJournal();
+				cleanup();
+				return;
+			}
+			
 			// delete old indexpath 
 			FSUtils.deleteRecursive(new File(path));
 			
@@ -143,12 +250,34 @@ public class Transaction {
 		}
 	}
 	
+	/** Delete files added since the beginning, and move back replaced ones */
+	protected void recoverJournal() throws IOException {
+		File dir = new File(getIndexPath());
+		File backup = new File(getBackupDir());
+		HashSet<String> manifest = readManifest();
+		for(String name : listIndexFiles(dir)){
+			if(!manifest.contains(name) && !new File(dir,name).delete())
+				throw new IOException("Cannot delete "+name+" from "+dir);
+		}
+		String[] saved = backup.list();
+		if(saved != null){
+			for(String name : saved)
+				TransactionalFSDirectory.move(new File(backup,name),new File(dir,name));
+		}
+		for(String name : manifest){
+			if(!new File(dir,name).exists())
+				throw new IOException("File "+name+" of "+dir+" missing from transaction backup");
+		}
+		log.info("Recovered "+dir+" from journal, restored "+(saved==null? 0 : saved.length)+" files");
+	}
+	
 	/** 
 	 * Commit changes to index. 
 	 */
 	public void commit(){
 		boolean wasInTransaction = inTransaction;
 		try{
+			endJournal();
 			cleanup();
 			inTransaction = false;
 			log.info("Successfully commited changes on "+iid);
@@ -165,6 +294,7 @@ public class Transaction {
 		boolean wasInTransaction = inTransaction;
 		try{
 			if(inTransaction){
+				endJournal();
 				recover();
 				inTransaction = false;
 				log.info("Succesfully rollbacked changes on "+iid);
@@ -0,0 +1,104 @@
+package org.wikimedia.lsearch.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Hashtable;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * FSDirectory that preserves files of the index as they were at the beginning
+ * of a {@link Transaction}: files from the transaction manifest that Lucene deletes
+ * or overwrites are moved into the transaction backup dir instead. Index files are
+ * never modified in place, so this is enough to roll back, and unlike hard-linking
+ * the whole index in advance, only the replaced files are touched.
+ *
+ * Installed with {@link Transaction#installJournal()} before the first use of FSDirectory, Lucene
+ * then uses it for all directories opened by path. Directories without an active
+ * journal behave as a plain FSDirectory.
+ */
+public class TransactionalFSDirectory extends FSDirectory {
+	static Logger log = Logger.getLogger(TransactionalFSDirectory.class);
+
+	/** canonical index path -> journal of active transaction */
+	protected static Hashtable<String,Journal> journals = new Hashtable<String,Journal>();
+
+	/** Files of index at start of transaction, and those that were moved away since */
+	public static class Journal {
+		protected File dir;
+		protected File backup;
+		protected HashSet<String> files;
+		protected HashSet<String> saved = new HashSet<String>();
+
+		public Journal(File dir, File backup, Collection<String> files){
+			this.dir = dir;
+			this.backup = backup;
+			this.files = new HashSet<String>(files);
+		}
+
+		/** Move original file to backup if not already done, @return if moved */
+		public synchronized boolean save(String name) throws IOException {
+			if(!files.contains(name) || saved.contains(name))
+				return false;
+			File f = new File(dir,name);
+			if(!f.exists())
+				return false;
+			move(f,new File(backup,name));
+			saved.add(name);
+			return true;
+		}
+	}
+
+	public TransactionalFSDirectory(){
+	}
+
+	/** If Lucene opens indexes at path with this class */
+	public static boolean isInstalled(String path) throws IOException {
+		FSDirectory dir = FSDirectory.getDirectory(path);
+		try{
+			return dir instanceof TransactionalFSDirectory;
+		} finally{
+			dir.close();
+		}
+	}
+
+	public static void begin(Journal journal) throws IOException {
+		journals.put(journal.dir.getCanonicalPath(),journal);
+	}
+
+	public static void end(Journal journal) throws IOException {
+		journals.remove(journal.dir.getCanonicalPath());
+	}
+
+	/** Rename file, or copy if on different file system */
+	public static void move(File from, File to) throws IOException {
+		if(!from.renameTo(to))
+			Files.move(from.toPath(),to.toPath(),StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	protected Journal getJournal(){
+		return journals.get(getFile().getPath());
+	}
+
+	@Override
+	public void deleteFile(String name) throws IOException {
+		Journal journal = getJournal();
+		if(journal == null || !journal.save(name))
+			super.deleteFile(name);
+	}
+
+	@Override
+	public IndexOutput createOutput(String name) throws IOException {
+		Journal journal = getJournal();
+		if(journal != null)
+			journal.save(name);
+		return super.createOutput(name);
+	}
+
+}
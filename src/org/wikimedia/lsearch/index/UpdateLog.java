@@ -0,0 +1,540 @@
+package org.wikimedia.lsearch.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Set;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.wikimedia.lsearch.beans.Article;
+import org.wikimedia.lsearch.beans.Redirect;
+import org.wikimedia.lsearch.beans.ReportId;
+import org.wikimedia.lsearch.beans.Title;
+import org.wikimedia.lsearch.related.RelatedTitle;
+
+/**
+ * Write-ahead log of the update queue of {@link IndexThread}, so queued
+ * updates survive a restart of the indexer.
+ *
+ * Records are added to an in-memory buffer, and written and forced to disk
+ * by {@link #sync()}, which is called before enqueueing is acknowledged.
+ * Concurrent callers share a single fsync (group commit).
+ *
+ * Every record gets a sequence number. Once updates taken from the queue 
+ * are flushed, an ack frame is appended, which drops records of the flushed
+ * queue keys (dbroles) up to the sequence number at the time they were taken. 
+ *
+ * The log is a sequence of segment files updates.N.log. When the current 
+ * segment grows over a size limit, {@link #compact(long)} starts a new one, 
+ * and rewrites the older ones into a single segment with records that are 
+ * not yet acknowledged. The rewritten segment gets a new number, so if old
+ * segments are left behind (e.g. crash) their records are read only once.
+ *
+ * Segment format: int version, then frames of int length, int crc32 of 
+ * payload, payload. Reading stops at the first incomplete or corrupt frame 
+ * (e.g. torn write).
+ */
+public class UpdateLog {
+	static Logger log = Logger.getLogger(UpdateLog.class);
+
+	protected static final int VERSION = 2;
+	protected static final String PREFIX = "updates.";
+	protected static final String SUFFIX = ".log";
+	/** frame types */
+	protected static final byte RECORD = 0, ACK = 1;
+
+	protected File dir;
+	/** number of current segment */
+	protected int segment;
+	protected FileChannel channel = null;
+
+	/** records not yet written to disk, guarded by this */
+	protected ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	/** bytes added so far, guarded by this */
+	protected long appended = 0;
+	/** sequence number of the last added record, guarded by this */
+	protected long lastSeq = 0;
+	/** bytes forced to disk so far */
+	protected volatile long synced = 0;
+	/** serializes writing and forcing */
+	protected Object syncLock = new Object();
+	/** serializes compactions */
+	protected Object compactLock = new Object();
+	/** records read when opening the log, until replayed */
+	protected ArrayList<Logged> recovered;
+
+	/** A record not yet acknowledged */
+	protected static class Logged {
+		long seq;
+		IndexUpdateRecord record;
+		Logged(long seq, IndexUpdateRecord record){
+			this.seq = seq;
+			this.record = record;
+		}
+	}
+
+	public UpdateLog(File dir) throws IOException {
+		this.dir = dir;
+		dir.mkdirs();
+		ArrayList<Integer> segments = getSegments();
+		segment = segments.size()==0? 0 : segments.get(segments.size()-1);
+		recovered = read(segments);
+		for(Logged e : recovered)
+			lastSeq = Math.max(lastSeq,e.seq);
+	}
+
+	/** Numbers of segments in log dir, sorted */
+	protected ArrayList<Integer> getSegments() throws IOException {
+		String[] names = dir.list();
+		if(names == null)
+			throw new IOException("Cannot list files in "+dir);
+		ArrayList<Integer> segments = new ArrayList<Integer>();
+		for(String name : names){
+			if(name.startsWith(PREFIX) && name.endsWith(SUFFIX)){
+				try{
+					segments.add(Integer.parseInt(name.substring(PREFIX.length(),name.length()-SUFFIX.length())));
+				} catch(NumberFormatException e){
+					log.warn("Ignoring unknown file "+name+" in "+dir);
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	protected File getSegmentFile(int num){
+		return new File(dir,PREFIX+num+SUFFIX);
+	}
+
+	/** Records that were not acknowledged before the log was opened, in order in which they were added */
+	public ArrayList<IndexUpdateRecord> replay() {
+		ArrayList<IndexUpdateRecord> records = new ArrayList<IndexUpdateRecord>();
+		if(recovered != null){
+			for(Logged e : recovered)
+				records.add(e.record);
+			recovered = null;
+		}
+		return records;
+	}
+
+	/** Read unacknowledged records from segments */
+	protected ArrayList<Logged> read(Collection<Integer> segments) throws IOException {
+		ArrayList<Logged> entries = new ArrayList<Logged>();
+		HashSet<Long> seen = new HashSet<Long>();
+		for(int num : segments){
+			File f = getSegmentFile(num);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f),65536));
+			try{
+				if(in.readInt() != VERSION)
+					throw new IOException("Unknown version of update log "+f);
+				CRC32 crc = new CRC32();
+				for(;;){
+					int len, checksum;
+					byte[] payload;
+					try{
+						len = in.readInt();
+						checksum = in.readInt();
+						if(len < 0)
+							throw new EOFException();
+						payload = new byte[len];
+						in.readFully(payload);
+					} catch(EOFException e){
+						break; // end of log, or incomplete last frame
+					}
+					crc.reset();
+					crc.update(payload);
+					if((int)crc.getValue() != checksum){
+						log.warn("Corrupt frame in "+f+", ignoring the rest of the segment");
+						break;
+					}
+					DataInputStream frame = new DataInputStream(new ByteArrayInputStream(payload));
+					byte type = frame.readByte();
+					long seq = frame.readLong();
+					if(type == ACK)
+						entries = acknowledge(entries,seq,readStrings(frame),readStrings(frame));
+					else if(seen.add(seq)) // else copy left by interrupted compaction
+						entries.add(new Logged(seq,read(frame)));
+				}
+			} catch(EOFException e){
+				// empty segment
+			} finally{
+				in.close();
+			}
+		}
+		return entries;
+	}
+
+	/** Entries that remain after ack of queue keys up to seq */
+	protected static ArrayList<Logged> acknowledge(ArrayList<Logged> entries, long upTo, Set<String> dbroles, Set<String> linkDBs){
+		ArrayList<Logged> remaining = new ArrayList<Logged>();
+		for(Logged e : entries){
+			IndexUpdateRecord r = e.record;
+			if(e.seq > upTo || !(r.isLinkUpdate()? linkDBs : dbroles).contains(r.dbrole))
+				remaining.add(e);
+		}
+		return remaining;
+	}
+
+	/** Add record to log, it's durable after the next {@link #sync()} */
+	public synchronized void add(IndexUpdateRecord record) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD);
+		out.writeLong(++lastSeq);
+		write(out,record);
+		addFrame(bytes.toByteArray());
+	}
+
+	/** @return sequence number of the last added record */
+	public synchronized long getLastSeq(){
+		return lastSeq;
+	}
+
+	/**
+	 * Acknowledge that records up to sequence number upTo of given dbroles 
+	 * (index updates) and dbs (links updates) are flushed, and make it durable
+	 */
+	public void ack(Collection<String> dbroles, Collection<String> linkDBs, long upTo) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ACK);
+		out.writeLong(upTo);
+		writeStrings(out,dbroles);
+		writeStrings(out,linkDBs);
+		synchronized(this){
+			addFrame(bytes.toByteArray());
+		}
+		sync();
+	}
+
+	/** Add payload to buffer, call synchronized */
+	protected void addFrame(byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeInt(payload.length);
+		out.writeInt((int)crc.getValue());
+		out.write(payload);
+		appended += payload.length + 8;
+	}
+
+	/** Make all added records durable */
+	public void sync() throws IOException {
+		long target;
+		synchronized(this){
+			target = appended;
+		}
+		if(synced >= target)
+			return;
+		synchronized(syncLock){
+			if(synced >= target)
+				return; // done by another thread in the meantime
+			writeBuffer();
+		}
+	}
+
+	/** Write buffered records to current segment and force it, call with syncLock held */
+	protected void writeBuffer() throws IOException {
+		byte[] data;
+		long upTo;
+		synchronized(this){
+			data = buffer.toByteArray();
+			buffer.reset();
+			upTo = appended;
+		}
+		if(channel == null){
+			if(data.length == 0){
+				synced = upTo;
+				return;
+			}
+			openSegment(segment);
+		}
+		ByteBuffer b = ByteBuffer.wrap(data);
+		while(b.hasRemaining())
+			channel.write(b);
+		channel.force(false);
+		synced = upTo;
+	}
+
+	protected void openSegment(int num) throws IOException {
+		File f = getSegmentFile(num);
+		boolean exists = f.exists() && f.length() > 0;
+		channel = new RandomAccessFile(f,"rw").getChannel();
+		channel.position(channel.size());
+		if(!exists){
+			ByteBuffer header = ByteBuffer.allocate(4);
+			header.putInt(VERSION);
+			header.flip();
+			channel.write(header);
+		}
+	}
+
+	/**
+	 * If the current segment is larger than maxSize, start a new one, and 
+	 * rewrite all older segments into one with the unacknowledged records. 
+	 * Adding records is not blocked while the old segments are rewritten.
+	 * 
+	 * @return if compacted
+	 */
+	public boolean compact(long maxSize) throws IOException {
+		synchronized(compactLock){
+			int last;
+			synchronized(syncLock){
+				if(getSegmentFile(segment).length() < maxSize || getSegments().size() == 0)
+					return false;
+				writeBuffer();
+				if(channel != null){
+					channel.close();
+					channel = null;
+				}
+				// rewritten segments go to last+1, new records to last+2
+				last = segment;
+				segment += 2;
+			}
+			ArrayList<Integer> old = new ArrayList<Integer>();
+			for(int num : getSegments()){
+				if(num <= last)
+					old.add(num);
+			}
+			ArrayList<Logged> entries = read(old);
+			File tmp = new File(dir,PREFIX+(last+1)+".tmp");
+			FileOutputStream file = new FileOutputStream(tmp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file,65536));
+			try{
+				out.writeInt(VERSION);
+				CRC32 crc = new CRC32();
+				for(Logged e : entries){
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					DataOutputStream frame = new DataOutputStream(bytes);
+					frame.writeByte(RECORD);
+					frame.writeLong(e.seq);
+					write(frame,e.record);
+					byte[] payload = bytes.toByteArray();
+					crc.reset();
+					crc.update(payload);
+					out.writeInt(payload.length);
+					out.writeInt((int)crc.getValue());
+					out.write(payload);
+				}
+				out.flush();
+				file.getFD().sync();
+			} finally{
+				out.close();
+			}
+			Files.move(tmp.toPath(),getSegmentFile(last+1).toPath(),StandardCopyOption.ATOMIC_MOVE);
+			for(int num : old){
+				if(!getSegmentFile(num).delete())
+					log.warn("Cannot delete "+getSegmentFile(num));
+			}
+			log.info("Compacted update log in "+dir+" to "+entries.size()+" queued records");
+			return true;
+		}
+	}
+
+	public void close() throws IOException {
+		synchronized(syncLock){
+			writeBuffer();
+			if(channel != null){
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+
+	/* ============== Record encoding ================ */
+
+	protected static void writeString(DataOutputStream out, String s) throws IOException {
+		if(s == null)
+			out.writeInt(-1);
+		else{
+			byte[] b = s.getBytes("utf-8");
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+
+	protected static String readString(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if(len == -1)
+			return null;
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return new String(b,"utf-8");
+	}
+
+	protected static void writeStrings(DataOutputStream out, Collection<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for(String str : strings)
+			writeString(out,str);
+	}
+
+	protected static Set<String> readStrings(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		HashSet<String> strings = new HashSet<String>();
+		for(int i=0;i<n;i++)
+			strings.add(readString(in));
+		return strings;
+	}
+
+	protected static void write(DataOutputStream out, IndexUpdateRecord r) throws IOException {
+		writeString(out,r.dbrole);
+		out.writeByte(r.action.ordinal());
+		out.writeBoolean(r.alwaysAdd);
+		out.writeBoolean(r.reportBack);
+		out.writeBoolean(r.linkUpdate);
+		writeString(out,r.reportHost);
+		out.writeBoolean(r.reportId != null);
+		if(r.reportId != null){
+			out.writeLong(r.reportId.pageId);
+			out.writeLong(r.reportId.timestamp);
+			writeString(out,r.reportId.dbrole);
+		}
+		Article a = r.article;
+		out.writeLong(a.getPageId());
+		writeString(out,a.getNamespace());
+		writeString(out,a.getTitle());
+		writeString(out,a.getContents());
+		out.writeInt(a.getReferences());
+		writeString(out,a.getRedirectTarget());
+		out.writeInt(a.getRedirectTargetNamespace());
+		out.writeInt(a.getRedirectRank());
+		out.writeLong(a.getDate() == null? Long.MIN_VALUE : a.getDate().getTime());
+		ArrayList<Redirect> redirects = a.getRedirects();
+		out.writeInt(redirects == null? -1 : redirects.size());
+		if(redirects != null){
+			for(Redirect rd : redirects){
+				out.writeInt(rd.getNamespace());
+				writeString(out,rd.getTitle());
+				out.writeInt(rd.getReferences());
+			}
+		}
+		ArrayList<RelatedTitle> related = a.getRelated();
+		out.writeInt(related == null? -1 : related.size());
+		if(related != null){
+			for(RelatedTitle rt : related){
+				out.writeInt(rt.getRelated().getNamespace());
+				writeString(out,rt.getRelated().getTitle());
+				out.writeDouble(rt.getScore());
+				ArrayList<String> contexts = rt.getContexts();
+				out.writeInt(contexts == null? -1 : contexts.size());
+				if(contexts != null){
+					for(String c : contexts)
+						writeString(out,c);
+				}
+			}
+		}
+		Hashtable<String,Integer> anchors = a.getAnchorRank();
+		out.writeInt(anchors == null? -1 : anchors.size());
+		if(anchors != null){
+			for(Entry<String,Integer> e : anchors.entrySet()){
+				writeString(out,e.getKey());
+				out.writeInt(e.getValue());
+			}
+		}
+		Hashtable<String,String> threading = a.DiscussionThreadingInfo;
+		out.writeInt(threading == null? -1 : threading.size());
+		if(threading != null){
+			for(Entry<String,String> e : threading.entrySet()){
+				writeString(out,e.getKey());
+				writeString(out,e.getValue());
+			}
+		}
+	}
+
+	protected static IndexUpdateRecord read(DataInputStream in) throws IOException {
+		String dbrole = readString(in);
+		IndexUpdateRecord.Action action = IndexUpdateRecord.Action.values()[in.readByte()];
+		boolean alwaysAdd = in.readBoolean();
+		boolean reportBack = in.readBoolean();
+		boolean linkUpdate = in.readBoolean();
+		String reportHost = readString(in);
+		ReportId reportId = null;
+		if(in.readBoolean()){
+			long pageId = in.readLong();
+			long timestamp = in.readLong();
+			reportId = new ReportId(pageId,timestamp,readString(in),null);
+			reportId.pageId = pageId;
+		}
+		long pageId = in.readLong();
+		String namespace = readString(in);
+		String title = readString(in);
+		String contents = readString(in);
+		int references = in.readInt();
+		String redirectTo = readString(in);
+		int redirectTargetNamespace = in.readInt();
+		int redirectRank = in.readInt();
+		long time = in.readLong();
+		Date date = time == Long.MIN_VALUE? null : new Date(time);
+		ArrayList<Redirect> redirects = null;
+		int n = in.readInt();
+		if(n >= 0){
+			redirects = new ArrayList<Redirect>(n);
+			for(int i=0;i<n;i++){
+				int ns = in.readInt();
+				String t = readString(in);
+				redirects.add(new Redirect(ns,t,in.readInt()));
+			}
+		}
+		ArrayList<RelatedTitle> related = null;
+		n = in.readInt();
+		if(n >= 0){
+			related = new ArrayList<RelatedTitle>(n);
+			for(int i=0;i<n;i++){
+				int ns = in.readInt();
+				String t = readString(in);
+				RelatedTitle rt = new RelatedTitle(new Title(ns,t),in.readDouble());
+				int c = in.readInt();
+				if(c >= 0){
+					ArrayList<String> contexts = new ArrayList<String>(c);
+					for(int j=0;j<c;j++)
+						contexts.add(readString(in));
+					rt.setContexts(contexts);
+				}
+				related.add(rt);
+			}
+		}
+		Hashtable<String,Integer> anchors = null;
+		n = in.readInt();
+		if(n >= 0){
+			anchors = new Hashtable<String,Integer>();
+			for(int i=0;i<n;i++){
+				String key = readString(in);
+				anchors.put(key,in.readInt());
+			}
+		}
+		Hashtable<String,String> threading = null;
+		n = in.readInt();
+		if(n >= 0){
+			threading = new Hashtable<String,String>();
+			for(int i=0;i<n;i++){
+				String key = readString(in);
+				threading.put(key,readString(in));
+			}
+		}
+		Article a = new Article(pageId,0,title,contents,redirectTo,references,redirectTargetNamespace,redirectRank,
+				redirects,related,anchors,date,threading);
+		a.setNsTitleKey(namespace+":"+title); // namespace might not be numeric
+		return new IndexUpdateRecord(a,action,null,dbrole,alwaysAdd,reportBack,reportHost,reportId,linkUpdate);
+	}
+}
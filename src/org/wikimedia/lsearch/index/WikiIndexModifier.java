@@ -14,6 +14,7 @@ import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
@@ -95,7 +96,6 @@ public class WikiIndexModifier {
 	/** Simple implementation of batch addition and deletion */
 	class SimpleIndexModifier {
 		protected IndexId iid;
-		protected IndexReader reader;
 		protected IndexWriter writer;
 		protected boolean rewrite;		
 		protected String langCode;
@@ -118,43 +118,55 @@ public class WikiIndexModifier {
 			this.exactCase = exactCase;
 		}
 		
-		/** Batch-delete documents, returns true if successfull */
-		boolean deleteDocuments(Collection<IndexUpdateRecord> records){			
-			try {
-				try{
-					reader = IndexReader.open(iid.getIndexPath());
-				} catch(IOException e){
-					if(IndexReader.isLocked(iid.getIndexPath())){
-						// unlock the index, and then retry
-						unlockIndex(iid.getIndexPath());
-						reader = IndexReader.open(iid.getIndexPath());
-					} else
-						throw e;
-				}
-				for(IndexUpdateRecord rec : records){
-					String suffix = rec.getIndexId().getDB().getTitlesSuffix();
-					if(rec.doDelete()){
-						if(iid.isHighlight())
-							reader.deleteDocuments(new Term("pageid", rec.getIndexKey()));
-						else if(iid.isTitlesBySuffix())
-							reader.deleteDocuments(new Term("pageid", suffix+":"+rec.getIndexKey()));
-						else // normal or titles index
-							reader.deleteDocuments(new Term("key", rec.getIndexKey()));
-						log.debug(iid+": Deleting document "+rec.getArticle());
-					}
-				}
-				reader.close();
-			} catch (IOException e) {
-				log.warn("I/O Error: could not open/read "+iid.getIndexPath()+" while deleting document.",e);
-				return false;
+		/** Term that identifies the document of record in this index */
+		protected Term makeKeyTerm(IndexUpdateRecord rec){
+			if(iid.isHighlight())
+				return new Term("pageid", rec.getIndexKey());
+			else if(iid.isTitlesBySuffix())
+				return new Term("pageid", rec.getIndexId().getDB().getTitlesSuffix()+":"+rec.getIndexKey());
+			else // normal or titles index
+				return new Term("key", rec.getIndexKey());
+		}
+		
+		/** Makes documents of records, every pipeline worker has its own analyzers */
+		class RecordBuilder implements DocumentPipeline.Builder<IndexUpdateRecord> {
+			FieldBuilder builder;
+			Analyzer indexAnalyzer, highlightAnalyzer;
+			HashSet<String> stopWords;
+			Set<IndexUpdateRecord> adds;
+			
+			RecordBuilder(Set<IndexUpdateRecord> adds){
+				this.adds = adds;
+				FieldBuilder.Case dCase = (exactCase)? FieldBuilder.Case.EXACT_CASE : FieldBuilder.Case.IGNORE_CASE; 
+				builder = new FieldBuilder(iid,dCase);
+				highlightAnalyzer = Analyzers.getHighlightAnalyzer(iid,exactCase); 			
+				indexAnalyzer = Analyzers.getIndexerAnalyzer(new FieldBuilder(iid,FieldBuilder.Case.EXACT_CASE));
+				stopWords = StopWords.getPredefinedSet(iid);
+			}
+			
+			public Document build(IndexUpdateRecord rec) throws Exception {
+				// article might not be added for some reason, but old version is still deleted
+				if(!rec.doAdd() || (adds != null && !adds.contains(rec)) || !checkPreconditions(rec))
+					return null;
+				if(iid.isHighlight())
+					return makeHighlightDocument(rec.getArticle(),builder,iid);
+				else if(iid.isTitlesBySuffix()){
+					IndexId orig = rec.getIndexId().getDB();
+					return makeTitleDocument(rec.getArticle(),indexAnalyzer,highlightAnalyzer,iid,orig.getTitlesSuffix(),orig.getDBname(),exactCase,stopWords);
+				} else // normal index
+					return makeDocument(rec.getArticle(),builder,iid,stopWords,indexAnalyzer);
 			}
-			return true;
 		}
 		
-		/** Batch-add documents, returns true if successfull */
-		boolean addDocuments(Collection<IndexUpdateRecord> records){
-			boolean succ = true;
-			String path = iid.getIndexPath();
+		/** 
+		 * Apply all records through a single writer, deletes and re-adds are done
+		 * atomically with updateDocument(). Documents are added only for records
+		 * in adds (all if null), of others only the old version is deleted. Documents
+		 * are made concurrently by a {@link DocumentPipeline}.  
+		 * Returns true if successfull 
+		 */
+		boolean updateDocuments(Collection<IndexUpdateRecord> records, final Set<IndexUpdateRecord> adds){
+			final String path = iid.getIndexPath();
 			try{
 				writer = openForWrite(path,rewrite);
 			} catch(IOException e){
@@ -168,50 +180,42 @@ public class WikiIndexModifier {
 			writer.setMaxBufferedDocs(maxBufDocs);
 			writer.setUseCompoundFile(true);
 			writer.setMaxFieldLength(MAX_FIELD_LENGTH);
-			FieldBuilder.Case dCase = (exactCase)? FieldBuilder.Case.EXACT_CASE : FieldBuilder.Case.IGNORE_CASE; 
-			FieldBuilder builder = new FieldBuilder(iid,dCase);
-			Analyzer indexAnalyzer = null;
-			Analyzer highlightAnalyzer = null;
-			highlightAnalyzer = Analyzers.getHighlightAnalyzer(iid,exactCase); 			
-			indexAnalyzer = Analyzers.getIndexerAnalyzer(new FieldBuilder(iid,FieldBuilder.Case.EXACT_CASE));
+			final Analyzer highlightAnalyzer = Analyzers.getHighlightAnalyzer(iid,exactCase); 			
+			final Analyzer indexAnalyzer = Analyzers.getIndexerAnalyzer(new FieldBuilder(iid,FieldBuilder.Case.EXACT_CASE));
 			
-			HashSet<String> stopWords = StopWords.getPredefinedSet(iid);
-			for(IndexUpdateRecord rec : records){								
-				if(rec.doAdd()){
-					if(!checkPreconditions(rec))
-						continue; // article shouldn't be added for some reason					
-					Document doc;					
-					try {
-						if(iid.isHighlight()){
-							doc = makeHighlightDocument(rec.getArticle(),builder,iid);
-							writer.addDocument(doc,highlightAnalyzer);
-						} else if(iid.isTitlesBySuffix()){
-							IndexId orig = rec.getIndexId().getDB();
-							doc = makeTitleDocument(rec.getArticle(),indexAnalyzer,highlightAnalyzer,iid,orig.getTitlesSuffix(),orig.getDBname(),exactCase,stopWords);
-							writer.addDocument(doc,indexAnalyzer);
-						} else{ // normal index
-							doc = makeDocument(rec.getArticle(),builder,iid,stopWords,indexAnalyzer);
-							writer.addDocument(doc,indexAnalyzer);
-						}
-												
+			DocumentPipeline<IndexUpdateRecord> pipeline = new DocumentPipeline<IndexUpdateRecord>(){
+				protected Builder<IndexUpdateRecord> newBuilder() {
+					return new RecordBuilder(adds);
+				}
+				protected void write(IndexUpdateRecord rec, Document doc) throws Exception {
+					Term key = makeKeyTerm(rec);
+					Analyzer analyzer = iid.isHighlight()? highlightAnalyzer : indexAnalyzer;
+					if(doc != null){
+						if(rec.doDelete())
+							writer.updateDocument(key,doc,analyzer);
+						else
+							writer.addDocument(doc,analyzer);
 						log.debug(iid+": Adding document "+rec.getArticle().toStringFull());
-					} catch (IOException e) {
-						log.error("Error writing  document "+rec+" to index "+path,e);
-						succ = false; // report unsucc, but still continue, to process all cards 
-					} catch(Exception e){
-						e.printStackTrace();
-						log.error("Error adding document "+rec.getIndexKey()+" with message: "+e.getMessage(),e);
-						succ = false; // report unsucc, but still continue, to process all cards
+					} else if(rec.doDelete()){
+						writer.deleteDocuments(key);
+						log.debug(iid+": Deleting document "+rec.getArticle());
 					}
 				}
-			}
+				protected void failed(IndexUpdateRecord rec, Throwable e) {
+					// report unsucc, but still continue, to process all cards
+					log.error("Error adding document "+rec.getIndexKey()+" to index "+path+" with message: "+e.getMessage(),e);
+				}
+			};
+			for(IndexUpdateRecord rec : records)
+				pipeline.add(rec);
+			pipeline.finish();
 			try {
 				writer.close();					
 			} catch (IOException e) {
 				log.error("Error closing index "+path,e);
 				return false;
 			}
-			return succ;
+			return pipeline.getFailedCount() == 0;
 		}
 
 		public boolean checkPreconditions(IndexUpdateRecord rec){
@@ -269,16 +273,22 @@ public class WikiIndexModifier {
 	 * @param article
 	 */
 	public static void transformArticleForIndexing(Article ar) {
-		ArrayList<Redirect> redirects = ar.getRedirects();
-		// sort redirect by their rank
-		Collections.sort(redirects,new Comparator<Redirect>() {
-			public int compare(Redirect o1,Redirect o2){
-				return o2.getReferences() - o1.getReferences();
-			}
-		});		
-		int ns = Integer.parseInt(ar.getNamespace());
-		ar.setRank(ar.getReferences()); // base rank value
-		if(redirects != null){
+		// documents of different indexes can be made concurrently from the
+		// same article, so transform only once and keep the redirect list intact 
+		synchronized(ar){
+			if(ar.getRedirectsSorted() != null)
+				return; // already transformed
+			ArrayList<Redirect> redirects = new ArrayList<Redirect>();
+			if(ar.getRedirects() != null)
+				redirects.addAll(ar.getRedirects());
+			// sort redirect by their rank
+			Collections.sort(redirects,new Comparator<Redirect>() {
+				public int compare(Redirect o1,Redirect o2){
+					return o2.getReferences() - o1.getReferences();
+				}
+			});		
+			int ns = Integer.parseInt(ar.getNamespace());
+			int rank = ar.getReferences(); // base rank value
 			ArrayList<String> filtered = new ArrayList<String>();
 			ArrayList<Integer> ranks = new ArrayList<Integer>();
 			ArrayList<Redirect> sorted = new ArrayList<Redirect>();
@@ -290,10 +300,11 @@ public class WikiIndexModifier {
 					filtered.add(r.getTitle());
 					ranks.add(r.getReferences());
 					sorted.add(r);
-					ar.addToRank(r.getReferences()+1);					
+					rank += r.getReferences()+1;					
 				} else
 					log.debug("Ignoring redirect "+r+" to "+ar);
 			}
+			ar.setRank(rank);
 			ar.setRedirectKeywords(filtered);
 			ar.setRedirectKeywordRanks(ranks);
 			ar.setRedirectsSorted(sorted);
@@ -599,6 +610,7 @@ public class WikiIndexModifier {
 	 */
 	protected boolean updateDocumentsOn(IndexId iid, Collection<IndexUpdateRecord> updateRecords, IndexId original){
 		long now = System.currentTimeMillis();
+		updateRecords = coalesce(updateRecords);
 		log.info("Starting update of "+updateRecords.size()+" records on "+iid+", started at "+now);
 		boolean succ = true;
 		if(iid.isFurtherSubdivided()){
@@ -613,27 +625,22 @@ public class WikiIndexModifier {
 				trans.put(part.toString(),t);				
 			}
 			
-			// delete all first
-			for(IndexId part : subs){
-				mod.get(part.toString()).deleteDocuments(updateRecords);
-			}
-			ArrayList<ArrayList<IndexUpdateRecord>> split = new ArrayList<ArrayList<IndexUpdateRecord>>();
+			// split, every part deletes old versions, and adds its share
+			ArrayList<HashSet<IndexUpdateRecord>> split = new ArrayList<HashSet<IndexUpdateRecord>>();
 			for(int i=0;i<subs.size();i++)
-				split.add(new ArrayList<IndexUpdateRecord>());
-			// split
+				split.add(new HashSet<IndexUpdateRecord>());
 			for(IndexUpdateRecord rec : updateRecords){
 				int part = (int)(Math.random()*subs.size());
 				split.get(part).add(rec);
 			}
-			// add
 			for(int i=0;i<subs.size();i++){
 				SimpleIndexModifier modifier = mod.get(subs.get(i).toString());
-				modifier.addDocuments(split.get(i));
+				modifier.updateDocuments(updateRecords,split.get(i));
 			}
 			// commit
 			for(IndexId part : subs){
 				trans.get(part.toString()).commit();
-				modifiedDBs.add(part);
+				addModified(part);
 			}
 			
 		} else{
@@ -642,12 +649,10 @@ public class WikiIndexModifier {
 			
 			Transaction trans = new Transaction(iid,IndexId.Transaction.INDEX);
 			trans.begin();
-			boolean succDel = modifier.deleteDocuments(updateRecords);
-			boolean succAdd = modifier.addDocuments(updateRecords);
-			succ = succAdd; // it's OK if articles cannot be deleted
+			succ = modifier.updateDocuments(updateRecords,null);
 			trans.commit();
 						
-			modifiedDBs.add(iid);		
+			addModified(iid);		
 		}
 		long delta = System.currentTimeMillis()-now;
 		if(succ)
@@ -657,6 +662,32 @@ public class WikiIndexModifier {
 		return succ;
 	}
 
+	/** 
+	 * Keep only the last record for every page, so each page is indexed once per batch. 
+	 * Delete of an earlier record is merged into a later add.  
+	 */
+	protected static Collection<IndexUpdateRecord> coalesce(Collection<IndexUpdateRecord> records){
+		LinkedHashMap<String,IndexUpdateRecord> last = new LinkedHashMap<String,IndexUpdateRecord>();
+		for(IndexUpdateRecord rec : records){
+			String key = rec.getIndexId().getDB()+":"+rec.getIndexKey();
+			IndexUpdateRecord old = last.remove(key);
+			if(old != null && old.doDelete() && !rec.doDelete()){
+				rec = (IndexUpdateRecord) rec.clone();
+				rec.setAction(IndexUpdateRecord.Action.UPDATE);
+			}
+			last.put(key,rec);
+		}
+		if(last.size() == records.size())
+			return records;
+		log.debug("Coalesced "+records.size()+" records into "+last.size());
+		return last.values();
+	}
+
+	/** Mark index as modified, updates of different indexes run concurrently */
+	protected synchronized static void addModified(IndexId iid){
+		modifiedDBs.add(iid);
+	}
+
 	/** Get modified indexes */
 	public synchronized static HashSet<IndexId> getModifiedIndexes(){
 		HashSet<IndexId> retVal = modifiedDBs;
@@ -15,6 +15,8 @@ import org.wikimedia.lsearch.highlight.Highlight;
 import org.wikimedia.lsearch.index.IndexUpdateRecord;
 import org.wikimedia.lsearch.search.HighlightPack;
 import org.wikimedia.lsearch.search.NamespaceFilter;
+import org.wikimedia.lsearch.search.PartSearchRequest;
+import org.wikimedia.lsearch.search.PartStats;
 import org.wikimedia.lsearch.search.FilterWrapper;
 import org.wikimedia.lsearch.search.SuffixNamespaceWrapper;
 import org.wikimedia.lsearch.search.SearcherCache.SearcherPoolStatus;
@@ -80,6 +82,29 @@ public interface RMIMessenger extends Remote {
 	 */
 	public HighlightPack searchPart(String dbrole, String searchterm, Query query, FilterWrapper filter, int offset, int limit, boolean explain) throws RemoteException;
 	
+	/**
+	 * Rewrite query on a part of a split index, and return it with the doc 
+	 * freqs of its terms (and of extraTerms) on the part, the first call 
+	 * to every part in a combined search. 
+	 * 
+	 * @param dbrole - part of index, e.g. enwiki.mainpart
+	 * @param query - query to rewrite
+	 * @param extraTerms - other terms to get doc freqs of (e.g. for highlighting), or null
+	 * @throws RemoteException
+	 */
+	public PartStats getPartStats(String dbrole, Query query, Term[] extraTerms) throws RemoteException;
+	
+	/**
+	 * Search a part of a split index using global term statistics shipped
+	 * with the request, and return keys and scores of the top hits, 
+	 * the second call to every part in a combined search. 
+	 * 
+	 * @param dbrole - part of index, e.g. enwiki.mainpart
+	 * @param request - rewritten query and global stats
+	 * @throws RemoteException
+	 */
+	public HighlightPack searchPartWithStats(String dbrole, PartSearchRequest request) throws RemoteException;
+	
 	/**
 	 * Returns index queue size. Needed for incremental updater, so it doesn't overload the indexer. 
 	 * 
@@ -24,7 +24,10 @@ import org.wikimedia.lsearch.config.IndexId;
 import org.wikimedia.lsearch.highlight.Highlight;
 import org.wikimedia.lsearch.index.IndexUpdateRecord;
 import org.wikimedia.lsearch.search.HighlightPack;
+import org.wikimedia.lsearch.search.HostStats;
 import org.wikimedia.lsearch.search.NamespaceFilter;
+import org.wikimedia.lsearch.search.PartSearchRequest;
+import org.wikimedia.lsearch.search.PartStats;
 import org.wikimedia.lsearch.search.FilterWrapper;
 import org.wikimedia.lsearch.search.SearcherCache;
 import org.wikimedia.lsearch.search.SuffixNamespaceWrapper;
@@ -183,6 +186,9 @@ public class RMIMessengerClient {
 	}
 	
 	public HighlightPack searchPart(IndexId iid, String searchterm, Query query, FilterWrapper filter, int offset, int limit, boolean explain, String host) throws Exception {
+		HostStats stats = SearcherCache.getInstance().getHostStats();
+		long start = stats.begin(iid,host);
+		boolean failed = false;
 		try {
 			RMIMessenger r = messengerFromCache(host);
 			log.debug("Calling searchPart("+iid+",("+query+"),"+offset+","+limit+") on "+host);
@@ -190,13 +196,53 @@ public class RMIMessengerClient {
 			log.debug(" \\-> got: "+res);
 			return res;
 		} catch (Exception e) {
+			failed = true;
 			recheckRemote(iid,host);
 			log.warn("Error invoking searchPart("+iid+",(term="+searchterm+"),(q="+query+"),"+offset+","+limit+") on "+host+" : "+e.getMessage(),e);
 			e.printStackTrace();
 			throw e;
+		} finally{
+			stats.end(iid,host,start,!failed);
 		}
 	}
 	
+	public PartStats getPartStats(IndexId iid, Query query, Term[] extraTerms, String host) throws Exception {
+		HostStats stats = SearcherCache.getInstance().getHostStats();
+		long start = stats.begin(iid,host);
+		boolean failed = false;
+		try {
+			RMIMessenger r = messengerFromCache(host);
+			log.debug("Calling getPartStats("+iid+",("+query+")) on "+host);
+			return r.getPartStats(iid.toString(),query,extraTerms);
+		} catch (Exception e) {
+			failed = true;
+			recheckRemote(iid,host);
+			log.warn("Error invoking getPartStats("+iid+",(q="+query+")) on "+host+" : "+e.getMessage(),e);
+			throw e;
+		} finally{
+			stats.end(iid,host,start,!failed);
+		}
+	}
+	
+	public HighlightPack searchPartWithStats(IndexId iid, PartSearchRequest request, String host) throws Exception {
+		HostStats stats = SearcherCache.getInstance().getHostStats();
+		long start = stats.begin(iid,host);
+		boolean failed = false;
+		try {
+			RMIMessenger r = messengerFromCache(host);
+			log.debug("Calling searchPartWithStats("+iid+",("+request.query+"),"+request.limit+") on "+host);
+			HighlightPack res = r.searchPartWithStats(iid.toString(),request);
+			log.debug(" \\-> got: "+res);
+			return res;
+		} catch (Exception e) {
+			failed = true;
+			recheckRemote(iid,host);
+			log.warn("Error invoking searchPartWithStats("+iid+",(term="+request.searchterm+"),(q="+request.query+"),"+request.limit+") on "+host+" : "+e.getMessage(),e);
+			throw e;
+		} finally{
+			stats.end(iid,host,start,!failed);
+		}
+	}
 
 	public boolean requestFlushAndNotify(String dbname, String host){
 		try {
@@ -26,6 +26,8 @@ import org.wikimedia.lsearch.search.HighlightPack;
 import org.wikimedia.lsearch.search.NamespaceFilter;
 import org.wikimedia.lsearch.search.FilterWrapper;
 import org.wikimedia.lsearch.search.NetworkStatusThread;
+import org.wikimedia.lsearch.search.PartSearchRequest;
+import org.wikimedia.lsearch.search.PartStats;
 import org.wikimedia.lsearch.search.SearchEngine;
 import org.wikimedia.lsearch.search.SearcherCache;
 import org.wikimedia.lsearch.search.SuffixNamespaceWrapper;
@@ -85,8 +87,12 @@ public class RMIMessengerImpl implements RMIMessenger {
 		log.debug("Received request enqueueUpdateRecords("+records.length+" records)");
 		if(indexer == null)
 			indexer = new IndexDaemon(); // start the indexer
-		for(IndexUpdateRecord record : records)
-			IndexThread.enqueueFromIndexer(record);
+		try {
+			IndexThread.enqueueFromIndexer(records);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RemoteException("Exception during enqueueUpdateRecords()",e);
+		}
 	}
 	
 	// inherit javadoc
@@ -104,15 +110,47 @@ public class RMIMessengerImpl implements RMIMessenger {
 
 	// inherit javadoc
 	public HighlightPack searchPart(String dbrole, String searchterm, Query query, FilterWrapper filter, int offset, int limit, boolean explain) throws RemoteException {
-		log.debug("Received request searchMainPart("+dbrole+","+query+","+offset+","+limit+")");
-		return new SearchEngine().searchPart(IndexId.get(dbrole),searchterm,query,filter,offset,limit,explain);
+		SearcherCache.getInstance().beginRequest();
+		try{
+			log.debug("Received request searchMainPart("+dbrole+","+query+","+offset+","+limit+")");
+			return new SearchEngine().searchPart(IndexId.get(dbrole),searchterm,query,filter,offset,limit,explain);
+		} finally{
+			SearcherCache.getInstance().endRequest();
+		}
+	}
+	
+	// inherit javadoc
+	public PartStats getPartStats(String dbrole, Query query, Term[] extraTerms) throws RemoteException {
+		SearcherCache.getInstance().beginRequest();
+		try{
+			log.debug("Received request getPartStats("+dbrole+","+query+")");
+			return new SearchEngine().getPartStats(IndexId.get(dbrole),query,extraTerms);
+		} catch(IOException e){
+			throw new RemoteException("IOException on "+dbrole,e);
+		} finally{
+			SearcherCache.getInstance().endRequest();
+		}
+	}
+	
+	// inherit javadoc
+	public HighlightPack searchPartWithStats(String dbrole, PartSearchRequest request) throws RemoteException {
+		SearcherCache.getInstance().beginRequest();
+		try{
+			log.debug("Received request searchPartWithStats("+dbrole+","+request.query+","+request.limit+")");
+			return new SearchEngine().searchPartWithStats(IndexId.get(dbrole),request);
+		} finally{
+			SearcherCache.getInstance().endRequest();
+		}
 	}
 	
 	public ArrayList<String> getTerms(String dbrole, String wildcard, boolean exactCase) throws RemoteException {
+		SearcherCache.getInstance().beginRequest();
 		try{
 			return Wildcards.getLocalTerms(IndexId.get(dbrole),wildcard,exactCase);
 		} catch(IOException e){
 			throw new RemoteException("IOException on "+dbrole,e);
+		} finally{
+			SearcherCache.getInstance().endRequest();
 		}
 	}
 	
@@ -138,50 +176,65 @@ public class RMIMessengerImpl implements RMIMessenger {
 	// inherit javadoc
 	public Highlight.ResultSet highlight(ArrayList<String> hits, String dbrole, Term[] terms, int[] df, int maxDoc, ArrayList<String> words, boolean exactCase, boolean sortByPhrases, boolean alwaysIncludeFirst) throws RemoteException{
 		IndexId iid = IndexId.get(dbrole);
+		SearcherCache.getInstance().beginRequest();
 		try{
 			return Highlight.highlight(hits,iid,terms,df,maxDoc,words,StopWords.getPredefinedSet(iid),exactCase,null,sortByPhrases,alwaysIncludeFirst);
 		} catch(IOException e){
 			throw new RemoteException("IOException on "+dbrole,e);
+		} finally{
+			SearcherCache.getInstance().endRequest();
 		}
 	}
 	
 	public SearchResults searchTitles(String dbrole, String searchterm, ArrayList<String> words, Query query, SuffixNamespaceWrapper filter, int offset, int limit, boolean explain, boolean sortByPhrases) throws RemoteException {
 		IndexId iid = IndexId.get(dbrole);
+		SearcherCache.getInstance().beginRequest();
 		try{
 			return new SearchEngine().searchTitles(iid,searchterm,words,query,filter,offset,limit,explain,sortByPhrases); 
 		} catch(Exception e){
 			e.printStackTrace();
 			throw new RemoteException("Exception on "+dbrole,e);
+		} finally{
+			SearcherCache.getInstance().endRequest();
 		}
 	}
 	
 	public SuggestQuery suggest(String dbrole, String searchterm, ArrayList<Token> tokens, Suggest.ExtraInfo info, NamespaceFilter nsf) throws RemoteException {
 		IndexId iid = IndexId.get(dbrole);
+		SearcherCache.getInstance().beginRequest();
 		try{
 			return new Suggest(iid).suggest(searchterm,tokens,info,nsf);
 		} catch(Exception e){
 			e.printStackTrace();
 			throw new RemoteException("Exception on "+dbrole,e);
+		} finally{
+			SearcherCache.getInstance().endRequest();
 		}
 	}
 	
 	public ArrayList<SuggestResult> getFuzzy(String dbrole, String word, NamespaceFilter nsf) throws RemoteException {
 		IndexId iid = IndexId.get(dbrole);
+		SearcherCache.getInstance().beginRequest();
 		try {
 			return new Suggest(iid).getFuzzy(word,nsf);
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new RemoteException("Exception on "+dbrole,e);
+		} finally{
+			SearcherCache.getInstance().endRequest();
 		}
 	}
 
 	public SearchResults searchRelated(String dbrole, String searchterm, int offset, int limit) throws RemoteException {
 		IndexId iid = IndexId.get(dbrole);
+		SearcherCache.getInstance().beginRequest();
 		try{
 			return new SearchEngine().searchRelatedLocal(iid,searchterm,offset,limit);
 		} catch(IOException e){
 			e.printStackTrace();
 			throw new RemoteException("Exception on "+dbrole,e);
+		} finally{
+			SearcherCache.getInstance().endRequest();
 		}
 	}
 	
@@ -197,20 +250,26 @@ public class RMIMessengerImpl implements RMIMessenger {
 			cache = SearcherCache.getInstance();
 		
 		IndexId iid = IndexId.get(dbrole);
+		SearcherCache.getInstance().beginRequest();
 		try {
 			return new SearchEngine().searchPrefixLocal(iid,searchterm,limit,nsf,cache.getLocalSearcher(iid));
 		} catch (IOException e) {
 			throw new RemoteException("IO Error in searchPrefix()",e);
+		} finally{
+			SearcherCache.getInstance().endRequest();
 		}
 	}
 	
 	public ArrayList<String> similar(String dbrole, String title, NamespaceFilter nsf, int maxdist) throws RemoteException {
 		IndexId iid = IndexId.get(dbrole);
+		SearcherCache.getInstance().beginRequest();
 		try{
 			SuggestSimilar similar = new SuggestSimilar(iid);
 			return similar.getSimilarTitles(title,nsf,maxdist);
 		} catch(IOException e){
 			throw new RemoteException("IO Error in similar()",e);
+		} finally{
+			SearcherCache.getInstance().endRequest();
 		}
 	}
 
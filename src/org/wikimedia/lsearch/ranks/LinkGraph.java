@@ -0,0 +1,385 @@
+package org.wikimedia.lsearch.ranks;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.wikimedia.lsearch.beans.Title;
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.util.IntSet;
+
+/**
+ * Read-only, in-memory copy of the link analysis index, for imports
+ * where every page is looked up. Page keys are interned into int ids,
+ * in-links, out-links, redirects and anchors are kept in CSR form
+ * (start offsets + one flat int array), so lookups are array reads.
+ *
+ * Make with {@link Links#makeCompact()}. Safe to use from many threads.
+ */
+public class LinkGraph implements LinkLookup {
+	static Logger log = Logger.getLogger(LinkGraph.class);
+
+	/**
+	 * Strings stored as utf-8 in a single byte array, looked up
+	 * with an open addressing hash table.
+	 */
+	public static class StringPool {
+		protected byte[] data = new byte[1 << 16];
+		protected int length = 0;
+		/** string i is data[offsets[i]..offsets[i+1]] */
+		protected int[] offsets = new int[1024];
+		protected int size = 0;
+		/** string id + 1, 0 is empty slot */
+		protected int[] table = new int[2048];
+
+		public int size(){
+			return size;
+		}
+
+		/** @return id of s, adding it if not already in pool */
+		public int add(String s){
+			byte[] b = encode(s);
+			int slot = find(b);
+			if(table[slot] != 0)
+				return table[slot]-1;
+			if(length + b.length > data.length){
+				byte[] d = new byte[Math.max(data.length*2,length+b.length)];
+				System.arraycopy(data,0,d,0,length);
+				data = d;
+			}
+			System.arraycopy(b,0,data,length,b.length);
+			if(size + 2 > offsets.length){
+				int[] o = new int[offsets.length*2];
+				System.arraycopy(offsets,0,o,0,size+1);
+				offsets = o;
+			}
+			offsets[size] = length;
+			length += b.length;
+			offsets[size+1] = length;
+			table[slot] = ++size;
+			if(size*2 > table.length)
+				rehash();
+			return size-1;
+		}
+
+		/** @return id of s, or -1 if not in pool */
+		public int get(String s){
+			int id = table[find(encode(s))];
+			return id-1;
+		}
+
+		public String get(int id){
+			try {
+				return new String(data,offsets[id],offsets[id+1]-offsets[id],"utf-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/** Free unused space after all strings are added */
+		public void trim(){
+			byte[] d = new byte[length];
+			System.arraycopy(data,0,d,0,length);
+			data = d;
+			int[] o = new int[size+1];
+			System.arraycopy(offsets,0,o,0,size+1);
+			offsets = o;
+		}
+
+		protected static byte[] encode(String s){
+			try {
+				return s.getBytes("utf-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		protected static int hash(byte[] b, int off, int len){
+			int h = 0x811c9dc5;
+			for(int i=off;i<off+len;i++){
+				h ^= b[i];
+				h *= 0x01000193;
+			}
+			return h & 0x7fffffff;
+		}
+
+		/** @return slot with b, or empty slot where it should go */
+		protected int find(byte[] b){
+			int mask = table.length-1;
+			int slot = hash(b,0,b.length) & mask;
+			for(;;){
+				int id = table[slot];
+				if(id == 0 || equals(id-1,b))
+					return slot;
+				slot = (slot+1) & mask;
+			}
+		}
+
+		protected boolean equals(int id, byte[] b){
+			int off = offsets[id];
+			if(offsets[id+1]-off != b.length)
+				return false;
+			for(int i=0;i<b.length;i++){
+				if(data[off+i] != b[i])
+					return false;
+			}
+			return true;
+		}
+
+		protected void rehash(){
+			table = new int[table.length*2];
+			int mask = table.length-1;
+			for(int id=0;id<size;id++){
+				int slot = hash(data,offsets[id],offsets[id+1]-offsets[id]) & mask;
+				while(table[slot] != 0)
+					slot = (slot+1) & mask;
+				table[slot] = id+1;
+			}
+		}
+	}
+
+	/** Growable int array */
+	protected static class IntList {
+		int[] a = new int[1024];
+		int size = 0;
+
+		void add(int v){
+			if(size == a.length){
+				int[] n = new int[a.length*2];
+				System.arraycopy(a,0,n,0,size);
+				a = n;
+			}
+			a[size++] = v;
+		}
+	}
+
+	/** Adjacency lists in CSR form: values of i are values[start[i]..start[i+1]] */
+	protected static class CSR {
+		int[] start;
+		int[] values;
+
+		/** Make from (from,to) pairs, keeping the order of pairs within a list */
+		CSR(int n, IntList from, IntList to){
+			start = new int[n+1];
+			for(int i=0;i<from.size;i++)
+				start[from.a[i]+1]++;
+			for(int i=0;i<n;i++)
+				start[i+1] += start[i];
+			values = new int[from.size];
+			int[] pos = new int[n];
+			for(int i=0;i<from.size;i++){
+				int f = from.a[i];
+				values[start[f]+pos[f]++] = to.a[i];
+			}
+		}
+
+		int count(int i){
+			return start[i+1]-start[i];
+		}
+	}
+
+	protected IndexId iid;
+	/** page keys (ns:title) */
+	protected StringPool keys = new StringPool();
+	/** anchor texts */
+	protected StringPool anchorTexts = new StringPool();
+	protected CSR inLinks, outLinks, redirectsTo;
+	/** key id -> redirect target key id, or -1 */
+	protected int[] redirectTarget;
+	/** key id -> anchor text ids, and counts in the same positions */
+	protected CSR anchors;
+	protected int[] anchorCounts;
+	/** articles (pages in the links index) have ids 0..numArticles-1 */
+	protected int numArticles;
+
+	protected LinkGraph(IndexId iid){
+		this.iid = iid;
+	}
+
+	/** Load all link info from reader of a links index */
+	public static LinkGraph build(IndexId iid, IndexReader reader) throws IOException {
+		long start = System.currentTimeMillis();
+		LinkGraph cl = new LinkGraph(iid);
+		// doc id -> key id of article
+		int[] docKey = new int[reader.maxDoc()];
+		for(int i=0;i<docKey.length;i++)
+			docKey[i] = -1;
+		TermDocs td = reader.termDocs();
+		TermEnum te = reader.terms(new Term("article_key",""));
+		for(;te.term() != null && te.term().field().equals("article_key");te.next()){
+			td.seek(te);
+			if(td.next())
+				docKey[td.doc()] = cl.keys.add(te.term().text());
+		}
+		te.close();
+		cl.numArticles = cl.keys.size();
+
+		// links: target -> linking articles
+		IntList linkTo = new IntList(), linkFrom = new IntList();
+		te = reader.terms(new Term("links",""));
+		for(;te.term() != null && te.term().field().equals("links");te.next()){
+			int target = -1;
+			td.seek(te);
+			while(td.next()){
+				int from = docKey[td.doc()];
+				if(from == -1)
+					continue;
+				if(target == -1)
+					target = cl.keys.add(te.term().text());
+				linkTo.add(target);
+				linkFrom.add(from);
+			}
+		}
+		te.close();
+
+		// redirects, terms are target|redirect
+		IntList redirectTo = new IntList(), redirectFrom = new IntList();
+		te = reader.terms(new Term("redirect",""));
+		for(;te.term() != null && te.term().field().equals("redirect");te.next()){
+			td.seek(te);
+			if(td.next()){
+				String t = te.term().text();
+				int bar = t.indexOf('|');
+				redirectTo.add(cl.keys.add(t.substring(0,bar)));
+				redirectFrom.add(cl.keys.add(t.substring(bar+1)));
+			}
+		}
+		te.close();
+
+		// anchors, terms are target|anchor
+		IntList anchorTarget = new IntList(), anchorText = new IntList(), anchorCount = new IntList();
+		te = reader.terms(new Term("anchors",""));
+		for(;te.term() != null && te.term().field().equals("anchors");te.next()){
+			int count = 0;
+			td.seek(te);
+			while(td.next()) // skip deleted docs
+				count++;
+			if(count > 0){
+				String t = te.term().text();
+				int bar = t.indexOf('|');
+				anchorTarget.add(cl.keys.add(t.substring(0,bar)));
+				anchorText.add(cl.anchorTexts.add(t.substring(bar+1)));
+				anchorCount.add(count);
+			}
+		}
+		te.close();
+		td.close();
+
+		int n = cl.keys.size();
+		cl.keys.trim();
+		cl.anchorTexts.trim();
+		cl.inLinks = new CSR(n,linkTo,linkFrom);
+		cl.outLinks = new CSR(n,linkFrom,linkTo);
+		cl.redirectsTo = new CSR(n,redirectTo,redirectFrom);
+		cl.redirectTarget = new int[n];
+		for(int i=0;i<n;i++)
+			cl.redirectTarget[i] = -1;
+		for(int i=0;i<redirectFrom.size;i++)
+			cl.redirectTarget[redirectFrom.a[i]] = redirectTo.a[i];
+		// positions of counts are the same as of texts
+		cl.anchors = new CSR(n,anchorTarget,anchorText);
+		cl.anchorCounts = new CSR(n,anchorTarget,anchorCount).values;
+
+		log.info("Loaded "+n+" pages with "+linkTo.size+" links, "+redirectTo.size+" redirects and "
+				+anchorText.size+" anchors of "+iid+" in "+(System.currentTimeMillis()-start)+" ms");
+		return cl;
+	}
+
+	/** @return number of articles, their ids are 0..getNumArticles()-1, in key order */
+	public int getNumArticles() {
+		return numArticles;
+	}
+
+	/** @return id of page key, or -1 if unknown */
+	public int getId(String key) {
+		return keys.get(key);
+	}
+
+	public String getKey(int id) {
+		return keys.get(id);
+	}
+
+	public int getNumInLinks(int id) {
+		return inLinks.count(id);
+	}
+
+	/** @return ids of articles linking to page id */
+	public int[] getInLinkIds(int id) {
+		int[] ret = new int[inLinks.count(id)];
+		System.arraycopy(inLinks.values,inLinks.start[id],ret,0,ret.length);
+		return ret;
+	}
+
+	/** @return number of articles linking to page id which are in set */
+	public int countInLinks(int id, IntSet set) {
+		int count = 0;
+		for(int i=inLinks.start[id];i<inLinks.start[id+1];i++){
+			if(set.contains(inLinks.values[i]))
+				count++;
+		}
+		return count;
+	}
+
+	public int getNumInLinks(String key) {
+		int id = keys.get(key);
+		return id == -1? 0 : inLinks.count(id);
+	}
+
+	/** Get keys of all articles linking to key */
+	public ArrayList<String> getInLinks(String key) {
+		return getKeys(inLinks,keys.get(key));
+	}
+
+	/** Get keys of all articles key links to */
+	public ArrayList<String> getOutLinks(String key) {
+		return getKeys(outLinks,keys.get(key));
+	}
+
+	public ArrayList<String> getRedirectsTo(String key) {
+		return getKeys(redirectsTo,keys.get(key));
+	}
+
+	protected ArrayList<String> getKeys(CSR csr, int id){
+		ArrayList<String> ret = new ArrayList<String>();
+		if(id != -1){
+			for(int i=csr.start[id];i<csr.start[id+1];i++)
+				ret.add(keys.get(csr.values[i]));
+		}
+		return ret;
+	}
+
+	public String getRedirectTarget(String key) {
+		int id = keys.get(key);
+		if(id == -1 || redirectTarget[id] == -1)
+			return null;
+		return keys.get(redirectTarget[id]);
+	}
+
+	public int getRedirectTargetNamespace(String key) {
+		String t = getRedirectTarget(key);
+		if(t != null)
+			return Integer.parseInt(t.substring(0,t.indexOf(':')));
+		return 0;
+	}
+
+	public HashMap<String,Integer> getAnchorMap(String key, Integer numInLinks) {
+		HashMap<String,Integer> map = new HashMap<String,Integer>();
+		int id = keys.get(key);
+		if(id != -1){
+			for(int i=anchors.start[id];i<anchors.start[id+1];i++)
+				map.put(anchorTexts.get(anchors.values[i]),anchorCounts[i]);
+		}
+		if(numInLinks == null)
+			numInLinks = getNumInLinks(key);
+		map.put(Title.titleFromKey(key),numInLinks);
+		if(!key.startsWith("0:"))
+			map.put(Title.textualFromKey(key,iid),numInLinks);
+		return map;
+	}
+}
@@ -0,0 +1,27 @@
+package org.wikimedia.lsearch.ranks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Per-page link information needed to make articles for indexing.
+ * Implemented by the {@link Links} index, and by the in-memory
+ * {@link LinkGraph} used for imports.
+ */
+public interface LinkLookup {
+	/** Get number of backlinks to this title */
+	public int getNumInLinks(String key) throws IOException;
+
+	/** If article is redirect, get target key, else null */
+	public String getRedirectTarget(String key) throws IOException;
+
+	/** Return the namespace of the redirect taget (if any) */
+	public int getRedirectTargetNamespace(String key) throws IOException;
+
+	/** Get all article titles that redirect to given title */
+	public ArrayList<String> getRedirectsTo(String key) throws IOException;
+
+	/** Get mapping text -> occurance count (including actual article title) */
+	public HashMap<String,Integer> getAnchorMap(String key, Integer numInLinks) throws IOException;
+}
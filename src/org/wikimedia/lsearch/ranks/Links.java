@@ -35,6 +35,7 @@ import org.wikimedia.lsearch.analyzers.FilterFactory;
 import org.wikimedia.lsearch.analyzers.SplitAnalyzer;
 import org.wikimedia.lsearch.beans.Article;
 import org.wikimedia.lsearch.beans.Title;
+import org.wikimedia.lsearch.config.Configuration;
 import org.wikimedia.lsearch.config.IndexId;
 import org.wikimedia.lsearch.index.IndexUpdateRecord;
 import org.wikimedia.lsearch.index.Transaction;
@@ -47,7 +48,7 @@ import org.wikimedia.lsearch.spell.api.LuceneDictionary;
 import org.wikimedia.lsearch.spell.api.Dictionary.Word;
 import org.wikimedia.lsearch.util.Localization;
 
-public class Links {
+public class Links implements LinkLookup {
 	static Logger log = Logger.getLogger(Links.class);
 	protected IndexId iid;
 	protected String langCode;
@@ -60,11 +61,14 @@ public class Links {
 	protected IndexSearcher searcher = null;
 	protected String path;
 	protected enum State { FLUSHED, WRITE, MODIFIED, READ };
-	protected State state;
+	protected volatile State state;
 	protected Directory directory = null;
 	protected NamespaceFilter nsf; // default search
 	protected ObjectCache cache;
-	protected FieldSelector keyOnly,redirectOnly,contextOnly,linksOnly;
+	protected FieldSelector keyOnly,pageIdOnly,redirectOnly,contextOnly,linksOrRedirect;
+	/** if out-links of articles are stored, needed for incremental related updates */
+	protected boolean storeOutLinks;
+	protected boolean warnedOutLinks = false;
 	protected boolean optimized = false;
 	protected boolean autoOptimize = false;
 	protected FilterFactory filters = null;
@@ -84,10 +88,16 @@ public class Links {
 		initWriter(writer);
 		nsf = iid.getDefaultNamespace();
 		keyOnly = makeSelector("article_key");
+		pageIdOnly = makeSelector("article_pageid");
 		redirectOnly = makeSelector("redirect");
 		contextOnly = makeSelector("context");
-		linksOnly = makeSelector("links");
+		HashSet<String> linksSet = new HashSet<String>();
+		linksSet.add("links");
+		linksSet.add("redirect");
+		linksOrRedirect = new SetBasedFieldSelector(linksSet, new HashSet<String>());
+		storeOutLinks = Configuration.open().getBoolean("Index","incrementalRelated",false);
 		filters = new FilterFactory(iid.getDB());
+		cache = new ObjectCache("links:"+iid,Configuration.open().getInt("Index","linksCacheMemory",32)*1024L*1024L);
 	}
 	
 	protected FieldSelector makeSelector(String field){
@@ -182,6 +192,7 @@ public class Links {
 			if(autoOptimize)
 				writer.optimize();
 			writer.close();	
+			writer = null;
 		}
 		state = State.FLUSHED;
 	}
@@ -195,11 +206,11 @@ public class Links {
 		flush();
 		log.debug("Opening index reader");
 		// reopen
-		reader = IndexReader.open(path);
+		reader = path != null? IndexReader.open(path) : IndexReader.open(directory);
 		searcher = new IndexSearcher(reader);
 		writer = null;
-		state = State.READ;
 		optimized = reader.isOptimized();
+		state = State.READ;
 	}
 	
 	/** Open the writer, and close the reader (if any) */
@@ -211,7 +222,10 @@ public class Links {
 		if(writer == null){
 			if(directory == null)
 				throw new RuntimeException("Opened for read, but trying to write");
-			writer = WikiIndexModifier.openForWrite(((FSDirectory)directory).getFile().getAbsolutePath(),false,new SimpleAnalyzer());
+			if(directory instanceof FSDirectory)
+				writer = WikiIndexModifier.openForWrite(((FSDirectory)directory).getFile().getAbsolutePath(),false,new SimpleAnalyzer());
+			else // in memory
+				writer = new IndexWriter(directory,new SimpleAnalyzer(),false);
 			initWriter(writer);
 			reader = null;
 			searcher = null;
@@ -220,8 +234,12 @@ public class Links {
 	}
 	
 	protected final void ensureRead() throws IOException {
-		if(state != State.READ)
-			flushForRead();
+		if(state != State.READ){
+			synchronized(this){ // might be read from many threads at once
+				if(state != State.READ)
+					flushForRead();
+			}
+		}
 	}
 	
 	protected final void ensureWrite() throws IOException {
@@ -231,51 +249,63 @@ public class Links {
 	
 	/** Do a batch update on a number of records */
 	public void batchUpdate(IndexUpdateRecord[] records) throws IOException {
+		if(path == null){ // in memory, nothing to roll back to
+			applyBatch(records);
+			return;
+		}
 		Transaction trans = new Transaction(iid, IndexId.Transaction.INDEX);
 		trans.begin();
 		try{
-			try{
-				ensureRead();
-				// batch delete
-				for(IndexUpdateRecord rec : records){
-					if(rec.doDelete()){
-						Article a = rec.getArticle();
-						String articleKey = null;
-						if(a.getTitle()==null || a.getTitle().equals("")){
-							// try to fetch ns:title so we can have nicer debug info					
-							String key = getKeyFromPageId(rec.getIndexKey());
-							if(key != null)
-								a.setNsTitleKey(key);
-						} else
-							articleKey = a.getNsTitleKey();
-						log.debug(iid+": Deleting "+a);
-						reader.deleteDocuments(new Term("article_pageid",rec.getIndexKey()));
-						
-						if( articleKey != null ) // if not a deletion be sure to cleanup funky stuff when moving over redirects, etc..
-							reader.deleteDocuments(new Term("article_key", articleKey));
-					}
-				}
-				flush();
-			} catch(Exception e){
-				// report but continue
-				log.warn("Error opening links index "+ iid +": "+e.getMessage(),e);
-			}
-			// batch add
-			writer = WikiIndexModifier.openForWrite(iid.getIndexPath(),false,new SimpleAnalyzer());
-			initWriter(writer);
+			applyBatch(records);
+			trans.commit();
+		} catch(IOException e){
+			trans.rollback();
+			throw e;
+		}
+	}
+	
+	/** Batch delete, then batch add records */
+	protected void applyBatch(IndexUpdateRecord[] records) throws IOException {
+		try{
+			ensureRead();
+			// batch delete
 			for(IndexUpdateRecord rec : records){
-				if(rec.doAdd()){
+				if(rec.doDelete()){
 					Article a = rec.getArticle();
-					log.debug(iid+": Adding "+a);
-					addArticleInfo(a.getContents(),a.getTitleObject(),iid.isExactCase(),a.getIndexKey());
+					String articleKey = null;
+					if(a.getTitle()==null || a.getTitle().equals("")){
+						// try to fetch ns:title so we can have nicer debug info					
+						String key = getKeyFromPageId(rec.getIndexKey());
+						if(key != null)
+							a.setNsTitleKey(key);
+					} else
+						articleKey = a.getNsTitleKey();
+					log.debug(iid+": Deleting "+a);
+					reader.deleteDocuments(new Term("article_pageid",rec.getIndexKey()));
+					
+					if( articleKey != null ) // if not a deletion be sure to cleanup funky stuff when moving over redirects, etc..
+						reader.deleteDocuments(new Term("article_key", articleKey));
 				}
 			}
 			flush();
-			trans.commit();
-		} catch(IOException e){
-			trans.rollback();
-			throw e;
+		} catch(Exception e){
+			// report but continue
+			log.warn("Error opening links index "+ iid +": "+e.getMessage(),e);
 		}
+		// batch add
+		if(path != null)
+			writer = WikiIndexModifier.openForWrite(path,false,new SimpleAnalyzer());
+		else // in memory
+			writer = new IndexWriter(directory,new SimpleAnalyzer(),false);
+		initWriter(writer);
+		for(IndexUpdateRecord rec : records){
+			if(rec.doAdd()){
+				Article a = rec.getArticle();
+				log.debug(iid+": Adding "+a);
+				addArticleInfo(a.getContents(),a.getTitleObject(),iid.isExactCase(),a.getIndexKey());
+			}
+		}
+		flush();
 	}
 	
 	/** Delete article info connected to title t */
@@ -369,7 +399,7 @@ public class Links {
 			doc.add(new Field("redirect",redirectsTo+"|"+t.getKey(),Field.Store.YES,Field.Index.UN_TOKENIZED));
 		else{
 			// a list of all links/anchors
-			doc.add(new Field("links",lk.toString(),Field.Store.NO,Field.Index.TOKENIZED));
+			doc.add(new Field("links",lk.toString(),storeOutLinks? Field.Store.YES : Field.Store.NO,Field.Index.TOKENIZED));
 			doc.add(new Field("anchors",ak.toString(),Field.Store.NO,Field.Index.TOKENIZED));
 		}
 		
@@ -563,7 +593,7 @@ public class Links {
 		ensureRead();
 		TermDocs td = reader.termDocs(new Term("article_key",key));
 		if(td.next()){
-			return reader.document(td.doc()).get("article_pageid");
+			return reader.document(td.doc(),pageIdOnly).get("article_pageid");
 		}
 		return null;
 	}
@@ -573,7 +603,7 @@ public class Links {
 		ensureRead();
 		TermDocs td = reader.termDocs(new Term("article_pageid",pageid));
 		if(td.next()){
-			return reader.document(td.doc()).get("article_key");
+			return reader.document(td.doc(),keyOnly).get("article_key");
 		}
 		return null;
 	}
@@ -592,6 +622,12 @@ public class Links {
 	}
 
 	
+	/** Read all link info into memory, for fast lookups from many threads */
+	public LinkGraph makeCompact() throws IOException {
+		ensureRead();
+		return LinkGraph.build(iid,reader);
+	}
+	
 	/** Return the namespace of the redirect taget (if any) */
 	public int getRedirectTargetNamespace(String key) throws IOException{
 		ensureRead();
@@ -628,12 +664,26 @@ public class Links {
 		return ret;
 	}
 	
-	/** Get links from this article to other articles */
+	/** If out-links of articles added from now on should be stored (default Index.incrementalRelated) */
+	public void setStoreOutLinks(boolean storeOutLinks){
+		this.storeOutLinks = storeOutLinks;
+	}
+	
+	/** Get links from this article to other articles, null if they are not stored */
 	public StringList getOutLinks(String key) throws IOException{
 		ensureRead();
 		TermDocs td = reader.termDocs(new Term("article_key",key));
 		if(td.next()){
-			return new StringList(reader.document(td.doc(),linksOnly).get("links"));
+			Document doc = reader.document(td.doc(),linksOrRedirect);
+			String links = doc.get("links");
+			if(links == null && doc.get("redirect") == null){
+				if(!warnedOutLinks){
+					log.warn("Out-links are not stored in links index of "+iid+", rebuild it with Index.incrementalRelated=true");
+					warnedOutLinks = true;
+				}
+				return null;
+			}
+			return new StringList(links);
 		}
 		return null;
 	}
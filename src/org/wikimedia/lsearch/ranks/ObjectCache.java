@@ -1,85 +1,421 @@
 package org.wikimedia.lsearch.ranks;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Maintain a cache of objects. Cache is a simple FIFO cache of
- * constant size. Oldest entries get replaced by newer ones.
- * 
+ * Thread-safe cache of objects, bounded by number of entries or by
+ * (estimated) memory.
+ *
+ * Uses W-TinyLFU replacement: new entries go into a small LRU window,
+ * and when they fall out of it they are admitted into the main (segmented
+ * LRU) part only if they were accessed more frequently than the entry
+ * they would replace. Frequencies are kept approximately in a count-min
+ * sketch which is periodically halved, so popular keys survive scans
+ * of one-off keys.
+ *
+ * Lookups don't lock, accesses are recorded in a small buffer and applied
+ * to the LRU order when the lock is free (some may be dropped under load).
+ *
+ * All named caches are listed by {@link #getAllStats()}.
+ *
  * @author rainman
  *
  */
 public class ObjectCache {
-	/** used to maintain FIFO cache of valid keys */
-	protected String[] fifo;
-	/** storage of objects */
-	protected HashMap<String,Object> objs = new HashMap<String,Object>();
-	protected int size, inx;
-	
-	protected long hits = 0;
-	protected long miss = 0;
-	
-	protected int report = 0;
-	
+	/** Cache may be bounded by memory, implement this for objects which know their size */
+	public interface Sized {
+		/** @return approximate size in bytes */
+		public long getMemorySize();
+	}
+
+	protected static final int NONE = 0, WINDOW = 1, PROBATION = 2, PROTECTED = 3;
+
+	protected static class Node {
+		String key;
+		volatile Object value;
+		int hash;
+		long weight;
+		int queue = NONE;
+		Node prev, next;
+
+		Node(){
+			prev = next = this;
+		}
+
+		Node(String key, Object value, int hash, long weight){
+			this.key = key;
+			this.value = value;
+			this.hash = hash;
+			this.weight = weight;
+		}
+	}
+
+	/** Doubly linked LRU list, least recently used first */
+	protected static class Queue {
+		Node head = new Node();
+		long weight = 0;
+
+		void addLast(Node n){
+			n.prev = head.prev;
+			n.next = head;
+			head.prev.next = n;
+			head.prev = n;
+			weight += n.weight;
+		}
+
+		void remove(Node n){
+			n.prev.next = n.next;
+			n.next.prev = n.prev;
+			n.prev = n.next = null;
+			weight -= n.weight;
+		}
+
+		void moveToEnd(Node n){
+			remove(n);
+			addLast(n);
+		}
+
+		Node first(){
+			return head.next == head? null : head.next;
+		}
+
+		Node last(){
+			return head.prev == head? null : head.prev;
+		}
+	}
+
+	/**
+	 * Count-min sketch with 4-bit counters (16 per long), depth 4.
+	 * All counters are halved after 10 * (number of counters / 16) increments.
+	 */
+	protected static class FrequencySketch {
+		static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		static final long RESET_MASK = 0x7777777777777777L;
+		static final long ONE_MASK = 0x1111111111111111L;
+		long[] table;
+		int mask, sampleSize, additions = 0;
+
+		FrequencySketch(long entries){
+			int size = 64;
+			while(size < entries && size < (1 << 24))
+				size <<= 1;
+			table = new long[size];
+			mask = size - 1;
+			sampleSize = 10 * size;
+		}
+
+		int indexOf(int hash, int i){
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			h += h >>> 32;
+			return (int) h & mask;
+		}
+
+		int frequency(int hash){
+			int start = (hash & 3) << 2;
+			int freq = Integer.MAX_VALUE;
+			for(int i=0;i<4;i++){
+				int count = (int) ((table[indexOf(hash,i)] >>> ((start + i) << 2)) & 0xfL);
+				freq = Math.min(freq,count);
+			}
+			return freq;
+		}
+
+		void increment(int hash){
+			int start = (hash & 3) << 2;
+			boolean added = false;
+			for(int i=0;i<4;i++){
+				int index = indexOf(hash,i);
+				int offset = (start + i) << 2;
+				long m = 0xfL << offset;
+				if((table[index] & m) != m){
+					table[index] += 1L << offset;
+					added = true;
+				}
+			}
+			if(added && ++additions == sampleSize)
+				reset();
+		}
+
+		void reset(){
+			int odd = 0;
+			for(int i=0;i<table.length;i++){
+				odd += Long.bitCount(table[i] & ONE_MASK);
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			}
+			additions = (additions - (odd >>> 2)) >>> 1;
+		}
+	}
+
+	/** name -> cache, for stats */
+	protected static ConcurrentHashMap<String,ObjectCache> caches = new ConcurrentHashMap<String,ObjectCache>();
+
+	protected String name;
+	/** max total weight, entries weigh 1 if not bounded by memory */
+	protected long maxWeight;
+	protected boolean byMemory;
+	protected long windowMax, protectedMax;
+
+	protected ConcurrentHashMap<String,Node> data = new ConcurrentHashMap<String,Node>();
+	protected Queue window = new Queue(), probation = new Queue(), protect = new Queue();
+	protected FrequencySketch sketch;
+	protected ReentrantLock lock = new ReentrantLock();
+	/** recorded accesses, a Node for hit, Integer hash for miss */
+	protected ArrayBlockingQueue<Object> accesses = new ArrayBlockingQueue<Object>(256);
+
+	protected AtomicLong hits = new AtomicLong(0);
+	protected AtomicLong miss = new AtomicLong(0);
+	protected AtomicLong evictions = new AtomicLong(0);
+
+	/** Unnamed cache of at most size entries */
 	public ObjectCache(int size){
-		this.size = size;
-		this.fifo = new String[size];
-		this.inx = 0;
+		this(null,size,false);
+	}
+
+	/** Named cache of at most size entries */
+	public ObjectCache(String name, int size){
+		this(name,size,false);
+	}
+
+	/** Named cache of objects taking at most maxMemory bytes (estimated) */
+	public ObjectCache(String name, long maxMemory){
+		this(name,maxMemory,true);
+	}
+
+	protected ObjectCache(String name, long max, boolean byMemory){
+		this.name = name;
+		this.maxWeight = Math.max(max,1);
+		this.byMemory = byMemory;
+		this.windowMax = Math.max(maxWeight / 100, 1);
+		this.protectedMax = (maxWeight - windowMax) * 8 / 10;
+		// guess 256 bytes per entry if bounded by memory
+		this.sketch = new FrequencySketch(byMemory? maxWeight / 256 : maxWeight);
+		if(name != null)
+			caches.put(name,this);
 	}
-	
+
+	protected static int hash(String key){
+		int h = key.hashCode() * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	public Object get(String key){
+		Node n = data.get(key);
+		if(n == null){
+			miss.incrementAndGet();
+			recordAccess(Integer.valueOf(hash(key)));
+			return null;
+		}
+		hits.incrementAndGet();
+		recordAccess(n);
+		return n.value;
+	}
+
 	public void put(String key, Object obj){
-		// add to FIFO queue only if not already in it
-		if(!objs.containsKey(key)){			
-			if(inx >= size)
-				inx = 0;
-			String del = fifo[inx];
-			if(del != null){
-				//remove oldest from cache
-				objs.remove(del);
+		long weight = byMemory? estimateSize(key) + estimateSize(obj) : 1;
+		if(weight > maxWeight)
+			return; // would flush the whole cache
+		lock.lock();
+		try{
+			drainAccesses();
+			Node n = data.get(key);
+			if(n != null){
+				n.value = obj;
+				queueOf(n).remove(n);
+				n.weight = weight;
+				queueOf(n).addLast(n);
+				onHit(n);
+			} else{
+				n = new Node(key,obj,hash(key),weight);
+				sketch.increment(n.hash);
+				n.queue = WINDOW;
+				window.addLast(n);
+				data.put(key,n);
 			}
-			fifo[inx] = key; // latest cached key
-			inx++;
+			evict();
+		} finally{
+			lock.unlock();
 		}
-		objs.put(key,obj);		
 	}
-	
-	public Object get(String key){
-		if(++report >= 5000){
-			report = 0;
-			System.out.println(getStats());
-		}
-		Object obj = objs.get(key);
-		if(obj !=null )
-			hits++;
-		else
-			miss++;
-		return obj;
-	}
-	
-	public String getStats(){
-		long total = hits+miss;
-		return "HITS: "+hits+" ("+((float)hits*100/total)+"%), MISS: "+miss+" ("+((float)miss*100/total)+"%)";
-	}
-	
-	/** Synchronized version of ObjectCache */
-	public static class Sync extends ObjectCache {
-		Object lock = new Object();
-		
-		public Sync(int size){
-			super(size);
-		}
-		
-		public void put(String key, Object obj){
-			synchronized (lock){
-				super.put(key,obj);
+
+	public void remove(String key){
+		lock.lock();
+		try{
+			drainAccesses();
+			Node n = data.remove(key);
+			if(n != null){
+				queueOf(n).remove(n);
+				n.queue = NONE;
 			}
+		} finally{
+			lock.unlock();
 		}
-		
-		public Object get(String key){
-			synchronized(lock){
-				return super.get(key);
+	}
+
+	public void clear(){
+		lock.lock();
+		try{
+			accesses.clear();
+			for(Node n : data.values()){
+				if(n.queue != NONE){
+					queueOf(n).remove(n);
+					n.queue = NONE;
+				}
 			}
+			data.clear();
+		} finally{
+			lock.unlock();
 		}
 	}
-	
+
+	protected void recordAccess(Object access){
+		if(lock.tryLock()){
+			try{
+				drainAccesses();
+				apply(access);
+			} finally{
+				lock.unlock();
+			}
+		} else
+			accesses.offer(access); // dropped if full
+	}
+
+	/** call with lock held */
+	protected void drainAccesses(){
+		Object a;
+		while((a = accesses.poll()) != null)
+			apply(a);
+	}
+
+	protected void apply(Object access){
+		if(access instanceof Node){
+			Node n = (Node) access;
+			sketch.increment(n.hash);
+			if(n.queue != NONE)
+				onHit(n);
+		} else
+			sketch.increment((Integer) access);
+	}
+
+	protected Queue queueOf(Node n){
+		switch(n.queue){
+		case WINDOW: return window;
+		case PROBATION: return probation;
+		default: return protect;
+		}
+	}
+
+	protected void onHit(Node n){
+		if(n.queue == PROBATION){
+			probation.remove(n);
+			n.queue = PROTECTED;
+			protect.addLast(n);
+			// demote least recently used protected entries
+			while(protect.weight > protectedMax){
+				Node d = protect.first();
+				protect.remove(d);
+				d.queue = PROBATION;
+				probation.addLast(d);
+			}
+		} else
+			queueOf(n).moveToEnd(n);
+	}
+
+	protected void evict(){
+		// entries falling out of the window are candidates for main
+		while(window.weight > windowMax){
+			Node c = window.first();
+			window.remove(c);
+			c.queue = PROBATION;
+			probation.addLast(c);
+		}
+		while(window.weight + probation.weight + protect.weight > maxWeight){
+			Node victim = probation.first();
+			Node candidate = probation.last();
+			if(victim == null){
+				victim = protect.first();
+				candidate = null;
+			}
+			if(victim == null){
+				victim = window.first();
+				candidate = null;
+			}
+			if(candidate != null && candidate != victim
+					&& sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash))
+				victim = candidate; // not admitted
+			queueOf(victim).remove(victim);
+			victim.queue = NONE;
+			data.remove(victim.key);
+			evictions.incrementAndGet();
+		}
+	}
+
+	/** Rough estimate of memory taken by obj, in bytes */
+	public static long estimateSize(Object obj){
+		if(obj == null)
+			return 8;
+		else if(obj instanceof Sized)
+			return ((Sized)obj).getMemorySize();
+		else if(obj instanceof String)
+			return 40 + 2 * ((String)obj).length();
+		else if(obj instanceof byte[])
+			return 16 + ((byte[])obj).length;
+		else if(obj instanceof Number || obj instanceof Boolean)
+			return 16;
+		else if(obj instanceof Collection){
+			long size = 40;
+			for(Object o : (Collection<?>)obj)
+				size += 8 + estimateSize(o);
+			return size;
+		} else if(obj instanceof Map){
+			long size = 48;
+			for(Map.Entry<?,?> e : ((Map<?,?>)obj).entrySet())
+				size += 32 + estimateSize(e.getKey()) + estimateSize(e.getValue());
+			return size;
+		}
+		return 64;
+	}
+
+	public int getSize(){
+		return data.size();
+	}
+
+	/** @return total weight, i.e. estimated memory if bounded by memory */
+	public long getWeight(){
+		lock.lock();
+		try{
+			return window.weight + probation.weight + protect.weight;
+		} finally{
+			lock.unlock();
+		}
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return miss.get();
+	}
+
+	public String getStats(){
+		long h = hits.get(), m = miss.get();
+		long total = h+m;
+		return (name==null? "" : name+": ")+"size: "+data.size()+(byMemory? ", memory: "+getWeight() : "")
+			+", hits: "+h+" ("+(total==0? 0 : (float)h*100/total)+"%), miss: "+m+", evictions: "+evictions.get();
+	}
+
+	/** Stats of all named caches, one line per cache */
+	public static ArrayList<String> getAllStats(){
+		ArrayList<String> ret = new ArrayList<String>();
+		for(ObjectCache c : caches.values())
+			ret.add(c.getStats());
+		return ret;
+	}
+
 }
@@ -14,7 +14,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map.Entry;
 
-public class StringMap {
+public class StringMap implements ObjectCache.Sized {
 	protected static final int BUFFER_SIZE = 300;
 	protected char[] buf = new char[BUFFER_SIZE];
 	protected int len = 0, pos = 0;
@@ -170,9 +170,21 @@ public class StringMap {
    	return new String(serialized,start,len,"utf-8");
    }
 	
+	/** Approximate memory taken, when cached */
+	public long getMemorySize(){
+		long size = 64 + 2 * buf.length;
+		if(serialized != null)
+			size += 16 + serialized.length;
+		if(hashMap != null)
+			size += 80 * hashMap.size();
+		if(map != null)
+			size += ObjectCache.estimateSize(map);
+		return size;
+	}
+	
 	/** Get an array of string for a key 
 	 * @throws IOException */
-	public ArrayList<String> get(String key) throws IOException{
+	public synchronized ArrayList<String> get(String key) throws IOException{
 		ArrayList<String> ret = new ArrayList<String>();
 		if(!hashMap.containsKey(key.hashCode()))
 			return ret;
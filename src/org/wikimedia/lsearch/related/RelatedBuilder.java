@@ -4,15 +4,30 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.Logger;
+import org.wikimedia.lsearch.beans.Article;
 import org.wikimedia.lsearch.config.Configuration;
 import org.wikimedia.lsearch.config.GlobalConfiguration;
 import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.index.IndexUpdateRecord;
+import org.wikimedia.lsearch.ranks.LinkGraph;
 import org.wikimedia.lsearch.ranks.Links;
-import org.wikimedia.lsearch.spell.api.LuceneDictionary;
-import org.wikimedia.lsearch.spell.api.Dictionary.Word;
+import org.wikimedia.lsearch.ranks.StringList;
 import org.wikimedia.lsearch.storage.RelatedStorage;
+import org.wikimedia.lsearch.util.IntSet;
 import org.wikimedia.lsearch.util.ProgressReport;
 
 /**
@@ -63,50 +78,247 @@ public class RelatedBuilder {
 		}
 	}
 	
-	/** Calculate from links index */
+	/** Calculate from links index, on Index.buildThreads threads */
 	public static void rebuildFromLinks(IndexId iid) throws IOException {
+		rebuildFromLinks(iid,Configuration.open().getInt("Index","buildThreads",Runtime.getRuntime().availableProcessors()));
+	}
+	
+	/** 
+	 * Calculate from links index. Link graph is loaded into memory, and
+	 * ranges of articles are processed on threads concurrently.
+	 */
+	public static void rebuildFromLinks(IndexId iid, int threads) throws IOException {
 		Links links = Links.openStandalone(iid);
-		RelatedStorage store = new RelatedStorage(iid);
+		final RelatedStorage store = new RelatedStorage(iid);
 		
-		log.info("Rebuilding related mapping from links");
-		LuceneDictionary dict = links.getKeys();
-		dict.setProgressReport(new ProgressReport("titles",1000));
-		Word w;
-		while((w = dict.next()) != null){
-			String key = w.getWord();
-			ArrayList<String> inlinks = links.getInLinks(key);
-			ArrayList<Related> related = new ArrayList<Related>();
-			for(String rel : inlinks){
-				int ref = links.getNumInLinks(rel);
-				if(ref == 0)
-					continue;
-				double lscore = links.getRelatedCountAll(key,rel);
-				if(lscore == 0)
-					continue;
-				double rscore = links.getRelatedCountInContext(key,rel);
-				double score;
-				if(lscore == 1 && ref == 1)
-					score = 0.1;
-				else
-					score = rscore * rscore/ref + lscore/ref;
-				if(score >= 0.00001 && ref != 0){
-					related.add(new Related(key,rel,score));
-				}
+		log.info("Loading links into memory");
+		LinkGraph graph = links.makeCompact();
+		log.info("Rebuilding related mapping from links on "+threads+" threads");
+		final ProgressReport progress = new ProgressReport("titles",1000,graph.getNumArticles());
+		getAllRelated(graph,links,threads,new RelatedCollector(){
+			public void add(String key, ArrayList<Related> related) throws IOException {
+				store.addRelated(key,related);
+				progress.inc();
 			}
-			Collections.sort(related,new Comparator<Related>() {
-				public int compare(Related o1, Related o2){
-					double d = o2.score-o1.score;
-					if(d == 0) return 0;
-					else if(d > 0) return 1;
-					else return -1;
-				}
-			});
-			store.addRelated(key,related);
-		}
+		});
 		store.snapshot();
 		links.close();
 	}
-
+	
+	/** Receives related articles of one article */
+	public interface RelatedCollector {
+		void add(String key, ArrayList<Related> related) throws IOException;
+	}
+	
+	/** 
+	 * Find related articles of all articles in graph on threads, and pass them 
+	 * to out in key order 
+	 */
+	public static void getAllRelated(final LinkGraph graph, final Links links, int threads, RelatedCollector out) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads,1),new ThreadFactory(){
+			AtomicInteger count = new AtomicInteger(0);
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r,"RelatedBuilder-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// ranges being processed, written in key order
+		LinkedList<Range> pending = new LinkedList<Range>();
+		try{
+			for(int i=0;i<graph.getNumArticles();i+=RANGE){
+				final int from = i, to = Math.min(i+RANGE,graph.getNumArticles());
+				pending.add(new Range(from,pool.submit(new Callable<ArrayList<ArrayList<Related>>>(){
+					public ArrayList<ArrayList<Related>> call() throws Exception {
+						ArrayList<ArrayList<Related>> ret = new ArrayList<ArrayList<Related>>();
+						for(int id=from;id<to;id++)
+							ret.add(getRelated(graph,links,id));
+						return ret;
+					}
+				})));
+				while(pending.size() > threads * 4)
+					storeNext(pending,graph,out);
+			}
+			while(!pending.isEmpty())
+				storeNext(pending,graph,out);
+		} finally{
+			pool.shutdownNow();
+		}
+	}
+	
+	/** number of articles processed by one task */
+	protected static final int RANGE = 256;
+	
+	/** related articles of articles with ids from..from+RANGE-1 */
+	protected static class Range {
+		int from;
+		Future<ArrayList<ArrayList<Related>>> related;
+		Range(int from, Future<ArrayList<ArrayList<Related>>> related){
+			this.from = from;
+			this.related = related;
+		}
+	}
+	
+	protected static void storeNext(LinkedList<Range> pending, LinkGraph graph, RelatedCollector out) throws IOException {
+		Range range = pending.removeFirst();
+		ArrayList<ArrayList<Related>> related;
+		try {
+			related = range.related.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while finding related articles");
+		} catch (ExecutionException e) {
+			log.error("Error finding related articles: "+e.getCause().getMessage(),e.getCause());
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		for(int i=0;i<related.size();i++)
+			out.add(graph.getKey(range.from+i),related.get(i));
+	}
+	
+	/** 
+	 * Related articles of article id, from the in-memory link graph 
+	 * (links is used only for the in-context counts). Thread-safe. 
+	 */
+	public static ArrayList<Related> getRelated(LinkGraph graph, Links links, int id) throws IOException {
+		String key = graph.getKey(id);
+		int[] inlinks = graph.getInLinkIds(id);
+		IntSet linking = new IntSet(inlinks.length);
+		for(int in : inlinks)
+			linking.add(in);
+		ArrayList<Related> related = new ArrayList<Related>();
+		for(int rel : inlinks){
+			int ref = graph.getNumInLinks(rel);
+			if(ref == 0)
+				continue;
+			// number of articles linking to both
+			double lscore = graph.countInLinks(rel,linking);
+			if(lscore == 0)
+				continue;
+			String relKey = graph.getKey(rel);
+			double rscore = links.getRelatedCountInContext(key,relKey);
+			addRelated(related,key,relKey,lscore,rscore,ref);
+		}
+		sortRelated(related);
+		return related;
+	}
+	
+	/** Related articles of key, using only the links index */
+	public static ArrayList<Related> getRelated(Links links, String key) throws IOException {
+		ArrayList<String> inlinks = links.getInLinks(key);
+		ArrayList<Related> related = new ArrayList<Related>();
+		for(String rel : inlinks){
+			int ref = links.getNumInLinks(rel);
+			if(ref == 0)
+				continue;
+			double lscore = links.getRelatedCountAll(key,rel);
+			if(lscore == 0)
+				continue;
+			double rscore = links.getRelatedCountInContext(key,rel);
+			addRelated(related,key,rel,lscore,rscore,ref);
+		}
+		sortRelated(related);
+		return related;
+	}
+	
+	protected static void addRelated(ArrayList<Related> related, String key, String rel, double lscore, double rscore, int ref){
+		double score;
+		if(lscore == 1 && ref == 1)
+			score = 0.1;
+		else
+			score = rscore * rscore/ref + lscore/ref;
+		if(score >= 0.00001 && ref != 0){
+			related.add(new Related(key,rel,score));
+		}
+	}
+	
+	protected static void sortRelated(ArrayList<Related> related){
+		Collections.sort(related,new Comparator<Related>() {
+			public int compare(Related o1, Related o2){
+				double d = o2.score-o1.score;
+				if(d == 0) return 0;
+				else if(d > 0) return 1;
+				else return -1;
+			}
+		});
+	}
+	
+	/**
+	 * Collect keys of pages changed by records, and the pages they link to. 
+	 * Call before (updated=false) and after (updated=true) updating the links 
+	 * index with records, and then {@link #updateRelated(IndexId, Links, Set, Set)}.
+	 */
+	public static void collectChanged(Links links, IndexUpdateRecord[] records, boolean updated, Set<String> pages, Set<String> targets) throws IOException {
+		for(IndexUpdateRecord rec : records){
+			Article a = rec.getArticle();
+			boolean hasTitle = a.getTitle() != null && !a.getTitle().equals("");
+			String key = null;
+			// before the update the page might still be under its old title (if moved)
+			if(updated && hasTitle)
+				key = a.getNsTitleKey();
+			else
+				key = links.getKeyFromPageId(rec.getIndexKey());
+			if(key == null && hasTitle)
+				key = a.getNsTitleKey(); // new page
+			if(key == null)
+				continue;
+			pages.add(key);
+			StringList out = links.getOutLinks(key);
+			if(out != null)
+				targets.addAll(out.toCollection());
+		}
+	}
+	
+	/**
+	 * Recompute related articles of pages whose link neighbourhood changed: 
+	 * the changed pages, pages they link(ed) to, and pages linked from those
+	 * (their in-link counts are used in scores). At most Index.relatedMaxUpdates 
+	 * pages are recomputed, nearest first.
+	 * 
+	 * @return number of updated pages
+	 */
+	public static int updateRelated(IndexId iid, Links links, Set<String> pages, Set<String> targets) throws IOException {
+		RelatedStorage store = new RelatedStorage(iid);
+		if(!store.canRead())
+			return 0; // never built
+		int max = Configuration.open().getInt("Index","relatedMaxUpdates",1000);
+		HashMap<String,ArrayList<Related>> update = getChangedRelated(iid,links,pages,targets,max);
+		if(update.size() > 0 && store.updateRelated(update))
+			log.info(iid+": Updated related articles of "+update.size()+" pages");
+		return update.size();
+	}
+	
+	/** 
+	 * New related articles of at most max pages affected by changes collected with 
+	 * {@link #collectChanged(Links, IndexUpdateRecord[], boolean, Set, Set)}. 
+	 * Changed pages that are no longer in the index (deleted, moved) get no related articles.  
+	 */
+	public static HashMap<String,ArrayList<Related>> getChangedRelated(IndexId iid, Links links, Set<String> pages, Set<String> targets, int max) throws IOException {
+		LinkedHashSet<String> affected = new LinkedHashSet<String>();
+		affected.addAll(pages);
+		affected.addAll(targets);
+		for(String t : targets){
+			if(affected.size() >= max)
+				break;
+			StringList out = links.getOutLinks(t);
+			if(out != null)
+				affected.addAll(out.toCollection());
+		}
+		HashMap<String,ArrayList<Related>> update = new HashMap<String,ArrayList<Related>>();
+		for(String key : affected){
+			if(update.size() >= max){
+				log.warn(iid+": Too many pages with changed links neighbourhood ("+affected.size()+"), updated related of only "+max);
+				break;
+			}
+			if(links.getPageId(key) == null){
+				if(pages.contains(key))
+					update.put(key,new ArrayList<Related>()); // drop stale entry
+				continue; // not an article
+			}
+			update.put(key,getRelated(links,key));
+		}
+		return update;
+	}
 	
 	/** 
 	 * Get related articles, sorted descending by score
@@ -0,0 +1,316 @@
+package org.wikimedia.lsearch.replication;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.wikimedia.lsearch.config.Configuration;
+import org.wikimedia.lsearch.replication.SnapshotManifest.Entry;
+
+/**
+ * Fetches an index snapshot from {@link SnapshotServer} into a local directory,
+ * which typically already contains a hard-linked copy of the previous index version.
+ *
+ * Like rsync: files with the same size and modification time are kept, files
+ * not in the snapshot are deleted, and the rest are downloaded. Downloads are
+ * done over several parallel connections with a shared bandwidth cap, written
+ * to temporary files and renamed into place only after their size and checksum
+ * have been verified, so files hard-linked to a live index are never modified.
+ */
+public class Replicator {
+	static Logger log = Logger.getLogger(Replicator.class);
+
+	/** suffix of files being downloaded */
+	public static final String PART_SUFFIX = ".part";
+
+	protected String host;
+	protected int port;
+	protected int threads;
+	/** max bytes/second for all streams together, 0 for unlimited */
+	protected long bandwidth;
+	protected int retries = 3;
+	protected int timeout = 60000;
+
+	protected Throttle throttle;
+
+	protected AtomicInteger fetchedFiles = new AtomicInteger(0);
+	protected AtomicLong fetchedBytes = new AtomicLong(0);
+	protected int keptFiles = 0;
+	protected int deletedFiles = 0;
+
+	public Replicator(String host, int port, int threads, long bandwidth){
+		this.host = host;
+		this.port = port;
+		this.threads = Math.max(1,threads);
+		this.bandwidth = bandwidth;
+	}
+
+	/** Replicator for snapshots on indexer host, as configured in local config */
+	public static Replicator forHost(String host){
+		Configuration config = Configuration.open();
+		Replicator r = new Replicator(host,
+				config.getInt("Replication","port",8322),
+				config.getInt("Replication","threads",4),
+				(long)config.getInt("Replication","bandwidth",0) * 1024);
+		r.retries = config.getInt("Replication","retries",3);
+		r.timeout = config.getInt("Replication","timeout",60000);
+		return r;
+	}
+
+	/** Fetch snapshot of dbrole made at timestamp into target dir */
+	public void replicate(String dbrole, long timestamp, File target) throws IOException {
+		long start = System.currentTimeMillis();
+		throttle = bandwidth > 0? new Throttle(bandwidth) : null;
+		SnapshotManifest manifest = getManifest(dbrole,timestamp);
+		target.mkdirs();
+
+		// delete files not in snapshot
+		HashSet<String> names = new HashSet<String>();
+		for(Entry e : manifest.getEntries())
+			names.add(e.name);
+		ArrayList<String> local = new ArrayList<String>();
+		SnapshotManifest.listFiles(target,"",local);
+		for(String name : local){
+			if(!names.contains(name)){
+				if(!new File(target,name).delete())
+					throw new IOException("Cannot delete "+name+" in "+target);
+				deletedFiles++;
+			}
+		}
+
+		// quick check like rsync: same size and modification time (to the second)
+		final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+		for(Entry e : manifest.getEntries()){
+			File f = new File(target,e.name);
+			if(f.isFile() && f.length() == e.size && f.lastModified()/1000 == e.modified/1000)
+				keptFiles++;
+			else
+				queue.add(e);
+		}
+
+		fetchAll(queue,dbrole,timestamp,target);
+		log.info("Replicated "+dbrole+" ("+timestamp+") from "+host+" in "+(System.currentTimeMillis()-start)+" ms: "
+				+fetchedFiles.get()+" files ("+fetchedBytes.get()+" bytes) fetched, "+keptFiles+" kept, "+deletedFiles+" deleted");
+	}
+
+	/** Download files from queue with worker threads */
+	protected void fetchAll(final ConcurrentLinkedQueue<Entry> queue, final String dbrole, final long timestamp, final File target) throws IOException {
+		if(queue.isEmpty())
+			return;
+		int workers = Math.min(threads,queue.size());
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		try{
+			ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for(int i=0;i<workers;i++){
+				futures.add(pool.submit(new Callable<Object>(){
+					public Object call() throws Exception {
+						Entry e;
+						while((e = queue.poll()) != null)
+							fetchWithRetries(e,dbrole,timestamp,target);
+						return null;
+					}
+				}));
+			}
+			IOException error = null;
+			for(Future<Object> f : futures){
+				try{
+					f.get();
+				} catch(ExecutionException e){
+					Throwable cause = e.getCause();
+					if(error == null)
+						error = (cause instanceof IOException)? (IOException)cause : new IOException("Error fetching snapshot files: "+cause.getMessage());
+					queue.clear(); // stop other workers
+				} catch(InterruptedException e){
+					throw new IOException("Interrupted while fetching snapshot of "+dbrole);
+				}
+			}
+			if(error != null)
+				throw error;
+		} finally{
+			pool.shutdownNow();
+		}
+	}
+
+	protected void fetchWithRetries(Entry e, String dbrole, long timestamp, File target) throws IOException {
+		for(int attempt=1;;attempt++){
+			try{
+				fetch(e,dbrole,timestamp,target);
+				return;
+			} catch(IOException ex){
+				if(attempt >= retries)
+					throw ex;
+				log.warn("Error fetching "+e.name+" of "+dbrole+" from "+host+" (attempt "+attempt+"): "+ex.getMessage());
+			}
+		}
+	}
+
+	/** Download one file, verify it and move it into place */
+	protected void fetch(Entry e, String dbrole, long timestamp, File target) throws IOException {
+		File dest = new File(target,e.name);
+		File part = new File(target,e.name+PART_SUFFIX);
+		dest.getParentFile().mkdirs();
+		HttpURLConnection conn = open("/file/"+encode(dbrole)+"/"+timestamp+"/"+encode(e.name));
+		CRC32 crc = new CRC32();
+		long size = 0;
+		try{
+			InputStream in = conn.getInputStream();
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(part),65536);
+			try{
+				byte[] buf = new byte[65536];
+				int read;
+				while((read = in.read(buf)) != -1){
+					if(throttle != null)
+						throttle.acquire(read);
+					crc.update(buf,0,read);
+					out.write(buf,0,read);
+					size += read;
+				}
+			} finally{
+				out.close();
+				in.close();
+			}
+		} finally{
+			conn.disconnect();
+		}
+		if(size != e.size || crc.getValue() != e.checksum){
+			part.delete();
+			throw new IOException("Verification of "+e.name+" failed: got "+size+" bytes with checksum "+crc.getValue()
+					+", expected "+e.size+" bytes with checksum "+e.checksum);
+		}
+		// never write into existing file, it might be hard-linked to the deployed index
+		if(dest.exists() && !dest.delete())
+			throw new IOException("Cannot delete "+dest);
+		if(!part.renameTo(dest))
+			throw new IOException("Cannot rename "+part+" to "+dest);
+		dest.setLastModified(e.modified);
+		fetchedFiles.incrementAndGet();
+		fetchedBytes.addAndGet(size);
+	}
+
+	/** 
+	 * Fetch manifest of snapshot, retrying with increasing delay (server might be 
+	 * busy making it), except if there is no such snapshot 
+	 */
+	public SnapshotManifest getManifest(String dbrole, long timestamp) throws IOException {
+		long delay = 1000;
+		for(int attempt=1;;attempt++){
+			try{
+				return fetchManifest(dbrole,timestamp);
+			} catch(FileNotFoundException e){
+				throw e;
+			} catch(IOException e){
+				if(attempt >= retries)
+					throw e;
+				log.warn("Error fetching manifest of "+dbrole+" from "+host+" (attempt "+attempt+"), retrying in "+delay+" ms: "+e.getMessage());
+				try{
+					Thread.sleep(delay);
+				} catch(InterruptedException ie){
+					throw new IOException("Interrupted while fetching manifest of "+dbrole);
+				}
+				delay *= 2;
+			}
+		}
+	}
+
+	protected SnapshotManifest fetchManifest(String dbrole, long timestamp) throws IOException {
+		HttpURLConnection conn = open("/manifest/"+encode(dbrole)+"/"+timestamp);
+		try{
+			InputStream in = conn.getInputStream();
+			try{
+				return SnapshotManifest.read(in);
+			} finally{
+				in.close();
+			}
+		} finally{
+			conn.disconnect();
+		}
+	}
+
+	protected HttpURLConnection open(String path) throws IOException {
+		URL url = new URL("http",host,port,path);
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setConnectTimeout(timeout);
+		conn.setReadTimeout(timeout);
+		conn.setUseCaches(false);
+		int code = conn.getResponseCode();
+		if(code != 200){
+			conn.disconnect();
+			if(code == 404)
+				throw new FileNotFoundException("Not found on server: "+url);
+			throw new IOException("Error fetching "+url+" : "+code);
+		}
+		return conn;
+	}
+
+	protected static String encode(String path) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for(String name : path.split("/",-1)){
+			if(sb.length() != 0)
+				sb.append('/');
+			sb.append(URLEncoder.encode(name,"utf-8"));
+		}
+		return sb.toString();
+	}
+
+	public int getFetchedFiles(){
+		return fetchedFiles.get();
+	}
+
+	public long getFetchedBytes(){
+		return fetchedBytes.get();
+	}
+
+	public int getKeptFiles(){
+		return keptFiles;
+	}
+
+	public int getDeletedFiles(){
+		return deletedFiles;
+	}
+
+	/** Limits total transfer rate of all threads */
+	public static class Throttle {
+		protected long bytesPerSecond;
+		protected long start = System.currentTimeMillis();
+		protected long bytes = 0;
+
+		public Throttle(long bytesPerSecond){
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		/** Account for transferred bytes, waiting if over the limit */
+		public void acquire(int count) throws IOException {
+			long wait;
+			synchronized(this){
+				bytes += count;
+				wait = bytes * 1000 / bytesPerSecond - (System.currentTimeMillis() - start);
+			}
+			if(wait > 0){
+				try{
+					Thread.sleep(wait);
+				} catch(InterruptedException e){
+					throw new IOException("Interrupted while transferring");
+				}
+			}
+		}
+	}
+}
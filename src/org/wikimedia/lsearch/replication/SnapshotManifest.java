@@ -0,0 +1,176 @@
+package org.wikimedia.lsearch.replication;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import org.wikimedia.lsearch.util.FSUtils;
+
+/**
+ * List of files in an index snapshot with their sizes, modification
+ * times and CRC32 checksums. Names are relative to the snapshot
+ * directory, with / as separator.
+ *
+ * Serialized as one line per file: name TAB size TAB modified TAB checksum.
+ * Indexers store it in the snapshot dir as {@link #FILENAME} when the
+ * snapshot is made, the file itself is not listed.
+ */
+public class SnapshotManifest {
+	/** name of the file with the manifest, in the snapshot dir */
+	public static final String FILENAME = ".manifest";
+
+	public static class Entry {
+		public String name;
+		public long size;
+		public long modified;
+		public long checksum;
+
+		public Entry(String name, long size, long modified, long checksum){
+			this.name = name;
+			this.size = size;
+			this.modified = modified;
+			this.checksum = checksum;
+		}
+
+		@Override
+		public String toString() {
+			return name+"\t"+size+"\t"+modified+"\t"+checksum;
+		}
+	}
+
+	protected ArrayList<Entry> entries = new ArrayList<Entry>();
+
+	public ArrayList<Entry> getEntries(){
+		return entries;
+	}
+
+	/** Total size of all files */
+	public long getSize(){
+		long size = 0;
+		for(Entry e : entries)
+			size += e.size;
+		return size;
+	}
+
+	/** Make manifest of all files in dir (reads all of them) */
+	public static SnapshotManifest make(File dir) throws IOException {
+		return make(dir,null,null);
+	}
+
+	/**
+	 * Make manifest of all files in dir. Files which are hard links of the
+	 * same file in prevDir (previous snapshot) are not read, their checksums
+	 * are taken from prev, the manifest of prevDir.
+	 */
+	public static SnapshotManifest make(File dir, File prevDir, SnapshotManifest prev) throws IOException {
+		HashMap<String,Entry> old = new HashMap<String,Entry>();
+		if(prev != null && prevDir != null){
+			for(Entry e : prev.entries)
+				old.put(e.name,e);
+		}
+		SnapshotManifest m = new SnapshotManifest();
+		ArrayList<String> names = new ArrayList<String>();
+		listFiles(dir,"",names);
+		Collections.sort(names);
+		for(String name : names){
+			File f = new File(dir,name);
+			long size = f.length(), modified = f.lastModified();
+			Entry e = old.get(name);
+			long checksum;
+			if(e != null && e.size == size && e.modified == modified && FSUtils.isSameFile(f,new File(prevDir,name)))
+				checksum = e.checksum;
+			else
+				checksum = checksum(f);
+			m.entries.add(new Entry(name,size,modified,checksum));
+		}
+		return m;
+	}
+
+	protected static void listFiles(File dir, String prefix, ArrayList<String> names) throws IOException {
+		File[] files = dir.listFiles();
+		if(files == null)
+			throw new IOException("Cannot list files in "+dir);
+		for(File f : files){
+			if(f.isDirectory())
+				listFiles(f,prefix+f.getName()+"/",names);
+			else if(prefix.length() != 0 || !f.getName().startsWith(FILENAME))
+				names.add(prefix+f.getName());
+		}
+	}
+
+	/** Store manifest into dir as {@link #FILENAME} */
+	public void write(File dir) throws IOException {
+		File tmp = new File(dir,FILENAME+".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try{
+			out.write(serialize().getBytes("utf-8"));
+			out.getFD().sync();
+		} finally{
+			out.close();
+		}
+		if(!tmp.renameTo(new File(dir,FILENAME)))
+			throw new IOException("Cannot rename "+tmp+" to "+FILENAME);
+	}
+
+	/** Manifest stored in dir by {@link #write(File)}, or null if there is none */
+	public static SnapshotManifest load(File dir) throws IOException {
+		File f = new File(dir,FILENAME);
+		if(!f.isFile())
+			return null;
+		FileInputStream in = new FileInputStream(f);
+		try{
+			return read(in);
+		} finally{
+			in.close();
+		}
+	}
+
+	/** CRC32 of file contents */
+	public static long checksum(File f) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[65536];
+		FileInputStream in = new FileInputStream(f);
+		try{
+			int read;
+			while((read = in.read(buf)) != -1)
+				crc.update(buf,0,read);
+		} finally{
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	public String serialize(){
+		StringBuilder sb = new StringBuilder();
+		for(Entry e : entries)
+			sb.append(e.toString()).append('\n');
+		return sb.toString();
+	}
+
+	public static SnapshotManifest read(InputStream in) throws IOException {
+		SnapshotManifest m = new SnapshotManifest();
+		BufferedReader r = new BufferedReader(new InputStreamReader(in,"utf-8"));
+		String line;
+		while((line = r.readLine()) != null){
+			if(line.length() == 0)
+				continue;
+			String[] parts = line.split("\t");
+			if(parts.length != 4)
+				throw new IOException("Malformed manifest line: "+line);
+			try{
+				m.entries.add(new Entry(parts[0],Long.parseLong(parts[1]),Long.parseLong(parts[2]),Long.parseLong(parts[3])));
+			} catch(NumberFormatException e){
+				throw new IOException("Malformed manifest line: "+line);
+			}
+		}
+		return m;
+	}
+}
@@ -0,0 +1,243 @@
+package org.wikimedia.lsearch.replication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+import org.wikimedia.lsearch.config.Configuration;
+
+/**
+ * Serves index snapshots to search nodes, used instead of rsync
+ * by {@link Replicator}. Minimal HTTP/1.1 server, one request per connection:
+ *
+ * <pre>
+ * GET /manifest/dbrole/timestamp       - {@link SnapshotManifest} of the snapshot
+ * GET /file/dbrole/timestamp/filename  - contents of the file
+ * </pre>
+ *
+ * Snapshots are never modified once made, so manifests are cached. Indexers
+ * store the manifest when making the snapshot, for other snapshots it is
+ * made once on the first request (concurrent requests wait for it).
+ */
+public class SnapshotServer extends Thread {
+	static Logger log = Logger.getLogger(SnapshotServer.class);
+
+	/** number of cached manifests */
+	protected static final int MANIFEST_CACHE = 100;
+
+	/** root snapshot dir, with dbrole/timestamp subdirs */
+	protected File root;
+	protected ServerSocket sock;
+	protected ExecutorService pool;
+
+	protected Map<String,SnapshotManifest> manifests = new LinkedHashMap<String,SnapshotManifest>(16,0.75f,true){
+		protected boolean removeEldestEntry(Map.Entry<String,SnapshotManifest> eldest) {
+			return size() > MANIFEST_CACHE;
+		}
+	};
+
+	/** manifests being made, dbrole/timestamp -> task */
+	protected HashMap<String,FutureTask<SnapshotManifest>> building = new HashMap<String,FutureTask<SnapshotManifest>>();
+
+	public SnapshotServer(File root, ServerSocket sock, int maxThreads){
+		super("SnapshotServer");
+		setDaemon(true);
+		this.root = root;
+		this.sock = sock;
+		this.pool = Executors.newFixedThreadPool(maxThreads);
+	}
+
+	/** Start the server for snapshots of this indexer, as configured in local config */
+	public static SnapshotServer startServer() throws IOException {
+		Configuration config = Configuration.open();
+		int port = config.getInt("Replication","port",8322);
+		int maxThreads = config.getInt("Replication","serverThreads",16);
+		boolean listenLocalOnly = config.getBoolean("Index","listenLocalOnly",false);
+		File root = new File(config.getString("Indexes","path"),"snapshot");
+		ServerSocket sock = listenLocalOnly? new ServerSocket(port,0,InetAddress.getByName(null)) : new ServerSocket(port);
+		SnapshotServer server = new SnapshotServer(root,sock,maxThreads);
+		server.start();
+		log.info("Snapshot server started on port "+port+" serving "+root);
+		return server;
+	}
+
+	public int getPort(){
+		return sock.getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		while(!sock.isClosed()){
+			try{
+				final Socket client = sock.accept();
+				pool.execute(new Runnable(){
+					public void run() {
+						try{
+							handle(client);
+						} catch(IOException e){
+							log.warn("Error serving snapshot request from "+client.getInetAddress()+" : "+e.getMessage(),e);
+						} finally{
+							try{ client.close(); } catch(IOException e) { }
+						}
+					}
+				});
+			} catch(IOException e){
+				if(!sock.isClosed())
+					log.error("accept() error: "+e.getMessage(),e);
+			}
+		}
+	}
+
+	/** Stop accepting requests */
+	public void close(){
+		try{
+			sock.close();
+		} catch(IOException e){
+			log.warn("Cannot close snapshot server socket : "+e.getMessage(),e);
+		}
+		pool.shutdown();
+	}
+
+	@SuppressWarnings("deprecation")
+	protected void handle(Socket client) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+		OutputStream out = new BufferedOutputStream(client.getOutputStream(),65536);
+		String request = in.readLine();
+		if(request == null)
+			return;
+		// skip headers
+		for(String line = in.readLine(); line != null && line.length() != 0; line = in.readLine());
+		String[] parts = request.split(" ");
+		if(parts.length != 3 || !parts[0].equals("GET")){
+			sendHeaders(out,400,"Bad Request",0);
+			out.flush();
+			return;
+		}
+		String[] path = URLDecoder.decode(parts[1],"utf-8").split("/",5);
+		// path[0] is empty, as path starts with /
+		if(path.length >= 4 && path[1].equals("manifest") && isSafe(path[2]) && isSafe(path[3])){
+			SnapshotManifest m = getManifest(path[2],path[3]);
+			if(m == null)
+				sendHeaders(out,404,"Not Found",0);
+			else{
+				byte[] bytes = m.serialize().getBytes("utf-8");
+				sendHeaders(out,200,"OK",bytes.length);
+				out.write(bytes);
+			}
+		} else if(path.length == 5 && path[1].equals("file") && isSafe(path[2]) && isSafe(path[3]) && isSafePath(path[4])){
+			File f = new File(new File(new File(root,path[2]),path[3]),path[4]);
+			if(!f.isFile())
+				sendHeaders(out,404,"Not Found",0);
+			else
+				sendFile(out,f);
+		} else
+			sendHeaders(out,404,"Not Found",0);
+		out.flush();
+	}
+
+	protected void sendHeaders(OutputStream out, int code, String message, long length) throws IOException {
+		String headers = "HTTP/1.1 "+code+" "+message+"\r\n"
+			+"Content-Type: application/octet-stream\r\n"
+			+"Content-Length: "+length+"\r\n"
+			+"Connection: close\r\n\r\n";
+		out.write(headers.getBytes("utf-8"));
+	}
+
+	protected void sendFile(OutputStream out, File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try{
+			sendHeaders(out,200,"OK",f.length());
+			byte[] buf = new byte[65536];
+			int read;
+			while((read = in.read(buf)) != -1)
+				out.write(buf,0,read);
+		} finally{
+			in.close();
+		}
+	}
+
+	/** Cached manifest of snapshot, null if there is no such snapshot */
+	protected SnapshotManifest getManifest(String dbrole, String timestamp) throws IOException {
+		String key = dbrole+"/"+timestamp;
+		synchronized(manifests){
+			SnapshotManifest m = manifests.get(key);
+			if(m != null)
+				return m;
+		}
+		final File dir = new File(new File(root,dbrole),timestamp);
+		if(!dir.isDirectory())
+			return null;
+		SnapshotManifest m = SnapshotManifest.load(dir);
+		if(m == null){
+			// make it only once for all concurrent requests
+			FutureTask<SnapshotManifest> task;
+			boolean owner = false;
+			synchronized(building){
+				task = building.get(key);
+				if(task == null){
+					task = new FutureTask<SnapshotManifest>(new Callable<SnapshotManifest>(){
+						public SnapshotManifest call() throws Exception {
+							long start = System.currentTimeMillis();
+							SnapshotManifest made = SnapshotManifest.make(dir);
+							log.info("Made manifest of "+dir+" in "+(System.currentTimeMillis()-start)+" ms");
+							return made;
+						}
+					});
+					building.put(key,task);
+					owner = true;
+				}
+			}
+			try{
+				if(owner)
+					task.run();
+				m = task.get();
+			} catch(ExecutionException e){
+				Throwable cause = e.getCause();
+				throw (cause instanceof IOException)? (IOException)cause : new IOException("Cannot make manifest of "+dir+" : "+cause.getMessage());
+			} catch(InterruptedException e){
+				throw new IOException("Interrupted while making manifest of "+dir);
+			} finally{
+				if(owner){
+					synchronized(building){
+						building.remove(key);
+					}
+				}
+			}
+		}
+		synchronized(manifests){
+			manifests.put(key,m);
+		}
+		return m;
+	}
+
+	/** Single path component that doesn't leave the dir */
+	protected static boolean isSafe(String name){
+		return name.length() != 0 && !name.equals(".") && !name.equals("..") && name.indexOf('/') == -1 && name.indexOf('\\') == -1;
+	}
+
+	protected static boolean isSafePath(String path){
+		for(String name : path.split("/",-1)){
+			if(!isSafe(name))
+				return false;
+		}
+		return true;
+	}
+
+}
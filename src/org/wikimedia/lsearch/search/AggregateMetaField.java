@@ -1,6 +1,10 @@
 package org.wikimedia.lsearch.search;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
@@ -59,6 +63,30 @@ public class AggregateMetaField {
 		}
 	}
 
+	/** Register a meta source loaded from elsewhere (e.g. sidecar file), unless already cached */
+	protected static boolean putCachedSource(IndexReader reader, String field, AggregateMetaFieldSource src){
+		synchronized(lock){
+			HashMap<String,AggregateMetaFieldSource> fields = cache.get(reader.directory());
+			if(fields == null){
+				fields = new HashMap<String,AggregateMetaFieldSource>();
+				cache.put(reader.directory(),fields);
+			}
+			if(fields.containsKey(field))
+				return false;
+			fields.put(field,src);
+			return true;
+		}
+	}
+
+	/** Get a cached meta source if its caching is finished, or null */
+	protected static AggregateMetaFieldSource getFinishedSource(IndexReader reader, String field){
+		synchronized(lock){
+			HashMap<String,AggregateMetaFieldSource> fields = cache.get(reader.directory());
+			AggregateMetaFieldSource src = (fields == null)? null : fields.get(field);
+			return (src != null && src.cachingFinished)? src : null;
+		}
+	}
+
 	/** Get a cached meta source to use in queries */
 	public static AggregateMetaFieldSource getCachedSource(IndexReader reader, String field) {
 		synchronized(lock){
@@ -77,6 +105,15 @@ public class AggregateMetaField {
 	 *
 	 */
 	static public class AggregateMetaFieldSource implements CacheBuilder {
+		// values used for queries, either wrapped arrays or memory-mapped
+		protected IntBuffer indexBuf = null;
+		protected ByteBuffer lengthBuf = null;
+		protected ByteBuffer lengthNoStopWordsBuf = null;
+		protected ByteBuffer lengthCompleteBuf = null;
+		protected FloatBuffer boostBuf = null;
+		protected ByteBuffer flagsBuf = null;
+		protected ByteBuffer namespacesBuf = null;
+		// arrays filled while caching from stored fields
 		protected int[] index = null;
 		protected byte[] length  = null;
 		protected byte[] lengthNoStopWords = null;
@@ -91,6 +128,51 @@ public class AggregateMetaField {
 		// temporary:
 		protected int count = 0;
 		protected int maxdoc = 0;
+		/** values of doc id ranges, cached independently and joined in end() */
+		protected Part[] parts = null;
+		protected int[] partStarts = null;
+		/** previous version of the index, whose values are taken for first seedDocs docs */
+		protected AggregateMetaFieldSource seed = null;
+		protected int seedDocs = 0;
+		protected Part seedPart = null;
+
+		/** Values for a range of doc ids, with value index local to the range */
+		protected class Part {
+			byte[] length, lengthNoStopWords, lengthComplete, flags;
+			float[] boost;
+			int count = 0;
+
+			Part(int estimate){
+				estimate = Math.max(estimate,1);
+				length = new byte[estimate];
+				lengthNoStopWords = new byte[estimate];
+				lengthComplete = new byte[estimate];
+				boost = new float[estimate];
+				flags = new byte[estimate];
+			}
+
+			void add(int docid, byte[] stored){
+				for(int j=0;j<stored.length/8;j++){
+					if(count >= length.length){
+						length = extendBytes(length);
+						lengthNoStopWords = extendBytes(lengthNoStopWords);
+						lengthComplete = extendBytes(lengthComplete);
+						boost = extendFloats(boost);
+						flags = extendBytes(flags);
+					}
+					length[count] = stored[j*8];
+					if(length[count] == 0){
+						log.debug("Broken length=0 for docid="+docid+", at position "+j);
+					}
+					lengthNoStopWords[count] = stored[j*8+1];
+					int boostInt = (((stored[j*8+2]&0xff) << 24) + ((stored[j*8+3]&0xff) << 16) + ((stored[j*8+4]&0xff) << 8) + ((stored[j*8+5]&0xff) << 0));
+					boost[count] = Float.intBitsToFloat(boostInt);
+					lengthComplete[count] = stored[j*8+6];
+					flags[count] = stored[j*8+7];
+					count++;
+				}
+			}
+		}
 
 		public void init() {
 			synchronized(cachingInProgress){
@@ -105,12 +187,57 @@ public class AggregateMetaField {
 			}
 			maxdoc = reader.maxDoc();
 			index = new int[maxdoc];
-			length = new byte[maxdoc]; // estimate maxdoc values
-			lengthNoStopWords = new byte[maxdoc];
-			lengthComplete = new byte[maxdoc];
-			boost = new float[maxdoc];
-			flags = new byte[maxdoc];
+			Arrays.fill(index,-1); // not cached (deleted)
 			namespaces = new byte[maxdoc];
+			if(seed != null && seedDocs > 0){
+				int values = seedDocs < seed.indexBuf.limit()? seed.indexBuf.get(seedDocs) : seed.lengthBuf.limit();
+				seedPart = new Part(values);
+				for(int j=0;j<values;j++){
+					seedPart.length[j] = seed.lengthBuf.get(j);
+					seedPart.lengthNoStopWords[j] = seed.lengthNoStopWordsBuf.get(j);
+					seedPart.lengthComplete[j] = seed.lengthCompleteBuf.get(j);
+					seedPart.boost[j] = seed.boostBuf.get(j);
+					seedPart.flags[j] = seed.flagsBuf.get(j);
+				}
+				seedPart.count = values;
+				for(int d=0;d<seedDocs;d++){
+					index[d] = seed.indexBuf.get(d);
+					namespaces[d] = seed.namespacesBuf.get(d);
+				}
+			}
+			parts = null; // made by setRanges(), or on first use
+		}
+
+		/** 
+		 * Take values of the first docs documents from a previous version of the index
+		 * with the same leading segments, only the rest is cached from stored fields. 
+		 * Call before init().
+		 */
+		public void setSeed(AggregateMetaFieldSource old, int docs){
+			seed = old;
+			seedDocs = docs;
+		}
+
+		public void setRanges(int[] starts){
+			int s = (seedPart != null)? 1 : 0;
+			partStarts = new int[starts.length+s];
+			parts = new Part[starts.length+s];
+			if(seedPart != null)
+				parts[0] = seedPart; // partStarts[0] = 0
+			for(int i=0;i<starts.length;i++){
+				int end = (i == starts.length-1)? maxdoc : starts[i+1];
+				partStarts[i+s] = starts[i];
+				parts[i+s] = new Part(end-starts[i]);
+			}
+		}
+
+		protected Part getPart(int docid){
+			if(parts == null)
+				setRanges(new int[] {seedDocs}); // cached as a single range
+			if(parts.length == 1)
+				return parts[0];
+			int inx = Arrays.binarySearch(partStarts,docid);
+			return parts[inx >= 0? inx : -inx-2];
 		}
 
 		public void cache(int i, Document doc) throws IOException {
@@ -120,28 +247,11 @@ public class AggregateMetaField {
 					return;
 				stored = doc.getBinaryValue(field);
 				namespaces[i] = (byte)Integer.parseInt(doc.get("namespace"));
-				index[i] = count;
+				Part part = getPart(i);
+				index[i] = part.count;
 				if(stored == null)
 					return;
-				for(int j=0;j<stored.length/8;j++){
-					if(count >= length.length){
-						length = extendBytes(length);
-						lengthNoStopWords = extendBytes(lengthNoStopWords);
-						lengthComplete = extendBytes(lengthComplete);
-						boost = extendFloats(boost);
-						flags = extendBytes(flags);
-					}
-					length[count] = stored[j*8];
-					if(length[count] == 0){
-						log.debug("Broken length=0 for docid="+i+", at position "+j);
-					}
-					lengthNoStopWords[count] = stored[j*8+1];
-					int boostInt = (((stored[j*8+2]&0xff) << 24) + ((stored[j*8+3]&0xff) << 16) + ((stored[j*8+4]&0xff) << 8) + ((stored[j*8+5]&0xff) << 0));
-					boost[count] = Float.intBitsToFloat(boostInt);
-					lengthComplete[count] = stored[j*8+6];
-					flags[count] = stored[j*8+7];
-					count++;
-				}
+				part.add(i,stored);
 			} catch(Exception e){
 				log.error("Exception during processing stored_field="+field+" on docid="+i+", with stored="+stored+" : "+e.getMessage(),e);
 				e.printStackTrace();
@@ -150,6 +260,52 @@ public class AggregateMetaField {
 		}
 
 		public void end(){
+			if(parts == null)
+				setRanges(new int[] {seedDocs}); // nothing cached
+			// join the parts, and make value index global
+			count = 0;
+			for(Part p : parts)
+				count += p.count;
+			if(parts.length == 1){
+				Part p = parts[0];
+				length = p.length;
+				lengthNoStopWords = p.lengthNoStopWords;
+				lengthComplete = p.lengthComplete;
+				boost = p.boost;
+				flags = p.flags;
+			} else{
+				length = new byte[count];
+				lengthNoStopWords = new byte[count];
+				lengthComplete = new byte[count];
+				boost = new float[count];
+				flags = new byte[count];
+				int offset = 0;
+				for(int i=0;i<parts.length;i++){
+					Part p = parts[i];
+					System.arraycopy(p.length,0,length,offset,p.count);
+					System.arraycopy(p.lengthNoStopWords,0,lengthNoStopWords,offset,p.count);
+					System.arraycopy(p.lengthComplete,0,lengthComplete,offset,p.count);
+					System.arraycopy(p.boost,0,boost,offset,p.count);
+					System.arraycopy(p.flags,0,flags,offset,p.count);
+					int end = (i == parts.length-1)? maxdoc : partStarts[i+1];
+					for(int d=partStarts[i];d<end;d++){
+						if(index[d] != -1)
+							index[d] += offset;
+					}
+					offset += p.count;
+				}
+			}
+			parts = null;
+			seed = null;
+			seedPart = null;
+			// docs that were not cached have no values
+			int next = count;
+			for(int d=maxdoc-1;d>=0;d--){
+				if(index[d] == -1)
+					index[d] = next;
+				else
+					next = index[d];
+			}
 			if(count < length.length - 1){
 				length = resizeBytes(length,count);
 				lengthNoStopWords = resizeBytes(lengthNoStopWords,count);
@@ -157,7 +313,9 @@ public class AggregateMetaField {
 				lengthComplete = resizeBytes(lengthComplete,count);
 				flags = resizeBytes(flags,count);
 			}
-			cachingFinished = true;
+			setValues(IntBuffer.wrap(index),ByteBuffer.wrap(length,0,count),ByteBuffer.wrap(lengthNoStopWords,0,count),
+					ByteBuffer.wrap(lengthComplete,0,count),FloatBuffer.wrap(boost,0,count),ByteBuffer.wrap(flags,0,count),
+					ByteBuffer.wrap(namespaces));
 
 			synchronized(cachingInProgress){
 				Set<String> set = cachingInProgress.get(reader.directory());
@@ -167,6 +325,19 @@ public class AggregateMetaField {
 			}
 		}
 
+		/** Set the cached values, marks caching as finished */
+		protected void setValues(IntBuffer index, ByteBuffer length, ByteBuffer lengthNoStopWords, ByteBuffer lengthComplete,
+				FloatBuffer boost, ByteBuffer flags, ByteBuffer namespaces){
+			this.indexBuf = index;
+			this.lengthBuf = length;
+			this.lengthNoStopWordsBuf = lengthNoStopWords;
+			this.lengthCompleteBuf = lengthComplete;
+			this.boostBuf = boost;
+			this.flagsBuf = flags;
+			this.namespacesBuf = namespaces;
+			cachingFinished = true;
+		}
+
 		protected byte[] extendBytes(byte[] array){
 			return resizeBytes(array,array.length*2);
 		}
@@ -193,8 +364,8 @@ public class AggregateMetaField {
 			return getValueIndex(docid,position,false);
 		}
 		protected int getValueIndex(int docid, int position, boolean checkExists){
-			int start = index[docid];
-			int end = (docid == index.length-1)? length.length : index[docid+1];
+			int start = indexBuf.get(docid);
+			int end = (docid == indexBuf.limit()-1)? lengthBuf.limit() : indexBuf.get(docid+1);
 			if(position >= end-start){
 				if(checkExists) // if true this is not an error
 					return -1;
@@ -222,19 +393,19 @@ public class AggregateMetaField {
 		public int getLength(int docid, int position) throws CorruptIndexException, IOException{
 			if(!cachingFinished) // still caching in background
 				return getStored(docid)[position*8];
-			return length[getValueIndex(docid,position)];
+			return lengthBuf.get(getValueIndex(docid,position));
 		}
 		/** Get length without stop words */
 		public int getLengthNoStopWords(int docid, int position) throws CorruptIndexException, IOException{
 			if(!cachingFinished)
 				return getStored(docid)[position*8+1];
-			return lengthNoStopWords[getValueIndex(docid,position)];
+			return lengthNoStopWordsBuf.get(getValueIndex(docid,position));
 		}
 		/** Get length with all the aliases */
 		public int getLengthComplete(int docid, int position) throws CorruptIndexException, IOException{
 			if(!cachingFinished)
 				return getStored(docid)[position*8+6];
-			return lengthComplete[getValueIndex(docid,position)];
+			return lengthCompleteBuf.get(getValueIndex(docid,position));
 		}
 
 		/** generic function to get boost value at some position, if checkExists=true won't die on error */
@@ -253,7 +424,7 @@ public class AggregateMetaField {
 			int inx = getValueIndex(docid,position,checkExists);
 			if(inx == -1) // value not found, fine ... (were looking for boost)
 				return 1;
-			return boost[inx];
+			return boostBuf.get(inx);
 		}
 
 		/** Get boost for position */
@@ -271,7 +442,7 @@ public class AggregateMetaField {
 			if(!cachingFinished){
 				return Integer.parseInt(reader.document(docid).get("namespace"));
 			}
-			return namespaces[docid];
+			return namespacesBuf.get(docid);
 		}
 
 		/** Get flag values for docid at position */
@@ -280,7 +451,7 @@ public class AggregateMetaField {
 			if(!cachingFinished)
 				ord = getStored(docid)[position*8+7];
 			else
-				ord = flags[getValueIndex(docid,position)];
+				ord = flagsBuf.get(getValueIndex(docid,position));
 
 			return Flags.values()[ord];
 		}
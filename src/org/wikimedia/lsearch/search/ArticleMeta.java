@@ -1,6 +1,9 @@
 package org.wikimedia.lsearch.search;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -51,6 +54,16 @@ public class ArticleMeta {
 		}
 	}
 	
+	/** Register a meta source loaded from elsewhere (e.g. sidecar file), unless already cached */
+	protected static boolean putCachedSource(IndexReader reader, ArticleMetaSource src){
+		synchronized (lock) {
+			if(cache.get(reader.directory()) != null)
+				return false;
+			cache.put(reader.directory(),src);
+			return true;
+		}
+	}
+	
 	public static ArticleMetaSource getCachedSource(IndexReader reader) throws IOException{
 		synchronized(lock) {
 			return cache.get(reader.directory());
@@ -58,20 +71,33 @@ public class ArticleMeta {
 	}
 
 	public static class ArticleMetaSource implements CacheBuilder {
-		protected boolean[] subpage = null;
-		protected float[] daysOld = null;
-		protected short[] namespace = null;
+		// either heap buffers or memory-mapped
+		protected ByteBuffer subpage = null;
+		/** seconds since epoch, 0 if unknown */
+		protected IntBuffer date = null;
+		protected ShortBuffer namespace = null;
 		protected IndexReader reader = null;
 		protected boolean finishedCaching = false;
 		protected SimpleDateFormat isoDate;
 		protected long now = 0;
 		protected NamespaceFilter subpages;
 		protected boolean isOptimized;
+		/** previous version of the index, whose values are taken for first seedDocs docs */
+		protected ArticleMetaSource seed = null;
+		protected int seedDocs = 0;
 		
 		public void init() {
-			subpage = new boolean[reader.maxDoc()];
-			daysOld = new float[reader.maxDoc()];
-			namespace = new short[reader.maxDoc()];
+			subpage = ByteBuffer.allocate(reader.maxDoc());
+			date = IntBuffer.allocate(reader.maxDoc());
+			namespace = ShortBuffer.allocate(reader.maxDoc());
+			if(seed != null){
+				for(int i=0;i<seedDocs;i++){
+					subpage.put(i,seed.subpage.get(i));
+					date.put(i,seed.date.get(i));
+					namespace.put(i,seed.namespace.get(i));
+				}
+				seed = null;
+			}
 			
 			synchronized (cachingInProgress) {
 				cachingInProgress.put(reader.directory(),true);
@@ -83,10 +109,9 @@ public class ArticleMeta {
 			try{
 				if(!isOptimized && reader.isDeleted(i))
 					return;
-					Document d = reader.document(i);
-					subpage[i] = resolveSubpage(d);	
-					daysOld[i] = resolveDaysOld(d);
-					namespace[i] = resolveNamespace(d); 
+				subpage.put(i,(byte)(resolveSubpage(doc)? 1 : 0));
+				date.put(i,resolveDate(doc));
+				namespace.put(i,resolveNamespace(doc));
 			} catch(Exception e){
 				String ext = "";
 				if(doc != null)
@@ -97,6 +122,20 @@ public class ArticleMeta {
 			}
 			
 		}
+		
+		/** 
+		 * Take values of the first docs documents from a previous version of the index
+		 * with the same leading segments. Call before init().
+		 */
+		public void setSeed(ArticleMetaSource old, int docs){
+			seed = old;
+			seedDocs = docs;
+		}
+		
+		public void setRanges(int[] starts){
+			// values are put by doc id, no per-range state
+		}
+		
 		public void end() {
 			synchronized (cachingInProgress) {
 				cachingInProgress.remove(reader.directory());
@@ -132,25 +171,17 @@ public class ArticleMeta {
 			else
 				return Short.parseShort(ns);
 		}
-		/** Calculate how old the indexed article is */
-		protected final float resolveDaysOld(Document d) throws IOException {
+		/** Get the date of the indexed article, in seconds since epoch (0 if unknown) */
+		protected final int resolveDate(Document d) throws IOException {
 			String dateStr = d.get("date");
 			if(dateStr == null)
 				return 0;
 			try {
 				Date date = null;
-				float parsed = 0;
-				float diff = 0;
 				synchronized(isoDate){
 					date = isoDate.parse(dateStr);
-					parsed = date.getTime();
-				}
-				diff = (float)(now - parsed) / (float)(1000*60*60*24);
-				if(diff < 0){
-					log.warn("Got diff<0 on "+dateStr+" now="+now+", parsed="+parsed);
-					return 0;
 				}
-				return diff;
+				return (int)(date.getTime() / 1000);
 			} catch (ParseException e) {
 				e.printStackTrace();
 				log.error("Error parsing date "+dateStr+" : "+e.getMessage(),e);
@@ -158,6 +189,25 @@ public class ArticleMeta {
 			return 0;
 		}
 		
+		/** Calculate how old the indexed article is */
+		protected final float resolveDaysOld(int seconds){
+			if(seconds == 0)
+				return 0;
+			long parsed = (seconds & 0xffffffffL) * 1000;
+			float diff = (float)(now - parsed) / (float)(1000*60*60*24);
+			if(diff < 0)
+				return 0;
+			return diff;
+		}
+		
+		/** Set the cached values, marks caching as finished */
+		protected void setValues(ByteBuffer subpage, IntBuffer date, ShortBuffer namespace){
+			this.subpage = subpage;
+			this.date = date;
+			this.namespace = namespace;
+			finishedCaching = true;
+		}
+		
 		public ArticleMetaSource(IndexReader reader, NamespaceFilter subpages){
 			this.reader = reader;
 			this.now = System.currentTimeMillis();
@@ -172,21 +222,21 @@ public class ArticleMeta {
 			if(!finishedCaching)
 				return resolveSubpage(reader.document(docid));
 			
-			return subpage[docid];
+			return subpage.get(docid) != 0;
 		}
 
 		public float daysOld(int docid) throws IOException {
 			if(!finishedCaching)
-				return resolveDaysOld(reader.document(docid));
+				return resolveDaysOld(resolveDate(reader.document(docid)));
 			
-			return daysOld[docid];
+			return resolveDaysOld(date.get(docid));
 		}
 		
 		public short namespace(int docid) throws IOException {
 			if(!finishedCaching)
 				return resolveNamespace(reader.document(docid));
 			
-			return namespace[docid];
+			return namespace.get(docid);
 		}
 
 		
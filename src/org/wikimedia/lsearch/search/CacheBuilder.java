@@ -9,6 +9,14 @@ public interface CacheBuilder {
 	/** init cach values, etc.. */
 	public void init();
 	
+	/** 
+	 * Prepare for caching of doc id ranges beginning at starts (sorted),
+	 * by concurrent cache() calls, one thread per range. Within a range
+	 * documents are cached in increasing doc id order. Call after init(), 
+	 * if not called all documents are cached as a single range.
+	 */
+	public void setRanges(int[] starts);
+	
 	/** Cache info about document */
 	public void cache(int docid, Document doc) throws IOException;
 	
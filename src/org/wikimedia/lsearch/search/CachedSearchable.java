@@ -17,13 +17,15 @@ import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopFieldDocs;
 import org.apache.lucene.search.Weight;
 import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.interoperability.RMIMessengerClient;
 
 /**
  * Wrapper for remote searchable objects. 
  * 
  * Locally cache maxDoc() call of remote Searchable, to avoid
  * calling the method each time remotely when MultiSearcher is 
- * constructed (which is at every search). 
+ * constructed (which is at every search). Document frequencies
+ * are cached in the node-wide {@link DocFreqCache}.
  * 
  * @author rainman
  *
@@ -34,11 +36,17 @@ public class CachedSearchable implements SearchableMul {
 	protected int maxDocCached;		
 	protected IndexId iid; 
 	protected String host;
+	/** generation of the remote pool this searchable belongs to */
+	protected long generation;
+	/** latency and load tracking for host selection */
+	protected HostStats hostStats;
 	
-	CachedSearchable(SearchableMul searchable, IndexId iid, String host){
+	CachedSearchable(SearchableMul searchable, IndexId iid, String host, long generation){
 		// info about where the cached searchable is
 		this.iid = iid;
 		this.host = host;
+		this.generation = generation;
+		this.hostStats = SearcherCache.getInstance().getHostStats();
 		maxDocCached = -1;
 		this.searchable = searchable;
 		log.debug("New cached searchable for "+searchable);
@@ -57,45 +65,65 @@ public class CachedSearchable implements SearchableMul {
 	
 	public Document doc(int i) throws IOException {
 		log.debug("called doc("+i+")");
+		long start = hostStats.begin(iid,host);
+		boolean failed = false;
 		try{
 			return searchable.doc(i);
 		} catch(Exception e){
+			failed = true;
 			log.error(e.getMessage(), e);
 			SearcherCache.getInstance().reInitializeRemote(iid,host);
 			throw new IOException(e.getMessage());
+		} finally{
+			hostStats.end(iid,host,start,!failed);
 		}
 	}
 	
 	public Document doc(int i, FieldSelector sel) throws IOException {
 		log.debug("called doc("+i+","+sel+")");
+		long start = hostStats.begin(iid,host);
+		boolean failed = false;
 		try{
 			return searchable.doc(i,sel);
 		} catch(Exception e){
+			failed = true;
 			log.error(e.getMessage(), e);
 			SearcherCache.getInstance().reInitializeRemote(iid,host);
 			throw new IOException(e.getMessage());
+		} finally{
+			hostStats.end(iid,host,start,!failed);
 		}
 	}
 	
 	public Document[] docs(int[] i) throws IOException {
 		log.debug("called docs("+Arrays.toString(i)+")");
+		long start = hostStats.begin(iid,host);
+		boolean failed = false;
 		try{
 			return searchable.docs(i);
 		} catch(Exception e){
+			failed = true;
 			log.error(e.getMessage(), e);
 			SearcherCache.getInstance().reInitializeRemote(iid,host);
 			throw new IOException(e.getMessage());
+		} finally{
+			hostStats.end(iid,host,start,!failed);
 		}
 	}
 	
 	public Document[] docs(int[] i, FieldSelector sel) throws IOException {
 		log.debug("called docs("+Arrays.toString(i)+","+sel+")");
+		long start = hostStats.begin(iid,host);
+		boolean failed = false;
 		try{
 			return searchable.docs(i,sel);
 		} catch(Exception e){
+			failed = true;
 			log.error(e.getMessage(), e);
 			SearcherCache.getInstance().reInitializeRemote(iid,host);
 			throw new IOException(e.getMessage());
+		} finally{
+			hostStats.end(iid,host,start,!failed);
 		}
 	}
 
@@ -103,34 +131,105 @@ public class CachedSearchable implements SearchableMul {
 		log.debug("called docFreq("+term+")");
 		log.warn("Should never call docFreq(Term), but docFreqs(Term[])");
 		Thread.dumpStack();
+		long start = hostStats.begin(iid,host);
+		boolean failed = false;
 		try{
 			return searchable.docFreq(term);
 		} catch(Exception e){
+			failed = true;
 			log.error(e.getMessage(), e);
 			SearcherCache.getInstance().reInitializeRemote(iid,host);
 			throw new IOException(e.getMessage());
+		} finally{
+			hostStats.end(iid,host,start,!failed);
 		}
 	}
 
 	public int[] docFreqs(Term[] terms) throws IOException {
 		log.debug("called docFreqs("+Arrays.toString(terms)+")");
+		DocFreqCache dfCache = SearcherCache.getInstance().getDocFreqCache();
+		int[] dfs = new int[terms.length];
+		int found = 0;
+		if(dfCache != null){
+			found = dfCache.get(iid.toString(),host,generation,terms,dfs);
+			if(found == terms.length)
+				return dfs; // all cached, don't count towards host latency
+		} else
+			Arrays.fill(dfs,-1);
+		// fetch only the missing ones
+		final Term[] missing = new Term[terms.length-found];
+		for(int i=0,j=0;i<terms.length;i++){
+			if(dfs[i] == -1)
+				missing[j++] = terms[i];
+		}
+		int[] fetched;
+		try{
+			// doc freqs are the same on all replicas, so they can be taken from any
+			fetched = HedgedRequest.invoke(iid,host,new HedgedRequest.HostCall<int[]>(){
+				public int[] call(String h) throws Exception {
+					if(h.equals(host))
+						return fetchDocFreqs(missing);
+					SearcherCache cache = SearcherCache.getInstance();
+					if(RMIMessengerClient.isLocal(h)){
+						// runs on hedge thread, outside of the request
+						IndexSearcherMul local = cache.acquireLocalSearcher(iid);
+						try{
+							return local.docFreqs(missing);
+						} finally{
+							local.release();
+						}
+					}
+					CachedSearchable other = cache.getRemoteSearcher(iid,h);
+					if(other == null)
+						throw new IOException("No remote searcher for "+iid+" at "+h);
+					return other.fetchDocFreqs(missing);
+				}
+			});
+		} catch(IOException e){
+			throw e;
+		} catch(Exception e){
+			throw new IOException(e.getMessage());
+		}
+		for(int i=0,j=0;i<terms.length;i++){
+			if(dfs[i] == -1)
+				dfs[i] = fetched[j++];
+		}
+		return dfs;
+	}
+	
+	/** Get doc freqs from this host (bypassing the cache), and cache them */
+	protected int[] fetchDocFreqs(Term[] terms) throws IOException {
+		DocFreqCache dfCache = SearcherCache.getInstance().getDocFreqCache();
+		long start = hostStats.begin(iid,host);
+		boolean failed = false;
 		try{
-			return searchable.docFreqs(terms);
+			int[] fetched = searchable.docFreqs(terms);
+			if(dfCache != null)
+				dfCache.put(iid.toString(),host,generation,terms,fetched);
+			return fetched;
 		} catch(Exception e){
+			failed = true;
 			log.error(e.getMessage(), e);
 			SearcherCache.getInstance().reInitializeRemote(iid,host);
 			throw new IOException(e.getMessage());
+		} finally{
+			hostStats.end(iid,host,start,!failed);
 		}
 	}
 
 	public Explanation explain(Weight weight, int doc) throws IOException {
 		log.debug("called explaint("+weight+","+doc+")");
+		long start = hostStats.begin(iid,host);
+		boolean failed = false;
 		try{
 			return searchable.explain(weight,doc);
 		} catch(Exception e){
+			failed = true;
 			log.error(e.getMessage(), e);
 			SearcherCache.getInstance().reInitializeRemote(iid,host);
 			throw new IOException(e.getMessage());
+		} finally{
+			hostStats.end(iid,host,start,!failed);
 		}
 	}
 
@@ -151,45 +250,65 @@ public class CachedSearchable implements SearchableMul {
 
 	public Query rewrite(Query query) throws IOException {
 		log.debug("called rewrite("+query+")");
+		long start = hostStats.begin(iid,host);
+		boolean failed = false;
 		try{
 			return searchable.rewrite(query);
 		} catch(Exception e){
+			failed = true;
 			log.error(e.getMessage(), e);
 			SearcherCache.getInstance().reInitializeRemote(iid,host);
 			throw new IOException(e.getMessage());
+		} finally{
+			hostStats.end(iid,host,start,!failed);
 		}
 	}
 
 	public void search(Weight weight, Filter filter, HitCollector results) throws IOException {
 		log.debug("called search("+weight+","+filter+","+results+")");
+		long start = hostStats.begin(iid,host);
+		boolean failed = false;
 		try{
 			searchable.search(weight,filter,results);
 		} catch(Exception e){
+			failed = true;
 			log.error(e.getMessage(), e);
 			SearcherCache.getInstance().reInitializeRemote(iid,host);
 			throw new IOException(e.getMessage());
+		} finally{
+			hostStats.end(iid,host,start,!failed);
 		}
 	}
 
 	public TopFieldDocs search(Weight weight, Filter filter, int n, Sort sort) throws IOException {
 		log.debug("called search("+weight+","+filter+","+n+","+sort+")");
+		long start = hostStats.begin(iid,host);
+		boolean failed = false;
 		try{
 			return searchable.search(weight,filter,n,sort);
 		} catch(Exception e){
+			failed = true;
 			log.error(e.getMessage(), e);
 			SearcherCache.getInstance().reInitializeRemote(iid,host);
 			throw new IOException(e.getMessage());
+		} finally{
+			hostStats.end(iid,host,start,!failed);
 		}
 	}
 
 	public TopDocs search(Weight weight, Filter filter, int n) throws IOException {
 		log.debug("called search("+weight+","+filter+","+n+")");
+		long start = hostStats.begin(iid,host);
+		boolean failed = false;
 		try{
 			return searchable.search(weight,filter,n);
 		} catch(Exception e){
+			failed = true;
 			log.error(e.getMessage(), e);
 			SearcherCache.getInstance().reInitializeRemote(iid,host);
 			throw new IOException(e.getMessage());
+		} finally{
+			hostStats.end(iid,host,start,!failed);
 		}
 	}
 
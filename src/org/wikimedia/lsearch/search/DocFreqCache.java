@@ -0,0 +1,118 @@
+package org.wikimedia.lsearch.search;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+
+/**
+ * Node-local LRU cache of document frequencies of terms on
+ * remote index parts.
+ *
+ * Entries are keyed by (dbrole, host, pool generation, term). Pool
+ * generation changes every time a remote pool is reinitialized (i.e.
+ * when remote index is updated), so that stale values are never
+ * returned, and the old entries are dropped by {@link SearcherCache}.
+ */
+public class DocFreqCache {
+	/** key of the cached doc freq */
+	static class Key {
+		String dbrole;
+		String host;
+		long generation;
+		Term term;
+
+		Key(String dbrole, String host, long generation, Term term){
+			this.dbrole = dbrole;
+			this.host = host;
+			this.generation = generation;
+			this.term = term;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + dbrole.hashCode();
+			result = prime * result + host.hashCode();
+			result = prime * result + (int) (generation ^ (generation >>> 32));
+			result = prime * result + term.hashCode();
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			final Key other = (Key) obj;
+			return generation == other.generation && dbrole.equals(other.dbrole)
+				&& host.equals(other.host) && term.equals(other.term);
+		}
+	}
+
+	protected LinkedHashMap<Key,Integer> cache;
+	protected int size;
+
+	protected long hits = 0;
+	protected long miss = 0;
+
+	/** Make new cache with at most size entries */
+	public DocFreqCache(final int size){
+		this.size = size;
+		this.cache = new LinkedHashMap<Key,Integer>(Math.min(size,10000),0.75f,true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key,Integer> eldest) {
+				return size() > DocFreqCache.this.size;
+			}
+		};
+	}
+
+	/**
+	 * Get cached doc freqs of terms on a part, missing values are -1
+	 *
+	 * @return number of terms found in cache
+	 */
+	public synchronized int get(String dbrole, String host, long generation, Term[] terms, int[] dfs){
+		int found = 0;
+		for(int i=0;i<terms.length;i++){
+			Integer df = cache.get(new Key(dbrole,host,generation,terms[i]));
+			if(df != null){
+				dfs[i] = df;
+				found++;
+			} else
+				dfs[i] = -1;
+		}
+		hits += found;
+		miss += terms.length - found;
+		return found;
+	}
+
+	/** Put doc freqs of terms on a part into cache */
+	public synchronized void put(String dbrole, String host, long generation, Term[] terms, int[] dfs){
+		for(int i=0;i<terms.length;i++)
+			cache.put(new Key(dbrole,host,generation,terms[i]),dfs[i]);
+	}
+
+	/** Drop all entries for dbrole on host (all hosts if host is null) */
+	public synchronized void invalidate(String dbrole, String host){
+		Iterator<Key> it = cache.keySet().iterator();
+		while(it.hasNext()){
+			Key k = it.next();
+			if(k.dbrole.equals(dbrole) && (host == null || k.host.equals(host)))
+				it.remove();
+		}
+	}
+
+	public synchronized int getSize(){
+		return cache.size();
+	}
+
+	public synchronized String getStats(){
+		long total = hits+miss;
+		return "size: "+cache.size()+", hits: "+hits+" ("+(total==0? 0 : (float)hits*100/total)+"%), miss: "+miss;
+	}
+
+}
@@ -9,8 +9,10 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.search.DisjunctionMaxQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
+import org.wikimedia.lsearch.config.Configuration;
 import org.wikimedia.lsearch.config.IndexId;
 import org.wikimedia.lsearch.interoperability.RMIMessengerClient;
+import org.wikimedia.lsearch.ranks.ObjectCache;
 import org.wikimedia.lsearch.spell.SuggestResult;
 
 /**
@@ -27,12 +29,26 @@ public class Fuzzy {
 	protected RMIMessengerClient client=null;
 	/** key (word:nsf) -> word -> boost (f(edit_dist)) */
 	protected HashMap<String,HashMap<String,Float>> cache = new HashMap<String,HashMap<String,Float>>(); 
+	/** fuzzy terms shared by all queries, spell_iid:generation:word:nsf -> word -> boost */
+	protected static ObjectCache termCache = null;
+	protected static boolean termCacheInit = false;
 	
 	public Fuzzy(IndexId iid, String host) {
 		this.iid = iid.getSpell();
 		this.host = host;
 	}
 	
+	/** @return cache of fuzzy terms shared by all queries, or null if disabled */
+	protected static synchronized ObjectCache getTermCache(){
+		if(!termCacheInit){
+			termCacheInit = true;
+			int memory = Configuration.open().getInt("Search","termCacheMemory",16);
+			if(memory > 0)
+				termCache = new ObjectCache("fuzzy",memory*1024L*1024L);
+		}
+		return termCache;
+	}
+	
 	/** key used to cache fuzzy results */
 	protected String cacheKey(String word, NamespaceFilter nsf){
 		if(nsf == null)
@@ -94,6 +110,7 @@ public class Fuzzy {
 		return ret;
 	}
 	
+	@SuppressWarnings("unchecked")
 	protected HashMap<String,Float> getCached(String word, NamespaceFilter nsf){
 		String key = cacheKey(word,nsf);
 		HashMap<String,Float> terms = cache.get(key);
@@ -101,11 +118,20 @@ public class Fuzzy {
 			if(cache.size() >= MAX_PER_QUERY){
 				return null; // limit number of wildcard queries
 			}
-			ArrayList<SuggestResult> res = client.getFuzzy(host,iid.toString(),word,nsf);
-			terms = new HashMap<String,Float>();
-			if(res != null){
-				for(SuggestResult r : res){
-					terms.put(r.getWord(),getBoost(r));
+			ObjectCache shared = getTermCache();
+			// new version of the spell index makes old entries unreachable 
+			String sharedKey = iid+":"+SearcherCache.getIndexGeneration(iid.toString())+":"+key;
+			if(shared != null)
+				terms = (HashMap<String,Float>) shared.get(sharedKey);
+			if(terms == null){
+				ArrayList<SuggestResult> res = client.getFuzzy(host,iid.toString(),word,nsf);
+				terms = new HashMap<String,Float>();
+				if(res != null){
+					for(SuggestResult r : res){
+						terms.put(r.getWord(),getBoost(r));
+					}
+					if(shared != null)
+						shared.put(sharedKey,terms);
 				}
 			}
 			cache.put(key,terms);
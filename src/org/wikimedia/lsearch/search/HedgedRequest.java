@@ -0,0 +1,98 @@
+package org.wikimedia.lsearch.search;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.wikimedia.lsearch.config.IndexId;
+
+/**
+ * Request to a remote index that is duplicated to another replica
+ * if the first host doesn't answer within a percentile of its recent
+ * latency (SearcherPool.hedgePercentile). Whichever answers first
+ * is used, and the other request is cancelled.
+ *
+ * Only use for calls whose results don't depend on the host, e.g.
+ * searches returning keys, not internal lucene document ids.
+ */
+public class HedgedRequest {
+	static Logger log = Logger.getLogger(HedgedRequest.class);
+
+	/** The actual call to be made to host */
+	public interface HostCall<T> {
+		public T call(String host) throws Exception;
+	}
+
+	/**
+	 * Make call on host, and if it takes too long on some other replica of iid
+	 *
+	 * @param iid - index on host
+	 * @param host - primary host
+	 * @param call
+	 * @return result of the first successful call
+	 * @throws Exception - exception of the primary call if both fail
+	 */
+	public static <T> T invoke(final IndexId iid, final String host, final HostCall<T> call) throws Exception {
+		SearcherCache cache = SearcherCache.getInstance();
+		double percentile = cache.getHedgePercentile();
+		long delay = percentile > 0? cache.getHostStats().getPercentile(iid,host,percentile) : -1;
+		if(delay < 0)
+			return call.call(host);
+		delay = Math.max(delay,cache.getHedgeMinDelay());
+
+		CompletionService<T> cs = new ExecutorCompletionService<T>(cache.getHedgeExecutor());
+		Future<T> primary = cs.submit(new Callable<T>(){
+			public T call() throws Exception {
+				return call.call(host);
+			}
+		});
+		Future<T> secondary = null;
+		try{
+			Future<T> done = cs.poll(delay,TimeUnit.MILLISECONDS);
+			if(done != null)
+				return getResult(done);
+			final String other = cache.getRandomHost(iid,host);
+			if(other == null)
+				return getResult(primary);
+			log.debug("Sending hedged request for "+iid+" to "+other+", "+host+" didn't answer in "+delay+" ms");
+			secondary = cs.submit(new Callable<T>(){
+				public T call() throws Exception {
+					return call.call(other);
+				}
+			});
+			done = cs.take();
+			try{
+				return getResult(done);
+			} catch(Exception e){
+				// wait for the other one
+				Future<T> rest = cs.take();
+				if(rest == primary)
+					return getResult(primary);
+				try{
+					return getResult(rest);
+				} catch(Exception e2){
+					throw e;
+				}
+			}
+		} finally{
+			primary.cancel(true);
+			if(secondary != null)
+				secondary.cancel(true);
+		}
+	}
+
+	protected static <T> T getResult(Future<T> f) throws Exception {
+		try{
+			return f.get();
+		} catch(ExecutionException e){
+			if(e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+}
@@ -0,0 +1,22 @@
+package org.wikimedia.lsearch.search;
+
+import java.util.List;
+
+import org.wikimedia.lsearch.config.IndexId;
+
+/**
+ * Picks one of the available hosts to search an index on. 
+ * Implementation is set with SearcherPool.hostSelector in local
+ * configuration (either "random", "latency" or a class name). 
+ */
+public interface HostSelector {
+	/**
+	 * Choose a host for iid
+	 * 
+	 * @param iid - index to be searched
+	 * @param hosts - available hosts (never empty)
+	 * @param stats - latency and load of remote hosts
+	 * @return one of hosts
+	 */
+	public String select(IndexId iid, List<String> hosts, HostStats stats);
+}
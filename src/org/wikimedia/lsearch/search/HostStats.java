@@ -0,0 +1,172 @@
+package org.wikimedia.lsearch.search;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.wikimedia.lsearch.config.IndexId;
+
+/**
+ * Tracks latency (exponentially weighted moving average) and number
+ * of requests in flight for each (host, dbrole) pair. 
+ * 
+ * Latency estimate decays with time since the last observation, so that
+ * a host that has been slow gets tried again after a while. Only successful
+ * requests are observed, a failed request puts the host into backoff
+ * instead (doubled with each consecutive failure, up to maxBackoff).
+ */
+public class HostStats {
+	static class Stats {
+		/** EWMA of latency in ms */
+		double latency = 0;
+		/** time of last observation */
+		long lastUpdate = 0;
+		AtomicInteger inFlight = new AtomicInteger(0);
+		/** ring buffer of most recent latencies */
+		long[] samples = new long[SAMPLES];
+		/** total number of samples seen */
+		long count = 0;
+		/** consecutive failed requests */
+		int failures = 0;
+		/** time until which the host should be avoided */
+		long backoffUntil = 0;
+	}
+	
+	/** number of recent latencies kept for percentiles */
+	public static final int SAMPLES = 128;
+	/** minimal number of samples to estimate a percentile */
+	public static final int MIN_SAMPLES = 10;
+	
+	/** weight of new observation in the moving average */
+	protected double alpha;
+	/** time (in ms) after which latency estimate decays by a factor of e */
+	protected long decay;
+	/** backoff after the first failure, and max backoff (in ms) */
+	protected long backoff = 1000, maxBackoff = 60000;
+	
+	/** dbrole@host -> stats */
+	protected ConcurrentHashMap<String,Stats> stats = new ConcurrentHashMap<String,Stats>();
+	
+	public HostStats(double alpha, long decay){
+		this.alpha = alpha;
+		this.decay = decay;
+	}
+	
+	public HostStats(double alpha, long decay, long backoff, long maxBackoff){
+		this(alpha,decay);
+		this.backoff = backoff;
+		this.maxBackoff = maxBackoff;
+	}
+	
+	protected Stats getStats(IndexId iid, String host){
+		String key = iid+"@"+host;
+		Stats s = stats.get(key);
+		if(s == null){
+			stats.putIfAbsent(key,new Stats());
+			s = stats.get(key);
+		}
+		return s;
+	}
+	
+	/** Call before sending a request to host, returns the start time to pass to end() */
+	public long begin(IndexId iid, String host){
+		getStats(iid,host).inFlight.incrementAndGet();
+		return System.currentTimeMillis();
+	}
+	
+	/** 
+	 * Call after request to host has finished, with success=false if it failed. 
+	 * Latency of failed requests is not observed (they often fail fast). 
+	 */
+	public void end(IndexId iid, String host, long start, boolean success){
+		long now = System.currentTimeMillis();
+		Stats s = getStats(iid,host);
+		s.inFlight.decrementAndGet();
+		double observed = now - start;
+		synchronized(s){
+			if(!success){
+				s.failures++;
+				s.backoffUntil = now + (s.failures > 16? maxBackoff : Math.min(backoff << (s.failures-1),maxBackoff));
+				return;
+			}
+			s.failures = 0;
+			s.backoffUntil = 0;
+			if(s.lastUpdate == 0)
+				s.latency = observed;
+			else
+				s.latency = alpha * observed + (1-alpha) * decayed(s,now);
+			s.lastUpdate = now;
+			s.samples[(int)(s.count++ % SAMPLES)] = (long)observed;
+		}
+	}
+	
+	protected double decayed(Stats s, long now){
+		if(decay <= 0 || s.lastUpdate == 0)
+			return s.latency;
+		return s.latency * Math.exp(-(double)(now - s.lastUpdate)/decay);
+	}
+	
+	/** If there has been at least one observation or failure for host */
+	public boolean isKnown(IndexId iid, String host){
+		Stats s = stats.get(iid+"@"+host);
+		if(s == null)
+			return false;
+		synchronized(s){
+			return s.lastUpdate != 0 || s.failures != 0;
+		}
+	}
+	
+	/** If host has recently failed and should not be used if possible */
+	public boolean isBackingOff(IndexId iid, String host){
+		Stats s = stats.get(iid+"@"+host);
+		if(s == null)
+			return false;
+		synchronized(s){
+			return s.backoffUntil > System.currentTimeMillis();
+		}
+	}
+	
+	/** Current latency estimate in ms (0 if unknown) */
+	public double getLatency(IndexId iid, String host){
+		Stats s = stats.get(iid+"@"+host);
+		if(s == null)
+			return 0;
+		synchronized(s){
+			return decayed(s,System.currentTimeMillis());
+		}
+	}
+	
+	/** 
+	 * Percentile (0-100) of recent latencies of host in ms, or -1
+	 * if there are not enough observations
+	 */
+	public long getPercentile(IndexId iid, String host, double percentile){
+		Stats s = stats.get(iid+"@"+host);
+		if(s == null)
+			return -1;
+		long[] recent;
+		synchronized(s){
+			if(s.count < MIN_SAMPLES)
+				return -1;
+			recent = new long[(int)Math.min(s.count,SAMPLES)];
+			System.arraycopy(s.samples,0,recent,0,recent.length);
+		}
+		Arrays.sort(recent);
+		int inx = (int)Math.ceil(percentile/100 * recent.length) - 1;
+		return recent[Math.min(Math.max(inx,0),recent.length-1)];
+	}
+	
+	/** Number of requests currently in flight */
+	public int getInFlight(IndexId iid, String host){
+		Stats s = stats.get(iid+"@"+host);
+		return s == null? 0 : s.inFlight.get();
+	}
+	
+	/** Expected cost of sending another request to host, infinite while backing off */
+	public double getCost(IndexId iid, String host){
+		if(isBackingOff(iid,host))
+			return Double.POSITIVE_INFINITY;
+		return (getLatency(iid,host) + 1) * (getInFlight(iid,host) + 1);
+	}
+
+}
@@ -1,16 +1,31 @@
 package org.wikimedia.lsearch.search;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.log4j.Logger;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Searchable;
 import org.apache.lucene.search.SearchableMul;
 import org.apache.lucene.store.Directory;
 
-/** IndexSearcher that can return multiple documents in one method call */
+/** 
+ * IndexSearcher that can return multiple documents in one method call.
+ * 
+ * The searcher is reference counted: the pool holds one reference, and 
+ * every query acquires one for its duration. When the last reference 
+ * is released the searcher is closed and its caches dropped.
+ */
 public class IndexSearcherMul extends IndexSearcher implements SearchableMul {
+	static Logger log = Logger.getLogger(IndexSearcherMul.class);
+	
+	/** references held by the pool and running queries */
+	protected AtomicInteger refCount = new AtomicInteger(1);
+	/** searcher that owns the (shared) index reader of this one */
+	protected IndexSearcherMul owner = null;
 
 	public IndexSearcherMul(Directory directory) throws IOException {
 		super(directory);
@@ -23,6 +38,84 @@ public class IndexSearcherMul extends IndexSearcher implements SearchableMul {
 	public IndexSearcherMul(String path) throws IOException {
 		super(path);
 	}
+	
+	/** New searcher sharing the index reader of owner, owner stays open while this one is */
+	public IndexSearcherMul(IndexSearcherMul owner) throws IOException {
+		super(owner.getIndexReader());
+		if(!owner.acquire())
+			throw new IOException("Searcher "+owner+" is already closed");
+		this.owner = owner;
+	}
+	
+	/** 
+	 * Get a reference to this searcher, release it when done.
+	 * @return false if the searcher is already closed
+	 */
+	public boolean acquire(){
+		for(;;){
+			int c = refCount.get();
+			if(c <= 0)
+				return false;
+			if(refCount.compareAndSet(c,c+1))
+				return true;
+		}
+	}
+	
+	/** Release a reference, closes the searcher on last one */
+	public void release(){
+		if(refCount.decrementAndGet() == 0)
+			closeSearcher();
+	}
+	
+	/**
+	 * Reference s for a call made outside of a request (e.g. from RMI or
+	 * executor threads), if it is a reference counted searcher. Undo with
+	 * {@link #releaseSearchable(Searchable)}.
+	 * @throws IOException if s is already closed
+	 */
+	public static void acquireSearchable(Searchable s) throws IOException {
+		if(s instanceof IndexSearcherMul && !((IndexSearcherMul)s).acquire())
+			throw new IOException("Searcher "+s+" is already closed");
+	}
+
+	/** Release reference taken by {@link #acquireSearchable(Searchable)} */
+	public static void releaseSearchable(Searchable s){
+		if(s instanceof IndexSearcherMul)
+			((IndexSearcherMul)s).release();
+	}
+
+	/** Close the searcher now, even if some references are still held */
+	public void forceClose(){
+		if(refCount.getAndSet(0) > 0)
+			closeSearcher();
+	}
+	
+	public int getRefCount(){
+		return Math.max(refCount.get(),0);
+	}
+	
+	public boolean isClosed(){
+		return refCount.get() <= 0;
+	}
+	
+	protected void closeSearcher(){
+		if(owner != null){
+			// reader and caches belong to owner
+			owner.release();
+			return;
+		}
+		try {
+			log.debug("Closing searchable "+this);
+			// invalidate various caches!
+			CachedFilter.invalideAllFilterCache(getIndexReader());
+			AggregateMetaField.invalidateCache(getIndexReader());
+			ArticleMeta.invalidateCache(getIndexReader());
+			close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			log.warn("I/O error closing searchable "+this+" : "+e.getMessage(),e);
+		}
+	}
 
 	public Document[] docs(int[] docIds) throws IOException {
 		  Document[] ds = new Document[docIds.length];
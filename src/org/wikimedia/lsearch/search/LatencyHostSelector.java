@@ -0,0 +1,38 @@
+package org.wikimedia.lsearch.search;
+
+import java.util.List;
+
+import org.wikimedia.lsearch.config.IndexId;
+
+/**
+ * Load and latency aware selection using power of two choices:
+ * pick two hosts at random, and use the one with lower expected
+ * cost (average latency times the number of requests in flight).
+ * 
+ * Slow hosts thus get less traffic, but will still be retried 
+ * once their latency estimate decays (see {@link HostStats}). 
+ * Hosts without any observations (e.g. localhost, which is not
+ * searched via RMI) are not compared, the first random pick is used. 
+ * Hosts backing off after failures lose to any other host.
+ */
+public class LatencyHostSelector implements HostSelector {
+
+	public String select(IndexId iid, List<String> hosts, HostStats stats) {
+		int size = hosts.size();
+		if(size == 1)
+			return hosts.get(0);
+		int first = (int)(Math.random()*size);
+		int second = (int)(Math.random()*(size-1));
+		if(second >= first)
+			second++;
+		String h1 = hosts.get(first), h2 = hosts.get(second);
+		if(stats.isBackingOff(iid,h1) != stats.isBackingOff(iid,h2))
+			return stats.isBackingOff(iid,h1)? h2 : h1;
+		if(!stats.isKnown(iid,h1) || !stats.isKnown(iid,h2))
+			return h1;
+		if(stats.getCost(iid,h2) < stats.getCost(iid,h1))
+			return h2;
+		return h1;
+	}
+
+}
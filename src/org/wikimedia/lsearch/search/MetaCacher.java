@@ -0,0 +1,152 @@
+package org.wikimedia.lsearch.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReader.FieldOption;
+
+/**
+ * Feeds stored fields of all documents of an index to meta cache builders
+ * ({@link AggregateMetaField}, {@link ArticleMeta}).
+ *
+ * The index is split into doc id ranges which are cached concurrently.
+ * Every range is read with its own IndexReader (document loading is
+ * synchronized per reader), and only the stored fields needed by the
+ * builders are loaded.
+ */
+public class MetaCacher {
+	static Logger log = Logger.getLogger(MetaCacher.class);
+
+	/** don't split the index into ranges smaller than this */
+	protected static final int MIN_RANGE = 1000;
+
+	protected static AtomicInteger threadCount = new AtomicInteger(0);
+
+	/** Selector for stored fields used by meta cache builders */
+	public static FieldSelector makeFieldSelector(IndexReader reader){
+		ArrayList<String> fields = new ArrayList<String>();
+		fields.add("namespace");
+		fields.add("title");
+		fields.add("date");
+		@SuppressWarnings("rawtypes")
+		Collection all = reader.getFieldNames(FieldOption.ALL);
+		for(Object f : all){
+			if(((String)f).endsWith("_meta"))
+				fields.add((String)f);
+		}
+		return new MapFieldSelector(fields);
+	}
+
+	/**
+	 * Cache all documents in builders.
+	 *
+	 * @param readers - readers of the same index version, used for different ranges,
+	 *                  if there are less readers than threads more are opened
+	 * @param builders
+	 * @param threads - max number of concurrent ranges
+	 */
+	public static void cache(List<IndexReader> readers, final List<CacheBuilder> builders, int threads) throws IOException {
+		cache(readers,builders,threads,0);
+	}
+
+	/**
+	 * Cache documents from startDoc onwards in builders (values of documents
+	 * before startDoc are provided otherwise, e.g. by seeding builders).
+	 */
+	public static void cache(List<IndexReader> readers, final List<CacheBuilder> builders, int threads, int startDoc) throws IOException {
+		IndexReader first = readers.get(0);
+		final int maxDoc = first.maxDoc();
+		final FieldSelector selector = makeFieldSelector(first);
+		int ranges = Math.max(1,Math.min(threads,(maxDoc-startDoc) / MIN_RANGE));
+		final int[] starts = new int[ranges];
+		for(int i=0;i<ranges;i++)
+			starts[i] = startDoc + (int)((long)(maxDoc-startDoc) * i / ranges);
+
+		for(CacheBuilder b : builders)
+			b.init();
+		for(CacheBuilder b : builders)
+			b.setRanges(starts);
+
+		if(ranges == 1){
+			cacheRange(first,builders,selector,startDoc,maxDoc);
+		} else{
+			ArrayList<IndexReader> opened = new ArrayList<IndexReader>();
+			ExecutorService pool = Executors.newFixedThreadPool(ranges,new ThreadFactory(){
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r,"MetaCache-"+threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			try{
+				ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+				for(int i=0;i<ranges;i++){
+					final IndexReader reader;
+					if(i < readers.size())
+						reader = readers.get(i);
+					else{
+						reader = IndexReader.open(first.directory());
+						opened.add(reader);
+					}
+					final int start = starts[i];
+					final int end = (i == ranges-1)? maxDoc : starts[i+1];
+					futures.add(pool.submit(new Callable<Object>(){
+						public Object call() throws Exception {
+							cacheRange(reader,builders,selector,start,end);
+							return null;
+						}
+					}));
+				}
+				for(Future<Object> f : futures){
+					try{
+						f.get();
+					} catch(ExecutionException e){
+						Throwable cause = e.getCause();
+						if(cause instanceof IOException)
+							throw (IOException)cause;
+						throw new IOException("Error caching meta fields: "+cause.getMessage());
+					} catch(InterruptedException e){
+						throw new IOException("Interrupted while caching meta fields");
+					}
+				}
+			} finally{
+				pool.shutdownNow();
+				for(IndexReader r : opened){
+					try{
+						r.close();
+					} catch(IOException e){
+						log.warn("Cannot close reader "+r+" : "+e.getMessage(),e);
+					}
+				}
+			}
+		}
+
+		for(CacheBuilder b : builders)
+			b.end();
+	}
+
+	protected static void cacheRange(IndexReader reader, List<CacheBuilder> builders, FieldSelector selector, int start, int end) throws IOException {
+		for(int i=start;i<end;i++){
+			if(reader.isDeleted(i))
+				continue;
+			Document doc = reader.document(i,selector);
+			for(CacheBuilder b : builders)
+				b.cache(i,doc);
+		}
+	}
+
+}
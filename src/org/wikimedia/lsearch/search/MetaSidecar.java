@@ -0,0 +1,202 @@
+package org.wikimedia.lsearch.search;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReader.FieldOption;
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.search.AggregateMetaField.AggregateMetaFieldSource;
+import org.wikimedia.lsearch.search.ArticleMeta.ArticleMetaSource;
+
+/**
+ * Per-document meta values ({@link AggregateMetaField}, {@link ArticleMeta})
+ * precomputed by the indexer and stored in a binary file next to the index
+ * snapshot. Searchers memory-map it when opening the index, instead of
+ * rebuilding the values from stored fields of every document.
+ *
+ * The file is only used if it was made from the same index version.
+ *
+ * Layout (big-endian):
+ * <pre>
+ * int magic, int format version, long index version, int maxDoc
+ * byte hasArticleMeta
+ *   maxDoc bytes subpage, maxDoc shorts namespace, maxDoc ints date (seconds)
+ * int number of aggregate fields, for each:
+ *   utf field name, int count,
+ *   maxDoc ints index, maxDoc bytes namespaces,
+ *   count bytes length, count bytes lengthNoStopWords, count bytes lengthComplete,
+ *   count floats boost, count bytes flags
+ * </pre>
+ */
+public class MetaSidecar {
+	static Logger log = Logger.getLogger(MetaSidecar.class);
+
+	public static final String FILENAME = "lsearch.meta";
+	protected static final int MAGIC = 0x4c534d43;
+	protected static final int FORMAT = 1;
+
+	/** If meta values are cached for index iid */
+	public static boolean hasMeta(IndexId iid){
+		return iid.isArticleIndex() || iid.isTitlesBySuffix();
+	}
+
+	/**
+	 * Build meta values for the index at path, and write them into
+	 * the sidecar file in the same directory
+	 */
+	public static void write(IndexId iid, String path) throws IOException {
+		long start = System.currentTimeMillis();
+		IndexReader reader = IndexReader.open(path);
+		try{
+			ArticleMetaSource article = new ArticleMetaSource(reader,iid.getNamespacesWithSubpages());
+			ArrayList<AggregateMetaFieldSource> aggregates = new ArrayList<AggregateMetaFieldSource>();
+			@SuppressWarnings("rawtypes")
+			Collection fields = reader.getFieldNames(FieldOption.ALL);
+			for(Object fieldObj : fields){
+				String field = (String)fieldObj;
+				if(field.endsWith("_meta"))
+					aggregates.add(new AggregateMetaFieldSource(reader,field.substring(0,field.lastIndexOf('_'))));
+			}
+			ArrayList<CacheBuilder> builders = new ArrayList<CacheBuilder>();
+			builders.add(article);
+			builders.addAll(aggregates);
+			ArrayList<IndexReader> readers = new ArrayList<IndexReader>();
+			readers.add(reader);
+			MetaCacher.cache(readers,builders,Runtime.getRuntime().availableProcessors());
+
+			int maxDoc = reader.maxDoc();
+			File tmp = new File(path,FILENAME+".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),65536));
+			try{
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT);
+				out.writeLong(reader.getVersion());
+				out.writeInt(maxDoc);
+				out.writeByte(1);
+				for(int i=0;i<maxDoc;i++)
+					out.writeByte(article.subpage.get(i));
+				for(int i=0;i<maxDoc;i++)
+					out.writeShort(article.namespace.get(i));
+				for(int i=0;i<maxDoc;i++)
+					out.writeInt(article.date.get(i));
+				out.writeInt(aggregates.size());
+				for(AggregateMetaFieldSource a : aggregates){
+					int count = a.lengthBuf.limit();
+					out.writeUTF(a.field);
+					out.writeInt(count);
+					for(int i=0;i<maxDoc;i++)
+						out.writeInt(a.indexBuf.get(i));
+					for(int i=0;i<maxDoc;i++)
+						out.writeByte(a.namespacesBuf.get(i));
+					writeBytes(out,a.lengthBuf,count);
+					writeBytes(out,a.lengthNoStopWordsBuf,count);
+					writeBytes(out,a.lengthCompleteBuf,count);
+					for(int i=0;i<count;i++)
+						out.writeFloat(a.boostBuf.get(i));
+					writeBytes(out,a.flagsBuf,count);
+				}
+				out.close();
+			} catch(IOException e){
+				out.close();
+				tmp.delete();
+				throw e;
+			}
+			File target = new File(path,FILENAME);
+			if(!tmp.renameTo(target))
+				throw new IOException("Cannot rename "+tmp+" to "+target);
+			log.info("Wrote meta sidecar for "+iid+" in "+(System.currentTimeMillis()-start)+" ms");
+		} finally{
+			reader.close();
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, ByteBuffer buf, int count) throws IOException {
+		for(int i=0;i<count;i++)
+			out.writeByte(buf.get(i));
+	}
+
+	/**
+	 * Memory-map the sidecar file for the index at path, and register the meta
+	 * values for reader.
+	 *
+	 * @return false if there is no valid sidecar for this index version
+	 */
+	public static boolean load(IndexReader reader, IndexId iid, String path) {
+		File file = new File(path,FILENAME);
+		if(!file.exists())
+			return false;
+		try{
+			MappedByteBuffer buf;
+			RandomAccessFile raf = new RandomAccessFile(file,"r");
+			try{
+				buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,0,raf.length());
+			} finally{
+				raf.close(); // mapping stays valid
+			}
+			if(buf.getInt() != MAGIC || buf.getInt() != FORMAT){
+				log.warn("Unknown format of meta sidecar "+file);
+				return false;
+			}
+			long version = buf.getLong();
+			int maxDoc = buf.getInt();
+			if(version != reader.getVersion() || maxDoc != reader.maxDoc()){
+				log.warn("Meta sidecar "+file+" doesn't match the index version, ignoring");
+				return false;
+			}
+			if(buf.get() != 0){
+				ArticleMetaSource article = new ArticleMetaSource(reader,iid.getNamespacesWithSubpages());
+				ByteBuffer subpage = slice(buf,maxDoc);
+				ShortBuffer namespace = slice(buf,maxDoc*2).asShortBuffer();
+				IntBuffer date = slice(buf,maxDoc*4).asIntBuffer();
+				article.setValues(subpage,date,namespace);
+				ArticleMeta.putCachedSource(reader,article);
+			}
+			int numFields = buf.getInt();
+			for(int f=0;f<numFields;f++){
+				byte[] name = new byte[buf.getShort() & 0xffff];
+				buf.get(name);
+				String field = new String(name,"utf-8");
+				int count = buf.getInt();
+				AggregateMetaFieldSource a = new AggregateMetaFieldSource(reader,field.substring(0,field.lastIndexOf('_')));
+				IntBuffer index = slice(buf,maxDoc*4).asIntBuffer();
+				ByteBuffer namespaces = slice(buf,maxDoc);
+				ByteBuffer length = slice(buf,count);
+				ByteBuffer lengthNoStopWords = slice(buf,count);
+				ByteBuffer lengthComplete = slice(buf,count);
+				FloatBuffer boost = slice(buf,count*4).asFloatBuffer();
+				ByteBuffer flags = slice(buf,count);
+				a.setValues(index,length,lengthNoStopWords,lengthComplete,boost,flags,namespaces);
+				AggregateMetaField.putCachedSource(reader,a.field.substring(0,a.field.lastIndexOf('_')),a);
+			}
+			return true;
+		} catch(Exception e){
+			log.error("Cannot load meta sidecar "+file+" : "+e.getMessage(),e);
+			ArticleMeta.invalidateCache(reader);
+			AggregateMetaField.invalidateCache(reader);
+			return false;
+		}
+	}
+
+	/** Take next len bytes from buf as a separate buffer */
+	private static ByteBuffer slice(ByteBuffer buf, int len){
+		ByteBuffer s = buf.slice();
+		s.limit(len);
+		buf.position(buf.position()+len);
+		return s;
+	}
+
+}
@@ -92,13 +92,7 @@ public class MultiSearcherMul extends MultiSearcherBase implements SearchableMul
 	    // step3
 	    Term[] allTermsArray = new Term[terms.size()];
 	    terms.toArray(allTermsArray);
-	    int[] aggregatedDfs = new int[terms.size()];
-	    for (int i = 0; i < searchables.length; i++) {
-	      int[] dfs = searchables[i].docFreqs(allTermsArray);
-	      for(int j=0; j<aggregatedDfs.length; j++){
-	        aggregatedDfs[j] += dfs[j];
-	      }
-	    }
+	    int[] aggregatedDfs = aggregateDocFreqs(allTermsArray);
 
 	    HashMap<Term,Integer> dfMap = new HashMap<Term,Integer>();
 	    for(int i=0; i<allTermsArray.length; i++) {
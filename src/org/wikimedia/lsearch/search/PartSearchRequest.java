@@ -0,0 +1,40 @@
+package org.wikimedia.lsearch.search;
+
+import java.io.Serializable;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+
+/**
+ * Query on a part of a split index, shipped together with the global
+ * term statistics (see {@link PartStats}), so that the part can search
+ * and fetch keys of its top hits in a single call.
+ */
+public class PartSearchRequest implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** original search term, for logging */
+	public String searchterm;
+	/** rewritten query */
+	public Query query;
+	public FilterWrapper filter;
+	/** number of top hits to return (offset+limit) */
+	public int limit;
+	public boolean explain;
+	/** global doc freqs of all query terms */
+	public Term[] terms;
+	public int[] dfs;
+	/** global number of documents */
+	public int maxDoc;
+
+	public PartSearchRequest(String searchterm, FilterWrapper filter, int limit, boolean explain, PartStats stats) {
+		this.searchterm = searchterm;
+		this.query = stats.query;
+		this.filter = filter;
+		this.limit = limit;
+		this.explain = explain;
+		this.terms = stats.terms;
+		this.dfs = stats.dfs;
+		this.maxDoc = stats.maxDoc;
+	}
+}
@@ -0,0 +1,93 @@
+package org.wikimedia.lsearch.search;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Searcher;
+
+/**
+ * Rewritten query and term statistics of a part of a split index, the
+ * reply to the first round of a combined search. Stats of all parts are
+ * merged into global stats, which are sent to parts in {@link PartSearchRequest}.
+ */
+public class PartStats implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** rewritten query */
+	public Query query;
+	/** query terms and extra (e.g. highlight) terms */
+	public Term[] terms;
+	public int[] dfs;
+	public int maxDoc;
+
+	public PartStats(Query query, Term[] terms, int[] dfs, int maxDoc) {
+		this.query = query;
+		this.terms = terms;
+		this.dfs = dfs;
+		this.maxDoc = maxDoc;
+	}
+
+	/** Rewrite query on searcher, and get doc freqs of its terms and of extraTerms (can be null) */
+	public static PartStats make(Searcher searcher, Query query, Term[] extraTerms) throws IOException {
+		Query rewritten = searcher.rewrite(query);
+		HashSet<Term> termSet = new HashSet<Term>();
+		rewritten.extractTerms(termSet);
+		if(extraTerms != null)
+			termSet.addAll(Arrays.asList(extraTerms));
+		Term[] terms = termSet.toArray(new Term[] {});
+		return new PartStats(rewritten,terms,searcher.docFreqs(terms),searcher.maxDoc());
+	}
+
+	/**
+	 * Merge stats of all parts into global stats. Terms that a part
+	 * didn't return (e.g. not among its wildcard expansions) are
+	 * taken as not present in that part.
+	 */
+	public static PartStats merge(List<PartStats> parts){
+		Query[] queries = new Query[parts.size()];
+		boolean same = true;
+		for(int i=0;i<queries.length;i++){
+			queries[i] = parts.get(i).query;
+			same &= queries[i].equals(queries[0]);
+		}
+		Query query = same? queries[0] : queries[0].combine(queries);
+		LinkedHashMap<Term,Integer> dfMap = new LinkedHashMap<Term,Integer>();
+		int maxDoc = 0;
+		for(PartStats p : parts){
+			maxDoc += p.maxDoc;
+			for(int i=0;i<p.terms.length;i++){
+				Integer df = dfMap.get(p.terms[i]);
+				dfMap.put(p.terms[i],df == null? p.dfs[i] : df + p.dfs[i]);
+			}
+		}
+		Term[] terms = new Term[dfMap.size()];
+		int[] dfs = new int[terms.length];
+		int i = 0;
+		for(Entry<Term,Integer> e : dfMap.entrySet()){
+			terms[i] = e.getKey();
+			dfs[i++] = e.getValue();
+		}
+		return new PartStats(query,terms,dfs,maxDoc);
+	}
+
+	/** Get doc freqs for a subset of terms */
+	public int[] getDfs(Term[] subset){
+		int[] ret = new int[subset.length];
+		for(int i=0;i<subset.length;i++){
+			for(int j=0;j<terms.length;j++){
+				if(terms[j].equals(subset[i])){
+					ret[i] = dfs[j];
+					break;
+				}
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,106 @@
+package org.wikimedia.lsearch.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Random;
+
+import org.wikimedia.lsearch.benchmark.Terms;
+import org.wikimedia.lsearch.config.Configuration;
+import org.wikimedia.lsearch.config.IndexId;
+
+/**
+ * Rolling sample of recent search queries per database, replayed
+ * to warm up new index versions with the production query mix.
+ */
+public class QueryLog {
+	protected static Hashtable<String,QueryLog> logs = new Hashtable<String,QueryLog>();
+	protected static int defaultSize = -1;
+	protected static double sampleRate = 0.1;
+	protected static Random random = new Random();
+	/** min number of queries for the log to be used */
+	public static final int MIN_QUERIES = 100;
+
+	protected String[] queries;
+	protected int next = 0;
+	protected int count = 0;
+
+	public QueryLog(int size){
+		queries = new String[size];
+	}
+
+	/** Record query, keeping at most size most recent ones */
+	public synchronized void add(String searchterm){
+		queries[next] = searchterm;
+		next = (next + 1) % queries.length;
+		if(count < queries.length)
+			count++;
+	}
+
+	public synchronized int getCount(){
+		return count;
+	}
+
+	/** Snapshot of the log in random order */
+	public synchronized Terms getTerms(){
+		ArrayList<String> list = new ArrayList<String>(count);
+		for(int i=0;i<count;i++)
+			list.add(queries[i]);
+		Collections.shuffle(list);
+		return new ReplayTerms(list);
+	}
+
+	/** Cycles over a list of queries */
+	public static class ReplayTerms implements Terms {
+		protected ArrayList<String> terms;
+		protected int pos = 0;
+
+		public ReplayTerms(ArrayList<String> terms){
+			this.terms = terms;
+		}
+
+		public synchronized String next() {
+			if(pos >= terms.size())
+				pos = 0;
+			return terms.get(pos++);
+		}
+
+		public int termCount() {
+			return terms.size();
+		}
+	}
+
+	protected static synchronized void readConfig(){
+		if(defaultSize == -1){
+			Configuration config = Configuration.open();
+			defaultSize = config.getInt("Warmup","queryLogSize",1000);
+			sampleRate = config.getDouble("Warmup","queryLogSample",0.1);
+		}
+	}
+
+	/** Sample a search on iid into the log of its database */
+	public static void record(IndexId iid, String searchterm){
+		readConfig();
+		if(defaultSize == 0 || searchterm == null || random.nextDouble() >= sampleRate)
+			return;
+		String dbname = iid.getDBname();
+		QueryLog log;
+		synchronized(logs){
+			log = logs.get(dbname);
+			if(log == null){
+				log = new QueryLog(defaultSize);
+				logs.put(dbname,log);
+			}
+		}
+		log.add(searchterm);
+	}
+
+	/** Recent queries on database of iid, or null if there are too few */
+	public static Terms getTerms(IndexId iid){
+		QueryLog log = logs.get(iid.getDBname());
+		if(log == null || log.getCount() < Math.min(MIN_QUERIES,log.queries.length))
+			return null;
+		return log.getTerms();
+	}
+
+}
@@ -0,0 +1,14 @@
+package org.wikimedia.lsearch.search;
+
+import java.util.List;
+
+import org.wikimedia.lsearch.config.IndexId;
+
+/** Picks a host uniformly at random */
+public class RandomHostSelector implements HostSelector {
+
+	public String select(IndexId iid, List<String> hosts, HostStats stats) {
+		return hosts.get((int)(Math.random()*hosts.size()));
+	}
+
+}
@@ -0,0 +1,156 @@
+package org.wikimedia.lsearch.search;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.wikimedia.lsearch.beans.SearchResults;
+
+/**
+ * Node-local LRU cache of finished search results (with highlighting and
+ * suggestions), bounded both by number of entries and by memory.
+ *
+ * Results are stored serialized, so that every hit gets its own copy which
+ * the frontend can freely modify, and the memory use is known exactly.
+ *
+ * Every entry depends on a set of databases (e.g. enwiki, en-titles), and
+ * is dropped when any index of those is updated. Results of searches that
+ * were running during an update are not cached (see {@link #getGeneration()}).
+ */
+public class ResultCache {
+	static Logger log = Logger.getLogger(ResultCache.class);
+
+	static class Entry {
+		byte[] data;
+		Set<String> dbnames;
+
+		Entry(byte[] data, Set<String> dbnames){
+			this.data = data;
+			this.dbnames = dbnames;
+		}
+	}
+
+	protected LinkedHashMap<String,Entry> cache;
+	protected int size;
+	protected long maxMemory;
+	protected long memory = 0;
+	/** incremented on every invalidation */
+	protected long generation = 0;
+
+	protected long hits = 0;
+	protected long miss = 0;
+
+	/**
+	 * @param size - max number of entries
+	 * @param maxMemory - max total size of serialized results in bytes
+	 */
+	public ResultCache(int size, long maxMemory){
+		this.size = size;
+		this.maxMemory = maxMemory;
+		this.cache = new LinkedHashMap<String,Entry>(Math.min(size,10000),0.75f,true);
+	}
+
+	/** Make cache key from (normalized) request parameters */
+	public static String makeKey(String dbname, String what, String searchterm, Object... params){
+		StringBuilder sb = new StringBuilder();
+		sb.append(dbname).append('\n').append(what).append('\n');
+		sb.append(searchterm.trim().replaceAll("\\s+"," "));
+		for(Object p : params)
+			sb.append('\n').append(p);
+		return sb.toString();
+	}
+
+	/** Current generation, get it before searching, and pass to put() */
+	public synchronized long getGeneration(){
+		return generation;
+	}
+
+	/** Get a copy of cached results, or null */
+	public SearchResults get(String key){
+		Entry e;
+		synchronized(this){
+			e = cache.get(key);
+			if(e == null){
+				miss++;
+				return null;
+			}
+			hits++;
+		}
+		try{
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(e.data));
+			return (SearchResults) in.readObject();
+		} catch(Exception ex){
+			log.error("Cannot deserialize cached results for "+key+" : "+ex.getMessage(),ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Cache results for key
+	 *
+	 * @param dbnames - databases results depend on
+	 * @param generation - generation at the start of search
+	 */
+	public void put(String key, SearchResults res, Set<String> dbnames, long generation){
+		byte[] data;
+		try{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(res);
+			out.close();
+			data = bytes.toByteArray();
+		} catch(IOException e){
+			log.error("Cannot serialize results for "+key+" : "+e.getMessage(),e);
+			return;
+		}
+		if(data.length > maxMemory / 10)
+			return; // don't let a single entry flush the cache
+		synchronized(this){
+			if(generation != this.generation)
+				return; // index updated while searching
+			Entry old = cache.put(key,new Entry(data,dbnames));
+			if(old != null)
+				memory -= old.data.length;
+			memory += data.length;
+			// evict least recently used
+			Iterator<Entry> it = cache.values().iterator();
+			while((cache.size() > size || memory > maxMemory) && it.hasNext()){
+				memory -= it.next().data.length;
+				it.remove();
+			}
+		}
+	}
+
+	/** Drop all results that depend on dbname */
+	public synchronized void invalidate(String dbname){
+		generation++;
+		Iterator<Entry> it = cache.values().iterator();
+		while(it.hasNext()){
+			Entry e = it.next();
+			if(e.dbnames.contains(dbname)){
+				memory -= e.data.length;
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized int getSize(){
+		return cache.size();
+	}
+
+	public synchronized long getMemory(){
+		return memory;
+	}
+
+	public synchronized String getStats(){
+		long total = hits+miss;
+		return "size: "+cache.size()+", memory: "+memory+", hits: "+hits+" ("+(total==0? 0 : (float)hits*100/total)+"%), miss: "+miss;
+	}
+
+}
@@ -5,11 +5,18 @@ import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
@@ -20,11 +27,13 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.search.ArticleNamespaceScaling;
+import org.apache.lucene.search.MultiSearcherBase;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Searchable;
 import org.apache.lucene.search.SearchableMul;
 import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
 import org.wikimedia.lsearch.analyzers.Analyzers;
 import org.wikimedia.lsearch.analyzers.FieldBuilder;
 import org.wikimedia.lsearch.analyzers.FilterFactory;
@@ -86,6 +95,12 @@ public class SearchEngine {
 	
 	/** non-existent host name */
 	protected String nullHost;
+	
+	/** search split indexes with searchCombined(), i.e. in two network round trips (plus highlighting) */
+	protected boolean combinedSearch = false;
+	
+	/** record queries in {@link QueryLog}, off for queries that are not from users (e.g. warmup) */
+	protected boolean recordQueries = true;
 
 	public SearchEngine(){
 		if(config == null)
@@ -93,6 +108,8 @@ public class SearchEngine {
 
 		nullHost = config.getString( "Search", "nullHost", "" );    // non-existent host
 		log.info( "nullHost = " + nullHost );
+		
+		combinedSearch = config.getBoolean("Search","combinedSearch",false);
 
 		if(global == null){
 			global = GlobalConfiguration.getInstance();
@@ -105,6 +122,20 @@ public class SearchEngine {
 		// timelimit = config.getInt("Search","timelimit",5000);
 	}
 	
+	/** Databases whose indexes are used when searching iid for searchterm in namespaces */
+	protected static Set<String> getDependentDBs(IndexId iid, String searchterm, NamespaceFilter namespaces){
+		GlobalConfiguration global = GlobalConfiguration.getInstance();
+		HashSet<String> dbs = new HashSet<String>();
+		dbs.add(iid.getDBname());
+		if(iid.hasTitlesIndex())
+			dbs.add(iid.getTitlesIndex().getDBname());
+		// images are searched on commons as well, prefixes in query (e.g. image:) can select them too 
+		boolean images = (namespaces != null && namespaces.contains(6)) || searchterm.indexOf(':') != -1;
+		if(images && global.hasCommonsWiki())
+			dbs.add(global.getCommonsWiki().getDBname());
+		return dbs;
+	}
+	
 	/** Main search method, call this from the search frontend */
 	public SearchResults search(String dbname, String what, String searchterm, HashMap<String,Object> query, double version) {
 		IndexId iid = IndexId.get(dbname);
@@ -134,7 +165,23 @@ public class SearchEngine {
 				namespaces = new NamespaceFilter("");
 			else
 				namespaces = new NamespaceFilter((String)query.get("namespaces"));
+			// explain is for debugging, always run it
+			ResultCache resultCache = what.equals("search")? cache.getResultCache() : null;
+			String key = null;
+			long generation = 0;
+			if(resultCache != null){
+				key = ResultCache.makeKey(dbname,what,searchterm,namespaces,offset,limit,iwoffset,iwlimit,exactCase,searchOnly,searchAll,version);
+				SearchResults cached = resultCache.get(key);
+				if(cached != null){
+					log.info("search "+iid+": query=["+searchterm+"] hit=["+cached.getNumHits()+"] from result cache");
+					sendStats(0);
+					return cached;
+				}
+				generation = resultCache.getGeneration();
+			}
 			SearchResults res = search(iid, searchterm, offset, limit, iwoffset, iwlimit, namespaces, what.equals("explain"), exactCase, false, searchOnly, searchAll);
+			if(resultCache != null && res.isSuccess())
+				resultCache.put(key,res,getDependentDBs(iid,searchterm,namespaces),generation);
 			if(!res.isSuccess()){
 				// note failed search
 				if(SearchServer.stats != null)
@@ -598,6 +645,172 @@ public class SearchEngine {
 		
 	}
 	
+	/** Rewrite query on a physical part of a split index, and get its term stats (see {@link PartStats}) */
+	public PartStats getPartStats(IndexId iid, Query query, Term[] extraTerms) throws IOException {
+		return PartStats.make(cache.getLocalSearcher(iid),query,extraTerms);
+	}
+	
+	/** 
+	 * Search a physical part of a split index using global term stats from the request, 
+	 * return keys and scores of top hits 
+	 */
+	public HighlightPack searchPartWithStats(IndexId iid, PartSearchRequest r){
+		try {
+			long searchStart = System.currentTimeMillis();
+			IndexSearcherMul searcher = cache.getLocalSearcher(iid);
+			Weight w = MultiSearcherBase.createWeight(r.query,r.terms,r.dfs,r.maxDoc,searcher.getSimilarity());
+			TopDocs hits = searcher.search(w,r.filter==null? null : r.filter.getFilterOrNull(),Math.min(r.limit,maxoffset));
+			SearchResults res = new SearchResults();
+			res.setSuccess(true);
+			res.setNumHits(hits.totalHits);
+			logRequest(iid,"search",r.searchterm,r.query,hits.totalHits,searchStart,searcher);
+			// fetch keys of all top hits, the caller will pick the ones it needs 
+			int[] docids = new int[hits.scoreDocs.length];
+			for(int i=0;i<docids.length;i++)
+				docids[i] = hits.scoreDocs[i].doc;
+			Document[] docs = searcher.docs(docids);
+			for(int i=0;i<docs.length;i++){
+				ResultSet rs = new ResultSet(transformScore(hits.scoreDocs[i].score),docs[i].get("namespace"),docs[i].get("title"));
+				if(r.explain)
+					rs.setExplanation(searcher.explain(w,docids[i]));
+				res.addResult(rs);
+			}
+			return new HighlightPack(res);
+		} catch (IOException e) {
+			e.printStackTrace();
+			HighlightPack pack = new HighlightPack(new SearchResults());
+			pack.res.setErrorMsg("Internal error in SearchEngine: "+e.getMessage());
+			log.error("Internal error in SearchEngine while trying to search part "+iid+": "+e.getMessage(),e);
+			return pack;
+		}
+	}
+	
+	/** A hit returned from one of the parts in searchCombined() */
+	protected static class PartHit {
+		ResultSet rs;
+		int part, rank;
+		PartHit(ResultSet rs, int part, int rank){
+			this.rs = rs;
+			this.part = part;
+			this.rank = rank;
+		}
+	}
+	
+	/** Call to a part of a split index in searchCombined() */
+	protected interface PartCall<T> {
+		public T call(IndexId piid, String host) throws Exception;
+	}
+	
+	/** 
+	 * Make call to all parts (dbrole -> host) at once, with hedging, and
+	 * wait for the results until deadline (0 for no limit)
+	 * @return results in order of parts  
+	 */
+	protected <T> ArrayList<T> callParts(ArrayList<Entry<String,String>> parts, final PartCall<T> partCall, long deadline) throws IOException {
+		ArrayList<Future<T>> futures = new ArrayList<Future<T>>();
+		for(Entry<String,String> e : parts){
+			final IndexId piid = IndexId.get(e.getKey());
+			final String host = e.getValue();
+			futures.add(cache.getSearchExecutor().submit(new Callable<T>(){
+				public T call() throws Exception {
+					return HedgedRequest.invoke(piid,host,new HedgedRequest.HostCall<T>(){
+						public T call(String h) throws Exception {
+							return partCall.call(piid,h);
+						}
+					});
+				}
+			}));
+		}
+		ArrayList<T> ret = new ArrayList<T>();
+		try{
+			for(Future<T> f : futures){
+				if(deadline > 0)
+					ret.add(f.get(Math.max(deadline-System.currentTimeMillis(),0),TimeUnit.MILLISECONDS));
+				else
+					ret.add(f.get());
+			}
+		} catch(TimeoutException e){
+			throw new IOException("Time limit exceeded");
+		} catch(InterruptedException e){
+			throw new IOException("Interrupted while searching parts: "+e.getMessage());
+		} catch(ExecutionException e){
+			throw new IOException("Error searching parts: "+e.getCause().getMessage());
+		} finally{
+			for(Future<T> f : futures)
+				f.cancel(true);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Search all parts of a split index in two network round trips, each to all
+	 * parts at once: every part first rewrites the query and returns its term stats
+	 * (getPartStats), and then searches with the merged global stats, returning keys
+	 * and scores of its top hits (searchPartWithStats). After the merge, only the 
+	 * hits in the offset..offset+limit window are highlighted, on their highlight parts.  
+	 */
+	protected SearchResults searchCombined(IndexId iid, WikiSearcher searcher, String searchterm, final Query q, FilterWrapper nsfw, 
+			int offset, int limit, boolean explain, WikiQueryParser parser, boolean exactCase, boolean highlight, long searchStart) throws IOException {
+		final Term[] hlTerms = highlight? parser.getHighlightTerms() : null;
+		HashMap<String,String> hosts = searcher.getAllHosts();
+		ArrayList<Entry<String,String>> parts = new ArrayList<Entry<String,String>>(hosts.entrySet());
+		int timeout = iid.getParallelSearchTimeout();
+		long deadline = timeout > 0? System.currentTimeMillis() + timeout : 0;
+		
+		// round one: rewritten query, and stats of query and highlight terms 
+		PartStats stats = PartStats.merge(callParts(parts,new PartCall<PartStats>(){
+			public PartStats call(IndexId piid, String host) throws Exception {
+				return new RMIMessengerClient().getPartStats(piid,q,hlTerms,host);
+			}
+		},deadline));
+		
+		// round two: search all parts with global stats
+		final PartSearchRequest request = new PartSearchRequest(searchterm,nsfw,offset+limit,explain,stats);
+		ArrayList<HighlightPack> packs = callParts(parts,new PartCall<HighlightPack>(){
+			public HighlightPack call(IndexId piid, String host) throws Exception {
+				return new RMIMessengerClient().searchPartWithStats(piid,request,host);
+			}
+		},deadline);
+		ArrayList<PartHit> hits = new ArrayList<PartHit>();
+		int numHits = 0;
+		for(int i=0;i<packs.size();i++){
+			HighlightPack pack = packs.get(i);
+			if(!pack.res.isSuccess())
+				return pack.res;
+			numHits += pack.res.getNumHits();
+			int rank = 0;
+			for(ResultSet rs : pack.res.getResults())
+				hits.add(new PartHit(rs,i,rank++));
+		}
+		// merge, same order as in a multi searcher
+		Collections.sort(hits,new Comparator<PartHit>(){
+			public int compare(PartHit o1, PartHit o2) {
+				if(o1.rs.score != o2.rs.score)
+					return o1.rs.score > o2.rs.score? -1 : 1;
+				if(o1.part != o2.part)
+					return o1.part - o2.part;
+				return o1.rank - o2.rank;
+			}
+		});
+		SearchResults res = new SearchResults();
+		res.setSuccess(true);
+		res.setNumHits(numHits);
+		for(int i=offset; i<limit+offset && i<maxoffset && i<hits.size(); i++)
+			res.addResult(hits.get(i).rs);
+		logRequest(iid,"search",searchterm,q,numHits,searchStart,searcher);
+		res.addInfo("search",formatHosts(hosts.values()));
+		
+		// highlight only the returned hits
+		if(hlTerms != null)
+			highlight(iid,q,parser.getWordsClean(),hlTerms,stats.getDfs(hlTerms),stats.maxDoc,res,exactCase,null,parser.hasPhrases(),false,null);
+		return res;
+	}
+	
+	/** If searchCombined() can be used with this searcher */
+	protected boolean useCombinedSearch(WikiSearcher searcher, IndexId commonsWiki){
+		return combinedSearch && commonsWiki == null && searcher.isMultiPart();
+	}
+	
 	/**
 	 * Search on iid, with query searchterm. View results from offset to offset+limit, using
 	 * the default namespaces filter
@@ -697,9 +910,18 @@ public class SearchEngine {
 							// searchPart() can fail with:
 							// NullPointerException at org.apache.lucene.search.Searcher.createWeight
 							//
-							q = parseQuery( searchterm, parser, iid, raw, nsfw, searchAll, wildcards);
-							RMIMessengerClient messenger = new RMIMessengerClient();
-							pack = messenger.searchPart(piid,searchterm,q,nsfw,offset,limit,explain,host);
+							final Query pq = parseQuery( searchterm, parser, iid, raw, nsfw, searchAll, wildcards);
+							final String fsearchterm = searchterm;
+							final FilterWrapper fnsfw = nsfw;
+							final int foffset = offset, flimit = limit;
+							final boolean fexplain = explain;
+							final IndexId fpiid = piid;
+							q = pq;
+							pack = HedgedRequest.invoke(piid,host,new HedgedRequest.HostCall<HighlightPack>(){
+								public HighlightPack call(String h) throws Exception {
+									return new RMIMessengerClient().searchPart(fpiid,fsearchterm,pq,fnsfw,foffset,flimit,fexplain,h);
+								}
+							});
 						} catch (Exception e) {
 							res = new SearchResults();
 							e.printStackTrace();
@@ -748,16 +970,25 @@ public class SearchEngine {
 				// can fail with "RuntimeException: Trying to extract field from zero-length list of terms"
 				q = parseQuery(searchterm,parser,iid,raw,nsfw,searchAll,wildcards);
 								
-				// can fail with "NullPointerException at org.apache.lucene.search.MultiSearcherBase.rewrite"
-				hits = searcher.search(q,nsfw.getFilterOrNull(),offset+limit);
-
-				res = makeSearchResults(searcher,hits,offset,limit,iid,searchterm,q,searchStart,explain);
-				res.addInfo("search",formatHosts(searcher.getAllHosts().values()));
-				if(!searchOnly){
-					highlight(iid,q,parser.getWordsClean(),searcher,parser.getHighlightTerms(),res,exactCase,parser.hasPhrases(),false,commonsWiki);
+				if(useCombinedSearch(searcher,commonsWiki)){
+					res = searchCombined(iid,searcher,searchterm,q,nsfw,offset,limit,explain,parser,exactCase,!searchOnly,searchStart);
 					if ( ! res.isSuccess() ) {
 						return res;
 					}
+				} else{
+					// can fail with "NullPointerException at org.apache.lucene.search.MultiSearcherBase.rewrite"
+					hits = searcher.search(q,nsfw.getFilterOrNull(),offset+limit);
+
+					res = makeSearchResults(searcher,hits,offset,limit,iid,searchterm,q,searchStart,explain);
+					res.addInfo("search",formatHosts(searcher.getAllHosts().values()));
+					if(!searchOnly){
+						highlight(iid,q,parser.getWordsClean(),searcher,parser.getHighlightTerms(),res,exactCase,parser.hasPhrases(),false,commonsWiki);
+						if ( ! res.isSuccess() ) {
+							return res;
+						}
+					}
+				}
+				if(!searchOnly){
 					fetchTitles(res,searchterm,nsfw,iid,parser,offset,iwoffset,iwlimit,explain);
 					if ( ! res.isSuccess() ) {
 						return res;
@@ -1142,13 +1373,7 @@ public class SearchEngine {
 					hosts.add(host);
 				}
 				results.putAll(rs.highlighted);
-				res.getPhrases().addAll(rs.phrases);
-				res.getFoundInContext().addAll(rs.foundInContext);
-				if(rs.foundAllInTitle && words.size()>1)
-					res.setFoundAllInTitle(true);
-				if(rs.foundAllInAltTitle && words.size()>1)
-					res.setFoundAllInAltTitle(true);
-				res.getFoundInTitles().addAll(rs.foundInTitles);
+				addHighlightInfo(res,rs,words);
 			}
 		}
 		res.addToFirstHitRank(res.getNumHits());
@@ -1159,6 +1384,28 @@ public class SearchEngine {
 		res.addInfo("highlight",formatHosts(hosts));
 	}
 	
+	/** Add info gathered during highlighting (used for spell-checking) to results */
+	protected void addHighlightInfo(SearchResults res, Highlight.ResultSet rs, ArrayList<String> words){
+		res.getPhrases().addAll(rs.phrases);
+		res.getFoundInContext().addAll(rs.foundInContext);
+		if(rs.foundAllInTitle && words.size()>1)
+			res.setFoundAllInTitle(true);
+		if(rs.foundAllInAltTitle && words.size()>1)
+			res.setFoundAllInAltTitle(true);
+		res.getFoundInTitles().addAll(rs.foundInTitles);
+	}
+	
+	/** Add highlighting info from results of another part */
+	protected void addHighlightInfo(SearchResults res, SearchResults part){
+		res.getPhrases().addAll(part.getPhrases());
+		res.getFoundInContext().addAll(part.getFoundInContext());
+		if(part.isFoundAllInTitle())
+			res.setFoundAllInTitle(true);
+		if(part.isFoundAllInAltTitle())
+			res.setFoundAllInAltTitle(true);
+		res.getFoundInTitles().addAll(part.getFoundInTitles());
+	}
+	
 	/** 
 	 * Ugly hack to resolve 100:Something namespaces into proper prefixed namespaces
 	 * This is needed since MediaWiki cannot handle interwiki namespace numerals  
@@ -1205,6 +1452,10 @@ public class SearchEngine {
 		return Math.min(Math.min(i1,i2),i3);
 	}
 	
+	public void setRecordQueries(boolean recordQueries){
+		this.recordQueries = recordQueries;
+	}
+	
 	protected void sendStats(long delta){
 		boolean succ = delta < 10000; // we queries taking more than 10s as bad
 		if(SearchServer.stats != null)
@@ -1214,6 +1465,8 @@ public class SearchEngine {
 	protected void logRequest(IndexId iid, String what, String searchterm, Query query, int numhits, long start, Searchable searcher) {
 		long delta = System.currentTimeMillis() - start;
 		sendStats(delta);
+		if(what.equals("search") && recordQueries)
+			QueryLog.record(iid,searchterm);
 		log.info(MessageFormat.format("{0} {1}: query=[{2}] parsed=[{3}] hit=[{4}] in {5}ms using {6}",
 			new Object[] {what, iid.toString(), searchterm, query==null? "" : query.toString(), new Integer(numhits), new Long(delta), searcher.toString()}));
 	}
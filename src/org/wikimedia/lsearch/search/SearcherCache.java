@@ -15,10 +15,21 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexReader.FieldOption;
+import org.apache.lucene.index.SegmentPrefix;
 import org.apache.lucene.search.SearchableMul;
 import org.apache.lucene.store.RAMDirectory;
 import org.wikimedia.lsearch.beans.SearchHost;
@@ -27,6 +38,8 @@ import org.wikimedia.lsearch.config.GlobalConfiguration;
 import org.wikimedia.lsearch.config.IndexId;
 import org.wikimedia.lsearch.config.IndexRegistry;
 import org.wikimedia.lsearch.index.WikiSimilarity;
+import org.wikimedia.lsearch.search.AggregateMetaField.AggregateMetaFieldSource;
+import org.wikimedia.lsearch.search.ArticleMeta.ArticleMetaSource;
 import org.wikimedia.lsearch.interoperability.RMIMessengerClient;
 import org.wikimedia.lsearch.interoperability.RMIServer;
 import org.wikimedia.lsearch.interoperability.CustomSocketFactory;
@@ -35,41 +48,28 @@ import org.wikimedia.lsearch.interoperability.CustomSocketFactory;
 public class SearcherCache {
 	protected static Logger log = Logger.getLogger(SearcherCache.class);
 	
-	static class DeferredClose extends Thread {
-		long interval;
-		IndexSearcherMul s;
-		public DeferredClose(IndexSearcherMul s, int interval){
-			this.s=s;
-			this.interval = interval;
-		}
-		@Override
-		public void run() {
-			try {
-				Thread.sleep(interval);
-			} catch (InterruptedException e) {
-			}
-			try {
-				log.debug("Closing searchable "+s);
-				// invalidate various caches!
-				CachedFilter.invalideAllFilterCache(s.getIndexReader());
-				AggregateMetaField.invalidateCache(s.getIndexReader());
-				ArticleMeta.invalidateCache(s.getIndexReader());
-				s.close();				
-			} catch (IOException e) {
-				e.printStackTrace();
-				log.warn("I/O error closing searchables "+s+" : "+e.getMessage(),e);
-			}
-		}		
-	}	
-	
 	/** Holds a number of index searchers, for multiprocessor workstations */
 	public static class SearcherPool {
 		IndexSearcherMul searchers[];
 		IndexId iid;
-		int index = 0;
+		AtomicInteger index = new AtomicInteger(0);
 		static Configuration config = null;
 		
 		SearcherPool(IndexId iid, String path, int poolsize) throws IOException {
+			this(iid,path,poolsize,null);
+		}
+		
+		/** Pool of already opened searchers */
+		SearcherPool(IndexId iid, IndexSearcherMul[] searchers){
+			this.iid = iid;
+			this.searchers = searchers;
+		}
+		
+		/** 
+		 * Open pool for a new version of index, with meta caches of unchanged 
+		 * leading segments taken from the previous version (if not null)
+		 */
+		SearcherPool(IndexId iid, String path, int poolsize, SearcherPool previous) throws IOException {
 			this.iid = iid;
 			searchers = new IndexSearcherMul[poolsize];
 			if(config == null)
@@ -77,9 +77,106 @@ public class SearcherCache {
 			RAMDirectory dir = null;
 			if(config.getBoolean("Search","ramdirectory"))
 				dir = new RAMDirectory(path);
-			for(int i=0;i<poolsize;i++){
-				searchers[i] = open(iid, path, dir);
+			searchers[0] = open(iid, path, dir);
+			boolean shared = config.getBoolean("SearcherPool","sharedReader");
+			for(int i=1;i<poolsize;i++){
+				if(shared){
+					// searchers[0] owns and closes the reader
+					searchers[i] = new IndexSearcherMul(searchers[0]);
+					searchers[i].setSimilarity(new WikiSimilarity());
+				} else
+					searchers[i] = open(iid, path, dir);
+			}
+			cacheMeta(iid, path, previous);
+		}
+		
+		/** Preload meta caches, shared by all searchers in the pool */
+		private void cacheMeta(IndexId iid, String path, SearcherPool previous) throws IOException {
+			if(!MetaSidecar.hasMeta(iid))
+				return;
+			try{
+				IndexReader reader = searchers[0].getIndexReader();
+				// use precomputed values from the snapshot if available
+				if(MetaSidecar.load(reader,iid,path))
+					log.info("Loaded meta sidecar for "+iid);
+				ArrayList<CacheBuilder> builders = new ArrayList<CacheBuilder>();
+				@SuppressWarnings("rawtypes")
+				Collection fields = reader.getFieldNames(FieldOption.ALL);
+				for(Object fieldObj : fields){
+					String field = (String)fieldObj;
+					if(field.endsWith("_meta")){
+						String metaname = field.substring(0,field.lastIndexOf('_'));
+						builders.add( AggregateMetaField.getCacherBuilder(reader,metaname) );
+					}
+				}
+				builders.add( ArticleMeta.getCacherBuilder(reader,iid.getNamespacesWithSubpages()) );
+				while(builders.remove(null)); // remove null builders
+				if(builders.size() > 0){
+					long start = System.currentTimeMillis();
+					IndexSearcherMul old = (previous != null)? previous.searchers[0] : null;
+					if(old != null && !old.acquire())
+						old = null; // already closed
+					try{
+						int startDoc = 0;
+						if(old != null)
+							startDoc = seedMeta(builders,old.getIndexReader(),reader);
+						log.info("Caching meta fields for "+iid+" from doc "+startDoc+" ... ");
+						ArrayList<IndexReader> readers = new ArrayList<IndexReader>();
+						for(IndexSearcherMul s : searchers){
+							if(!readers.contains(s.getIndexReader()))
+								readers.add(s.getIndexReader());
+						}
+						MetaCacher.cache(readers,builders,config.getInt("SearcherPool","cacheThreads",Runtime.getRuntime().availableProcessors()),startDoc);
+					} finally{
+						if(old != null)
+							old.release();
+					}
+					log.info("Finished caching "+iid+" in "+(System.currentTimeMillis()-start)+" ms");
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				// tell registry this is not a good index
+				IndexRegistry.getInstance().invalidateCurrent(iid);
+				log.error("I/O Error caching meta fields for index at path "+iid.getCanonicalSearchPath()+" : "+e.getMessage(),e);
+				throw e;
+			}
+		}
+		
+		/**
+		 * Seed builders with meta values of the leading segments that are
+		 * unchanged since the old version of the index
+		 * 
+		 * @return number of seeded docs
+		 */
+		private int seedMeta(ArrayList<CacheBuilder> builders, IndexReader oldReader, IndexReader reader) throws IOException {
+			int docs = SegmentPrefix.getUnchangedDocs(oldReader,reader);
+			if(docs == 0)
+				return 0;
+			// all builders need previous values to skip the docs
+			ArrayList<Object> seeds = new ArrayList<Object>();
+			for(CacheBuilder b : builders){
+				Object seed = null;
+				if(b instanceof AggregateMetaFieldSource){
+					String field = ((AggregateMetaFieldSource)b).field;
+					seed = AggregateMetaField.getFinishedSource(oldReader,field.substring(0,field.lastIndexOf('_')));
+				} else if(b instanceof ArticleMetaSource){
+					ArticleMetaSource src = ArticleMeta.getCachedSource(oldReader);
+					if(src != null && src.finishedCaching)
+						seed = src;
+				}
+				if(seed == null)
+					return 0;
+				seeds.add(seed);
+			}
+			for(int i=0;i<builders.size();i++){
+				CacheBuilder b = builders.get(i);
+				if(b instanceof AggregateMetaFieldSource)
+					((AggregateMetaFieldSource)b).setSeed((AggregateMetaFieldSource)seeds.get(i),docs);
+				else
+					((ArticleMetaSource)b).setSeed((ArticleMetaSource)seeds.get(i),docs);
 			}
+			log.info("Reusing meta values of "+docs+" docs in unchanged segments of "+iid);
+			return docs;
 		}
 		
 		private IndexSearcherMul open(IndexId iid, String path, RAMDirectory directory) throws IOException {
@@ -97,40 +194,6 @@ public class SearcherCache {
 					searcher = new IndexSearcherMul(path);
 				searcher.setSimilarity(new WikiSimilarity());
 				
-				// preload meta caches
-				if(iid.isArticleIndex() || iid.isTitlesBySuffix()){
-					IndexReader reader = searcher.getIndexReader();
-					ArrayList<CacheBuilder> builders = new ArrayList<CacheBuilder>();
-					@SuppressWarnings("rawtypes")
-					Collection fields = reader.getFieldNames(FieldOption.ALL);
-					for(Object fieldObj : fields){
-						String field = (String)fieldObj;
-						if(field.endsWith("_meta")){
-							String metaname = field.substring(0,field.lastIndexOf('_'));
-							builders.add( AggregateMetaField.getCacherBuilder(reader,metaname) );
-						}
-					}
-					builders.add( ArticleMeta.getCacherBuilder(reader,iid.getNamespacesWithSubpages()) );
-					while(builders.remove(null)); // remove null builders
-					if(builders.size() > 0){
-						long start = System.currentTimeMillis();
-						log.info("Caching meta fields for "+iid+" ... ");
-						// if cache builders exist, send documents to them
-						for(CacheBuilder b : builders){
-							b.init();
-						}
-						for(int i=0;i<reader.maxDoc();i++){
-							for(CacheBuilder b : builders){
-								if( !reader.isDeleted(i) )
-									b.cache(i,reader.document(i));
-							}
-						}
-						for(CacheBuilder b : builders){
-							b.end();
-						}
-						log.info("Finished caching "+iid+" in "+(System.currentTimeMillis()-start)+" ms");
-					}
-				}
 			} catch (IOException e) {
 				e.printStackTrace();
 				// tell registry this is not a good index
@@ -141,18 +204,50 @@ public class SearcherCache {
 			return searcher;
 		}
 		
-		synchronized IndexSearcherMul get(){
-			if(index >= searchers.length)
-				index = 0;
-			log.debug("Using "+iid+" remote searcher "+index);
-			return searchers[index++];
+		IndexSearcherMul get(){
+			int i = (index.getAndIncrement() & Integer.MAX_VALUE) % searchers.length;
+			log.debug("Using "+iid+" remote searcher "+i);
+			return searchers[i];
 		}		
 		
+		/** If other hosts search this index over RMI */
+		boolean isServedRemotely(){
+			for(String host : iid.getDBSearchHosts()){
+				if(!RMIMessengerClient.isLocal(host))
+					return true;
+			}
+			return false;
+		}
+		
+		/** 
+		 * Drop the pool's references, searchers are closed once queries 
+		 * running on them finish (or after closeTimeout at the latest). 
+		 * Searchers of indexes served to other hosts are kept for closeDelay
+		 * more, until remote hosts switch to the new index, others for 
+		 * localCloseDelay, for local users that don't hold a reference. 
+		 */
 		void close(){
-			for(IndexSearcherMul s : searchers){
-				// deferred close
-				log.debug("Deferred closure of searcher "+s);
-				new DeferredClose(s,15000).start();
+			int closeDelay = isServedRemotely()? config.getInt("SearcherPool","closeDelay",15000) 
+					: config.getInt("SearcherPool","localCloseDelay",5000);
+			int closeTimeout = config.getInt("SearcherPool","closeTimeout",600000);
+			for(final IndexSearcherMul s : searchers){
+				log.debug("Releasing searcher "+s+", in use by "+(s.getRefCount()-1)+" queries");
+				if(closeDelay > 0){
+					getCloser().schedule(new Runnable(){
+						public void run() {
+							s.release();
+						}
+					},closeDelay,TimeUnit.MILLISECONDS);
+				} else
+					s.release();
+				getCloser().schedule(new Runnable(){
+					public void run() {
+						if(!s.isClosed()){
+							log.warn("Closing searcher for "+iid+" still referenced by "+s.getRefCount()+" users");
+							s.forceClose();
+						}
+					}
+				},closeDelay+closeTimeout,TimeUnit.MILLISECONDS);
 			}
 		}
 	}
@@ -177,24 +272,30 @@ public class SearcherCache {
 	public static class RemoteSearcherPool {
 		CachedSearchable searchers[];
 		IndexId iid;
-		int index = 0;
+		AtomicInteger index = new AtomicInteger(0);
+		/** pool generation, used to tell apart cached values from different remote index versions */
+		long generation;
+		
+		protected static long generationCounter = 0;
 		
 		RemoteSearcherPool(IndexId iid, String host, int poolsize) throws IOException, NotBoundException {
 			Registry registry = LocateRegistry.getRegistry(host, 1099,
 					CustomSocketFactory.getInstance());
 			this.iid = iid;
+			synchronized(RemoteSearcherPool.class){
+				this.generation = ++generationCounter;
+			}
 			String name = "RemoteSearchable<"+iid+">";
 			this.searchers = new CachedSearchable[poolsize];
 			for(int i=0;i<poolsize;i++){
-				searchers[i] = new CachedSearchable( (SearchableMul) registry.lookup(name+"$"+i), iid, host );
+				searchers[i] = new CachedSearchable( (SearchableMul) registry.lookup(name+"$"+i), iid, host, generation );
 			}
 		}
 		
-		synchronized CachedSearchable get(){
-			if(index >= searchers.length)
-				index = 0;
-			log.debug("Using "+iid+" searcher "+index);
-			return searchers[index++];
+		CachedSearchable get(){
+			int i = (index.getAndIncrement() & Integer.MAX_VALUE) % searchers.length;
+			log.debug("Using "+iid+" searcher "+i);
+			return searchers[i];
 		}	
 	}
 
@@ -221,9 +322,26 @@ public class SearcherCache {
 	/** dbrole -> hosts - indexes taken out of rotation */
 	protected Hashtable<String,Set<String>> outOfRotation = new Hashtable<String,Set<String>>();
 
+	/** local searchers referenced by the current thread */
+	protected static ThreadLocal<HashSet<IndexSearcherMul>> heldSearchers = new ThreadLocal<HashSet<IndexSearcherMul>>(){
+		protected HashSet<IndexSearcherMul> initialValue() {
+			return new HashSet<IndexSearcherMul>();
+		}
+	};
+	/** nesting of requests in the current thread */
+	protected static ThreadLocal<int[]> requestDepth = new ThreadLocal<int[]>(){
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+	protected static ScheduledExecutorService closer = null;
+
 	/** deployment has been tried at least once for these */
 	protected static Set<String> initialWarmup = Collections.synchronizedSet(new HashSet<String>());
 	
+	/** dbrole -> version of index, changes when updated here or at some remote host */
+	protected static ConcurrentHashMap<String,AtomicLong> indexGenerations = new ConcurrentHashMap<String,AtomicLong>();
+	
 	/** hosts excluded in lsearch.conf - don't use these unless they are the only ones */
 	protected static Set<String> excludedHosts = Collections.synchronizedSet(new HashSet<String>());
 	
@@ -238,6 +356,45 @@ public class SearcherCache {
 	/** If there is local searcher always use that */
 	protected boolean forceLocal = true;
 	
+	/** Bounded pool for concurrent search over index parts */
+	protected ExecutorService searchExecutor = null;
+	
+	/** Max number of threads doing concurrent search over index parts */
+	protected int parallelThreads = 16;
+	
+	/** Doc freqs of terms on remote parts, null if disabled */
+	protected DocFreqCache docFreqCache = null;
+	/** cache of finished search results */
+	protected ResultCache resultCache = null;
+	/** latency and load of remote hosts */
+	protected HostStats hostStats;
+	/** strategy for picking a host to search on */
+	protected HostSelector hostSelector;
+	/** latency percentile after which to send a duplicate request, 0 to disable */
+	protected double hedgePercentile = 0;
+	protected int hedgeMinDelay = 5;
+	protected ExecutorService hedgeExecutor = null;
+	
+	/** 
+	 * Version of index dbrole, changes every time it is updated at this or 
+	 * some remote host. Put it into keys of values cached across queries.  
+	 */
+	public static long getIndexGeneration(String dbrole){
+		AtomicLong gen = indexGenerations.get(dbrole);
+		return gen == null? 0 : gen.get();
+	}
+	
+	/** Mark index iid as updated */
+	protected static void nextIndexGeneration(IndexId iid){
+		AtomicLong gen = indexGenerations.get(iid.toString());
+		if(gen == null){
+			AtomicLong prev = indexGenerations.putIfAbsent(iid.toString(),gen = new AtomicLong(0));
+			if(prev != null)
+				gen = prev;
+		}
+		gen.incrementAndGet();
+	}
+	
 	/**
 	 * If there is a cached local searcher of iid
 	 * 
@@ -333,7 +490,19 @@ public class SearcherCache {
 	 * @return
 	 */
 	public String getRandomHost(IndexId iid){
-		if(iid.isMySearch() && hasLocalSearcher(iid) && forceLocal
+		return getRandomHost(iid,null);
+	}
+	
+	/**
+	 * Get a random host for iid other than exclude (e.g. for
+	 * a duplicate request to another replica)
+	 * 
+	 * @param iid
+	 * @param exclude - host not to return, or null
+	 * @return
+	 */
+	public String getRandomHost(IndexId iid, String exclude){
+		if(iid.isMySearch() && hasLocalSearcher(iid) && forceLocal && !"localhost".equals(exclude)
 				&& !hostsDeploying.containsKey("localhost") && !isOutOfRotation("localhost",iid))
 			return "localhost";
 		if(!initialized.contains(iid.toString()))
@@ -355,16 +524,84 @@ public class SearcherCache {
 			Set<String> takenOut = outOfRotation.get(iid.toString());
 			if(takenOut != null)
 				hosts.removeAll(takenOut);
+			if(exclude != null)
+				hosts.remove(exclude);
 			// no hosts left
 			if(hosts.size() == 0)
 				return null;
-			int num = (int)(Math.random()*hosts.size());
-			for(String host : hosts){
-				if(--num < 0)
-					return host;
-			}
+			return hostSelector.select(iid,new ArrayList<String>(hosts),hostStats);
+		}
+	}
+	
+	/** Get latency and load stats of remote hosts */
+	public HostStats getHostStats(){
+		return hostStats;
+	}
+	
+	/** 
+	 * Latency percentile (e.g. 95) of a host after which a duplicate request
+	 * is sent to another replica, 0 if disabled
+	 */
+	public double getHedgePercentile(){
+		return hedgePercentile;
+	}
+	
+	/** Minimal delay (in ms) before sending a duplicate request */
+	public int getHedgeMinDelay(){
+		return hedgeMinDelay;
+	}
+	
+	/** 
+	 * Get the executor for hedged requests. It's unbounded and separate 
+	 * from the parallel search executor, since hedged requests are 
+	 * made from within parallel search tasks.  
+	 */
+	public synchronized ExecutorService getHedgeExecutor(){
+		if(hedgeExecutor == null){
+			hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory(){
+				int count = 0;
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r,"HedgedRequest-"+(count++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return hedgeExecutor;
+	}
+	
+	/** 
+	 * Get the shared executor for concurrent search over index parts. 
+	 * The pool is bounded, and when it's saturated the part is searched
+	 * in the calling thread.
+	 */
+	public synchronized ExecutorService getSearchExecutor(){
+		if(searchExecutor == null){
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelThreads,parallelThreads,60,TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(parallelThreads*4),
+					new ThreadFactory(){
+						int count = 0;
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r,"ParallelSearch-"+(count++));
+							t.setDaemon(true);
+							return t;
+						}
+					},
+					new ThreadPoolExecutor.CallerRunsPolicy());
+			pool.allowCoreThreadTimeOut(true);
+			searchExecutor = pool;
 		}
-		return null;		
+		return searchExecutor;
+	}
+	
+	/** Get the cache of doc freqs on remote parts, or null if disabled */
+	public DocFreqCache getDocFreqCache(){
+		return docFreqCache;
+	}
+	
+	/** Get the cache of search results, or null if disabled */
+	public ResultCache getResultCache(){
+		return resultCache;
 	}
 	
 	/** Get a remote searchable object from a remote pool */
@@ -381,7 +618,10 @@ public class SearcherCache {
 	
 	/**
 	 * Get {@link IndexSearcherMul} for IndexId from cache, if it not is cached
-	 * new object will be created.
+	 * new object will be created. Within a request (see {@link #beginRequest()})
+	 * the searcher is not closed before the request ends, outside of requests
+	 * it is kept open for SearcherPool.localCloseDelay ms after it is replaced 
+	 * (use {@link #acquireLocalSearcher(IndexId)} for longer use).
 	 * @param iid
 	 * @throws IOException 
 	 */
@@ -393,12 +633,86 @@ public class SearcherCache {
 		return fromLocalCache(iid.toString());
 	}
 	
+	/**
+	 * Get local searcher with a reference held for the caller, for use 
+	 * outside of a request (e.g. from executor threads). The caller must
+	 * {@link IndexSearcherMul#release()} it when done.
+	 */
+	public IndexSearcherMul acquireLocalSearcher(IndexId iid) throws IOException{
+		for(;;){
+			IndexSearcherMul s = getLocalSearcher(iid);
+			if(s == null)
+				throw new IOException("No local searcher for "+iid);
+			if(s.acquire())
+				return s;
+			// pool was replaced and closed meanwhile, try the new one
+		}
+	}
+	
 	/** Get single searcher from local cached pool, or if doesn't exist null */
 	protected IndexSearcherMul fromLocalCache(String key){
-		SearcherPool pool = localCache.get(key);
-		if(pool != null)
-			return pool.get();
-		return null;
+		for(;;){
+			SearcherPool pool = localCache.get(key);
+			if(pool == null)
+				return null;
+			IndexSearcherMul s = pool.get();
+			if(requestDepth.get()[0] == 0){
+				// not in a request, caller doesn't hold a reference
+				if(!s.isClosed())
+					return s;
+			} else if(hold(s))
+				return s;
+			// pool was replaced and closed meanwhile, try the new one
+		}
+	}
+	
+	/** 
+	 * Hold a reference to searcher until the end of the current request
+	 * @return false if searcher is already closed
+	 */
+	protected boolean hold(IndexSearcherMul s){
+		HashSet<IndexSearcherMul> held = heldSearchers.get();
+		if(held.contains(s))
+			return true;
+		if(!s.acquire())
+			return false;
+		held.add(s);
+		return true;
+	}
+	
+	/** 
+	 * Mark the beginning of a request in this thread. All local searchers
+	 * used by this thread are referenced until the matching {@link #endRequest()} 
+	 */
+	public void beginRequest(){
+		requestDepth.get()[0]++;
+	}
+	
+	/** End of request, release local searchers used by it (unless nested) */
+	public void endRequest(){
+		int[] depth = requestDepth.get();
+		if(depth[0] > 0)
+			depth[0]--;
+		if(depth[0] > 0)
+			return;
+		HashSet<IndexSearcherMul> held = heldSearchers.get();
+		for(IndexSearcherMul s : held)
+			s.release();
+		held.clear();
+	}
+	
+	/** Scheduler for releasing retired searchers */
+	protected static synchronized ScheduledExecutorService getCloser(){
+		if(closer == null){
+			closer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r,"SearcherCloser");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return closer;
 	}
 	
 	/**
@@ -416,6 +730,11 @@ public class SearcherCache {
 			if(hostpool != null){
 				hostpool.remove(host);
 			}
+			nextIndexGeneration(iid);
+			if(docFreqCache != null)
+				docFreqCache.invalidate(iid.toString(),host);
+			if(resultCache != null)
+				resultCache.invalidate(iid.getDBname());
 			// init
 			initializeRemote(iid,host);
 		}
@@ -561,6 +880,19 @@ public class SearcherCache {
 	
 	/** Provide new value for the local searcher pool */
 	public void updateLocalSearcherPool(IndexId iid, SearcherPool pool){
+		SearcherPool old = replaceLocalSearcherPool(iid,pool);
+		// finally, close the old searcher pool 
+		if(old != null)
+			old.close();
+	}
+	
+	/**
+	 * Provide new value for the local searcher pool, but leave the old 
+	 * pool open, e.g. until remote searchers are rebound to the new one.
+	 * Close it with {@link SearcherPool#close()}.
+	 * @return old pool or null
+	 */
+	public SearcherPool replaceLocalSearcherPool(IndexId iid, SearcherPool pool){
 		SearcherPool old = localCache.get(iid.toString());
 		// passed null - remove searcher altogether
 		if(pool == null)
@@ -568,9 +900,17 @@ public class SearcherCache {
 		else
 			localCache.put(iid.toString(),pool);
 		
-		// finally, close the old searcher pool 
-		if(old != null)
-			old.close();
+		nextIndexGeneration(iid);
+		if(docFreqCache != null)
+			docFreqCache.invalidate(iid.toString(),null);
+		if(resultCache != null)
+			resultCache.invalidate(iid.getDBname());
+		return old;
+	}
+	
+	/** Get the deployed local searcher pool, or null */
+	protected SearcherPool getCachedPool(IndexId iid){
+		return localCache.get(iid.toString());
 	}
 	
 	/** Get a searcher pool, will create if doesn't exist */
@@ -656,12 +996,53 @@ public class SearcherCache {
 		
 		forceLocal = config.getBoolean("SearcherPool", "forceLocal", true);
 		
+		parallelThreads = config.getInt("SearcherPool", "parallelThreads", 16);
+		
+		int dfCacheSize = config.getInt("SearcherPool", "dfCacheSize", 100000);
+		if(dfCacheSize > 0)
+			docFreqCache = new DocFreqCache(dfCacheSize);
+		
+		int resultCacheSize = config.getInt("Search", "resultCacheSize", 0);
+		int resultCacheMemory = config.getInt("Search", "resultCacheMemory", 64);
+		if(resultCacheSize > 0 && resultCacheMemory > 0)
+			resultCache = new ResultCache(resultCacheSize,resultCacheMemory*1024L*1024L);
+		
+		hostStats = new HostStats(config.getDouble("SearcherPool","latencyAlpha",0.3),
+				config.getInt("SearcherPool","latencyDecay",30000),
+				config.getInt("SearcherPool","failureBackoff",1000),
+				config.getInt("SearcherPool","maxFailureBackoff",60000));
+		hostSelector = makeHostSelector(config.getString("SearcherPool","hostSelector","random"));
+		hedgePercentile = config.getDouble("SearcherPool","hedgePercentile",0);
+		hedgeMinDelay = config.getInt("SearcherPool","hedgeMinDelay",5);
+		
 		if(initialize){
 			initialDeploymentRunning = true;
 			new InitialDeploymentThread().start();
 		}
 	}
 	
+	/** Make host selector from name ("random", "latency") or class name */
+	protected HostSelector makeHostSelector(String name){
+		if(name.equalsIgnoreCase("random"))
+			return new RandomHostSelector();
+		if(name.equalsIgnoreCase("latency"))
+			return new LatencyHostSelector();
+		try{
+			Class<?> c = Class.forName(name);
+			if(!HostSelector.class.isAssignableFrom(c)){
+				log.error("SearcherPool.hostSelector="+name+" doesn't implement HostSelector, using random");
+				return new RandomHostSelector();
+			}
+			return (HostSelector) c.getDeclaredConstructor().newInstance();
+		} catch(ClassNotFoundException e){
+			log.error("SearcherPool.hostSelector="+name+" is neither random, latency nor a known class, using random");
+			return new RandomHostSelector();
+		} catch(Exception e){
+			log.error("Cannot make host selector "+name+", using random : "+e.getMessage(),e);
+			return new RandomHostSelector();
+		}
+	}
+	
 	public int getSearchPoolSize(IndexId iid) {
 		Integer special = specialPoolSizes.get(iid.toString());
 		if(special != null)
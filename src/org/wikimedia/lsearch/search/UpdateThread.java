@@ -19,6 +19,7 @@ import org.wikimedia.lsearch.config.IndexId;
 import org.wikimedia.lsearch.config.IndexRegistry;
 import org.wikimedia.lsearch.interoperability.RMIMessengerClient;
 import org.wikimedia.lsearch.interoperability.RMIServer;
+import org.wikimedia.lsearch.replication.Replicator;
 import org.wikimedia.lsearch.util.Command;
 import org.wikimedia.lsearch.util.FSUtils;
 
@@ -97,6 +98,10 @@ public class UpdateThread extends Thread {
 	protected boolean forceLocalDeployment = false;
 	/** If old update/ dirs should be deleted once the new index is deployed */
 	protected boolean deleteOldUpdates = false;
+	/** If meta caches of unchanged segments should be taken from the deployed index */
+	protected boolean incrementalUpdate = true;
+	/** If snapshots should be fetched with {@link Replicator} instead of rsync */
+	protected boolean nativeReplication = false;
 	/** when indexes are updated, which indexes to take out of rotation */
 	protected Set<String> forceRedirect = Collections.synchronizedSet(new HashSet<String>());
 	
@@ -245,7 +250,7 @@ public class UpdateThread extends Thread {
 					}
 				}
 			}
-			// if local, use cp -lr instead of rsync
+			// if local, hard-link instead of rsync
 			if(global.isLocalhost(iid.getIndexHost())){
 				FSUtils.createHardLinkRecursive(
 						iid.getSnapshotPath()+sep+li.timestamp,
@@ -258,12 +263,16 @@ public class UpdateThread extends Thread {
 							ind.getCanonicalPath(),
 							updatepath);					
 				}
-				long startTime = System.currentTimeMillis();
-				// rsync
-				log.info("Starting rsync of "+iid);
-				String snapshotpath = iid.getRsyncSnapshotPath()+"/"+li.timestamp;
-				Command.exec(rsyncPath+" "+rsyncParams+" -W --delete -u -t -r rsync://"+iid.getIndexHost()+snapshotpath+" "+iid.getUpdatePath());
-				log.info("Finished rsync of "+iid+" in "+(System.currentTimeMillis()-startTime)+" ms");
+				if(nativeReplication){
+					Replicator.forHost(iid.getIndexHost()).replicate(iid.toString(),li.timestamp,new File(updatepath));
+				} else{
+					long startTime = System.currentTimeMillis();
+					// rsync
+					log.info("Starting rsync of "+iid);
+					String snapshotpath = iid.getRsyncSnapshotPath()+"/"+li.timestamp;
+					Command.exec(rsyncPath+" "+rsyncParams+" -W --delete -u -t -r rsync://"+iid.getIndexHost()+snapshotpath+" "+iid.getUpdatePath());
+					log.info("Finished rsync of "+iid+" in "+(System.currentTimeMillis()-startTime)+" ms");
+				}
 
 			}
 
@@ -273,21 +282,27 @@ public class UpdateThread extends Thread {
 				searchpath.mkdir();
 
 			// check if updated index is a valid one (throws an exception on error)
-			SearcherCache.SearcherPool pool = new SearcherCache.SearcherPool(iid,li.path,cache.getSearchPoolSize(iid)); 
+			SearcherCache.SearcherPool previous = incrementalUpdate? cache.getCachedPool(iid) : null;
+			SearcherCache.SearcherPool pool = new SearcherCache.SearcherPool(iid,li.path,cache.getSearchPoolSize(iid),previous); 
 			
-			// refresh the symlink
-			FSUtils.delete(iid.getSearchPath());
+			// refresh the symlink (atomically replaced)
 			FSUtils.createSymLink(updatepath,iid.getSearchPath());
 			
 			// update registry, cache, rmi object
 			registry.refreshUpdates(iid);
-			warmupAndDeploy(pool,li,type);
-			registry.refreshCurrent(li);
-			if(type != RebuildType.STANDALONE)
-				RMIServer.rebind(iid);
-			
-			// notify all remote searchers of change
-			messenger.notifyIndexUpdated(iid,iid.getDBSearchHosts());
+			SearcherCache.SearcherPool old = warmupAndDeploy(pool,li,type);
+			try{
+				registry.refreshCurrent(li);
+				if(type != RebuildType.STANDALONE)
+					RMIServer.rebind(iid);
+
+				// notify all remote searchers of change
+				messenger.notifyIndexUpdated(iid,iid.getDBSearchHosts());
+			} finally{
+				// only now nobody is routed to the old searchers
+				if(old != null)
+					old.close();
+			}
 			
 			// cleanup old index updates if neccessary
 			if(deleteOldUpdates && myli != null){
@@ -328,8 +343,11 @@ public class UpdateThread extends Thread {
 		}
 	}
 	
-	/** Update searcher cache after warming up searchers */
-	protected void warmupAndDeploy(SearcherCache.SearcherPool pool, LocalIndex li, RebuildType type){
+	/** 
+	 * Update searcher cache after warming up searchers 
+	 * @return the replaced pool (still open) or null
+	 */
+	protected SearcherCache.SearcherPool warmupAndDeploy(SearcherCache.SearcherPool pool, LocalIndex li, RebuildType type){
 		boolean reroute = false;
 		try{
 			// see if we can go ahead and deploy the searcher or should we wait
@@ -399,26 +417,21 @@ public class UpdateThread extends Thread {
 			}
 			
 			// do some typical queries to preload some lucene caches, pages into memory, etc..
-			for(IndexSearcherMul is : pool.searchers){
-				try{
-					// do one to trigger caching
-					//Warmup.warmupIndexSearcher(is,li.iid,true,1);
-					//Warmup.waitForAggregate(pool.searchers);
-					// do proper warmup
-					Warmup.warmupIndexSearcher(is,li.iid,false,null);
-				} catch(IOException e){
-					e.printStackTrace();
-					log.warn("Error warmup up "+li+" : "+e.getMessage(),e);
-				}
+			try{
+				Warmup.warmupPool(pool.searchers,li.iid,false,null);
+			} catch(IOException e){
+				e.printStackTrace();
+				log.warn("Error warmup up "+li+" : "+e.getMessage(),e);
 			}
 			
 			
 			// add to cache
-			cache.updateLocalSearcherPool(li.iid,pool);
+			SearcherCache.SearcherPool old = cache.replaceLocalSearcherPool(li.iid,pool);
 			if( reroute ){
 				log.info("Deployed "+iid);
 				beingDeployed.remove(iid.toString());
 			}
+			return old;
 		} finally{
 			// be sure stuff is not stuck as being deployed
 			beingDeployed.remove(li.iid.toString());			
@@ -440,6 +453,8 @@ public class UpdateThread extends Thread {
 		rsyncPath = config.getString("Rsync","path","/usr/bin/rsync");
 		rsyncParams = config.getString("Rsync","params","");
 		forceLocalDeployment = config.getBoolean("Search","forceLocalDeployment");
+		incrementalUpdate = config.getBoolean("Search","incrementalUpdate",true);
+		nativeReplication = config.getString("Search","replication","rsync").equalsIgnoreCase("native");
 		String[] forceRedirectValue = config.getArray("Search","forceRedirect");
 		if(forceRedirectValue != null){
 			for(String indexpart : forceRedirectValue){
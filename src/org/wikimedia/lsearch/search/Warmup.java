@@ -6,6 +6,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.log4j.Logger;
@@ -24,6 +25,7 @@ import org.wikimedia.lsearch.analyzers.WikiQueryParser;
 import org.wikimedia.lsearch.benchmark.SampleTerms;
 import org.wikimedia.lsearch.benchmark.Terms;
 import org.wikimedia.lsearch.benchmark.WordTerms;
+import org.wikimedia.lsearch.config.Configuration;
 import org.wikimedia.lsearch.config.GlobalConfiguration;
 import org.wikimedia.lsearch.config.IndexId;
 import org.wikimedia.lsearch.spell.Suggest;
@@ -40,6 +42,10 @@ public class Warmup {
 	protected static GlobalConfiguration global = null;
 	protected static Hashtable<String,Terms> langTerms = new Hashtable<String,Terms>();
 	protected static Set<String> beingWarmedup = Collections.synchronizedSet(new HashSet<String>());
+	/** number of queries over which replay latency is averaged */
+	protected static final int REPLAY_BATCH = 50;
+	/** number of consecutive stable batches for latency to be converged */
+	protected static final int REPLAY_STABLE = 3;
 	
 	public static boolean isBeingWarmedup(IndexId iid){
 		return beingWarmedup.contains(iid.toString());
@@ -95,9 +101,35 @@ public class Warmup {
 		}
 	}
 	
-	public static void warmupPool(IndexSearcherMul[] pool, IndexId iid, boolean useDelay, Integer useCount) throws IOException {
-		for(IndexSearcherMul is : pool)
-			warmupIndexSearcher(is,iid,useDelay,useCount);
+	/** Warm up searchers of the pool concurrently (searchers sharing a reader only once) */
+	public static void warmupPool(IndexSearcherMul[] pool, final IndexId iid, final boolean useDelay, final Integer useCount) throws IOException {
+		HashSet<IndexReader> readers = new HashSet<IndexReader>();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		final AtomicReference<IOException> error = new AtomicReference<IOException>();
+		for(final IndexSearcherMul is : pool){
+			if(!readers.add(is.getIndexReader()))
+				continue;
+			Thread t = new Thread("Warmup-"+iid+"-"+threads.size()){
+				public void run() {
+					try {
+						warmupIndexSearcher(is,iid,useDelay,useCount);
+					} catch (IOException e) {
+						error.compareAndSet(null,e);
+					}
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+		for(Thread t : threads){
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while warming up "+iid);
+			}
+		}
+		if(error.get() != null)
+			throw error.get();
 	}
 	
 	/** Runs some typical queries on a local index searcher to preload caches, pages into memory, etc .. */
@@ -180,6 +212,7 @@ public class Warmup {
 		
 		ArrayList<SearchableMul> searchers = new ArrayList<SearchableMul>();
 		SearcherCache cache = SearcherCache.getInstance();
+		cache.beginRequest(); // keep other parts open while warming up
 		for(IndexId piid : iid.getDB().getPhysicalIndexIds()){
 			if(piid == iid)
 				searchers.add(is);
@@ -199,14 +232,20 @@ public class Warmup {
 			else
 				searcher = new MultiSearcherMul(searchers.toArray(new SearchableMul[]{}));
 			
-			Terms terms = getTermsForLang(lang);
+			Terms terms = QueryLog.getTerms(iid);
+			if(terms != null){
+				replayQueries(searcher,iid,parser,terms,useDelay);
+				return;
+			}
+			terms = getTermsForLang(lang);
 			log.info("Warming up with "+terms.termCount()+" terms");			
+			SearchEngine engine = warmupEngine();
 			for(int i=0; i < count ; i++){
 				String searchterm = terms.next();
 				long start = System.currentTimeMillis();
 				Query q = parser.parse(terms.next());
 				TopDocs hits = searcher.search(q,null,20);
-				new SearchEngine().makeSearchResults((SearchableMul)searcher,hits,0,20,iid,searchterm,q,start,false);				
+				engine.makeSearchResults((SearchableMul)searcher,hits,0,20,iid,searchterm,q,start,false);				
 				if(useDelay){
 					if(i<1000) 
 						Thread.sleep(100);
@@ -220,9 +259,86 @@ public class Warmup {
 		} catch (Exception e) {
 			e.printStackTrace();
 			log.error("Exception during warmup of "+iid+" : "+e.getMessage(),e);
-		}		
+		} finally{
+			cache.endRequest();
+		}
 	}
 
+	/**
+	 * Replay recent real queries until the latency is stable, i.e. the average
+	 * latency of REPLAY_BATCH consecutive queries stays within Warmup.convergence
+	 * of the previous batch for REPLAY_STABLE batches, or until Warmup.replayTime ms run out.
+	 * If latency didn't converge by then, the replay goes on for at most 
+	 * Warmup.replayExtraTime ms more, after which the index is deployed anyway. 
+	 * Queries that fail (e.g. garbage that doesn't parse) are counted and skipped.  
+	 */
+	protected static void replayQueries(Searcher searcher, IndexId iid, WikiQueryParser parser, Terms terms, boolean useDelay) throws Exception {
+		Configuration config = Configuration.open();
+		long budget = config.getInt("Warmup","replayTime",60000);
+		long extraTime = config.getInt("Warmup","replayExtraTime",0);
+		double convergence = config.getDouble("Warmup","convergence",0.1);
+		log.info("Warming up "+iid+" by replaying "+terms.termCount()+" recent queries");
+		long end = System.currentTimeMillis() + budget;
+		boolean extended = false;
+		double prevLatency = -1;
+		int stable = 0, batches = 0, replayed = 0, failed = 0;
+		long batchTime = 0, batchHits = 0;
+		SearchEngine engine = warmupEngine();
+		for(;;){
+			if(System.currentTimeMillis() >= end){
+				if(extended || extraTime <= 0)
+					break;
+				log.info("Latency of "+iid+" didn't converge in "+budget+" ms, replaying for "+extraTime+" ms more");
+				end = System.currentTimeMillis() + extraTime;
+				extended = true;
+			}
+			String searchterm = terms.next();
+			long start = System.currentTimeMillis();
+			try{
+				Query q = parser.parse(searchterm);
+				TopDocs hits = searcher.search(q,null,20);
+				engine.makeSearchResults((SearchableMul)searcher,hits,0,20,iid,searchterm,q,start,false);
+				batchHits += hits.totalHits;
+			} catch(Exception e){
+				if(failed++ == 0)
+					log.warn("Error replaying query ["+searchterm+"] on "+iid+" : "+e.getMessage(),e);
+				if(replayed == 0 && failed >= terms.termCount()){
+					log.warn("All replayed queries failed on "+iid+", stopping warmup");
+					return;
+				}
+				continue;
+			}
+			batchTime += System.currentTimeMillis() - start;
+			replayed++;
+			if(replayed % REPLAY_BATCH == 0){
+				double latency = (double)batchTime / REPLAY_BATCH;
+				batches++;
+				log.info("Warmup replay on "+iid+", batch "+batches+": avg latency "+latency+" ms, avg hits "+(batchHits/REPLAY_BATCH));
+				if(prevLatency >= 0 && Math.abs(latency-prevLatency) <= convergence*Math.max(prevLatency,1))
+					stable++;
+				else
+					stable = 0;
+				if(stable >= REPLAY_STABLE){
+					log.info("Latency of "+iid+" converged to "+latency+" ms after "+replayed+" queries ("+failed+" failed)");
+					return;
+				}
+				prevLatency = latency;
+				batchTime = 0;
+				batchHits = 0;
+			}
+			if(useDelay)
+				Thread.sleep(50);
+		}
+		log.warn("Latency of "+iid+" didn't converge in "+(budget+extraTime)+" ms of warmup ("+replayed+" queries, "+failed+" failed), deploying anyway");
+	}
+	
+	/** Engine for warmup queries, they are not recorded as real queries */
+	protected static SearchEngine warmupEngine(){
+		SearchEngine engine = new SearchEngine();
+		engine.setRecordQueries(false);
+		return engine;
+	}
+	
 	/** Get database of example search terms for language 
 	 * @throws IOException */
 	protected static Terms getTermsForLang(String lang) throws IOException {
@@ -79,7 +79,20 @@ public class WikiSearcher extends Searcher implements SearchableMul {
 		}
 		if(ss.size() == 0)
 			return null;
-		return new MultiSearcherMul(ss.toArray(new SearchableMul[]{}));
+		MultiSearcherMul ms = new MultiSearcherMul(ss.toArray(new SearchableMul[]{}));
+		// fan-out to parts if any of the dbs has it enabled
+		boolean parallel = false;
+		int timeout = 0;
+		for(IndexId iid : iids){
+			IndexId db = iid.getDB();
+			if(db.isParallelSearch()){
+				parallel = true;
+				timeout = Math.max(timeout,db.getParallelSearchTimeout());
+			}
+		}
+		if(parallel)
+			ms.setExecutor(cache.getSearchExecutor(),timeout);
+		return ms;
 		
 	}
 	
@@ -130,6 +143,11 @@ public class WikiSearcher extends Searcher implements SearchableMul {
 		return ret;
 	}
 
+	/** If this searcher is made of multiple (possibly remote) parts */
+	public boolean isMultiPart(){
+		return ms != null;
+	}
+	
 	@Override
 	public void close() throws IOException {
 	}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map.Entry;
@@ -16,8 +17,10 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.WildcardTermEnum;
 import org.wikimedia.lsearch.analyzers.FieldNameFactory;
+import org.wikimedia.lsearch.config.Configuration;
 import org.wikimedia.lsearch.config.IndexId;
 import org.wikimedia.lsearch.interoperability.RMIMessengerClient;
+import org.wikimedia.lsearch.ranks.ObjectCache;
 import org.wikimedia.lsearch.util.StringUtils;
 
 /**
@@ -36,6 +39,9 @@ public class Wildcards {
 	protected HashMap<String,HashSet<String>> wildcardCache = new HashMap<String,HashSet<String>>();
 	/** iid -> host */
 	protected HashMap<String,String> hosts = new HashMap<String,String>();
+	/** terms shared by all queries, iids@generation:case:wildcard -> terms */
+	protected static ObjectCache termCache = null;
+	protected static boolean termCacheInit = false;
 	
 	protected RMIMessengerClient client = null;
 	protected boolean exactCase; 
@@ -88,6 +94,30 @@ public class Wildcards {
 		
 	}
 	
+	/** @return cache of wildcard terms shared by all queries, or null if disabled */
+	protected static synchronized ObjectCache getTermCache(){
+		if(!termCacheInit){
+			termCacheInit = true;
+			int memory = Configuration.open().getInt("Search","termCacheMemory",16);
+			if(memory > 0)
+				termCache = new ObjectCache("wildcards",memory*1024L*1024L);
+		}
+		return termCache;
+	}
+	
+	/** 
+	 * key in the shared cache, the same wildcard can expand differently for 
+	 * other indexes, or other versions of the same index 
+	 */
+	protected String sharedKey(String wildcard){
+		ArrayList<String> iids = new ArrayList<String>();
+		for(String iid : hosts.keySet())
+			iids.add(iid+"@"+SearcherCache.getIndexGeneration(iid));
+		Collections.sort(iids);
+		return iids+":"+exactCase+":"+wildcard;
+	}
+	
+	@SuppressWarnings("unchecked")
 	protected HashSet<String> getCached(String wildcard){
 		if(client == null)
 			client = new RMIMessengerClient();
@@ -97,15 +127,27 @@ public class Wildcards {
 			if(wildcardCache.size() >= MAX_PATTERNS_PER_QUERY){
 				return new HashSet<String>(); // limit number of wildcard queries
 			}
-			terms = new HashSet<String>();		
+			ObjectCache shared = getTermCache();
+			String sharedKey = sharedKey(wildcard);
+			if(shared != null)
+				terms = (HashSet<String>) shared.get(sharedKey);
+			if(terms != null){
+				wildcardCache.put(wildcard,terms);
+				return terms;
+			}
+			terms = new HashSet<String>();
+			boolean complete = true;
 			for(Entry<String,String> e : hosts.entrySet()){
 				try {
 					terms.addAll(client.getTerms(e.getValue(),e.getKey(),wildcard,exactCase));
 				} catch (RemoteException e1) {
 					e1.printStackTrace();
 					log.warn("Cannot get terms for "+wildcard+" on host "+e.getValue()+" for "+e.getKey(),e1);
+					complete = false;
 				}
 			}
+			if(shared != null && complete)
+				shared.put(sharedKey,terms);
 			wildcardCache.put(wildcard,terms);
 			log.info("Using "+terms.size()+" terms for pattern="+wildcard);
 		}
@@ -3,12 +3,18 @@ package org.wikimedia.lsearch.storage;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
+import org.wikimedia.lsearch.analyzers.SplitAnalyzer;
 import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.index.IndexThread;
 import org.wikimedia.lsearch.ranks.StringList;
 import org.wikimedia.lsearch.related.CompactRelated;
 import org.wikimedia.lsearch.related.Related;
@@ -48,6 +54,36 @@ public class RelatedStorage extends LuceneStorage {
 		writer.addDocument(doc);
 	}
 	
+	/**
+	 * Replace related articles of some keys in the index built by the last
+	 * rebuild (in the import path), and make a new snapshot of it
+	 * 
+	 * @return false if there is no such index to update
+	 */
+	public boolean updateRelated(Map<String,? extends Collection<Related>> rel) throws IOException{
+		String importPath = iid.getImportPath();
+		if(!IndexReader.indexExists(importPath))
+			return false;
+		IndexWriter w = new IndexWriter(importPath, new SplitAnalyzer(1,false), false);
+		try{
+			for(Entry<String,? extends Collection<Related>> e : rel.entrySet()){
+				StringList sl = new StringList(Related.convertToStringList(e.getValue()));
+				Document doc = new Document();
+				doc.add(new Field("key",e.getKey(),Field.Store.YES,Field.Index.UN_TOKENIZED));
+				doc.add(new Field("related",sl.toString(),Field.Store.COMPRESS,Field.Index.NO));
+				w.updateDocument(new Term("key",e.getKey()),doc);
+			}
+		} finally{
+			w.close();
+		}
+		if(reader != null){
+			reader.close();
+			reader = null;
+		}
+		IndexThread.makeIndexSnapshot(iid,importPath);
+		return true;
+	}
+	
 	public ArrayList<RelatedTitle> getRelated(String key) throws IOException{
 		ensureRead();
 		
@@ -2,6 +2,19 @@ package org.wikimedia.lsearch.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
 
 /**
  * Various abstraction of file system operations: delete dirs,
@@ -12,35 +25,27 @@ import java.io.IOException;
  *
  */
 public class FSUtils {
+	static Logger log = Logger.getLogger(FSUtils.class);
 	public static final String PATH_SEP = System.getProperty("file.separator");
 	
-	enum OSType { OS_TYPE_UNIX, OS_TYPE_WINXP, OS_TYPE_LINUX };
-
-	protected static String[] hardLinkCommand;
-	protected static String[] hardLinkRecursive = null;
+	/** link files of a tree in parallel if there are at least this many */
+	protected static final int PARALLEL_LINKS = 64;
+	protected static ExecutorService linkPool = null;
 	
-	static {
-		switch(getOSType()) {
-		case OS_TYPE_WINXP:
-			hardLinkCommand = new String[] {"fsutil","hardlink","create", null, null};
-			break;
-		case OS_TYPE_LINUX:
-			hardLinkRecursive = new String[] {"cp", "-lr", null, null};
-		case OS_TYPE_UNIX:
-		default:
-			hardLinkCommand = new String[] {"ln", "-f", null, null};
+	/** Shared pool for linking files of large trees */
+	protected static synchronized ExecutorService getLinkPool(){
+		if(linkPool == null){
+			final AtomicInteger count = new AtomicInteger(0);
+			int threads = Math.min(4,Runtime.getRuntime().availableProcessors());
+			linkPool = Executors.newFixedThreadPool(threads,new ThreadFactory(){
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r,"FSUtils-"+count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
 		}
-	}
-
-	static OSType getOSType() {
-		String osName = System.getProperty("os.name");
-		if (osName.indexOf("Windows") >= 0 && 
-				(osName.indexOf("XP") >= 0 || osName.indexOf("2003") >= 0))
-			return OSType.OS_TYPE_WINXP;
-		else if(osName.indexOf("Linux")>=0)
-			return OSType.OS_TYPE_LINUX;
-		else
-			return OSType.OS_TYPE_UNIX;
+		return linkPool;
 	}
 	
 	public static void createHardLink(String from, String to) throws IOException {
@@ -48,28 +53,30 @@ public class FSUtils {
 	}
 	
 	/**
-	 * Create a hardlink in the filesystem. 
+	 * Create a hardlink in the filesystem, replacing the existing file (like ln -f). 
 	 * 
 	 * @param from
 	 * @param to
 	 * @throws IOException
 	 */
 	public static void createHardLink(File from, File to) throws IOException {
-		String[] command = hardLinkCommand.clone();
-		int len = command.length;
-		command[len-2] = from.getCanonicalPath();
-		command[len-1] = to.getCanonicalPath();
-		Command.exec(command);
+		try{
+			Files.deleteIfExists(to.toPath());
+			Files.createLink(to.toPath(),from.toPath());
+		} catch(UnsupportedOperationException e){
+			throw new IOException("Hard links not supported, cannot link "+from+" to "+to);
+		}
 	}
 	
-	protected static void createHardLinkRecursive(File from, File to) throws IOException {
-		String[] command = hardLinkRecursive.clone();
-		int len = command.length;
-		command[len-2] = from.getCanonicalPath();
-		command[len-1] = to.getCanonicalPath();
-		Command.exec(command);
+	/** If both paths point to the same file, e.g. are hard links of each other */
+	public static boolean isSameFile(File f1, File f2){
+		try{
+			return Files.isSameFile(f1.toPath(),f2.toPath());
+		} catch(IOException e){
+			return false;
+		}
 	}
-
+	
 	/**
 	 * Create hard links recursively if the target is a directory
 	 * 
@@ -82,44 +89,101 @@ public class FSUtils {
 	}
 	
 	/**
-	 * Creates hard link, with additional option if to use cp -lr since it's default
-	 * behavior differs from that of ln -f when the destination is a directory.
+	 * Create hard links recursively: directories of the tree are made, and files
+	 * are linked, in parallel for large trees. If the target directory exists, 
+	 * contents of from are linked into it. 
 	 * 
-	 * In most non-critical application, the you might want to slowish but predicatable version
-	 * 
-	 * @param fast
-	 * @throws IOException
+	 * @param fast - kept for compatibility, there used to be a quicker but less 
+	 *               predictable version using cp -lr
+	 * @throws IOException with the first failure, after all files were attempted
 	 */
 	public static void createHardLinkRecursive(String from, String to, boolean fast) throws IOException {
-		//System.out.println("Hard-linking "+from+" -> "+to);		
 		File file = new File(from);
 		if(!file.exists())
 			throw new IOException("Trying to hardlink nonexisting file "+from);
-		// snsure we can make the target
-		new File(to).getParentFile().mkdirs();
-		if(fast && hardLinkRecursive != null){
-			// do a quick cp -lr if it's supported
-			createHardLinkRecursive(new File(from),new File(to));
-		} else{
-			if(file.isDirectory()){
-				File[] files = file.listFiles();
-				for(File f: files)
-					createHardLinkRecursive(format(new String[]{from,f.getName()}),format(new String[] {to,f.getName()}));
-			} else
-				createHardLink(new File(from),new File(to));
+		// ensure we can make the target
+		File target = new File(to);
+		if(target.getParentFile() != null)
+			target.getParentFile().mkdirs();
+		if(!file.isDirectory()){
+			createHardLink(file,target);
+			return;
+		}
+		ArrayList<File[]> links = new ArrayList<File[]>();
+		collectLinks(file,target,links);
+		if(links.size() < PARALLEL_LINKS){
+			for(File[] link : links)
+				createHardLink(link[0],link[1]);
+		} else
+			createHardLinksParallel(links);
+	}
+	
+	/** Make directories of the target tree, and collect pairs of files to link */
+	protected static void collectLinks(File from, File to, ArrayList<File[]> links) throws IOException {
+		if(!to.isDirectory() && !to.mkdirs())
+			throw new IOException("Cannot make directory "+to);
+		File[] files = from.listFiles();
+		if(files == null)
+			throw new IOException("Cannot list files in "+from);
+		for(File f : files){
+			if(f.isDirectory())
+				collectLinks(f,new File(to,f.getName()),links);
+			else
+				links.add(new File[] { f, new File(to,f.getName()) });
+		}
+	}
+	
+	protected static void createHardLinksParallel(ArrayList<File[]> links) throws IOException {
+		ExecutorService pool = getLinkPool();
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for(final File[] link : links){
+			futures.add(pool.submit(new Callable<Object>(){
+				public Object call() throws Exception {
+					createHardLink(link[0],link[1]);
+					return null;
+				}
+			}));
+		}
+		IOException error = null;
+		int failed = 0;
+		for(Future<Object> f : futures){
+			try{
+				f.get();
+			} catch(ExecutionException e){
+				failed++;
+				Throwable cause = e.getCause();
+				log.warn("Error making hard link: "+cause.getMessage());
+				if(error == null)
+					error = (cause instanceof IOException)? (IOException)cause : new IOException(cause.getMessage());
+			} catch(InterruptedException e){
+				throw new IOException("Interrupted while making hard links");
+			}
+		}
+		if(error != null){
+			IOException e = new IOException("Failed to make "+failed+" of "+links.size()+" hard links, first error: "+error.getMessage());
+			e.initCause(error);
+			throw e;
 		}
 	}
-
 	
 	/**
 	 * Create a soft link between a src and destination
-	 * only on a local disk. HDFS does not support this
+	 * only on a local disk. HDFS does not support this.
+	 * An existing link is atomically replaced.
 	 * @param target the target for symlink 
 	 * @param linkname the symlink
 	 */
 	public static void createSymLink(String target, String linkname) throws IOException{
-		String cmd = "ln -s -f " + target + " " + linkname;
-		Command.exec(cmd);
+		Path link = new File(linkname).toPath();
+		Path tmp = link.resolveSibling(link.getFileName()+".tmp"+System.nanoTime());
+		try{
+			Files.createSymbolicLink(tmp,new File(target).toPath());
+			Files.move(tmp,link,StandardCopyOption.ATOMIC_MOVE,StandardCopyOption.REPLACE_EXISTING);
+		} catch(UnsupportedOperationException e){
+			throw new IOException("Symbolic links not supported, cannot link "+linkname+" to "+target);
+		} finally{
+			Files.deleteIfExists(tmp);
+		}
 	}
 		
 	/**
@@ -0,0 +1,78 @@
+package org.wikimedia.lsearch.util;
+
+/**
+ * Set of non-negative ints, open addressing without boxing.
+ */
+public class IntSet {
+	protected static final int EMPTY = -1;
+	protected int[] table;
+	protected int size = 0;
+	
+	public IntSet(){
+		this(16);
+	}
+	
+	/** @param expected - expected number of elements */
+	public IntSet(int expected){
+		int cap = 16;
+		while(cap < expected * 2)
+			cap <<= 1;
+		table = newTable(cap);
+	}
+	
+	protected static int[] newTable(int cap){
+		int[] t = new int[cap];
+		for(int i=0;i<cap;i++)
+			t[i] = EMPTY;
+		return t;
+	}
+	
+	protected static int slot(int v, int mask){
+		int h = v * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+	
+	/** @return true if v was not already in the set */
+	public boolean add(int v){
+		int mask = table.length-1;
+		int s = slot(v,mask);
+		while(table[s] != EMPTY){
+			if(table[s] == v)
+				return false;
+			s = (s+1) & mask;
+		}
+		table[s] = v;
+		if(++size * 2 > table.length)
+			rehash();
+		return true;
+	}
+	
+	public boolean contains(int v){
+		int mask = table.length-1;
+		int s = slot(v,mask);
+		while(table[s] != EMPTY){
+			if(table[s] == v)
+				return true;
+			s = (s+1) & mask;
+		}
+		return false;
+	}
+	
+	public int size(){
+		return size;
+	}
+	
+	protected void rehash(){
+		int[] old = table;
+		table = newTable(old.length*2);
+		int mask = table.length-1;
+		for(int v : old){
+			if(v != EMPTY){
+				int s = slot(v,mask);
+				while(table[s] != EMPTY)
+					s = (s+1) & mask;
+				table[s] = v;
+			}
+		}
+	}
+}
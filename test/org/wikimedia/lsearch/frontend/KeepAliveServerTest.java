@@ -0,0 +1,74 @@
+package org.wikimedia.lsearch.frontend;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+public class KeepAliveServerTest extends TestCase {
+	/** Echoes the request path */
+	static class EchoHandler extends HttpHandler {
+		public EchoHandler(Socket s) {
+			super(s);
+		}
+		protected void processRequest() {
+			contentType = "text/plain";
+			sendHeaders(200,"OK");
+			sendOutputLine(uri.getPath());
+		}
+	}
+	
+	protected String readResponse(BufferedReader in) throws Exception {
+		assertEquals("HTTP/1.1 200 OK",in.readLine());
+		int len = -1;
+		for(String line = in.readLine(); !line.equals(""); line = in.readLine()){
+			if(line.startsWith("Content-Length:"))
+				len = Integer.parseInt(line.substring(15).trim());
+		}
+		assertTrue(len > 0);
+		char[] body = new char[len];
+		int read = 0;
+		while(read < len)
+			read += in.read(body,read,len-read);
+		return new String(body).trim();
+	}
+	
+	public void testKeepAlive() throws Exception {
+		final KeepAliveServer server = new KeepAliveServer(new InetSocketAddress(InetAddress.getByName(null),0),
+				Executors.newFixedThreadPool(1),10,60000){
+			protected HttpHandler makeHandler(Socket client) {
+				return new EchoHandler(client);
+			}
+		};
+		Thread t = new Thread(){
+			public void run() {
+				server.serve();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		int port = server.server.socket().getLocalPort();
+		
+		// more idle connections than workers
+		Socket idle = new Socket(InetAddress.getByName(null),port);
+		Socket s = new Socket(InetAddress.getByName(null),port);
+		OutputStream out = s.getOutputStream();
+		BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),"utf-8"));
+		out.write("GET /first HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+		out.flush();
+		assertEquals("/first",readResponse(in));
+		// same connection, two pipelined requests
+		out.write("GET /second HTTP/1.1\r\n\r\nGET /third HTTP/1.1\r\n\r\n".getBytes());
+		out.flush();
+		assertEquals("/second",readResponse(in));
+		assertEquals("/third",readResponse(in));
+		assertEquals(2,server.getConnectionCount());
+		s.close();
+		idle.close();
+	}
+}
@@ -0,0 +1,82 @@
+package org.wikimedia.lsearch.importer;
+
+import java.io.File;
+import java.util.Calendar;
+import java.util.Hashtable;
+
+import org.apache.lucene.index.IndexReader;
+import org.mediawiki.importer.NamespaceSet;
+import org.mediawiki.importer.Page;
+import org.mediawiki.importer.Revision;
+import org.mediawiki.importer.Title;
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.ranks.Links;
+import org.wikimedia.lsearch.test.WikiTestCase;
+import org.wikimedia.lsearch.util.FSUtils;
+
+public class DumpImporterTest extends WikiTestCase {
+	protected File base;
+	protected Links links;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		base = File.createTempFile("dumpimporter","test");
+		base.delete();
+		links = Links.createNewInMemory(IndexId.get("enwiki"));
+		for(int i=0;i<200;i++)
+			links.addArticleInfo(text(i),new org.wikimedia.lsearch.beans.Title(0,"Page "+i),false,Integer.toString(i));
+		links.addArticleInfo("#REDIRECT [[Page 1]]",new org.wikimedia.lsearch.beans.Title(0,"Redirect 1"),false,"1000");
+	}
+	
+	protected void tearDown() throws Exception {
+		links.close();
+		FSUtils.deleteRecursive(base);
+	}
+	
+	protected String text(int i){
+		return "Text of page "+i+" linking to [[Page "+(i*7%200)+"]] and [[Page "+(i%10)+"|anchor "+i+"]]";
+	}
+	
+	/** Import all pages with given number of threads */
+	protected File importPages(String name, int threads) throws Exception {
+		File dir = new File(base,name);
+		SimpleIndexWriterTest.path = dir.getPath();
+		DumpImporter dp = new DumpImporter("enwiki",-1,false,null,null,true,links,"en",false,false,false,false,threads,0);
+		dp.indexWriter = new SimpleIndexWriterTest.TestIndexWriter(IndexId.get("enwiki"));
+		if(threads > 1)
+			dp.indexWriter.startWriterThread(threads*8);
+		NamespaceSet ns = new NamespaceSet();
+		for(int i=0;i<200;i++){
+			Page page = new Page();
+			page.Id = i;
+			page.Title = new Title(0,"Page "+i,ns);
+			page.DiscussionThreadingInfo = new Hashtable();
+			Revision rev = new Revision();
+			rev.Text = text(i);
+			rev.Timestamp = Calendar.getInstance();
+			rev.Timestamp.setTimeInMillis(1000000L*i);
+			dp.writeStartPage(page);
+			dp.writeRevision(rev);
+			dp.writeEndPage();
+		}
+		dp.closeIndex();
+		return dir;
+	}
+	
+	/** parallel import should make the same index, in dump order */
+	public void testParallelSameAsSequential() throws Exception {
+		IndexReader expected = IndexReader.open(importPages("sequential",1));
+		IndexReader actual = IndexReader.open(importPages("parallel",4));
+		try{
+			assertEquals(200,expected.numDocs());
+			assertEquals(expected.maxDoc(),actual.maxDoc());
+			for(int i=0;i<expected.maxDoc();i++)
+				assertEquals(SimpleIndexWriterTest.values(expected.document(i)),SimpleIndexWriterTest.values(actual.document(i)));
+			// link info was looked up
+			assertTrue(Integer.parseInt(actual.document(1).get("rank")) >= links.getNumInLinks("0:Page 1"));
+		} finally{
+			expected.close();
+			actual.close();
+		}
+	}
+}
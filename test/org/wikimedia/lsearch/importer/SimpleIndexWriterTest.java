@@ -0,0 +1,95 @@
+package org.wikimedia.lsearch.importer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Hashtable;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.wikimedia.lsearch.beans.Article;
+import org.wikimedia.lsearch.beans.Redirect;
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.related.RelatedTitle;
+import org.wikimedia.lsearch.test.WikiTestCase;
+import org.wikimedia.lsearch.util.FSUtils;
+
+public class SimpleIndexWriterTest extends WikiTestCase {
+	/** where the index being built goes, instead of the import path */
+	static String path;
+	protected File base;
+	
+	static class TestIndexWriter extends SimpleIndexWriter {
+		TestIndexWriter(IndexId iid){
+			super(iid,false,null,null,true,iid);
+		}
+		@Override
+		protected IndexWriter openIndex(IndexId iid) {
+			return openIndex(iid,path,true);
+		}
+		@Override
+		protected String getChunkPath(int chunk) {
+			return path+".chunk"+chunk;
+		}
+	}
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		base = File.createTempFile("simpleindexwriter","test");
+		base.delete();
+	}
+	
+	protected void tearDown() throws Exception {
+		FSUtils.deleteRecursive(base);
+	}
+	
+	protected Article article(int i){
+		StringBuilder text = new StringBuilder();
+		for(int j=0;j<i%7+1;j++)
+			text.append("Some text of page "+i+" and [[Page "+(i*j%50)+"]]. ");
+		return new Article(i,0,"Page "+i,text.toString(),null,i%5,0,0,
+				new ArrayList<Redirect>(),new ArrayList<RelatedTitle>(),new Hashtable<String,Integer>(),new Date(1000000L*i));
+	}
+	
+	protected File build(String name, int shards, int chunkSize) throws Exception {
+		File dir = new File(base,name);
+		path = dir.getPath();
+		SimpleIndexWriter writer = new TestIndexWriter(IndexId.get("enwiki"));
+		if(shards > 0)
+			writer.startShardedWriters(shards,chunkSize,4);
+		for(int i=0;i<100;i++)
+			writer.addArticle(article(i));
+		writer.close();
+		return dir;
+	}
+	
+	/** stored field values of a document */
+	static String values(Document doc){
+		StringBuilder sb = new StringBuilder();
+		for(Object o : doc.getFields()){
+			Fieldable f = (Fieldable) o;
+			sb.append(f.name()+"="+(f.isBinary()? Arrays.toString(f.binaryValue()) : f.stringValue())+"\n");
+		}
+		return sb.toString();
+	}
+	
+	/** sharded build should give the same index, with documents in the same order */
+	public void testShardedSameAsSequential() throws Exception {
+		IndexReader expected = IndexReader.open(build("sequential",0,0));
+		IndexReader actual = IndexReader.open(build("sharded",3,7));
+		try{
+			assertEquals(100,expected.numDocs());
+			assertEquals(expected.maxDoc(),actual.maxDoc());
+			for(int i=0;i<expected.maxDoc();i++)
+				assertEquals(values(expected.document(i)),values(actual.document(i)));
+		} finally{
+			expected.close();
+			actual.close();
+		}
+		// temporary chunk indexes are removed
+		assertEquals(2,base.list().length);
+	}
+}
@@ -0,0 +1,59 @@
+package org.wikimedia.lsearch.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.wikimedia.lsearch.test.WikiTestCase;
+
+public class DocumentPipelineTest extends WikiTestCase {
+
+	class TestPipeline extends DocumentPipeline<Integer> {
+		ArrayList<String> written = new ArrayList<String>();
+		Set<Thread> builderThreads = Collections.synchronizedSet(new HashSet<Thread>());
+
+		protected Builder<Integer> newBuilder() {
+			return new Builder<Integer>(){
+				Thread owner = Thread.currentThread();
+				public Document build(Integer item) throws Exception {
+					assertSame(owner,Thread.currentThread());
+					builderThreads.add(owner);
+					if(item % 10 == 5)
+						throw new Exception("failed "+item);
+					if(item % 10 == 7)
+						return null;
+					Document d = new Document();
+					d.add(new Field("key",item.toString(),Field.Store.YES,Field.Index.UN_TOKENIZED));
+					return d;
+				}
+			};
+		}
+		protected void write(Integer item, Document doc) throws Exception {
+			written.add(item+":"+(doc == null? "null" : doc.get("key")));
+		}
+		protected void failed(Integer item, Throwable e) {
+			// expected
+		}
+	}
+
+	public void testOrder() throws Exception {
+		TestPipeline pipeline = new TestPipeline();
+		ArrayList<String> expected = new ArrayList<String>();
+		for(int i=0;i<1000;i++){
+			pipeline.add(i);
+			if(i % 10 == 7)
+				expected.add(i+":null");
+			else if(i % 10 != 5)
+				expected.add(i+":"+i);
+		}
+		pipeline.finish();
+		assertEquals(expected,pipeline.written);
+		assertEquals(100,pipeline.getFailedCount());
+		assertFalse(pipeline.builderThreads.isEmpty());
+		// builders are not kept by the shared worker threads
+		assertTrue(pipeline.builders.isEmpty());
+	}
+}
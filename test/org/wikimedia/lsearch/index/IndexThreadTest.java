@@ -0,0 +1,89 @@
+package org.wikimedia.lsearch.index;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.wikimedia.lsearch.beans.Article;
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.test.WikiTestCase;
+
+public class IndexThreadTest extends WikiTestCase {
+	
+	/** Index thread that doesn't touch the disk */
+	static class TestIndexThread extends IndexThread {
+		boolean linksSucc;
+		Set<String> updated = Collections.synchronizedSet(new HashSet<String>());
+		
+		TestIndexThread(boolean linksSucc){
+			this.linksSucc = linksSucc;
+		}
+		@Override
+		protected boolean updateLinks(IndexId iid, Collection<IndexUpdateRecord> updates) {
+			return linksSucc;
+		}
+		@Override
+		protected void update(IndexId iid, Collection<IndexUpdateRecord> updates) {
+			updated.add(iid.toString());
+			reportFlushed(iid,true);
+		}
+	}
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		clear();
+	}
+	
+	protected void tearDown() throws Exception {
+		clear();
+	}
+	
+	protected void clear(){
+		synchronized(IndexThread.staticLock){
+			IndexThread.queuedUpdates.clear();
+			IndexThread.linksUpdates.clear();
+			IndexThread.needFlushDBs.clear();
+			IndexThread.flushedDBs.clear();
+		}
+	}
+	
+	protected void enqueue(String dbrole, int pageId, boolean linkUpdate){
+		IndexUpdateRecord rec = new IndexUpdateRecord(IndexId.get(dbrole),
+				new Article(pageId,0,"Page "+pageId,"text",null,0,0,0),IndexUpdateRecord.Action.UPDATE);
+		rec.setLinkUpdate(linkUpdate);
+		IndexThread.enqueueLocally(rec);
+	}
+	
+	protected TestIndexThread apply(boolean linksSucc){
+		enqueue("frtest",1,true);
+		enqueue("frtest.part1",1,false);
+		enqueue("frtest.part2",2,false);
+		enqueue("frtest.part3",3,false);
+		IndexThread.needFlushDBs.add("frtest");
+		TestIndexThread t = new TestIndexThread(linksSucc);
+		try{
+			t.applyUpdates();
+		} finally{
+			t.updatePool.shutdown();
+		}
+		return t;
+	}
+	
+	public void testFlushed() throws Exception {
+		TestIndexThread t = apply(true);
+		assertEquals(3,t.updated.size());
+		assertEquals(Boolean.TRUE,IndexThread.isFlushedDB("frtest"));
+		assertNull(IndexThread.isFlushedDB("frtest"));
+		assertEquals(0,IndexThread.getQueueSize());
+	}
+	
+	/** index parts are not updated if links failed, and the flush is reported failed */
+	public void testLinksFailed() throws Exception {
+		TestIndexThread t = apply(false);
+		assertEquals(0,t.updated.size());
+		assertEquals(Boolean.FALSE,IndexThread.isFlushedDB("frtest"));
+		// parts results are merged into db result
+		assertNull(IndexThread.isFlushedDB("frtest.part1"));
+	}
+}
@@ -0,0 +1,116 @@
+package org.wikimedia.lsearch.index;
+
+import java.io.File;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.test.WikiTestCase;
+import org.wikimedia.lsearch.util.FSUtils;
+
+public class TransactionTest extends WikiTestCase {
+	protected File base;
+
+	/** Transaction on a temporary index */
+	class TestTransaction extends Transaction {
+		public TestTransaction(boolean useJournal){
+			super(IndexId.get("enwiki"),IndexId.Transaction.INDEX);
+			this.useJournal = useJournal;
+		}
+		protected String getIndexPath() {
+			return new File(base,"index").getPath();
+		}
+		protected String getTransactionPath() {
+			return new File(base,"transaction").getPath();
+		}
+	}
+
+	protected void setUp() throws Exception {
+		// before lucene opens any directory
+		Transaction.installJournal();
+		super.setUp();
+		base = File.createTempFile("transaction","test");
+		base.delete();
+		addDocs(true,0,100);
+		addDocs(false,100,200);
+	}
+
+	protected void tearDown() throws Exception {
+		FSUtils.deleteRecursive(base);
+	}
+
+	protected void addDocs(boolean create, int from, int to) throws Exception {
+		IndexWriter writer = new IndexWriter(new File(base,"index"),new SimpleAnalyzer(),create);
+		for(int i=from;i<to;i++){
+			Document d = new Document();
+			d.add(new Field("key",Integer.toString(i),Field.Store.YES,Field.Index.UN_TOKENIZED));
+			writer.addDocument(d);
+		}
+		writer.close();
+	}
+
+	/** delete, add and merge everything */
+	protected void update() throws Exception {
+		IndexReader reader = IndexReader.open(new File(base,"index"));
+		reader.deleteDocuments(new Term("key","5"));
+		reader.close();
+		addDocs(false,200,300);
+		IndexWriter writer = new IndexWriter(new File(base,"index"),new SimpleAnalyzer(),false);
+		writer.optimize();
+		writer.close();
+	}
+
+	protected int numDocs() throws Exception {
+		IndexReader reader = IndexReader.open(new File(base,"index"));
+		int num = reader.numDocs();
+		reader.close();
+		return num;
+	}
+
+	protected void checkRollback(boolean useJournal) throws Exception {
+		String[] before = new File(base,"index").list();
+		TestTransaction trans = new TestTransaction(useJournal);
+		trans.begin();
+		assertTrue(trans.isInTransaction());
+		assertEquals(useJournal,trans.journal != null);
+		update();
+		assertEquals(299,numDocs());
+		trans.rollback();
+		assertEquals(200,numDocs());
+		assertEquals(before.length,new File(base,"index").list().length);
+
+		trans = new TestTransaction(useJournal);
+		trans.begin();
+		update();
+		trans.commit();
+		assertEquals(299,numDocs());
+		assertFalse(new File(trans.getBackupDir()).exists());
+	}
+
+	public void testJournal() throws Exception {
+		assertTrue(TransactionalFSDirectory.isInstalled(new File(base,"index").getPath()));
+		checkRollback(true);
+	}
+
+	public void testBackup() throws Exception {
+		checkRollback(false);
+	}
+
+	public void testRecoverAfterCrash() throws Exception {
+		TestTransaction trans = new TestTransaction(true);
+		trans.begin();
+		update();
+		// simulate a crash: journal is lost, transaction not finished
+		trans.endJournal();
+		trans.lock.unlock();
+
+		trans = new TestTransaction(true);
+		trans.begin(); // recovers the previous one
+		assertEquals(200,numDocs());
+		trans.commit();
+	}
+}
@@ -0,0 +1,180 @@
+package org.wikimedia.lsearch.index;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Hashtable;
+
+import org.wikimedia.lsearch.beans.Article;
+import org.wikimedia.lsearch.beans.Redirect;
+import org.wikimedia.lsearch.beans.ReportId;
+import org.wikimedia.lsearch.beans.Title;
+import org.wikimedia.lsearch.related.RelatedTitle;
+import org.wikimedia.lsearch.test.WikiTestCase;
+import org.wikimedia.lsearch.util.FSUtils;
+
+public class UpdateLogTest extends WikiTestCase {
+	protected File dir;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("updatelog","test");
+		dir.delete();
+	}
+
+	protected void tearDown() throws Exception {
+		FSUtils.deleteRecursive(dir);
+	}
+
+	protected IndexUpdateRecord makeRecord(int id){
+		ArrayList<Redirect> redirects = new ArrayList<Redirect>();
+		redirects.add(new Redirect(0,"Redirect "+id,3));
+		ArrayList<RelatedTitle> related = new ArrayList<RelatedTitle>();
+		RelatedTitle rt = new RelatedTitle(new Title(0,"Related"),0.5);
+		ArrayList<String> contexts = new ArrayList<String>();
+		contexts.add("context");
+		rt.setContexts(contexts);
+		related.add(rt);
+		Hashtable<String,Integer> anchors = new Hashtable<String,Integer>();
+		anchors.put("anchor",2);
+		Article a = new Article(id,0,"Title "+id,"Contents š "+id,null,5,0,0,redirects,related,anchors,new Date(1000L*id),null);
+		IndexUpdateRecord r = new IndexUpdateRecord(a,IndexUpdateRecord.Action.UPDATE,null,"enwiki",false,true,"host",null,false);
+		ReportId reportId = new ReportId(id,1234,"enwiki",r);
+		reportId.pageId = id;
+		r.setReportId(reportId);
+		return r;
+	}
+
+	protected void assertRecord(int id, IndexUpdateRecord r){
+		assertEquals("enwiki",r.getIndexId().toString());
+		assertEquals(IndexUpdateRecord.Action.UPDATE,r.getAction());
+		assertEquals(0+":Title "+id,r.getNsTitleKey());
+		Article a = r.getArticle();
+		assertEquals(id,a.getPageId());
+		assertEquals("Contents š "+id,a.getContents());
+		assertNull(a.getRedirectTarget());
+		assertEquals("Redirect "+id,a.getRedirects().get(0).getTitle());
+		assertEquals("context",a.getRelated().get(0).getContexts().get(0));
+		assertEquals(2,a.getAnchorRank().get("anchor").intValue());
+		assertEquals(1000L*id,a.getDate().getTime());
+		assertNull(a.DiscussionThreadingInfo);
+		assertTrue(r.isReportBack());
+		assertEquals(id,r.getReportId().pageId);
+		assertEquals(1234,r.getReportId().timestamp);
+	}
+
+	public void testReplay() throws Exception {
+		UpdateLog ulog = new UpdateLog(dir);
+		for(int i=0;i<10;i++)
+			ulog.add(makeRecord(i));
+		ulog.sync();
+		// not synced, lost on crash
+		ulog.add(makeRecord(10));
+
+		ArrayList<IndexUpdateRecord> records = new UpdateLog(dir).replay();
+		assertEquals(10,records.size());
+		for(int i=0;i<10;i++)
+			assertRecord(i,records.get(i));
+	}
+
+	protected ArrayList<String> list(String... s){
+		ArrayList<String> l = new ArrayList<String>();
+		for(String e : s)
+			l.add(e);
+		return l;
+	}
+
+	public void testAck() throws Exception {
+		UpdateLog ulog = new UpdateLog(dir);
+		for(int i=0;i<10;i++)
+			ulog.add(makeRecord(i));
+		long mark = ulog.getLastSeq();
+		// added while the queue was being flushed
+		ulog.add(makeRecord(10));
+		IndexUpdateRecord link = makeRecord(11);
+		link.setLinkUpdate(true);
+		ulog.add(link);
+		ulog.ack(list("enwiki","dewiki"),list(),mark);
+		ArrayList<IndexUpdateRecord> records = new UpdateLog(dir).replay();
+		assertEquals(2,records.size());
+		assertRecord(10,records.get(0));
+		assertTrue(records.get(1).isLinkUpdate());
+		// links updates are acknowledged separately
+		ulog.ack(list("enwiki"),list(),ulog.getLastSeq());
+		assertEquals(1,new UpdateLog(dir).replay().size());
+		ulog.ack(list(),list("enwiki"),ulog.getLastSeq());
+		assertEquals(0,new UpdateLog(dir).replay().size());
+	}
+
+	public void testCompact() throws Exception {
+		UpdateLog ulog = new UpdateLog(dir);
+		for(int i=0;i<10;i++)
+			ulog.add(makeRecord(i));
+		ulog.ack(list("enwiki"),list(),5);
+		assertFalse(ulog.compact(1000000));
+		assertTrue(ulog.compact(1000));
+		// added after compaction go to the new segment
+		ulog.add(makeRecord(10));
+		ulog.ack(list("enwiki"),list(),7);
+		ulog.sync();
+		assertEquals(2,dir.list().length); // rewritten and new segment
+		ArrayList<IndexUpdateRecord> records = new UpdateLog(dir).replay();
+		assertEquals(4,records.size());
+		for(int i=0;i<4;i++)
+			assertRecord(7+i,records.get(i));
+		// sequence numbers continue after reopening
+		UpdateLog reopened = new UpdateLog(dir);
+		assertEquals(11,reopened.getLastSeq());
+		reopened.add(makeRecord(11));
+		reopened.ack(list("enwiki"),list(),10);
+		assertTrue(reopened.compact(0));
+		assertEquals(1,dir.list().length);
+		records = new UpdateLog(dir).replay();
+		assertEquals(2,records.size());
+		assertRecord(10,records.get(0));
+		assertRecord(11,records.get(1));
+	}
+
+	/** old segments left by an interrupted compaction are not replayed twice */
+	public void testInterruptedCompaction() throws Exception {
+		UpdateLog ulog = new UpdateLog(dir);
+		for(int i=0;i<5;i++)
+			ulog.add(makeRecord(i));
+		ulog.ack(list("enwiki"),list(),2);
+		ulog.close();
+		File old = new File(dir,"updates.0.log");
+		File copy = new File(dir,"copy");
+		FSUtils.createHardLink(old,copy);
+		ulog = new UpdateLog(dir);
+		assertTrue(ulog.compact(0));
+		ulog.add(makeRecord(5));
+		ulog.ack(list("enwiki"),list(),3);
+		ulog.close();
+		// old segment was not deleted
+		assertTrue(copy.renameTo(old));
+		ArrayList<IndexUpdateRecord> records = new UpdateLog(dir).replay();
+		assertEquals(3,records.size());
+		for(int i=0;i<3;i++)
+			assertRecord(3+i,records.get(i));
+	}
+
+	public void testTornWrite() throws Exception {
+		UpdateLog ulog = new UpdateLog(dir);
+		for(int i=0;i<3;i++)
+			ulog.add(makeRecord(i));
+		ulog.close();
+		File f = new File(dir,"updates.0.log");
+		RandomAccessFile raf = new RandomAccessFile(f,"rw");
+		raf.setLength(raf.length()-10);
+		raf.close();
+		assertEquals(2,new UpdateLog(dir).replay().size());
+
+		// corrupt the second record
+		raf = new RandomAccessFile(f,"rw");
+		raf.seek(raf.length()/2);
+		raf.write(raf.read()^0xff);
+		raf.close();
+		assertEquals(1,new UpdateLog(dir).replay().size());
+	}
+}
@@ -207,6 +207,21 @@ public class WikiIndexModifierTest extends WikiTestCase {
 		}
 	}
 	
+	public void testCoalesce(){
+		ArrayList<IndexUpdateRecord> records = new ArrayList<IndexUpdateRecord>();
+		records.add(new IndexUpdateRecord("enwiki",10,new Title(0,"Hot page"),"v1",null,0,IndexUpdateRecord.Action.DELETE));
+		records.add(new IndexUpdateRecord("enwiki",11,new Title(0,"Other page"),"text",null,0,IndexUpdateRecord.Action.UPDATE));
+		records.add(new IndexUpdateRecord("enwiki",10,new Title(0,"Hot page"),"v2",null,0,IndexUpdateRecord.Action.ADD));
+		records.add(new IndexUpdateRecord("enwiki",10,new Title(0,"Hot page"),"v3",null,0,IndexUpdateRecord.Action.ADD));
+		ArrayList<IndexUpdateRecord> res = new ArrayList<IndexUpdateRecord>(WikiIndexModifier.coalesce(records));
+		assertEquals(2,res.size());
+		assertEquals("text",res.get(0).getArticle().getContents());
+		assertEquals("v3",res.get(1).getArticle().getContents());
+		assertEquals(IndexUpdateRecord.Action.UPDATE,res.get(1).getAction());
+		// input records are not modified
+		assertEquals(IndexUpdateRecord.Action.ADD,records.get(3).getAction());
+	}
+	
 	public String value(String field){
 		return doc.getField(field).stringValue();
 	}
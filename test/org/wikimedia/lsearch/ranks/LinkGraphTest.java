@@ -0,0 +1,56 @@
+package org.wikimedia.lsearch.ranks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.wikimedia.lsearch.beans.Title;
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.test.WikiTestCase;
+
+public class LinkGraphTest extends WikiTestCase {
+
+	public void testSameAsLinks() throws Exception {
+		IndexId iid = IndexId.get("enwiki");
+		Links links = Links.createNewInMemory(iid);
+		links.addArticleInfo("[[Douglas Adams|author]] wrote [[Hitchhiker's guide]] and [[douglas Adams|Adams]]",new Title(0,"Books"),false,"1");
+		links.addArticleInfo("[[Douglas Adams|author]] and [[Main Page]]",new Title(0,"Authors"),false,"2");
+		links.addArticleInfo("#REDIRECT [[Douglas Adams]]",new Title(0,"Adams"),false,"3");
+		links.addArticleInfo("#REDIRECT [[Douglas Adams]]",new Title(0,"DNA"),false,"4");
+		links.addArticleInfo("[[Books]]",new Title(0,"Douglas Adams"),false,"6");
+		links.deleteArticleInfoByIndexKey("2");
+		links.addArticleInfo("[[Douglas Adams|writer]]",new Title(0,"Authors"),false,"2");
+
+		LinkGraph cl = links.makeCompact();
+		String[] keys = {"0:Douglas Adams","0:Books","0:Authors","0:Adams","0:DNA","0:Main Page",
+				"0:Hitchhiker's guide","0:Missing"};
+		for(String key : keys){
+			assertEquals(key,links.getNumInLinks(key),cl.getNumInLinks(key));
+			assertEquals(key,links.getRedirectTarget(key),cl.getRedirectTarget(key));
+			assertEquals(key,links.getRedirectTargetNamespace(key),cl.getRedirectTargetNamespace(key));
+			assertEquals(key,links.getRedirectsTo(key),cl.getRedirectsTo(key));
+			assertEquals(key,links.getAnchorMap(key,null),cl.getAnchorMap(key,null));
+		}
+		assertEquals(2,cl.getNumInLinks("0:Douglas Adams"));
+		assertEquals(2,cl.getRedirectsTo("0:Douglas Adams").size());
+		assertEquals("0:Douglas Adams",cl.getRedirectTarget("0:DNA"));
+		ArrayList<String> out = cl.getOutLinks("0:Authors");
+		assertEquals(Collections.singletonList("0:Douglas Adams"),out);
+		ArrayList<String> in = cl.getInLinks("0:Douglas Adams");
+		Collections.sort(in);
+		assertEquals("[0:Authors, 0:Books]",in.toString());
+		links.close();
+	}
+
+	public void testStringPool() {
+		LinkGraph.StringPool pool = new LinkGraph.StringPool();
+		for(int i=0;i<10000;i++)
+			assertEquals(i,pool.add("key "+i+" ž"));
+		assertEquals(5,pool.add("key 5 ž"));
+		pool.trim();
+		for(int i=0;i<10000;i++){
+			assertEquals(i,pool.get("key "+i+" ž"));
+			assertEquals("key "+i+" ž",pool.get(i));
+		}
+		assertEquals(-1,pool.get("missing"));
+	}
+}
@@ -0,0 +1,94 @@
+package org.wikimedia.lsearch.ranks;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ObjectCacheTest extends TestCase {
+
+	public void testBounded() {
+		ObjectCache cache = new ObjectCache(100);
+		for(int i=0;i<1000;i++){
+			cache.put("key"+i,i);
+			assertEquals(i,cache.get("key"+i));
+		}
+		assertTrue(cache.getSize() <= 100);
+		cache.put("key5","new");
+		cache.remove("key5");
+		assertNull(cache.get("key5"));
+		cache.clear();
+		assertEquals(0,cache.getSize());
+	}
+
+	public void testMemoryBounded() {
+		ObjectCache cache = new ObjectCache("test-memory",10000L);
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<100;i++)
+			sb.append('x');
+		for(int i=0;i<1000;i++)
+			cache.put("key"+i,sb.toString()+i);
+		assertTrue(cache.getWeight() <= 10000);
+		assertTrue(cache.getSize() > 10);
+		// larger than the whole cache
+		cache.put("huge",new byte[20000]);
+		assertNull(cache.get("huge"));
+		assertTrue(ObjectCache.getAllStats().toString().contains("test-memory"));
+	}
+
+	/** frequently used keys should survive a scan of one-off keys */
+	public void testScanResistant() {
+		ObjectCache cache = new ObjectCache(100);
+		for(int round=0;round<10;round++){
+			for(int i=0;i<50;i++){
+				if(cache.get("hot"+i) == null)
+					cache.put("hot"+i,i);
+			}
+		}
+		for(int i=0;i<10000;i++){
+			if(cache.get("scan"+i) == null)
+				cache.put("scan"+i,i);
+		}
+		int present = 0;
+		for(int i=0;i<50;i++){
+			if(cache.get("hot"+i) != null)
+				present++;
+		}
+		assertTrue("only "+present+" hot keys cached",present >= 45);
+	}
+
+	public void testConcurrent() throws Exception {
+		final ObjectCache cache = new ObjectCache(500);
+		final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[8];
+		for(int t=0;t<threads.length;t++){
+			final int seed = t;
+			threads[t] = new Thread(){
+				public void run(){
+					try{
+						Random r = new Random(seed);
+						for(int i=0;i<50000;i++){
+							// skewed keys
+							String key = "k"+(int)(Math.abs(r.nextGaussian())*300);
+							Object v = cache.get(key);
+							if(v == null)
+								cache.put(key,key);
+							else
+								assertEquals(key,v);
+						}
+					} catch(Throwable e){
+						synchronized(errors){
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertEquals(errors.toString(),0,errors.size());
+		assertTrue(cache.getSize() <= 500);
+		assertTrue(cache.getHits() > cache.getMisses());
+	}
+}
@@ -0,0 +1,142 @@
+package org.wikimedia.lsearch.related;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.wikimedia.lsearch.beans.Article;
+import org.wikimedia.lsearch.beans.Title;
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.index.IndexUpdateRecord;
+import org.wikimedia.lsearch.ranks.LinkGraph;
+import org.wikimedia.lsearch.ranks.Links;
+import org.wikimedia.lsearch.test.WikiTestCase;
+
+public class RelatedBuilderTest extends WikiTestCase {
+
+	/** related from the in-memory graph should be same as from the links index */
+	public void testGraphSameAsLinks() throws Exception {
+		Links links = Links.createNewInMemory(IndexId.get("enwiki"));
+		Random r = new Random(42);
+		for(int i=0;i<60;i++)
+			links.addArticleInfo(randomText(r),new Title(0,"Page "+i),false,Integer.toString(i));
+		LinkGraph graph = links.makeCompact();
+		assertEquals(60,graph.getNumArticles());
+		int nonEmpty = 0;
+		for(int id=0;id<graph.getNumArticles();id++){
+			String key = graph.getKey(id);
+			ArrayList<Related> expected = RelatedBuilder.getRelated(links,key);
+			ArrayList<Related> actual = RelatedBuilder.getRelated(graph,links,id);
+			assertEquals(key,expected.toString(),actual.toString());
+			if(actual.size() > 0)
+				nonEmpty++;
+		}
+		assertTrue(nonEmpty > 5);
+		links.close();
+	}
+
+	protected String randomText(Random r){
+		StringBuilder text = new StringBuilder();
+		int num = r.nextInt(12);
+		for(int j=0;j<num;j++)
+			text.append("[[Page "+(int)Math.abs(r.nextGaussian()*15)+"]] text ");
+		return text.toString();
+	}
+	
+	protected Links makeLinks(IndexId iid, Random r) throws IOException {
+		Links links = Links.createNewInMemory(iid);
+		links.setStoreOutLinks(true);
+		for(int i=0;i<60;i++)
+			links.addArticleInfo(randomText(r),new Title(0,"Page "+i),false,Integer.toString(i));
+		return links;
+	}
+	
+	/** related articles of all articles, as with a full rebuild */
+	protected HashMap<String,String> getAllRelated(Links links, int threads) throws IOException {
+		final HashMap<String,String> all = new HashMap<String,String>();
+		RelatedBuilder.getAllRelated(links.makeCompact(),links,threads,new RelatedBuilder.RelatedCollector(){
+			public void add(String key, ArrayList<Related> related) throws IOException {
+				all.put(key,related.toString());
+			}
+		});
+		return all;
+	}
+	
+	protected IndexUpdateRecord record(IndexId iid, long pageId, String title, String text, IndexUpdateRecord.Action action){
+		return new IndexUpdateRecord(iid,new Article(pageId,0,title,text,null,0,0,0),action);
+	}
+	
+	/** parallel rebuild should give same results as one thread */
+	public void testParallelRebuild() throws Exception {
+		Links links = makeLinks(IndexId.get("enwiki"),new Random(7));
+		HashMap<String,String> single = getAllRelated(links,1);
+		assertEquals(60,single.size());
+		assertEquals(single,getAllRelated(links,4));
+		for(Entry<String,String> e : single.entrySet())
+			assertEquals(e.getKey(),RelatedBuilder.getRelated(links,e.getKey()).toString(),e.getValue());
+		links.close();
+	}
+	
+	/** incremental update after an OAI-style batch should match a full rebuild */
+	public void testIncrementalUpdate() throws Exception {
+		IndexId iid = IndexId.get("enwiki");
+		Random r = new Random(42);
+		Links links = makeLinks(iid,r);
+		HashMap<String,String> before = getAllRelated(links,1);
+		
+		IndexUpdateRecord[] records = {
+				record(iid,3,"Page 3","[[Page 1]] [[Page 2]] [[Page 4]] [[Page 5]]",IndexUpdateRecord.Action.UPDATE),
+				record(iid,5,"Moved 5",randomText(r),IndexUpdateRecord.Action.UPDATE), // rename
+				record(iid,7,"",null,IndexUpdateRecord.Action.DELETE), // OAI deletions have no title
+				record(iid,100,"Page 100","[[Page 1]] [[Page 3]] [[Moved 5]]",IndexUpdateRecord.Action.ADD),
+		};
+		HashSet<String> changed = new HashSet<String>();
+		HashSet<String> targets = new HashSet<String>();
+		RelatedBuilder.collectChanged(links,records,false,changed,targets);
+		// old keys are resolved from page ids
+		assertTrue(changed.contains("0:Page 5"));
+		assertTrue(changed.contains("0:Page 7"));
+		links.batchUpdate(records);
+		RelatedBuilder.collectChanged(links,records,true,changed,targets);
+		assertTrue(changed.contains("0:Moved 5"));
+		assertTrue(changed.contains("0:Page 100"));
+		// links of both old and new versions
+		assertTrue(targets.contains("0:Page 4"));
+		assertTrue(targets.contains("0:Moved 5"));
+		
+		HashMap<String,ArrayList<Related>> update = RelatedBuilder.getChangedRelated(iid,links,changed,targets,Integer.MAX_VALUE);
+		HashMap<String,String> after = getAllRelated(links,1);
+		assertEquals(60,after.size());
+		// updated entries are as in a full rebuild, removed pages have none
+		for(Entry<String,ArrayList<Related>> e : update.entrySet()){
+			if(after.containsKey(e.getKey()))
+				assertEquals(e.getKey(),after.get(e.getKey()),e.getValue().toString());
+			else
+				assertEquals(e.getKey(),0,e.getValue().size());
+		}
+		assertTrue(update.containsKey("0:Page 5"));
+		assertTrue(update.containsKey("0:Page 7"));
+		// every changed entry got updated
+		int differ = 0;
+		for(Entry<String,String> e : after.entrySet()){
+			if(!e.getValue().equals(before.get(e.getKey()))){
+				assertTrue(e.getKey(),update.containsKey(e.getKey()));
+				differ++;
+			}
+		}
+		assertTrue(differ > 2);
+		
+		// without stored out-links only the changed pages can be found
+		Links notStored = Links.createNewInMemory(iid);
+		notStored.addArticleInfo("[[Page 1]]",new Title(0,"Page 0"),false,"0");
+		assertNull(notStored.getOutLinks("0:Page 0"));
+		notStored.close();
+		
+		// at most max pages are updated
+		assertEquals(3,RelatedBuilder.getChangedRelated(iid,links,changed,targets,3).size());
+		links.close();
+	}
+}
@@ -0,0 +1,179 @@
+package org.wikimedia.lsearch.replication;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import junit.framework.TestCase;
+
+import org.wikimedia.lsearch.util.FSUtils;
+
+public class ReplicatorTest extends TestCase {
+	protected File base;
+	protected File root;
+	protected SnapshotServer server;
+
+	protected void setUp() throws Exception {
+		base = File.createTempFile("replicator","test");
+		base.delete();
+		root = new File(base,"snapshot");
+		server = new SnapshotServer(root,new ServerSocket(0,0,InetAddress.getByName(null)),4);
+		server.start();
+	}
+
+	protected void tearDown() throws Exception {
+		server.close();
+		FSUtils.deleteRecursive(base);
+	}
+
+	protected void write(File f, int size, int seed) throws IOException {
+		f.getParentFile().mkdirs();
+		byte[] data = new byte[size];
+		for(int i=0;i<size;i++)
+			data[i] = (byte)(i*31+seed);
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(data);
+		out.close();
+	}
+
+	protected Replicator replicator(long bandwidth){
+		return new Replicator("localhost",server.getPort(),3,bandwidth);
+	}
+
+	public void testReplicate() throws Exception {
+		File snapshot = new File(root,"enwiki/1000");
+		write(new File(snapshot,"_0.cfs"),300000,1);
+		write(new File(snapshot,"_1.cfs"),200000,2);
+		write(new File(snapshot,"segments_3"),100,3);
+		write(new File(snapshot,"sub/data"),5000,4);
+		write(new File(snapshot,"empty"),0,0);
+
+		// previous version: one unchanged file, one changed, one removed
+		File current = new File(base,"current");
+		write(new File(current,"segments_2"),100,5);
+		write(new File(current,"_1.cfs"),200000,6);
+		new File(current,"_1.cfs").setLastModified(new File(snapshot,"_1.cfs").lastModified()-10000);
+		FSUtils.createHardLink(new File(snapshot,"_0.cfs"),new File(current,"_0.cfs"));
+		new File(current,"_0.cfs").setLastModified(new File(snapshot,"_0.cfs").lastModified());
+		File target = new File(base,"update/1000");
+		FSUtils.createHardLinkRecursive(current.getPath(),target.getPath());
+
+		Replicator r = replicator(0);
+		r.replicate("enwiki",1000,target);
+		assertEquals(1,r.getKeptFiles());
+		assertEquals(4,r.getFetchedFiles());
+		assertEquals(1,r.getDeletedFiles());
+
+		SnapshotManifest expected = SnapshotManifest.make(snapshot);
+		SnapshotManifest got = SnapshotManifest.make(target);
+		assertEquals(expected.serialize(),got.serialize());
+		// hard-linked file of the previous version is untouched
+		assertFalse(SnapshotManifest.checksum(new File(current,"_1.cfs")) == SnapshotManifest.checksum(new File(target,"_1.cfs")));
+
+		// nothing to do the second time
+		r = replicator(0);
+		r.replicate("enwiki",1000,target);
+		assertEquals(0,r.getFetchedFiles());
+		assertEquals(5,r.getKeptFiles());
+	}
+
+	public void testBandwidth() throws Exception {
+		File snapshot = new File(root,"enwiki/1000");
+		write(new File(snapshot,"_0.cfs"),100000,1);
+		write(new File(snapshot,"_1.cfs"),100000,2);
+		long start = System.currentTimeMillis();
+		replicator(200*1024).replicate("enwiki",1000,new File(base,"update/1000"));
+		// 200KB at 200KB/s
+		assertTrue(System.currentTimeMillis() - start >= 900);
+	}
+
+	public void testVerification() throws Exception {
+		File snapshot = new File(root,"enwiki/1000");
+		File f = new File(snapshot,"_0.cfs");
+		write(f,10000,1);
+		Replicator r = replicator(0);
+		r.getManifest("enwiki",1000); // server caches the manifest
+		// corrupt the file after manifest was made
+		RandomAccessFile raf = new RandomAccessFile(f,"rw");
+		raf.seek(5000);
+		raf.write(0xff);
+		raf.close();
+		File target = new File(base,"update/1000");
+		try{
+			r.replicate("enwiki",1000,target);
+			fail("Corrupt file should not be accepted");
+		} catch(IOException e){
+			// expected
+		}
+		assertFalse(new File(target,"_0.cfs").exists());
+		assertFalse(new File(target,"_0.cfs"+Replicator.PART_SUFFIX).exists());
+	}
+
+	public void testStoredManifest() throws Exception {
+		File prevSnapshot = new File(root,"enwiki/1000");
+		write(new File(prevSnapshot,"_0.cfs"),10000,1);
+		write(new File(prevSnapshot,"segments_2"),100,2);
+		SnapshotManifest prev = SnapshotManifest.make(prevSnapshot);
+		prev.write(prevSnapshot);
+		assertEquals(prev.serialize(),SnapshotManifest.load(prevSnapshot).serialize());
+		
+		// next snapshot: hard-linked unchanged file, new segments file
+		File snapshot = new File(root,"enwiki/2000");
+		snapshot.mkdirs();
+		FSUtils.createHardLink(new File(prevSnapshot,"_0.cfs"),new File(snapshot,"_0.cfs"));
+		write(new File(snapshot,"segments_3"),100,3);
+		// checksum of the linked file is taken from the previous manifest
+		prev.getEntries().get(0).checksum = 42;
+		SnapshotManifest m = SnapshotManifest.make(snapshot,prevSnapshot,prev);
+		assertEquals(2,m.getEntries().size());
+		assertEquals("_0.cfs",m.getEntries().get(0).name);
+		assertEquals(42,m.getEntries().get(0).checksum);
+		assertEquals(SnapshotManifest.checksum(new File(snapshot,"segments_3")),m.getEntries().get(1).checksum);
+		
+		// server uses the stored manifest, which is not listed itself
+		m = SnapshotManifest.make(snapshot);
+		m.write(snapshot);
+		assertEquals(m.serialize(),replicator(0).getManifest("enwiki",2000).serialize());
+		File target = new File(base,"update/2000");
+		replicator(0).replicate("enwiki",2000,target);
+		assertEquals(m.serialize(),SnapshotManifest.make(target).serialize());
+		assertFalse(new File(target,SnapshotManifest.FILENAME).exists());
+	}
+
+	public void testConcurrentManifest() throws Exception {
+		File snapshot = new File(root,"enwiki/1000");
+		write(new File(snapshot,"_0.cfs"),500000,1);
+		final String expected = SnapshotManifest.make(snapshot).serialize();
+		final String[] got = new String[4];
+		Thread[] threads = new Thread[got.length];
+		for(int i=0;i<threads.length;i++){
+			final int t = i;
+			threads[i] = new Thread(){
+				public void run(){
+					try{
+						got[t] = replicator(0).getManifest("enwiki",1000).serialize();
+					} catch(IOException e){
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		for(String g : got)
+			assertEquals(expected,g);
+	}
+
+	public void testMissingSnapshot() throws Exception {
+		try{
+			replicator(0).replicate("enwiki",2000,new File(base,"update/2000"));
+			fail("Missing snapshot should fail");
+		} catch(IOException e){
+			// expected
+		}
+	}
+}
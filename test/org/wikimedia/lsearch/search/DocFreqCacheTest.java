@@ -0,0 +1,30 @@
+package org.wikimedia.lsearch.search;
+
+import org.apache.lucene.index.Term;
+
+import junit.framework.TestCase;
+
+public class DocFreqCacheTest extends TestCase {
+	public void testGetPutInvalidate(){
+		DocFreqCache cache = new DocFreqCache(3);
+		Term[] terms = { new Term("contents","a"), new Term("contents","b") };
+		int[] dfs = new int[2];
+		assertEquals(0,cache.get("enwiki.mainpart","host1",1,terms,dfs));
+		assertEquals(-1,dfs[0]);
+		
+		cache.put("enwiki.mainpart","host1",1,terms,new int[] {5,7});
+		assertEquals(2,cache.get("enwiki.mainpart","host1",1,terms,dfs));
+		assertEquals(5,dfs[0]);
+		assertEquals(7,dfs[1]);
+		// other generation or host is a different entry
+		assertEquals(0,cache.get("enwiki.mainpart","host1",2,terms,dfs));
+		assertEquals(0,cache.get("enwiki.mainpart","host2",1,terms,dfs));
+		
+		// size bound
+		cache.put("enwiki.restpart","host1",1,terms,new int[] {1,2});
+		assertEquals(3,cache.getSize());
+		
+		cache.invalidate("enwiki.restpart",null);
+		assertEquals(1,cache.getSize());
+	}
+}
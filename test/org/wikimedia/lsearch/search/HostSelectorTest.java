@@ -0,0 +1,95 @@
+package org.wikimedia.lsearch.search;
+
+import java.util.ArrayList;
+
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.test.WikiTestCase;
+
+public class HostSelectorTest extends WikiTestCase {
+	public void testHostStats(){
+		IndexId iid = IndexId.get("enwiki");
+		HostStats stats = new HostStats(0.5,0);
+		assertFalse(stats.isKnown(iid,"host1"));
+		assertEquals(0.0,stats.getLatency(iid,"host1"));
+		
+		long start = stats.begin(iid,"host1");
+		assertEquals(1,stats.getInFlight(iid,"host1"));
+		stats.end(iid,"host1",start-100,true);
+		assertEquals(0,stats.getInFlight(iid,"host1"));
+		assertTrue(stats.isKnown(iid,"host1"));
+		double first = stats.getLatency(iid,"host1");
+		assertTrue(first >= 100);
+		
+		start = stats.begin(iid,"host1");
+		stats.end(iid,"host1",start-300,true);
+		double second = stats.getLatency(iid,"host1");
+		assertTrue(second > first && second < 300+first);
+	}
+	
+	public void testPercentile(){
+		IndexId iid = IndexId.get("enwiki");
+		HostStats stats = new HostStats(0.3,0);
+		for(int i=1;i<HostStats.MIN_SAMPLES;i++)
+			stats.end(iid,"host1",stats.begin(iid,"host1")-i*10,true);
+		assertEquals(-1,stats.getPercentile(iid,"host1",95));
+		for(int i=HostStats.MIN_SAMPLES;i<=100;i++)
+			stats.end(iid,"host1",stats.begin(iid,"host1")-i*10,true);
+		long p95 = stats.getPercentile(iid,"host1",95);
+		assertTrue(p95 >= 950 && p95 < 970);
+		assertTrue(stats.getPercentile(iid,"host1",100) >= 1000);
+	}
+	
+	public void testLatencySelector(){
+		IndexId iid = IndexId.get("enwiki");
+		HostStats stats = new HostStats(1,0);
+		stats.end(iid,"fast",stats.begin(iid,"fast")-10,true);
+		stats.end(iid,"slow",stats.begin(iid,"slow")-1000,true);
+		ArrayList<String> hosts = new ArrayList<String>();
+		hosts.add("fast");
+		hosts.add("slow");
+		HostSelector sel = new LatencyHostSelector();
+		for(int i=0;i<20;i++)
+			assertEquals("fast",sel.select(iid,hosts,stats));
+		
+		// load on the fast host outweighs its latency
+		for(int i=0;i<200;i++)
+			stats.begin(iid,"fast");
+		assertEquals("slow",sel.select(iid,hosts,stats));
+	}
+	
+	public void testFailures() throws Exception {
+		IndexId iid = IndexId.get("enwiki");
+		HostStats stats = new HostStats(1,0,200,400);
+		stats.end(iid,"ok",stats.begin(iid,"ok")-100,true);
+		// fails fast, but must not look like the fastest host
+		stats.end(iid,"failing",stats.begin(iid,"failing"),false);
+		assertTrue(stats.isKnown(iid,"failing"));
+		assertEquals(0.0,stats.getLatency(iid,"failing"));
+		assertEquals(-1,stats.getPercentile(iid,"failing",95));
+		assertTrue(stats.isBackingOff(iid,"failing"));
+		assertEquals(0,stats.getInFlight(iid,"failing"));
+		
+		ArrayList<String> hosts = new ArrayList<String>();
+		hosts.add("ok");
+		hosts.add("failing");
+		HostSelector sel = new LatencyHostSelector();
+		for(int i=0;i<20;i++)
+			assertEquals("ok",sel.select(iid,hosts,stats));
+		
+		// tried again after backoff, success resets it
+		Thread.sleep(250);
+		assertFalse(stats.isBackingOff(iid,"failing"));
+		stats.end(iid,"failing",stats.begin(iid,"failing")-10,true);
+		assertFalse(stats.isBackingOff(iid,"failing"));
+		for(int i=0;i<20;i++)
+			assertEquals("failing",sel.select(iid,hosts,stats));
+	}
+	
+	public void testMakeHostSelector(){
+		SearcherCache cache = SearcherCache.getInstance();
+		assertTrue(cache.makeHostSelector("latency") instanceof LatencyHostSelector);
+		assertTrue(cache.makeHostSelector(LatencyHostSelector.class.getName()) instanceof LatencyHostSelector);
+		assertTrue(cache.makeHostSelector("org.example.NoSuchSelector") instanceof RandomHostSelector);
+		assertTrue(cache.makeHostSelector("java.lang.String") instanceof RandomHostSelector);
+	}
+}
@@ -0,0 +1,108 @@
+package org.wikimedia.lsearch.search;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentPrefix;
+import org.apache.lucene.index.Term;
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.search.AggregateMetaField.AggregateMetaFieldSource;
+import org.wikimedia.lsearch.search.ArticleMeta.ArticleMetaSource;
+import org.wikimedia.lsearch.test.WikiTestCase;
+import org.wikimedia.lsearch.util.FSUtils;
+
+public class IncrementalMetaTest extends WikiTestCase {
+
+	protected Document doc(int i){
+		Document d = new Document();
+		d.add(new Field("key","0:Page "+i,Field.Store.YES,Field.Index.UN_TOKENIZED));
+		d.add(new Field("namespace",Integer.toString(i%2),Field.Store.YES,Field.Index.UN_TOKENIZED));
+		d.add(new Field("title","Page "+i,Field.Store.YES,Field.Index.TOKENIZED));
+		byte[] meta = new byte[(i%3)*8];
+		for(int j=0;j<i%3;j++)
+			meta[j*8] = (byte)(i%100+j+1);
+		d.add(new Field("alttitle_meta",meta,Field.Store.YES));
+		return d;
+	}
+
+	protected void addDocs(File dir, boolean create, int from, int to) throws Exception {
+		IndexWriter writer = new IndexWriter(dir,new SimpleAnalyzer(),create);
+		writer.setMergeFactor(100);
+		for(int i=from;i<to;i++)
+			writer.addDocument(doc(i));
+		writer.close();
+	}
+
+	protected void build(IndexReader reader, IndexId iid, ArticleMetaSource article, AggregateMetaFieldSource aggregate, int startDoc) throws Exception {
+		ArrayList<CacheBuilder> builders = new ArrayList<CacheBuilder>();
+		builders.add(article);
+		builders.add(aggregate);
+		ArrayList<IndexReader> readers = new ArrayList<IndexReader>();
+		readers.add(reader);
+		MetaCacher.cache(readers,builders,2,startDoc);
+	}
+
+	public void testSeeded() throws Exception {
+		IndexId iid = IndexId.get("enwiki");
+		File base = File.createTempFile("incremental","test");
+		base.delete();
+		File v1 = new File(base,"1"), v2 = new File(base,"2");
+		try{
+			addDocs(v1,true,0,1500);
+			addDocs(v1,false,1500,3000);
+			FSUtils.createHardLinkRecursive(v1.getPath(),v2.getPath());
+			// new version: some deletions and a new segment
+			IndexWriter writer = new IndexWriter(v2,new SimpleAnalyzer(),false);
+			writer.setMergeFactor(100);
+			writer.deleteDocuments(new Term("key","0:Page 10"));
+			for(int i=3000;i<4000;i++)
+				writer.addDocument(doc(i));
+			writer.close();
+
+			IndexReader r1 = IndexReader.open(v1);
+			IndexReader r2 = IndexReader.open(v2);
+			assertEquals(3000,SegmentPrefix.getUnchangedDocs(r1,r2));
+			// a rebuilt index with same segment names is not reused
+			File v3 = new File(base,"3");
+			Thread.sleep(1000);
+			addDocs(v3,true,0,1500);
+			addDocs(v3,false,1500,3000);
+			IndexReader r3 = IndexReader.open(v3);
+			assertEquals(0,SegmentPrefix.getUnchangedDocs(r1,r3));
+			r3.close();
+
+			ArticleMetaSource a1 = new ArticleMetaSource(r1,iid.getNamespacesWithSubpages());
+			AggregateMetaFieldSource g1 = new AggregateMetaFieldSource(r1,"alttitle");
+			build(r1,iid,a1,g1,0);
+
+			ArticleMetaSource a2 = new ArticleMetaSource(r2,iid.getNamespacesWithSubpages());
+			AggregateMetaFieldSource g2 = new AggregateMetaFieldSource(r2,"alttitle");
+			a2.setSeed(a1,3000);
+			g2.setSeed(g1,3000);
+			build(r2,iid,a2,g2,3000);
+
+			ArticleMetaSource full = new ArticleMetaSource(r2,iid.getNamespacesWithSubpages());
+			AggregateMetaFieldSource gfull = new AggregateMetaFieldSource(r2,"alttitle");
+			build(r2,iid,full,gfull,0);
+
+			for(int i=0;i<r2.maxDoc();i++){
+				if(r2.isDeleted(i))
+					continue;
+				assertEquals(full.namespace(i),a2.namespace(i));
+				assertEquals(gfull.getNamespace(i),g2.getNamespace(i));
+				for(int j=0;j<i%3;j++)
+					assertEquals(gfull.getLength(i,j),g2.getLength(i,j));
+				assertEquals(-1,g2.getValueIndex(i,i%3,true));
+			}
+			r1.close();
+			r2.close();
+		} finally{
+			FSUtils.deleteRecursive(base);
+		}
+	}
+}
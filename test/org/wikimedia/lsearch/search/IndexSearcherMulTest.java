@@ -0,0 +1,58 @@
+package org.wikimedia.lsearch.search;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+
+public class IndexSearcherMulTest extends TestCase {
+	
+	protected RAMDirectory makeIndex() throws Exception {
+		RAMDirectory dir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(dir,new SimpleAnalyzer(),true);
+		Document d = new Document();
+		d.add(new Field("title","Main Page",Field.Store.YES,Field.Index.TOKENIZED));
+		writer.addDocument(d);
+		writer.close();
+		return dir;
+	}
+	
+	public void testRefCounting() throws Exception {
+		IndexSearcherMul s = new IndexSearcherMul(makeIndex());
+		assertEquals(1,s.getRefCount());
+		assertTrue(s.acquire());
+		s.release(); // pool's reference
+		assertFalse(s.isClosed());
+		assertEquals("Main Page",s.doc(0).get("title"));
+		s.release(); // last query finished
+		assertTrue(s.isClosed());
+		assertFalse(s.acquire());
+	}
+	
+	public void testSharedReader() throws Exception {
+		IndexSearcherMul owner = new IndexSearcherMul(makeIndex());
+		IndexSearcherMul shared = new IndexSearcherMul(owner);
+		assertSame(owner.getIndexReader(),shared.getIndexReader());
+		assertTrue(shared.acquire());
+		owner.release();
+		shared.release();
+		// query on shared still running
+		assertFalse(owner.isClosed());
+		assertEquals(1,shared.doc(0).getFields().size());
+		shared.release();
+		assertTrue(shared.isClosed());
+		assertTrue(owner.isClosed());
+	}
+	
+	public void testForceClose() throws Exception {
+		IndexSearcherMul s = new IndexSearcherMul(makeIndex());
+		assertTrue(s.acquire());
+		s.forceClose();
+		assertTrue(s.isClosed());
+		s.release(); // late release doesn't close again
+		assertEquals(0,s.getRefCount());
+	}
+}
@@ -0,0 +1,80 @@
+package org.wikimedia.lsearch.search;
+
+import java.util.ArrayList;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.search.AggregateMetaField.AggregateMetaFieldSource;
+import org.wikimedia.lsearch.search.ArticleMeta.ArticleMetaSource;
+import org.wikimedia.lsearch.test.WikiTestCase;
+
+public class MetaCacherTest extends WikiTestCase {
+
+	protected Document doc(int i){
+		Document d = new Document();
+		d.add(new Field("namespace",Integer.toString(i%3),Field.Store.YES,Field.Index.UN_TOKENIZED));
+		d.add(new Field("title","Page "+i+(i%5==0? "/Sub" : ""),Field.Store.YES,Field.Index.TOKENIZED));
+		d.add(new Field("date","2008-01-01T00:00:00Z",Field.Store.YES,Field.Index.NO));
+		d.add(new Field("body","not needed for caching",Field.Store.YES,Field.Index.TOKENIZED));
+		// 0-2 values per doc
+		byte[] meta = new byte[(i%3)*8];
+		for(int j=0;j<i%3;j++){
+			meta[j*8] = (byte)(i%100+j+1);
+			meta[j*8+6] = (byte)(i%50);
+		}
+		d.add(new Field("alttitle_meta",meta,Field.Store.YES));
+		return d;
+	}
+
+	protected void build(IndexReader reader, IndexId iid, ArticleMetaSource article, AggregateMetaFieldSource aggregate, int threads) throws Exception {
+		ArrayList<CacheBuilder> builders = new ArrayList<CacheBuilder>();
+		builders.add(article);
+		builders.add(aggregate);
+		ArrayList<IndexReader> readers = new ArrayList<IndexReader>();
+		readers.add(reader);
+		MetaCacher.cache(readers,builders,threads);
+	}
+
+	public void testParallelEqualsSequential() throws Exception {
+		IndexId iid = IndexId.get("enwiki");
+		RAMDirectory dir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(dir,new SimpleAnalyzer(),true);
+		int num = 5000;
+		for(int i=0;i<num;i++)
+			writer.addDocument(doc(i));
+		writer.close();
+		IndexReader reader = IndexReader.open(dir);
+		for(int i=7;i<num;i+=997)
+			reader.deleteDocument(i); // some on range boundaries
+		reader.deleteDocument(num-1);
+
+		ArticleMetaSource article1 = new ArticleMetaSource(reader,iid.getNamespacesWithSubpages());
+		AggregateMetaFieldSource aggregate1 = new AggregateMetaFieldSource(reader,"alttitle");
+		build(reader,iid,article1,aggregate1,1);
+		ArticleMetaSource article4 = new ArticleMetaSource(reader,iid.getNamespacesWithSubpages());
+		AggregateMetaFieldSource aggregate4 = new AggregateMetaFieldSource(reader,"alttitle");
+		build(reader,iid,article4,aggregate4,4);
+
+		assertEquals(aggregate1.lengthBuf.limit(),aggregate4.lengthBuf.limit());
+		for(int i=0;i<num;i++){
+			if(reader.isDeleted(i))
+				continue;
+			assertEquals(article1.isSubpage(i),article4.isSubpage(i));
+			assertEquals(article1.namespace(i),article4.namespace(i));
+			assertEquals(article1.daysOld(i),article4.daysOld(i),0.01);
+			assertEquals(aggregate1.getNamespace(i),aggregate4.getNamespace(i));
+			for(int j=0;j<i%3;j++){
+				assertEquals(i%100+j+1,aggregate4.getLength(i,j));
+				assertEquals(aggregate1.getLength(i,j),aggregate4.getLength(i,j));
+				assertEquals(aggregate1.getLengthComplete(i,j),aggregate4.getLengthComplete(i,j));
+			}
+			assertEquals(-1,aggregate4.getValueIndex(i,i%3,true));
+		}
+		reader.close();
+	}
+}
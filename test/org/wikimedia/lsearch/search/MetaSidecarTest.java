@@ -0,0 +1,92 @@
+package org.wikimedia.lsearch.search;
+
+import java.io.File;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.search.AggregateMetaField.AggregateMetaFieldSource;
+import org.wikimedia.lsearch.search.ArticleMeta.ArticleMetaSource;
+import org.wikimedia.lsearch.test.WikiTestCase;
+import org.wikimedia.lsearch.util.FSUtils;
+
+public class MetaSidecarTest extends WikiTestCase {
+	
+	protected byte[] meta(int... lengths){
+		byte[] b = new byte[lengths.length*8];
+		for(int i=0;i<lengths.length;i++){
+			b[i*8] = (byte)lengths[i];
+			b[i*8+1] = (byte)(lengths[i]-1);
+			int boost = Float.floatToIntBits(lengths[i]*1.5f);
+			b[i*8+2] = (byte)(boost >>> 24);
+			b[i*8+3] = (byte)(boost >>> 16);
+			b[i*8+4] = (byte)(boost >>> 8);
+			b[i*8+5] = (byte)boost;
+			b[i*8+6] = (byte)(lengths[i]+1);
+			b[i*8+7] = 0;
+		}
+		return b;
+	}
+	
+	protected Document doc(String ns, String title, String date, byte[] meta){
+		Document d = new Document();
+		d.add(new Field("namespace",ns,Field.Store.YES,Field.Index.UN_TOKENIZED));
+		d.add(new Field("title",title,Field.Store.YES,Field.Index.TOKENIZED));
+		if(date != null)
+			d.add(new Field("date",date,Field.Store.YES,Field.Index.NO));
+		d.add(new Field("alttitle_meta",meta,Field.Store.YES));
+		return d;
+	}
+	
+	public void testWriteLoad() throws Exception {
+		IndexId iid = IndexId.get("enwiki");
+		File dir = File.createTempFile("sidecar","test");
+		dir.delete();
+		dir.mkdirs();
+		try{
+			IndexWriter writer = new IndexWriter(dir,new SimpleAnalyzer(),true);
+			writer.addDocument(doc("0","Main Page","2008-01-01T00:00:00Z",meta(3)));
+			writer.addDocument(doc("2","User/Subpage",null,meta(4,5)));
+			writer.addDocument(doc("0","Other","2009-06-01T12:00:00Z",meta(6)));
+			writer.close();
+			
+			MetaSidecar.write(iid,dir.getPath());
+			assertTrue(new File(dir,MetaSidecar.FILENAME).exists());
+			
+			IndexReader reader = IndexReader.open(dir);
+			// values built from stored fields
+			ArticleMetaSource article = new ArticleMetaSource(reader,iid.getNamespacesWithSubpages());
+			AggregateMetaFieldSource aggregate = new AggregateMetaFieldSource(reader,"alttitle");
+			article.init(); aggregate.init();
+			for(int i=0;i<reader.maxDoc();i++){
+				article.cache(i,reader.document(i));
+				aggregate.cache(i,reader.document(i));
+			}
+			article.end(); aggregate.end();
+			
+			assertTrue(MetaSidecar.load(reader,iid,dir.getPath()));
+			ArticleMetaSource mArticle = ArticleMeta.getCachedSource(reader);
+			AggregateMetaFieldSource mAggregate = AggregateMetaField.getCachedSource(reader,"alttitle");
+			for(int i=0;i<reader.maxDoc();i++){
+				assertEquals(article.isSubpage(i),mArticle.isSubpage(i));
+				assertEquals(article.namespace(i),mArticle.namespace(i));
+				assertEquals(article.daysOld(i),mArticle.daysOld(i),0.01);
+				assertEquals(aggregate.getNamespace(i),mAggregate.getNamespace(i));
+				assertEquals(aggregate.getRank(i),mAggregate.getRank(i));
+				assertEquals(aggregate.getLength(i,0),mAggregate.getLength(i,0));
+				assertEquals(aggregate.getLengthComplete(i,0),mAggregate.getLengthComplete(i,0));
+			}
+			assertEquals(5,mAggregate.getLength(1,1));
+			assertEquals(7.5f,mAggregate.getBoost(1,1));
+			assertEquals(5,mAggregate.getLengthNoStopWords(2,0));
+			assertTrue(mArticle.daysOld(2) > 365);
+			assertEquals(0f,mArticle.daysOld(1));
+			reader.close();
+		} finally{
+			FSUtils.deleteRecursive(dir);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package org.wikimedia.lsearch.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.MultiSearcherBase;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearchableMul;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+
+import junit.framework.TestCase;
+
+public class ParallelSearchTest extends TestCase {
+	
+	protected IndexSearcherMul makePart(int part, int size) throws IOException {
+		RAMDirectory dir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(dir,new SimpleAnalyzer(),true);
+		for(int i=0;i<size;i++){
+			Document d = new Document();
+			d.add(new Field("key",part+":"+i,Field.Store.YES,Field.Index.UN_TOKENIZED));
+			StringBuilder sb = new StringBuilder("common");
+			for(int j=0;j<=i%5;j++)
+				sb.append(" word");
+			d.add(new Field("contents",sb.toString(),Field.Store.NO,Field.Index.TOKENIZED));
+			writer.addDocument(d);
+		}
+		writer.close();
+		return new IndexSearcherMul(dir);
+	}
+	
+	public void testConcurrentMatchesSequential() throws IOException {
+		SearchableMul[] parts = { makePart(0,30), makePart(1,7), makePart(2,55) };
+		TermQuery q = new TermQuery(new Term("contents","word"));
+		
+		MultiSearcherMul seq = new MultiSearcherMul(parts);
+		TopDocs expected = seq.search(q,null,20);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try{
+			MultiSearcherMul par = new MultiSearcherMul(parts);
+			par.setExecutor(executor,10000);
+			assertTrue(par.isConcurrent());
+			TopDocs hits = par.search(q,null,20);
+			
+			assertEquals(92,hits.totalHits);
+			assertEquals(expected.totalHits,hits.totalHits);
+			assertEquals(expected.scoreDocs.length,hits.scoreDocs.length);
+			for(int i=0;i<hits.scoreDocs.length;i++){
+				assertEquals(expected.scoreDocs[i].doc,hits.scoreDocs[i].doc);
+				assertEquals(expected.scoreDocs[i].score,hits.scoreDocs[i].score);
+			}
+			
+			Term[] terms = { new Term("contents","word"), new Term("contents","common"), new Term("contents","none") };
+			int[] dfs = par.docFreqs(terms);
+			assertEquals(92,dfs[0]);
+			assertEquals(92,dfs[1]);
+			assertEquals(0,dfs[2]);
+		} finally{
+			executor.shutdown();
+		}
+	}
+	
+	public void testPartWeightFromGlobalStats() throws IOException {
+		IndexSearcherMul[] parts = { makePart(0,30), makePart(1,7) };
+		MultiSearcherMul ms = new MultiSearcherMul(parts);
+		Query q = ms.rewrite(new TermQuery(new Term("contents","word")));
+		TopDocs expected = ms.search(q,null,50);
+		
+		// search second part alone, using global stats
+		Term[] terms = { new Term("contents","word") };
+		TopDocs hits = parts[1].search(MultiSearcherBase.createWeight(q,terms,ms.docFreqs(terms),ms.maxDoc(),parts[1].getSimilarity()),null,50);
+		assertEquals(7,hits.totalHits);
+		for(int i=0,j=0;i<expected.scoreDocs.length;i++){
+			if(expected.scoreDocs[i].doc >= 30){
+				assertEquals(expected.scoreDocs[i].doc-30,hits.scoreDocs[j].doc);
+				assertEquals(expected.scoreDocs[i].score,hits.scoreDocs[j].score);
+				j++;
+			}
+		}
+	}
+	
+	public void testMergedPartStats() throws IOException {
+		IndexSearcherMul[] parts = { makePart(0,30), makePart(1,7) };
+		MultiSearcherMul ms = new MultiSearcherMul(parts);
+		Query q = new TermQuery(new Term("contents","word"));
+		TopDocs expected = ms.search(q,null,50);
+		
+		Term[] extra = { new Term("contents","common"), new Term("contents","none") };
+		ArrayList<PartStats> partStats = new ArrayList<PartStats>();
+		for(IndexSearcherMul p : parts)
+			partStats.add(PartStats.make(p,q,extra));
+		PartStats stats = PartStats.merge(partStats);
+		assertEquals(q,stats.query);
+		assertEquals(37,stats.maxDoc);
+		assertEquals(3,stats.terms.length);
+		int[] dfs = stats.getDfs(new Term[] { new Term("contents","word"), extra[0], extra[1] });
+		assertEquals(37,dfs[0]);
+		assertEquals(37,dfs[1]);
+		assertEquals(0,dfs[2]);
+		
+		// parts searched with merged stats score as in the multi searcher
+		TopDocs hits = parts[0].search(MultiSearcherBase.createWeight(stats.query,stats.terms,stats.dfs,stats.maxDoc,parts[0].getSimilarity()),null,50);
+		for(int i=0,j=0;i<expected.scoreDocs.length;i++){
+			if(expected.scoreDocs[i].doc < 30){
+				assertEquals(expected.scoreDocs[i].doc,hits.scoreDocs[j].doc);
+				assertEquals(expected.scoreDocs[i].score,hits.scoreDocs[j].score);
+				j++;
+			}
+		}
+	}
+}
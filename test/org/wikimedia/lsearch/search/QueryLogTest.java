@@ -0,0 +1,28 @@
+package org.wikimedia.lsearch.search;
+
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import org.wikimedia.lsearch.benchmark.Terms;
+
+public class QueryLogTest extends TestCase {
+	
+	public void testRolling() {
+		QueryLog log = new QueryLog(3);
+		log.add("a");
+		log.add("b");
+		assertEquals(2,log.getCount());
+		log.add("c");
+		log.add("d");
+		assertEquals(3,log.getCount());
+		Terms terms = log.getTerms();
+		assertEquals(3,terms.termCount());
+		HashSet<String> seen = new HashSet<String>();
+		for(int i=0;i<6;i++)
+			seen.add(terms.next());
+		assertEquals(3,seen.size());
+		assertFalse(seen.contains("a"));
+		assertTrue(seen.contains("d"));
+	}
+}
@@ -0,0 +1,91 @@
+package org.wikimedia.lsearch.search;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Set;
+
+import org.wikimedia.lsearch.beans.ResultSet;
+import org.wikimedia.lsearch.beans.SearchResults;
+import org.wikimedia.lsearch.config.GlobalConfiguration;
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.test.WikiTestCase;
+
+public class ResultCacheTest extends WikiTestCase {
+	protected SearchResults makeResults(int num){
+		SearchResults res = new SearchResults();
+		res.setSuccess(true);
+		res.setNumHits(num);
+		for(int i=0;i<num;i++)
+			res.addResult(new ResultSet(1.0/(i+1),"0","Title "+i));
+		return res;
+	}
+	
+	public void testKey(){
+		assertEquals(ResultCache.makeKey("enwiki","search"," foo   bar ",20),
+				ResultCache.makeKey("enwiki","search","foo bar",20));
+		assertFalse(ResultCache.makeKey("enwiki","search","foo bar",20).equals(
+				ResultCache.makeKey("enwiki","search","foo bar",21)));
+	}
+	
+	public void testGetPutInvalidate(){
+		ResultCache cache = new ResultCache(2,1000000);
+		long gen = cache.getGeneration();
+		assertNull(cache.get("a"));
+		cache.put("a",makeResults(3),Collections.singleton("enwiki"),gen);
+		SearchResults r1 = cache.get("a");
+		SearchResults r2 = cache.get("a");
+		assertEquals(3,r1.getNumHits());
+		assertEquals("Title 2",r1.getResults().get(2).getTitle());
+		assertNotSame(r1,r2); // every hit is a copy
+		
+		// LRU, size bound
+		cache.put("b",makeResults(1),Collections.singleton("dewiki"),gen);
+		cache.get("a");
+		cache.put("c",makeResults(1),Collections.singleton("dewiki"),gen);
+		assertEquals(2,cache.getSize());
+		assertNull(cache.get("b"));
+		
+		cache.invalidate("dewiki");
+		assertEquals(1,cache.getSize());
+		assertNotNull(cache.get("a"));
+		// search started before invalidation is not cached
+		cache.put("d",makeResults(1),Collections.singleton("enwiki"),gen);
+		assertNull(cache.get("d"));
+	}
+	
+	public void testMemoryBound(){
+		ResultCache cache = new ResultCache(100,50000);
+		for(int i=0;i<100;i++)
+			cache.put("k"+i,makeResults(20),Collections.singleton("enwiki"),0);
+		assertTrue(cache.getMemory() <= 50000);
+		assertTrue(cache.getSize() > 0 && cache.getSize() < 100);
+		assertNotNull(cache.get("k99"));
+		assertNull(cache.get("k0"));
+	}
+	
+	public void testDependentDBs() throws Exception {
+		// images are searched on enwikisource as commons
+		Field commons = GlobalConfiguration.class.getDeclaredField("commonsWiki");
+		commons.setAccessible(true);
+		commons.set(GlobalConfiguration.getInstance(),"enwikisource");
+		try{
+			checkDependentDBs();
+		} finally{
+			commons.set(GlobalConfiguration.getInstance(),null);
+		}
+	}
+	
+	protected void checkDependentDBs(){
+		IndexId iid = IndexId.get("enwiki");
+		Set<String> dbs = SearchEngine.getDependentDBs(iid,"foo",new NamespaceFilter("0"));
+		assertTrue(dbs.contains("enwiki"));
+		assertFalse(dbs.contains("enwikisource"));
+		
+		dbs = SearchEngine.getDependentDBs(iid,"foo",new NamespaceFilter("0,6"));
+		assertTrue(dbs.contains("enwiki"));
+		assertTrue(dbs.contains("enwikisource"));
+		
+		dbs = SearchEngine.getDependentDBs(iid,"image:foo",new NamespaceFilter("0"));
+		assertTrue(dbs.contains("enwikisource"));
+	}
+}
@@ -0,0 +1,75 @@
+package org.wikimedia.lsearch.search;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.wikimedia.lsearch.config.IndexId;
+import org.wikimedia.lsearch.search.SearcherCache.SearcherPool;
+import org.wikimedia.lsearch.test.WikiTestCase;
+
+public class SearcherPoolTest extends WikiTestCase {
+	
+	protected SearcherPool makePool(int size) throws Exception {
+		RAMDirectory dir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(dir,new SimpleAnalyzer(),true);
+		Document d = new Document();
+		d.add(new Field("title","Main Page",Field.Store.YES,Field.Index.TOKENIZED));
+		writer.addDocument(d);
+		writer.close();
+		IndexSearcherMul[] searchers = new IndexSearcherMul[size];
+		searchers[0] = new IndexSearcherMul(dir);
+		for(int i=1;i<size;i++)
+			searchers[i] = new IndexSearcherMul(searchers[0]);
+		return new SearcherPool(IndexId.get("enwiki"),searchers);
+	}
+	
+	/** concurrent gets should be spread evenly over the pool */
+	public void testRoundRobin() throws Exception {
+		final SearcherPool pool = makePool(3);
+		final IdentityHashMap<IndexSearcherMul,AtomicInteger> counts = new IdentityHashMap<IndexSearcherMul,AtomicInteger>();
+		for(IndexSearcherMul s : pool.searchers)
+			counts.put(s,new AtomicInteger());
+		Thread[] threads = new Thread[4];
+		for(int i=0;i<threads.length;i++){
+			threads[i] = new Thread(){
+				public void run(){
+					for(int j=0;j<300;j++)
+						counts.get(pool.get()).incrementAndGet();
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		for(AtomicInteger c : counts.values())
+			assertEquals(400,c.get());
+	}
+	
+	/** counter overflow should not give a negative index */
+	public void testOverflow() throws Exception {
+		SearcherPool pool = makePool(3);
+		pool.index.set(Integer.MAX_VALUE-1);
+		for(int i=0;i<5;i++)
+			assertNotNull(pool.get());
+	}
+	
+	/** searchers sharing a reader are closed with the last one */
+	public void testSharedReader() throws Exception {
+		SearcherPool pool = makePool(3);
+		IndexSearcherMul owner = pool.searchers[0];
+		for(IndexSearcherMul s : pool.searchers)
+			assertSame(owner.getIndexReader(),s.getIndexReader());
+		IndexSearcherMul s = pool.searchers[2];
+		assertTrue(s.acquire()); // running query
+		for(IndexSearcherMul p : pool.searchers)
+			p.release();
+		assertFalse(owner.isClosed());
+		s.release();
+		assertTrue(owner.isClosed());
+	}
+}
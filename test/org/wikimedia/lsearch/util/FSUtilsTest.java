@@ -0,0 +1,67 @@
+package org.wikimedia.lsearch.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+public class FSUtilsTest extends TestCase {
+	protected File base;
+
+	protected void setUp() throws Exception {
+		base = File.createTempFile("fsutils","test");
+		base.delete();
+		base.mkdirs();
+	}
+
+	protected void tearDown() throws Exception {
+		FSUtils.deleteRecursive(base);
+	}
+
+	protected void write(File f, String text) throws IOException {
+		f.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(text.getBytes());
+		out.close();
+	}
+
+	public void testHardLinkRecursive() throws Exception {
+		File from = new File(base,"index");
+		for(int i=0;i<100;i++)
+			write(new File(from,"_"+i+".cfs"),"segment "+i);
+		write(new File(from,"sub/dir/file"),"nested");
+		File to = new File(base,"snapshot/1");
+		FSUtils.createHardLinkRecursive(from.getPath(),to.getPath());
+		for(int i=0;i<100;i++)
+			assertTrue(Files.isSameFile(new File(from,"_"+i+".cfs").toPath(),new File(to,"_"+i+".cfs").toPath()));
+		assertTrue(Files.isSameFile(new File(from,"sub/dir/file").toPath(),new File(to,"sub/dir/file").toPath()));
+
+		// linking into existing dir replaces files
+		write(new File(base,"other/_0.cfs"),"changed");
+		FSUtils.createHardLinkRecursive(new File(base,"other").getPath(),to.getPath());
+		assertTrue(Files.isSameFile(new File(base,"other/_0.cfs").toPath(),new File(to,"_0.cfs").toPath()));
+		assertTrue(Files.isSameFile(new File(from,"_1.cfs").toPath(),new File(to,"_1.cfs").toPath()));
+
+		try{
+			FSUtils.createHardLinkRecursive(new File(base,"missing").getPath(),to.getPath());
+			fail("Linking missing file should fail");
+		} catch(IOException e){
+			// expected
+		}
+	}
+
+	public void testSymLink() throws Exception {
+		File v1 = new File(base,"update/1"), v2 = new File(base,"update/2");
+		write(new File(v1,"f"),"1");
+		write(new File(v2,"f"),"2");
+		File link = new File(base,"search/enwiki");
+		link.getParentFile().mkdirs();
+		FSUtils.createSymLink(v1.getPath(),link.getPath());
+		assertEquals(v1.getCanonicalPath(),link.getCanonicalPath());
+		FSUtils.createSymLink(v2.getPath(),link.getPath());
+		assertEquals(v2.getCanonicalPath(),link.getCanonicalPath());
+		assertEquals(1,link.getParentFile().list().length);
+	}
+}